@@ -0,0 +1,28 @@
+#!/bin/sh
+# Runs a cluster on this machine: N collector nodes plus the UDP router, each its own JVM.
+# Node i listens on UDP 4100+i, WebSocket 8200+i and HTTP 8100+i; the router takes the
+# usual UDP 4000 and HTTP 8081, so exporters and the dashboard need no changes.
+# Usage: CP=<compiled classes and jars> ./run-cluster.sh [nodes]
+NODES=${1:-3}
+CP=${CP:-src:json-20230618.jar:Java-WebSocket-1.5.4.jar:slf4j-api-2.0.9.jar:slf4j-simple-2.0.9.jar}
+
+CLUSTER_NODES=""
+i=1
+while [ $i -le $NODES ]; do
+    CLUSTER_NODES="$CLUSTER_NODES${CLUSTER_NODES:+,}node$i=127.0.0.1:$((4100 + i)):$((8100 + i))"
+    i=$((i + 1))
+done
+export CLUSTER_NODES
+echo "CLUSTER_NODES=$CLUSTER_NODES"
+
+trap 'kill $(jobs -p) 2>/dev/null' INT TERM EXIT
+i=1
+while [ $i -le $NODES ]; do
+    CLUSTER_NODE=node$i UDP_PORT=$((4100 + i)) WS_PORT=$((8200 + i)) HTTP_PORT=$((8100 + i)) \
+        java --add-modules jdk.httpserver -cp "$CP" collector.Main > node$i.log 2>&1 &
+    i=$((i + 1))
+done
+CLUSTER_NODE="" UDP_PORT=4000 HTTP_PORT=8081 \
+    java --add-modules jdk.httpserver -cp "$CP" collector.Main > router.log 2>&1 &
+echo "Started $NODES nodes and the router, logs in node*.log and router.log; Ctrl-C stops them all"
+wait
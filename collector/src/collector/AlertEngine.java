@@ -0,0 +1,437 @@
+package collector;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Evaluates alert rules as samples are stored. Each series resolves the rules
+ * that match it once, on its first sample; after that a sample costs one
+ * constant-size state update per matching rule. Absence rules are driven by a
+ * timing wheel instead of a periodic scan: a series is only looked at again
+ * when its deadline comes up, and a sample that arrived in the meantime just
+ * pushes the deadline out.
+ *
+ * Rules are a JSON array, for example
+ * <pre>
+ * [{"name": "HighCpu", "metric": "cpu_usage", "type": "threshold", "op": "&gt;", "value": 0.8, "clear": 0.7, "for": "10s"},
+ *  {"name": "MemoryDropping", "metric": "mem_free", "type": "rate", "op": "&lt;", "value": -50000000, "window": "10s"},
+ *  {"name": "ExporterSilent", "device": "*", "metric": "cpu_usage", "type": "absent", "for": "30s"}]
+ * </pre>
+ * "device" and "metric" are globs (default "*"). Threshold and rate rules fire
+ * once the condition has held for "for" and resolve when the value (or the
+ * per-second rate over "window") crosses back over "clear", which defaults to
+ * "value".
+ */
+public class AlertEngine {
+    public static final String DEFAULT_RULES = "["
+            + "{\"name\": \"HighCpu\", \"metric\": \"cpu_usage\", \"type\": \"threshold\", \"op\": \">\", \"value\": 0.8, \"clear\": 0.7, \"for\": \"10s\"},"
+            + "{\"name\": \"LowMemory\", \"metric\": \"mem_free\", \"type\": \"threshold\", \"op\": \"<\", \"value\": 300000000, \"clear\": 350000000, \"for\": \"10s\"},"
+            + "{\"name\": \"TooManyThreads\", \"metric\": \"threads\", \"type\": \"threshold\", \"op\": \">\", \"value\": 250, \"for\": \"10s\"},"
+            + "{\"name\": \"DeviceSilent\", \"metric\": \"cpu_usage\", \"type\": \"absent\", \"for\": \"30s\"}]";
+    private static final RuleState[] NO_RULES = new RuleState[0];
+    private static final int RECENT_EVENTS = 200;
+    private static final long TICK_MS = 1000;
+    
+    private final Rule[] rules;
+    private final Map<Integer, RuleState[]> seriesRules = new ConcurrentHashMap<>();
+    private final Map<RuleState, Boolean> active = new ConcurrentHashMap<>(); // Pending or firing
+    private final ArrayDeque<JSONObject> recent = new ArrayDeque<>();
+    private final TimingWheel wheel = new TimingWheel(TICK_MS, 4096);
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "alert-wheel");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile Consumer<JSONObject> listener = event -> { };
+    
+    private final LongAdder evaluations = new LongAdder();
+    private final LongAdder transitions = new LongAdder();
+    private final LongAdder exporterAlerts = new LongAdder();
+    private final LongAdder wheelExpirations = new LongAdder();
+    
+    public AlertEngine(String rulesJson) {
+        JSONArray array = new JSONArray(rulesJson);
+        rules = new Rule[array.length()];
+        for (int i = 0; i < rules.length; i++) {
+            rules[i] = new Rule(array.getJSONObject(i));
+        }
+    }
+    
+    // Receives every firing/resolved transition, e.g. to push it to WebSocket clients
+    public void onTransition(Consumer<JSONObject> listener) {
+        this.listener = listener;
+    }
+    
+    public void start() {
+        ticker.scheduleAtFixedRate(() -> {
+            try {
+                wheel.advance(System.currentTimeMillis(), this::expired);
+            } catch (RuntimeException e) {
+                System.err.println("Error evaluating absence rules: " + e.getMessage());
+            }
+        }, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+    
+    public void stop() {
+        ticker.shutdown();
+    }
+    
+    // Called by the series' single writer after a sample was accepted
+    public void onSample(Series series, long timestamp, double value) {
+        RuleState[] states = seriesRules.get(series.id);
+        if (states == null) {
+            states = seriesRules.computeIfAbsent(series.id, id -> match(series));
+        }
+        for (RuleState state : states) {
+            evaluations.increment();
+            state.rule.type.evaluate(this, state, timestamp, value);
+        }
+    }
+    
+    // Drops the rule state of a series the store no longer holds; its firing alerts resolve
+    public void forget(Series series) {
+        RuleState[] states = seriesRules.remove(series.id);
+        if (states != null) {
+            long now = System.currentTimeMillis();
+            for (RuleState state : states) {
+                synchronized (state) {
+                    state.forgotten = true; // A pending absence deadline must not fire for it
+                    active.remove(state);
+                    if (state.status == Status.FIRING) {
+                        state.status = Status.INACTIVE;
+                        transition(state, "resolved", now); // Otherwise listeners would never see it end
+                    }
+                }
+            }
+        }
+    }
+    
+    private RuleState[] match(Series series) {
+        List<RuleState> matched = new ArrayList<>();
+        for (Rule rule : rules) {
+            if (rule.device.matcher(series.deviceId).matches() && rule.metric.matcher(series.name).matches()) {
+                matched.add(new RuleState(rule, series.deviceId, series.metricName));
+            }
+        }
+        return matched.isEmpty() ? NO_RULES : matched.toArray(new RuleState[0]);
+    }
+    
+    // Alerts evaluated by exporters are recorded as events; they carry no state here
+    public void onExporterAlert(MetricPacket packet) {
+        for (int i = 0; i < packet.count; i++) {
+            exporterAlerts.increment();
+            JSONObject event = new JSONObject()
+                    .put("source", "exporter")
+                    .put("device", packet.deviceId)
+                    .put("metric", packet.names[i])
+                    .put("value", packet.values[i])
+                    .put("state", "firing")
+                    .put("at", packet.timestamp);
+            record(event);
+        }
+    }
+    
+    // Threshold and rate rules share the pending/firing/resolved logic
+    private void condition(RuleState state, boolean holds, long timestamp, double value) {
+        synchronized (state) {
+            state.value = value;
+            if (holds) {
+                if (state.status == Status.INACTIVE) {
+                    state.status = Status.PENDING;
+                    state.since = timestamp;
+                    active.put(state, Boolean.TRUE);
+                }
+                if (state.status == Status.PENDING && timestamp - state.since >= state.rule.forMs) {
+                    state.status = Status.FIRING;
+                    state.since = timestamp;
+                    transition(state, "firing", timestamp);
+                }
+            } else if (state.status != Status.INACTIVE) {
+                boolean wasFiring = state.status == Status.FIRING;
+                state.status = Status.INACTIVE;
+                active.remove(state);
+                if (wasFiring) {
+                    transition(state, "resolved", timestamp);
+                }
+            }
+        }
+    }
+    
+    // The wheel found an absence deadline; re-arm if a sample came in since it was set
+    private void expired(RuleState state, long now) {
+        wheelExpirations.increment();
+        synchronized (state) {
+            state.scheduled = false;
+            if (state.forgotten) {
+                return;
+            }
+            long deadline = state.lastSeen + state.rule.forMs;
+            if (deadline > now) {
+                state.scheduled = true;
+                wheel.schedule(state, deadline);
+            } else if (state.status != Status.FIRING) {
+                state.status = Status.FIRING;
+                state.since = now;
+                active.put(state, Boolean.TRUE);
+                transition(state, "firing", now);
+            }
+        }
+    }
+    
+    private void transition(RuleState state, String status, long at) {
+        transitions.increment();
+        JSONObject event = state.toJson().put("state", status).put("at", at);
+        record(event);
+        listener.accept(event);
+    }
+    
+    private void record(JSONObject event) {
+        synchronized (recent) {
+            if (recent.size() == RECENT_EVENTS) {
+                recent.pollFirst();
+            }
+            recent.addLast(event);
+        }
+    }
+    
+    // Current pending/firing alerts, recent transitions and the configured rules
+    public JSONObject toJson() {
+        JSONArray activeAlerts = new JSONArray();
+        for (RuleState state : active.keySet()) {
+            synchronized (state) {
+                if (state.status != Status.INACTIVE) {
+                    activeAlerts.put(state.toJson().put("state", state.status.name().toLowerCase()));
+                }
+            }
+        }
+        JSONArray events = new JSONArray();
+        synchronized (recent) {
+            for (JSONObject event : recent) {
+                events.put(event);
+            }
+        }
+        JSONArray ruleList = new JSONArray();
+        for (Rule rule : rules) {
+            ruleList.put(rule.source);
+        }
+        return new JSONObject()
+                .put("active", activeAlerts)
+                .put("recent", events)
+                .put("rules", ruleList);
+    }
+    
+    public JSONObject stats() {
+        return new JSONObject()
+                .put("rules", rules.length)
+                .put("series", seriesRules.size())
+                .put("active", active.size())
+                .put("evaluations", evaluations.sum())
+                .put("transitions", transitions.sum())
+                .put("exporterAlerts", exporterAlerts.sum())
+                .put("wheelExpirations", wheelExpirations.sum())
+                .put("wheelScheduled", wheel.size());
+    }
+    
+    private enum Status { INACTIVE, PENDING, FIRING }
+    
+    private enum Type {
+        THRESHOLD {
+            @Override
+            void evaluate(AlertEngine engine, RuleState state, long timestamp, double value) {
+                engine.condition(state, state.holds(value), timestamp, value);
+            }
+        },
+        RATE {
+            // Per-second change since the anchor sample, measured once the window has passed
+            @Override
+            void evaluate(AlertEngine engine, RuleState state, long timestamp, double value) {
+                if (state.anchorTimestamp == Long.MIN_VALUE) {
+                    state.anchorTimestamp = timestamp;
+                    state.anchorValue = value;
+                    return;
+                }
+                long elapsed = timestamp - state.anchorTimestamp;
+                if (elapsed < Math.max(1, state.rule.windowMs)) {
+                    return;
+                }
+                double rate = (value - state.anchorValue) * 1000.0 / elapsed;
+                state.anchorTimestamp = timestamp;
+                state.anchorValue = value;
+                engine.condition(state, state.holds(rate), timestamp, rate);
+            }
+        },
+        ABSENT {
+            @Override
+            void evaluate(AlertEngine engine, RuleState state, long timestamp, double value) {
+                long now = System.currentTimeMillis(); // Wall clock: exporter clocks may drift
+                synchronized (state) {
+                    state.lastSeen = now;
+                    state.value = value;
+                    if (state.status == Status.FIRING) {
+                        state.status = Status.INACTIVE;
+                        engine.active.remove(state);
+                        engine.transition(state, "resolved", now);
+                    }
+                    if (!state.scheduled) {
+                        state.scheduled = true;
+                        engine.wheel.schedule(state, now + state.rule.forMs);
+                    }
+                }
+            }
+        };
+        
+        abstract void evaluate(AlertEngine engine, RuleState state, long timestamp, double value);
+    }
+    
+    private static final class Rule {
+        final JSONObject source;
+        final String name;
+        final Pattern device;
+        final Pattern metric;
+        final Type type;
+        final boolean above;
+        final double threshold;
+        final double clear;
+        final long forMs;
+        final long windowMs;
+        
+        Rule(JSONObject json) {
+            source = json;
+            name = json.getString("name");
+            device = glob(json.optString("device", "*"));
+            metric = glob(json.optString("metric", "*"));
+            type = Type.valueOf(json.optString("type", "threshold").toUpperCase());
+            String op = json.optString("op", ">");
+            if (!op.equals(">") && !op.equals("<")) {
+                throw new IllegalArgumentException("Rule " + name + ": op must be > or <");
+            }
+            above = op.equals(">");
+            threshold = json.optDouble("value", 0);
+            clear = json.optDouble("clear", threshold);
+            forMs = RollupTier.Spec.parseDuration(json.optString("for", "0"));
+            windowMs = RollupTier.Spec.parseDuration(json.optString("window", "10s"));
+            if (type == Type.ABSENT && forMs <= 0) {
+                throw new IllegalArgumentException("Rule " + name + ": absent rules need a \"for\" duration");
+            }
+        }
+        
+        private static Pattern glob(String glob) {
+            StringBuilder regex = new StringBuilder();
+            for (String part : glob.split("\\*", -1)) {
+                if (regex.length() > 0) {
+                    regex.append(".*");
+                }
+                regex.append(Pattern.quote(part));
+            }
+            return Pattern.compile(regex.toString());
+        }
+    }
+    
+    // State of one rule on one series; identity-keyed in the active set
+    private static final class RuleState {
+        final Rule rule;
+        final String deviceId;
+        final String metricName;
+        Status status = Status.INACTIVE;
+        long since;
+        double value;
+        long anchorTimestamp = Long.MIN_VALUE; // Rate rules
+        double anchorValue;
+        long lastSeen; // Absence rules
+        boolean scheduled;
+        long deadline; // Owned by the timing wheel
+        boolean forgotten; // Its series was removed from the store
+        
+        RuleState(Rule rule, String deviceId, String metricName) {
+            this.rule = rule;
+            this.deviceId = deviceId;
+            this.metricName = metricName;
+        }
+        
+        // Hysteresis: once firing, the condition holds until the value crosses the clear level
+        boolean holds(double value) {
+            if (status == Status.FIRING) {
+                return rule.above ? value >= rule.clear : value <= rule.clear;
+            }
+            return rule.above ? value > rule.threshold : value < rule.threshold;
+        }
+        
+        JSONObject toJson() {
+            return new JSONObject()
+                    .put("rule", rule.name)
+                    .put("device", deviceId)
+                    .put("metric", metricName)
+                    .put("value", value)
+                    .put("since", since);
+        }
+    }
+    
+    /**
+     * Hashed timing wheel of absence deadlines with one-tick resolution. Entries
+     * further out than one revolution stay in their slot until their round
+     * comes up, so scheduling and expiry are O(1) per entry.
+     */
+    private static final class TimingWheel {
+        private final long tickMs;
+        private final List<RuleState>[] slots;
+        private long currentTick = -1;
+        private int size;
+        
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        TimingWheel(long tickMs, int slotCount) {
+            this.tickMs = tickMs;
+            this.slots = new List[slotCount];
+            for (int i = 0; i < slotCount; i++) {
+                slots[i] = new ArrayList<>();
+            }
+        }
+        
+        synchronized void schedule(RuleState state, long deadline) {
+            state.deadline = deadline;
+            long tick = Math.max(deadline / tickMs, currentTick + 1);
+            slots[(int) (tick % slots.length)].add(state);
+            size++;
+        }
+        
+        // Expiry callbacks run outside the wheel lock; they may schedule again
+        void advance(long now, BiConsumer<RuleState, Long> onExpired) {
+            List<RuleState> due = new ArrayList<>();
+            synchronized (this) {
+                long target = now / tickMs - 1; // Only ticks that have fully passed
+                if (currentTick < 0) {
+                    currentTick = target - 1;
+                }
+                while (currentTick < target) {
+                    currentTick++;
+                    List<RuleState> slot = slots[(int) (currentTick % slots.length)];
+                    for (int i = slot.size() - 1; i >= 0; i--) {
+                        RuleState state = slot.get(i);
+                        if (state.deadline <= now) {
+                            slot.set(i, slot.get(slot.size() - 1));
+                            slot.remove(slot.size() - 1);
+                            size--;
+                            due.add(state);
+                        }
+                    }
+                }
+            }
+            for (RuleState state : due) {
+                onExpired.accept(state, now);
+            }
+        }
+        
+        synchronized int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package collector;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Builds binary WebSocket frames for clients that subscribe with "format": "binary".
+ * Series are referred to by their store id once announced, timestamps are
+ * delta-encoded and values are XOR-ed with the previous value of the block,
+ * keeping only the non-zero bytes. All multi-byte fields are big-endian.
+ *
+ * <pre>
+ * frame:  u8 0xB8, u8 kind (1 = live, 2 = backfill), i64 base timestamp (ms), records to the end
+ * record: u8 type
+ *   1 announce: varint id, varint len + device, varint len + metric
+ *   2 samples:  varint id, varint count, count x (zigzag varint timestamp delta, value)
+ *               deltas are from the previous sample, the first one from the frame base
+ *               value: u8 (leading zero bytes &lt;&lt; 4 | byte count) of the XOR with the previous
+ *               value's bits (0 before the first), then those bytes
+ *   3 alert:    varint len + device, varint len + metric, zigzag varint timestamp delta, f64 value
+ * </pre>
+ */
+public class BinaryFrameWriter {
+    public static final byte MAGIC = (byte) 0xB8;
+    public static final byte KIND_LIVE = 1;
+    public static final byte KIND_BACKFILL = 2;
+    private static final byte RECORD_ANNOUNCE = 1;
+    private static final byte RECORD_SAMPLES = 2;
+    private static final byte RECORD_ALERT = 3;
+    
+    private ByteBuffer buffer = ByteBuffer.allocate(4096);
+    private long base;
+    
+    public void begin(byte kind, long baseTimestamp) {
+        buffer.clear();
+        buffer.put(MAGIC).put(kind).putLong(baseTimestamp);
+        base = baseTimestamp;
+    }
+    
+    public void announce(Series series) {
+        byte[] device = series.deviceId.getBytes(StandardCharsets.UTF_8);
+        byte[] metric = series.metricName.getBytes(StandardCharsets.UTF_8);
+        ensure(1 + 5 + 10 + device.length + metric.length);
+        buffer.put(RECORD_ANNOUNCE);
+        WireProtocol.writeVarint(buffer, series.id);
+        putString(device);
+        putString(metric);
+    }
+    
+    public void samples(int id, long[] timestamps, double[] values, int offset, int count) {
+        ensure(1 + 5 + 5 + count * (10 + 9));
+        buffer.put(RECORD_SAMPLES);
+        WireProtocol.writeVarint(buffer, id);
+        WireProtocol.writeVarint(buffer, count);
+        long previousTimestamp = base;
+        long previousBits = 0;
+        for (int i = offset; i < offset + count; i++) {
+            putVarLong(zigzag(timestamps[i] - previousTimestamp));
+            previousTimestamp = timestamps[i];
+            long bits = Double.doubleToRawLongBits(values[i]);
+            putXor(bits ^ previousBits);
+            previousBits = bits;
+        }
+    }
+    
+    public void alert(String deviceId, String metricName, long timestamp, double value) {
+        byte[] device = deviceId.getBytes(StandardCharsets.UTF_8);
+        byte[] metric = metricName.getBytes(StandardCharsets.UTF_8);
+        ensure(1 + 10 + device.length + metric.length + 10 + 8);
+        buffer.put(RECORD_ALERT);
+        putString(device);
+        putString(metric);
+        putVarLong(zigzag(timestamp - base));
+        buffer.putDouble(value);
+    }
+    
+    // A copy of the finished frame: the socket may still hold it after the next begin()
+    public ByteBuffer finish() {
+        return ByteBuffer.wrap(Arrays.copyOf(buffer.array(), buffer.position()));
+    }
+    
+    // Identical values cost one byte; close values usually share their leading and trailing bytes
+    private void putXor(long xor) {
+        if (xor == 0) {
+            buffer.put((byte) 0);
+            return;
+        }
+        int leading = Long.numberOfLeadingZeros(xor) >>> 3;
+        int trailing = Long.numberOfTrailingZeros(xor) >>> 3;
+        int length = 8 - leading - trailing;
+        buffer.put((byte) (leading << 4 | length));
+        for (int i = 0; i < length; i++) {
+            buffer.put((byte) (xor >>> (56 - 8 * (leading + i))));
+        }
+    }
+    
+    private void putString(byte[] bytes) {
+        WireProtocol.writeVarint(buffer, bytes.length);
+        buffer.put(bytes);
+    }
+    
+    private void putVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+    
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+    
+    private void ensure(int bytes) {
+        if (buffer.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package collector;
+
+import java.util.Arrays;
+
+/**
+ * Gorilla-style compressed block of samples (delta-of-delta timestamps,
+ * XOR-encoded doubles). A chunk is built by its Encoder while it is the head of
+ * a series and becomes immutable once sealed, so readers can decode sealed
+ * chunks without any coordination.
+ */
+public final class Chunk {
+    public static final int TARGET_SAMPLES = 120;
+    
+    final long firstIndex; // Position of the first sample in its series' append order
+    final long minTimestamp;
+    final long maxTimestamp;
+    final int count;
+    final long[] bits;
+    
+    Chunk(long firstIndex, long minTimestamp, long maxTimestamp, int count, long[] bits) {
+        this.firstIndex = firstIndex;
+        this.minTimestamp = minTimestamp;
+        this.maxTimestamp = maxTimestamp;
+        this.count = count;
+        this.bits = bits;
+    }
+    
+    public long sizeBytes() {
+        return (long) bits.length * Long.BYTES + 48; // Payload plus object header and fields
+    }
+    
+    /**
+     * Appends the samples in [from, to] whose series position is below
+     * {@code endIndex} to {@code out}.
+     */
+    public void decode(long from, long to, long endIndex, SeriesSnapshot out) {
+        BitReader in = new BitReader(bits);
+        long timestamp = in.read(64);
+        long valueBits = in.read(64);
+        long delta = 0;
+        int leading = 0;
+        int trailing = 0;
+        
+        int limit = (int) Math.min(count, endIndex - firstIndex);
+        for (int i = 0; i < limit; i++) {
+            if (i > 0) {
+                delta += readDeltaOfDelta(in);
+                timestamp += delta;
+                
+                if (in.readBit()) {
+                    if (in.readBit()) {
+                        leading = (int) in.read(5);
+                        int length = (int) in.read(6);
+                        if (length == 0) {
+                            length = 64;
+                        }
+                        trailing = 64 - leading - length;
+                    }
+                    valueBits ^= in.read(64 - leading - trailing) << trailing;
+                }
+            }
+            if (timestamp > to) {
+                return;
+            }
+            if (timestamp >= from) {
+                out.append(timestamp, Double.longBitsToDouble(valueBits));
+            }
+        }
+    }
+    
+    private static long readDeltaOfDelta(BitReader in) {
+        if (!in.readBit()) {
+            return 0;
+        }
+        if (!in.readBit()) {
+            return in.read(7) - 63;
+        }
+        if (!in.readBit()) {
+            return in.read(9) - 255;
+        }
+        if (!in.readBit()) {
+            return in.read(12) - 2047;
+        }
+        return in.read(64);
+    }
+    
+    // Mutable head chunk; only touched by the series writer
+    public static final class Encoder {
+        private final long firstIndex;
+        private long[] words = new long[16];
+        private int bitCount;
+        private int count;
+        private long minTimestamp;
+        private long lastTimestamp;
+        private long lastDelta;
+        private long lastValueBits;
+        private int lastLeading = Integer.MAX_VALUE;
+        private int lastTrailing;
+        
+        public Encoder(long firstIndex) {
+            this.firstIndex = firstIndex;
+        }
+        
+        public void append(long timestamp, double value) {
+            long valueBits = Double.doubleToRawLongBits(value);
+            if (count == 0) {
+                minTimestamp = timestamp;
+                write(timestamp, 64);
+                write(valueBits, 64);
+            } else {
+                long delta = timestamp - lastTimestamp;
+                writeDeltaOfDelta(delta - lastDelta);
+                lastDelta = delta;
+                writeValue(valueBits ^ lastValueBits);
+            }
+            lastTimestamp = timestamp;
+            lastValueBits = valueBits;
+            count++;
+        }
+        
+        private void writeDeltaOfDelta(long dod) {
+            if (dod == 0) {
+                write(0, 1);
+            } else if (dod >= -63 && dod <= 64) {
+                write(0b10, 2);
+                write(dod + 63, 7);
+            } else if (dod >= -255 && dod <= 256) {
+                write(0b110, 3);
+                write(dod + 255, 9);
+            } else if (dod >= -2047 && dod <= 2048) {
+                write(0b1110, 4);
+                write(dod + 2047, 12);
+            } else {
+                write(0b1111, 4);
+                write(dod, 64);
+            }
+        }
+        
+        private void writeValue(long xor) {
+            if (xor == 0) {
+                write(0, 1);
+                return;
+            }
+            int leading = Math.min(31, Long.numberOfLeadingZeros(xor));
+            int trailing = Long.numberOfTrailingZeros(xor);
+            if (lastLeading != Integer.MAX_VALUE && leading >= lastLeading && trailing >= lastTrailing) {
+                // Meaningful bits fit in the previous window
+                write(0b10, 2);
+                write(xor >>> lastTrailing, 64 - lastLeading - lastTrailing);
+            } else {
+                int length = 64 - leading - trailing;
+                write(0b11, 2);
+                write(leading, 5);
+                write(length == 64 ? 0 : length, 6);
+                write(xor >>> trailing, length);
+                lastLeading = leading;
+                lastTrailing = trailing;
+            }
+        }
+        
+        private void write(long value, int bits) {
+            if (bits == 0) {
+                return;
+            }
+            if (bitCount + bits > words.length * 64) {
+                words = Arrays.copyOf(words, words.length * 2);
+            }
+            if (bits < 64) {
+                value &= (1L << bits) - 1;
+            }
+            int word = bitCount >>> 6;
+            int offset = bitCount & 63;
+            int free = 64 - offset;
+            if (bits <= free) {
+                words[word] |= value << (free - bits);
+            } else {
+                words[word] |= value >>> (bits - free);
+                words[word + 1] |= value << (64 - (bits - free));
+            }
+            bitCount += bits;
+        }
+        
+        public int count() {
+            return count;
+        }
+        
+        public long sizeBytes() {
+            return (long) words.length * Long.BYTES + 64;
+        }
+        
+        public Chunk seal() {
+            long[] bits = Arrays.copyOf(words, (bitCount + 63) >>> 6);
+            return new Chunk(firstIndex, minTimestamp, lastTimestamp, count, bits);
+        }
+    }
+    
+    private static final class BitReader {
+        private final long[] words;
+        private int position;
+        
+        BitReader(long[] words) {
+            this.words = words;
+        }
+        
+        boolean readBit() {
+            boolean bit = (words[position >>> 6] & (1L << (63 - (position & 63)))) != 0;
+            position++;
+            return bit;
+        }
+        
+        long read(int bits) {
+            if (bits == 0) {
+                return 0;
+            }
+            int word = position >>> 6;
+            int offset = position & 63;
+            int available = 64 - offset;
+            long value;
+            if (bits <= available) {
+                value = words[word] >>> (available - bits);
+            } else {
+                value = (words[word] << (bits - available)) | (words[word + 1] >>> (64 - (bits - available)));
+            }
+            position += bits;
+            return bits == 64 ? value : value & ((1L << bits) - 1);
+        }
+    }
+}
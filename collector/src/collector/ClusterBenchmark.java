@@ -0,0 +1,96 @@
+package collector;
+
+import org.json.JSONObject;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+// Ingest throughput of a running cluster: many devices send binary datagrams as fast as
+// possible, either straight to their owners or through the router, and the nodes' decoder
+// counters tell how many got in. Run it against clusters of different sizes to compare.
+// Usage: java -cp ... collector.ClusterBenchmark <CLUSTER_NODES> [devices] [seconds] [router host:port]
+public class ClusterBenchmark {
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: ClusterBenchmark <CLUSTER_NODES> [devices] [seconds] [router host:port]");
+            System.exit(1);
+        }
+        ClusterRing ring = new ClusterRing(args[0], "");
+        int devices = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        InetSocketAddress router = null;
+        if (args.length > 3) {
+            String[] address = args[3].split(":");
+            router = new InetSocketAddress(address[0], Integer.parseInt(address[1]));
+        }
+        
+        // One announcing and one steady datagram per device; only the timestamp changes afterwards
+        ByteBuffer[] steady = new ByteBuffer[devices];
+        InetSocketAddress[] targets = new InetSocketAddress[devices];
+        MetricPacket sample = new MetricPacket();
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            for (int d = 0; d < devices; d++) {
+                sample.reset();
+                sample.deviceId = "bench-" + d;
+                sample.timestamp = System.currentTimeMillis();
+                sample.add("cpu_usage", 0.42);
+                sample.add("mem_free", 8_123_456_789.0);
+                sample.add("threads", 42);
+                sample.add("load_avg", 1.5);
+                targets[d] = router != null ? router : ring.owner(sample.deviceId).udpAddress;
+                
+                ByteBuffer announce = ByteBuffer.allocate(512);
+                WireProtocol.encode(sample, announce, true);
+                announce.flip();
+                channel.send(announce, targets[d]);
+                steady[d] = ByteBuffer.allocate(512);
+                WireProtocol.encode(sample, steady[d], false);
+                steady[d].flip();
+            }
+            
+            long before = ingested(ring);
+            long sent = 0;
+            long start = System.nanoTime();
+            long end = start + seconds * 1_000_000_000L;
+            while (System.nanoTime() < end) {
+                long now = System.currentTimeMillis();
+                for (int d = 0; d < devices; d++) {
+                    ByteBuffer datagram = steady[d];
+                    datagram.putLong(4, now);
+                    datagram.rewind();
+                    channel.send(datagram, targets[d]);
+                }
+                sent += devices;
+            }
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            Thread.sleep(1000); // Let the nodes drain their socket buffers
+            long received = ingested(ring) - before;
+            
+            System.out.println(ring.nodes().size() + " nodes, " + devices + " devices, "
+                    + (router != null ? "via router " + args[3] : "direct to owners"));
+            System.out.printf("sent     %,.0f datagrams/sec%n", sent / elapsed);
+            System.out.printf("ingested %,.0f datagrams/sec (%.1f%% of sent)%n",
+                    received / elapsed, sent == 0 ? 0 : 100.0 * received / sent);
+        }
+    }
+    
+    // Decoded datagrams summed over all nodes
+    private static long ingested(ClusterRing ring) throws Exception {
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        long total = 0;
+        for (ClusterRing.Node node : ring.nodes()) {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(node.httpBase() + "/api/stats"))
+                    .header(ClusterClient.LOCAL_HEADER, "1")
+                    .build();
+            JSONObject decoder = new JSONObject(client.send(request, HttpResponse.BodyHandlers.ofString()).body())
+                    .getJSONObject("decoder");
+            total += decoder.getJSONObject("binary").getLong("packets") + decoder.getJSONObject("json").getLong("packets");
+        }
+        return total;
+    }
+}
@@ -0,0 +1,112 @@
+package collector;
+
+import org.json.JSONObject;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HTTP calls from one collector to the other nodes of its cluster: device
+ * queries go to the device's owner, store-wide queries to every node at once.
+ * Requests carry LOCAL_HEADER, so the receiving node answers from its own store
+ * instead of fanning out again.
+ */
+public class ClusterClient {
+    public static final String LOCAL_HEADER = "X-Collector-Local";
+    
+    private final ClusterRing ring;
+    private final long timeoutMs;
+    private final HttpClient client;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    
+    public ClusterClient(ClusterRing ring, long timeoutMs) {
+        this.ring = ring;
+        this.timeoutMs = timeoutMs;
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1) // The JDK server does not speak HTTP/2
+                .connectTimeout(Duration.ofMillis(timeoutMs))
+                .build();
+    }
+    
+    public ClusterRing ring() {
+        return ring;
+    }
+    
+    // Starts the request on every node but this one; collect the answers with await
+    public Map<ClusterRing.Node, CompletableFuture<Response>> fanOut(String method, String pathAndQuery) {
+        Map<ClusterRing.Node, CompletableFuture<Response>> responses = new LinkedHashMap<>();
+        for (ClusterRing.Node node : ring.nodes()) {
+            if (node != ring.self()) {
+                responses.put(node, send(node, method, pathAndQuery));
+            }
+        }
+        return responses;
+    }
+    
+    public CompletableFuture<Response> send(ClusterRing.Node node, String method, String pathAndQuery) {
+        requests.increment();
+        long start = System.nanoTime();
+        HttpRequest request = HttpRequest.newBuilder(URI.create(node.httpBase() + pathAndQuery))
+                .method(method, HttpRequest.BodyPublishers.noBody())
+                .header(LOCAL_HEADER, "1")
+                .timeout(Duration.ofMillis(timeoutMs))
+                .build();
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                .handle((response, error) -> {
+                    latency.record(System.nanoTime() - start);
+                    if (error != null) {
+                        failures.increment();
+                        return new Response(node, 0, null, String.valueOf(error.getCause() != null ? error.getCause() : error));
+                    }
+                    return new Response(node, response.statusCode(), response.body(), null);
+                });
+    }
+    
+    // Never throws: a node that does not answer in time is reported as failed
+    public Response await(ClusterRing.Node node, CompletableFuture<Response> pending) {
+        try {
+            return pending.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            pending.cancel(true);
+            failures.increment();
+            return new Response(node, 0, null, "No answer within " + timeoutMs + " ms");
+        }
+    }
+    
+    public JSONObject stats() {
+        return new JSONObject()
+                .put("self", ring.self() == null ? JSONObject.NULL : ring.self().name)
+                .put("nodes", ring.toJson())
+                .put("requests", requests.sum())
+                .put("failures", failures.sum())
+                .put("latency", latency.stats());
+    }
+    
+    public static final class Response {
+        public final ClusterRing.Node node;
+        public final int status; // 0 if the node could not be reached
+        public final byte[] body;
+        public final String error;
+        
+        Response(ClusterRing.Node node, int status, byte[] body, String error) {
+            this.node = node;
+            this.status = status;
+            this.body = body;
+            this.error = error;
+        }
+        
+        public boolean ok() {
+            return status == 200;
+        }
+    }
+}
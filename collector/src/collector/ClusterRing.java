@@ -0,0 +1,154 @@
+package collector;
+
+import org.json.JSONArray;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Consistent-hash ring that assigns every device to one collector node. Each
+ * node is placed on the ring at VIRTUAL_NODES points, so devices spread evenly
+ * and adding or removing a node only moves the devices of its own arcs.
+ *
+ * Nodes are listed as {@code name=host:udpPort:httpPort}, comma separated;
+ * every process of a cluster must be given the same list.
+ */
+public class ClusterRing {
+    private static final int VIRTUAL_NODES = 128;
+    private static final int MAX_CACHED_OWNERS = 65536;
+    
+    private final List<Node> nodes;
+    private final Node self; // null for a process that owns no shard, e.g. the UDP router
+    private final long[] points; // Sorted hashes of the virtual nodes
+    private final Node[] owners; // Node of each point
+    private final Map<String, Node> ownerCache = new ConcurrentHashMap<>();
+    
+    public ClusterRing(String nodeList, String selfName) {
+        List<Node> parsed = new ArrayList<>();
+        for (String spec : nodeList.split(",")) {
+            if (!spec.isBlank()) {
+                parsed.add(Node.parse(spec.trim()));
+            }
+        }
+        if (parsed.isEmpty()) {
+            throw new IllegalArgumentException("Cluster node list is empty");
+        }
+        this.nodes = Collections.unmodifiableList(parsed);
+        this.self = selfName.isEmpty() ? null : node(selfName);
+        if (!selfName.isEmpty() && self == null) {
+            throw new IllegalArgumentException("Node " + selfName + " is not in the cluster node list");
+        }
+        
+        long[][] entries = new long[nodes.size() * VIRTUAL_NODES][];
+        for (int n = 0; n < nodes.size(); n++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                entries[n * VIRTUAL_NODES + v] = new long[]{hash(nodes.get(n).name + "#" + v), n};
+            }
+        }
+        Arrays.sort(entries, (a, b) -> Long.compare(a[0], b[0]));
+        this.points = new long[entries.length];
+        this.owners = new Node[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            points[i] = entries[i][0];
+            owners[i] = nodes.get((int) entries[i][1]);
+        }
+    }
+    
+    // First virtual node clockwise from the device's hash
+    public Node owner(String deviceId) {
+        Node owner = ownerCache.get(deviceId);
+        if (owner == null) {
+            int i = Arrays.binarySearch(points, hash(deviceId));
+            if (i < 0) {
+                i = -i - 1;
+            }
+            owner = owners[i == points.length ? 0 : i];
+            if (ownerCache.size() >= MAX_CACHED_OWNERS) {
+                // Devices come and go and the router never hears of it; starting over keeps the live ones
+                ownerCache.clear();
+            }
+            ownerCache.put(deviceId, owner);
+        }
+        return owner;
+    }
+    
+    public boolean owns(String deviceId) {
+        return owner(deviceId) == self;
+    }
+    
+    public Node self() {
+        return self;
+    }
+    
+    public List<Node> nodes() {
+        return nodes;
+    }
+    
+    public Node node(String name) {
+        for (Node node : nodes) {
+            if (node.name.equals(name)) {
+                return node;
+            }
+        }
+        return null;
+    }
+    
+    public JSONArray toJson() {
+        JSONArray list = new JSONArray();
+        for (Node node : nodes) {
+            list.put(node.name + "=" + node.host + ":" + node.udpPort + ":" + node.httpPort
+                    + (node == self ? " (self)" : ""));
+        }
+        return list;
+    }
+    
+    // FNV-1a with a murmur finaliser, so similar device names land far apart
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+    
+    public static final class Node {
+        public final String name;
+        public final String host;
+        public final int udpPort;
+        public final int httpPort;
+        public final InetSocketAddress udpAddress;
+        
+        Node(String name, String host, int udpPort, int httpPort) {
+            this.name = name;
+            this.host = host;
+            this.udpPort = udpPort;
+            this.httpPort = httpPort;
+            this.udpAddress = new InetSocketAddress(host, udpPort);
+        }
+        
+        static Node parse(String spec) {
+            int eq = spec.indexOf('=');
+            String[] address = spec.substring(eq + 1).split(":");
+            if (eq <= 0 || address.length != 3) {
+                throw new IllegalArgumentException("Invalid cluster node " + spec + ", expected name=host:udpPort:httpPort");
+            }
+            return new Node(spec.substring(0, eq), address[0], Integer.parseInt(address[1]), Integer.parseInt(address[2]));
+        }
+        
+        public String httpBase() {
+            return "http://" + host + ":" + httpPort;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package collector;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Response body that decides on its encoding lazily. Output is held back until
+ * it exceeds the threshold: small responses are then sent uncompressed with a
+ * fixed Content-Length, larger ones are sent chunked and, if the client
+ * accepts it, gzip or deflate encoded.
+ *
+ * A handler that fails midway calls {@link #abort()} instead of close(): before
+ * anything was sent that leaves the exchange free for an error status, after
+ * that it drops the connection so the client sees a broken response rather
+ * than a cut-off 200.
+ */
+public class CompressedResponseStream extends OutputStream {
+    private final HttpExchange exchange;
+    private final String encoding; // null when the client accepts neither gzip nor deflate
+    private final int level;
+    private final CompressionStats stats;
+    private final byte[] pending;
+    private int pendingLength;
+    
+    private OutputStream target;
+    private AbortableStream body;
+    private TimedOutputStream socket;
+    private Deflater deflater;
+    private long rawBytes;
+    private long writeNanos;
+    
+    public CompressedResponseStream(HttpExchange exchange, int level, int threshold, CompressionStats stats) {
+        this.exchange = exchange;
+        this.encoding = negotiate(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+        this.level = level;
+        this.stats = stats;
+        this.pending = new byte[threshold];
+    }
+    
+    // Picks gzip over deflate; an explicit q=0 rules an encoding out
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        boolean deflate = false;
+        for (String part : acceptEncoding.split(",")) {
+            String[] tokens = part.trim().split(";");
+            String name = tokens[0].trim().toLowerCase();
+            boolean refused = tokens.length > 1 && tokens[1].trim().matches("q=0(\\.0*)?");
+            if (refused) {
+                continue;
+            }
+            if (name.equals("gzip") || name.equals("x-gzip")) {
+                return "gzip";
+            }
+            if (name.equals("deflate")) {
+                deflate = true;
+            }
+        }
+        return deflate ? "deflate" : null;
+    }
+    
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (target == null) {
+            if (pendingLength + len <= pending.length) {
+                System.arraycopy(b, off, pending, pendingLength, len);
+                pendingLength += len;
+                return;
+            }
+            commitChunked();
+        }
+        rawBytes += len;
+        long start = System.nanoTime();
+        target.write(b, off, len);
+        writeNanos += System.nanoTime() - start;
+    }
+    
+    private void commitChunked() throws IOException {
+        exchange.getResponseHeaders().add("Vary", "Accept-Encoding");
+        if (encoding != null) {
+            exchange.getResponseHeaders().set("Content-Encoding", encoding);
+        }
+        exchange.sendResponseHeaders(200, 0);
+        // The exchange closes this stream when it is closed, which is where an abort takes over
+        body = new AbortableStream(exchange.getResponseBody());
+        exchange.setStreams(null, body);
+        socket = new TimedOutputStream(body);
+        if (encoding == null) {
+            target = socket;
+        } else {
+            if (encoding.equals("gzip")) {
+                target = new LeveledGzipStream(socket, level);
+            } else {
+                deflater = new Deflater(level);
+                target = new DeflaterOutputStream(socket, deflater, 8192);
+            }
+        }
+        if (pendingLength > 0) {
+            rawBytes += pendingLength;
+            long start = System.nanoTime();
+            target.write(pending, 0, pendingLength);
+            writeNanos += System.nanoTime() - start;
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if (target == null) {
+            // Everything fit under the threshold: not worth compressing
+            exchange.getResponseHeaders().add("Vary", "Accept-Encoding");
+            exchange.sendResponseHeaders(200, pendingLength);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(pending, 0, pendingLength);
+            }
+            stats.recordUncompressed();
+            return;
+        }
+        
+        long start = System.nanoTime();
+        try {
+            target.close();
+        } finally {
+            writeNanos += System.nanoTime() - start;
+            if (deflater != null) {
+                deflater.end(); // Not owned by DeflaterOutputStream
+            }
+            if (encoding != null) {
+                // Time spent inside the compressor, excluding time blocked on the socket
+                stats.recordCompressed(rawBytes, socket.bytes, writeNanos - socket.nanos);
+            } else {
+                stats.recordUncompressed();
+            }
+        }
+    }
+    
+    /**
+     * Gives up on the response. Returns false if nothing was sent yet, so the
+     * caller can still answer with an error status; otherwise the connection
+     * is closed without the final chunk or compression trailer.
+     */
+    public boolean abort() {
+        if (target == null) {
+            pendingLength = 0;
+            return false;
+        }
+        body.aborted = true;
+        if (deflater != null) {
+            deflater.end();
+        }
+        exchange.close();
+        return true;
+    }
+    
+    private static final class LeveledGzipStream extends GZIPOutputStream {
+        LeveledGzipStream(OutputStream out, int level) throws IOException {
+            super(out, 8192);
+            def.setLevel(level);
+        }
+    }
+    
+    // Failing close makes HttpExchange.close drop the connection instead of ending the body
+    private static final class AbortableStream extends OutputStream {
+        private final OutputStream out;
+        boolean aborted;
+        
+        AbortableStream(OutputStream out) {
+            this.out = out;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            if (aborted) {
+                throw new IOException("Response aborted");
+            }
+            out.close();
+        }
+    }
+    
+    private static final class TimedOutputStream extends OutputStream {
+        private final OutputStream out;
+        long bytes;
+        long nanos;
+        
+        TimedOutputStream(OutputStream out) {
+            this.out = out;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            long start = System.nanoTime();
+            out.write(b);
+            nanos += System.nanoTime() - start;
+            bytes++;
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            out.write(b, off, len);
+            nanos += System.nanoTime() - start;
+            bytes += len;
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            long start = System.nanoTime();
+            out.close();
+            nanos += System.nanoTime() - start;
+        }
+    }
+}
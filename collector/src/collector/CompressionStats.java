@@ -0,0 +1,39 @@
+package collector;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Bytes in/out and CPU time spent compressing, for one transport (HTTP or WebSocket)
+public class CompressionStats {
+    private final LongAdder compressed = new LongAdder();
+    private final LongAdder uncompressed = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+    
+    public void recordCompressed(long rawBytes, long compressedBytes, long compressNanos) {
+        compressed.increment();
+        bytesIn.add(rawBytes);
+        bytesOut.add(compressedBytes);
+        nanos.add(compressNanos);
+    }
+    
+    public void recordUncompressed() {
+        uncompressed.increment();
+    }
+    
+    public JSONObject stats() {
+        long in = bytesIn.sum();
+        long out = bytesOut.sum();
+        JSONObject stats = new JSONObject();
+        stats.put("compressed", compressed.sum());
+        stats.put("uncompressed", uncompressed.sum());
+        stats.put("bytesIn", in);
+        stats.put("bytesOut", out);
+        stats.put("ratio", out == 0 ? 0 : (double) in / out);
+        stats.put("compressMillis", nanos.sum() / 1_000_000);
+        stats.put("nanosPerKiB", in == 0 ? 0 : nanos.sum() * 1024 / in);
+        return stats;
+    }
+}
@@ -0,0 +1,200 @@
+package collector;
+
+import org.json.JSONObject;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Central side of federation: accepts the frame streams of edge collectors
+ * (protocol in FederationSender) and ingests their packets like datagrams.
+ * A frame is acknowledged only after it has been stored; frames an edge
+ * resends after a broken connection are acknowledged again but skipped.
+ *
+ * Progress is kept per site and epoch: edges left with the same (or no) site
+ * name pick different epochs, so they never skip each other's frames.
+ */
+public class FederationReceiver implements Runnable {
+    private final int port;
+    private final MetricStore metricStore;
+    private final WebSocketHandler webSocketHandler;
+    private final Map<String, Site> sites = new ConcurrentHashMap<>();
+    private final LongAdder protocolErrors = new LongAdder();
+    private volatile ServerSocket serverSocket;
+    private volatile boolean running = true;
+    
+    public FederationReceiver(int port, MetricStore metricStore, WebSocketHandler webSocketHandler) {
+        this.port = port;
+        this.metricStore = metricStore;
+        this.webSocketHandler = webSocketHandler;
+    }
+    
+    @Override
+    public void run() {
+        try (ServerSocket server = new ServerSocket(port)) {
+            serverSocket = server;
+            System.out.println("Federation receiver listening on port " + port);
+            while (running) {
+                Socket socket = server.accept();
+                Thread connection = new Thread(() -> serve(socket), "federation-" + socket.getRemoteSocketAddress());
+                connection.setDaemon(true);
+                connection.start();
+            }
+        } catch (SocketException e) {
+            // stop() closed the socket
+        } catch (IOException e) {
+            System.err.println("Federation receiver error: " + e.getMessage());
+        }
+    }
+    
+    private void serve(Socket socket) {
+        String name = null;
+        Site site = null;
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            if (in.readInt() != FederationSender.MAGIC) {
+                throw new IOException("Not a federation stream");
+            }
+            name = in.readUTF();
+            int epoch = in.readInt();
+            site = sites.computeIfAbsent(name, k -> new Site());
+            Stream stream = site.connected(epoch, socket.getRemoteSocketAddress().toString());
+            System.out.println("Federation stream from site '" + name + "' at " + socket.getRemoteSocketAddress());
+            
+            // Names are announced in every packet, so one dictionary per stream is enough
+            SeriesDictionary dictionary = new SeriesDictionary();
+            MetricPacket packet = new MetricPacket();
+            while (running) {
+                long id = in.readLong();
+                long bucketStart = in.readLong();
+                int length = in.readInt();
+                if (length < 0 || length > FederationSender.MAX_FRAME_BYTES) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                byte[] data = new byte[length];
+                in.readFully(data);
+                if (id > stream.lastFrameId) {
+                    site.samples.add(ingest(data, dictionary, packet));
+                    stream.lastFrameId = id;
+                    site.lastBucketStart = bucketStart;
+                    site.frames.increment();
+                    site.bytes.add(length);
+                } else {
+                    site.duplicates.increment();
+                }
+                out.writeLong(id);
+                out.flush();
+            }
+        } catch (EOFException e) {
+            // Edge closed the stream
+        } catch (Exception e) {
+            protocolErrors.increment();
+            System.err.println("Federation stream " + (name == null ? socket.getRemoteSocketAddress() : "from site '" + name + "'")
+                    + " failed: " + e.getMessage());
+        } finally {
+            if (site != null) {
+                site.disconnected();
+            }
+        }
+    }
+    
+    // Returns the number of samples stored
+    private long ingest(byte[] data, SeriesDictionary dictionary, MetricPacket packet) throws IOException {
+        long samples = 0;
+        try (DataInputStream payload = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)))) {
+            int packets = payload.readInt();
+            for (int p = 0; p < packets; p++) {
+                byte[] bytes = new byte[payload.readInt()];
+                payload.readFully(bytes);
+                packet.reset();
+                WireProtocol.decode(ByteBuffer.wrap(bytes), packet, dictionary);
+                metricStore.addPacket(packet);
+                webSocketHandler.broadcast(packet);
+                samples += packet.count;
+            }
+        }
+        return samples;
+    }
+    
+    public JSONObject stats() {
+        JSONObject perSite = new JSONObject();
+        for (Map.Entry<String, Site> entry : sites.entrySet()) {
+            Site site = entry.getValue();
+            perSite.put(entry.getKey(), new JSONObject()
+                    .put("connected", site.open > 0)
+                    .put("openStreams", site.open)
+                    .put("address", site.address)
+                    .put("epoch", site.epoch)
+                    .put("connections", site.connections)
+                    .put("frames", site.frames.sum())
+                    .put("duplicateFrames", site.duplicates.sum())
+                    .put("samples", site.samples.sum())
+                    .put("compressedBytes", site.bytes.sum())
+                    .put("lagMs", site.lastBucketStart == 0 ? 0 : System.currentTimeMillis() - site.lastBucketStart));
+        }
+        return new JSONObject()
+                .put("port", port)
+                .put("sites", perSite)
+                .put("protocolErrors", protocolErrors.sum());
+    }
+    
+    public void stop() {
+        running = false;
+        ServerSocket current = serverSocket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                System.err.println("Error closing federation socket: " + e.getMessage());
+            }
+        }
+    }
+    
+    // Streams under one site name; a restarted edge, or another edge with the same name, has its own epoch
+    private static final class Site {
+        private static final int MAX_EPOCHS = 64;
+        
+        private final Map<Integer, Stream> streams = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Stream> eldest) {
+                return size() > MAX_EPOCHS;
+            }
+        };
+        volatile int open;
+        volatile String address; // Of the latest connection
+        volatile int epoch; // Of the latest connection
+        volatile long lastBucketStart;
+        volatile int connections;
+        final LongAdder frames = new LongAdder();
+        final LongAdder duplicates = new LongAdder();
+        final LongAdder samples = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        
+        // Frame ids start over with each epoch; a reconnection in the same epoch resumes its progress
+        synchronized Stream connected(int newEpoch, String newAddress) {
+            epoch = newEpoch;
+            address = newAddress;
+            open++;
+            connections++;
+            return streams.computeIfAbsent(newEpoch, k -> new Stream());
+        }
+        
+        synchronized void disconnected() {
+            open--;
+        }
+    }
+    
+    // Progress of one edge run, kept across its reconnections
+    private static final class Stream {
+        volatile long lastFrameId = -1;
+    }
+}
@@ -0,0 +1,402 @@
+package collector;
+
+import org.json.JSONObject;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Edge side of federation: keeps full resolution locally and pushes one
+ * aggregate per series and resolution bucket to a central collector
+ * (see FederationReceiver), so the centre ingests one stream per site.
+ *
+ * Each closed bucket becomes one frame holding a WireProtocol metrics packet
+ * per device, names announced, all deflated together. Frames wait in a
+ * bounded buffer until the centre acknowledges them, which carries the edge
+ * through upstream outages; the oldest frames are dropped when the buffer is
+ * full, and frames older than maxReplayMs are not replayed at all.
+ *
+ * <pre>
+ * hello (edge to centre): i32 magic "MFED", UTF site, i32 epoch
+ * frame (edge to centre): i64 id, i64 bucket start, i32 length, deflated payload
+ *   payload:              i32 packet count, then per packet: i32 length, WireProtocol bytes
+ * ack (centre to edge):   i64 id of the frame just ingested
+ * </pre>
+ *
+ * Frame ids count up within an epoch, a random number picked per run, so the
+ * centre can skip frames it ingested before an unacknowledged disconnect.
+ */
+public class FederationSender {
+    static final int MAGIC = 0x4D464544; // "MFED"
+    static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+    private static final long LATE_MS = 2000; // Buckets close this long after their end, for late samples
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int ACK_TIMEOUT_MS = 30000;
+    private static final long MAX_BACKOFF_MS = 30000;
+    private static final Set<String> AGGREGATES = Set.of("avg", "min", "max", "last", "sum", "count");
+    
+    private final String host;
+    private final int port;
+    private final String site;
+    private final long resolutionMs;
+    private final String[] aggregates;
+    private final long bufferBytes;
+    private final long maxReplayMs;
+    private final int compressionLevel;
+    private final MetricStore store;
+    private final int epoch = ThreadLocalRandom.current().nextInt();
+    
+    private final ArrayDeque<Frame> pending = new ArrayDeque<>(); // Oldest first; guarded by itself
+    private long pendingBytes;
+    private long nextFrameId;
+    private long flushedUpTo; // End of the last bucket turned into a frame
+    
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "federation-aggregator");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Thread sender = new Thread(this::sendLoop, "federation-sender");
+    private volatile boolean running = true;
+    private volatile boolean connected;
+    private Socket socket;
+    private DataOutputStream out;
+    private DataInputStream in;
+    
+    // Counters, written by one thread each
+    private volatile long framesBuilt;
+    private volatile long framesSent;
+    private volatile long framesDropped;
+    private volatile long framesExpired;
+    private volatile long rawBytes;
+    private volatile long compressedBytes;
+    private volatile long reconnects;
+    private volatile long namesSkipped;
+    private volatile String lastSkippedName;
+    private volatile String lastError;
+    
+    public FederationSender(String upstream, String site, long resolutionMs, String aggregates, long bufferBytes,
+                            long maxReplayMs, int compressionLevel, MetricStore store) {
+        int colon = upstream.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Invalid federation upstream " + upstream + ", expected host:port");
+        }
+        this.host = upstream.substring(0, colon);
+        this.port = Integer.parseInt(upstream.substring(colon + 1));
+        this.site = site;
+        this.resolutionMs = Math.max(1, resolutionMs);
+        this.aggregates = aggregates.split(",");
+        for (int i = 0; i < this.aggregates.length; i++) {
+            this.aggregates[i] = this.aggregates[i].trim();
+            if (!AGGREGATES.contains(this.aggregates[i])) {
+                throw new IllegalArgumentException("Unknown federation aggregate " + this.aggregates[i]
+                        + ", expected one of " + AGGREGATES);
+            }
+        }
+        this.bufferBytes = bufferBytes;
+        this.maxReplayMs = maxReplayMs;
+        this.compressionLevel = compressionLevel;
+        this.store = store;
+    }
+    
+    public void start() {
+        long now = System.currentTimeMillis() - LATE_MS;
+        flushedUpTo = now - Math.floorMod(now, resolutionMs);
+        long checkMs = Math.min(resolutionMs, 1000);
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                flushClosedBuckets();
+            } catch (Exception e) {
+                System.err.println("Federation aggregation failed: " + e.getMessage());
+            }
+        }, checkMs, checkMs, TimeUnit.MILLISECONDS);
+        sender.setDaemon(true);
+        sender.start();
+        System.out.println("Federating " + String.join(",", aggregates) + " per " + resolutionMs + " ms to "
+                + host + ":" + port + (site.isEmpty() ? "" : " as site " + site));
+    }
+    
+    private void flushClosedBuckets() throws IOException {
+        long closeBefore = System.currentTimeMillis() - LATE_MS;
+        SeriesSnapshot samples = new SeriesSnapshot();
+        while (flushedUpTo + resolutionMs <= closeBefore) {
+            long start = flushedUpTo;
+            flushedUpTo += resolutionMs;
+            byte[][] packets = aggregate(start, flushedUpTo - 1, samples);
+            if (packets.length > 0) {
+                enqueue(new Frame(nextFrameId++, start, compress(packets)));
+            }
+        }
+    }
+    
+    // One WireProtocol packet per device with the aggregates of its samples in [from, to]
+    private byte[][] aggregate(long from, long to, SeriesSnapshot samples) {
+        Map<String, MetricPacket> devices = new HashMap<>();
+        for (Series series : store.allSeries()) {
+            series.read(from, to, samples);
+            if (samples.size == 0) {
+                continue;
+            }
+            String deviceId = site.isEmpty() ? series.deviceId : site + "/" + series.deviceId;
+            if (!WireProtocol.fits(deviceId)) {
+                skip(deviceId);
+                continue;
+            }
+            MetricPacket packet = devices.computeIfAbsent(deviceId, k -> {
+                MetricPacket created = new MetricPacket();
+                created.deviceId = deviceId;
+                created.timestamp = from;
+                return created;
+            });
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            double sum = 0;
+            for (int i = 0; i < samples.size; i++) {
+                double value = samples.values[i];
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                sum += value;
+            }
+            for (String aggregate : aggregates) {
+                // avg keeps the series name, so central dashboards read the same metrics as edge ones
+                String name = aggregate.equals("avg") ? series.metricName : aggregateName(series.metricName, aggregate);
+                if (!WireProtocol.fits(name)) {
+                    skip(deviceId + " " + name);
+                    continue;
+                }
+                switch (aggregate) {
+                    case "avg": packet.add(name, sum / samples.size); break;
+                    case "min": packet.add(name, min); break;
+                    case "max": packet.add(name, max); break;
+                    case "last": packet.add(name, samples.values[samples.size - 1]); break;
+                    case "sum": packet.add(name, sum); break;
+                    default: packet.add(name, samples.size); break;
+                }
+            }
+        }
+        devices.values().removeIf(packet -> packet.count == 0);
+        
+        byte[][] encoded = new byte[devices.size()][];
+        int n = 0;
+        for (MetricPacket packet : devices.values()) {
+            int capacity = 32 + packet.deviceId.length() * 3;
+            for (int i = 0; i < packet.count; i++) {
+                capacity += 16 + packet.names[i].length() * 3;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(capacity);
+            WireProtocol.encode(packet, buffer, true);
+            encoded[n++] = Arrays.copyOf(buffer.array(), buffer.position());
+        }
+        return encoded;
+    }
+    
+    // The suffix goes on the metric name, ahead of any labels: cpu{host="a"} becomes cpu_min{host="a"}
+    static String aggregateName(String metricName, String aggregate) {
+        int labels = metricName.indexOf('{');
+        return labels < 0 ? metricName + "_" + aggregate
+                : metricName.substring(0, labels) + "_" + aggregate + metricName.substring(labels);
+    }
+    
+    // Names the wire format cannot carry are left out of the frame rather than failing it
+    private void skip(String name) {
+        if (namesSkipped++ == 0) {
+            System.err.println("Federation skips names longer than " + WireProtocol.MAX_STRING_BYTES
+                    + " bytes, first one: " + name);
+        }
+        lastSkippedName = name;
+    }
+    
+    private byte[] compress(byte[][] packets) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(compressionLevel);
+        long raw = Integer.BYTES;
+        try (DataOutputStream payload = new DataOutputStream(new DeflaterOutputStream(bytes, deflater))) {
+            payload.writeInt(packets.length);
+            for (byte[] packet : packets) {
+                payload.writeInt(packet.length);
+                payload.write(packet);
+                raw += Integer.BYTES + packet.length;
+            }
+        } finally {
+            deflater.end();
+        }
+        rawBytes += raw;
+        compressedBytes += bytes.size();
+        framesBuilt++;
+        return bytes.toByteArray();
+    }
+    
+    private void enqueue(Frame frame) {
+        synchronized (pending) {
+            pending.addLast(frame);
+            pendingBytes += frame.data.length;
+            // Bounded outage buffer: the oldest buckets go first
+            while (pendingBytes > bufferBytes && pending.size() > 1) {
+                pendingBytes -= pending.removeFirst().data.length;
+                framesDropped++;
+            }
+            pending.notifyAll();
+        }
+    }
+    
+    private void sendLoop() {
+        long backoffMs = 1000;
+        while (running) {
+            Frame frame;
+            synchronized (pending) {
+                frame = pending.peekFirst();
+                if (frame == null) {
+                    try {
+                        pending.wait(1000);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+            if (frame.bucketStart < System.currentTimeMillis() - maxReplayMs) {
+                remove(frame);
+                framesExpired++;
+                continue;
+            }
+            
+            try {
+                if (!connected) {
+                    connect();
+                    backoffMs = 1000;
+                }
+                // Stop-and-wait: frames are one per bucket, so the round trip is not the bottleneck
+                out.writeLong(frame.id);
+                out.writeLong(frame.bucketStart);
+                out.writeInt(frame.data.length);
+                out.write(frame.data);
+                out.flush();
+                long ack = in.readLong();
+                if (ack != frame.id) {
+                    throw new IOException("Acknowledged frame " + ack + " instead of " + frame.id);
+                }
+                remove(frame);
+                framesSent++;
+            } catch (IOException e) {
+                String error = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+                if (connected || !error.equals(lastError)) {
+                    System.err.println("Federation upstream " + host + ":" + port + " unavailable, buffering: " + error);
+                }
+                lastError = error;
+                disconnect();
+                try {
+                    Thread.sleep(backoffMs);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                backoffMs = Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+            }
+        }
+        disconnect();
+    }
+    
+    private void connect() throws IOException {
+        Socket created = new Socket();
+        try {
+            created.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            created.setSoTimeout(ACK_TIMEOUT_MS);
+            created.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(created.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(created.getInputStream()));
+            out.writeInt(MAGIC);
+            out.writeUTF(site);
+            out.writeInt(epoch);
+            out.flush();
+        } catch (IOException e) {
+            created.close();
+            throw e;
+        }
+        socket = created;
+        connected = true;
+        reconnects++;
+        lastError = null;
+        System.out.println("Federation connected to " + host + ":" + port + ", " + bufferedFrames() + " frames to replay");
+    }
+    
+    private void disconnect() {
+        connected = false;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already broken
+            }
+            socket = null;
+        }
+    }
+    
+    // Only if still queued, the buffer may have dropped it meanwhile
+    private void remove(Frame frame) {
+        synchronized (pending) {
+            if (pending.peekFirst() == frame) {
+                pending.removeFirst();
+                pendingBytes -= frame.data.length;
+            }
+        }
+    }
+    
+    private int bufferedFrames() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+    
+    public JSONObject stats() {
+        JSONObject stats = new JSONObject();
+        stats.put("upstream", host + ":" + port);
+        stats.put("site", site);
+        stats.put("resolutionMs", resolutionMs);
+        stats.put("aggregates", String.join(",", aggregates));
+        stats.put("connected", connected);
+        synchronized (pending) {
+            stats.put("bufferedFrames", pending.size());
+            stats.put("bufferedBytes", pendingBytes);
+            stats.put("oldestBufferedMs", pending.isEmpty() ? 0 : System.currentTimeMillis() - pending.peekFirst().bucketStart);
+        }
+        stats.put("bufferLimitBytes", bufferBytes);
+        stats.put("framesBuilt", framesBuilt);
+        stats.put("framesSent", framesSent);
+        stats.put("framesDropped", framesDropped);
+        stats.put("framesExpired", framesExpired);
+        stats.put("rawBytes", rawBytes);
+        stats.put("compressedBytes", compressedBytes);
+        stats.put("compressionRatio", compressedBytes == 0 ? 0 : (double) rawBytes / compressedBytes);
+        stats.put("connections", reconnects);
+        stats.put("namesSkipped", namesSkipped);
+        stats.put("lastSkippedName", lastSkippedName == null ? JSONObject.NULL : lastSkippedName);
+        stats.put("lastError", lastError == null ? JSONObject.NULL : lastError);
+        return stats;
+    }
+    
+    public void stop() {
+        running = false;
+        scheduler.shutdown();
+        sender.interrupt();
+    }
+    
+    private static final class Frame {
+        final long id;
+        final long bucketStart;
+        final byte[] data;
+        
+        Frame(long id, long bucketStart, byte[] data) {
+            this.id = id;
+            this.bucketStart = bucketStart;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package collector;
+
+import org.json.JSONObject;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Staged alternative to UdpServer. Receiving, parsing, storing and WebSocket
+ * fan-out each run on their own threads, connected by bounded queues, so a slow
+ * stage drops work (and counts it) instead of stalling the socket:
+ *
+ * <pre>
+ * receivers --ByteBuffer--> parsers --MetricPacket--> store writers --> fan-out
+ * </pre>
+ *
+ * Parsers are sharded by source address and store writers by device id, so
+ * the datagrams of one exporter keep their order through both stages and each
+ * series still has exactly one writing thread, which is also the one tracking
+ * the device's sequence numbers. For the same reason receivers only run in
+ * parallel with SO_REUSEPORT, which keeps each source on one socket; threads
+ * sharing a channel could hand on one exporter's datagrams out of order.
+ *
+ * Datagrams are received into a full-size buffer and copied into a pooled one
+ * of INGEST_BUFFER_SIZE bytes; a rare larger datagram gets a buffer of its own
+ * instead of being truncated.
+ */
+public class IngestPipeline {
+    private static final int MAX_DATAGRAM = 65507;
+    private static final int RELEASE_CHECK_MS = 100;
+    
+    private final int port;
+    private final MetricStore metricStore;
+    private final WebSocketHandler webSocketHandler;
+    private final PacketDecoder decoder;
+    private final LossTracker lossTracker;
+    private final int receiverCount;
+    private final int parserCount;
+    private final int bufferSize;
+    
+    private final BlockingQueue<Datagram> freeDatagrams;
+    private final BlockingQueue<MetricPacket> freePackets;
+    private final List<Stage<Datagram>> parseStages = new ArrayList<>();
+    private final List<Stage<MetricPacket>> storeStages = new ArrayList<>();
+    private final Stage<MetricPacket> fanOutStage;
+    private final LongAdder received = new LongAdder();
+    private final LongAdder poolExhausted = new LongAdder();
+    private final LongAdder oversized = new LongAdder();
+    
+    private final List<DatagramChannel> channels = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile boolean running = true;
+    
+    public IngestPipeline(int port, MetricStore metricStore, WebSocketHandler webSocketHandler, PacketDecoder decoder,
+                          LossTracker lossTracker, int receivers, int parsers, int storeWriters, int queueCapacity,
+                          int bufferSize) {
+        this.port = port;
+        this.metricStore = metricStore;
+        this.webSocketHandler = webSocketHandler;
+        this.decoder = decoder;
+        this.lossTracker = lossTracker;
+        this.receiverCount = receivers;
+        this.parserCount = parsers;
+        this.bufferSize = Math.min(bufferSize, MAX_DATAGRAM);
+        
+        // Every buffer is either free, queued for parsing or held by one receiver/parser
+        int bufferCount = queueCapacity + receivers + parsers;
+        this.freeDatagrams = new ArrayBlockingQueue<>(bufferCount);
+        for (int i = 0; i < bufferCount; i++) {
+            freeDatagrams.add(new Datagram(ByteBuffer.allocateDirect(this.bufferSize)));
+        }
+        this.freePackets = new ArrayBlockingQueue<>(queueCapacity * (storeWriters + 1) + parsers);
+        
+        for (int i = 0; i < parsers; i++) {
+            parseStages.add(new Stage<>("parse-" + i, queueCapacity));
+        }
+        for (int i = 0; i < storeWriters; i++) {
+            storeStages.add(new Stage<>("store-" + i, queueCapacity));
+        }
+        this.fanOutStage = new Stage<>("fanout", queueCapacity);
+    }
+    
+    public void start() throws Exception {
+        boolean reusePort = receiverCount > 1 && supportsReusePort();
+        int receivers = reusePort ? receiverCount : 1;
+        for (int i = 0; i < receivers; i++) {
+            if (i == 0 || reusePort) {
+                DatagramChannel channel = DatagramChannel.open();
+                if (reusePort) {
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+                channel.bind(new InetSocketAddress(port));
+                channels.add(channel);
+            }
+            DatagramChannel channel = channels.get(channels.size() - 1);
+            startThread("udp-receiver-" + i, () -> receiveLoop(channel));
+        }
+        DatagramChannel nackChannel = channels.get(0);
+        lossTracker.useNackSender((nack, target) -> nackChannel.send(nack, target));
+        for (Stage<Datagram> stage : parseStages) {
+            startThread("udp-" + stage.name, () -> parseLoop(stage));
+        }
+        for (Stage<MetricPacket> stage : storeStages) {
+            startThread("store-writer-" + stage.name, () -> storeLoop(stage));
+        }
+        startThread("ws-fanout", this::fanOutLoop);
+        
+        System.out.println("Staged UDP ingest listening on port " + port + " (" + receivers + " receivers, "
+                + parserCount + " parsers, " + storeStages.size() + " store writers, SO_REUSEPORT=" + reusePort + ")");
+    }
+    
+    private static boolean supportsReusePort() {
+        try (DatagramChannel probe = DatagramChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+    
+    private void startThread(String name, Runnable body) {
+        Thread thread = new Thread(body, name);
+        thread.setDaemon(true);
+        thread.start();
+        threads.add(thread);
+    }
+    
+    private void receiveLoop(DatagramChannel channel) {
+        // Large enough for any datagram; also drains the socket when the pool is empty
+        ByteBuffer scratch = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+        try {
+            while (running) {
+                scratch.clear();
+                SocketAddress source = channel.receive(scratch);
+                received.increment();
+                Datagram datagram = freeDatagrams.poll();
+                if (datagram == null) {
+                    poolExhausted.increment();
+                    continue;
+                }
+                scratch.flip();
+                if (scratch.remaining() <= bufferSize) {
+                    datagram.data = datagram.pooled;
+                    datagram.data.clear();
+                } else {
+                    oversized.increment();
+                    datagram.data = ByteBuffer.allocate(scratch.remaining());
+                }
+                datagram.data.put(scratch).flip();
+                datagram.source = source;
+                if (!parseStageFor(source).offer(datagram)) {
+                    freeDatagrams.offer(datagram);
+                }
+            }
+        } catch (ClosedChannelException e) {
+            // stop() closed the channel
+        } catch (Exception e) {
+            System.err.println("UDP receiver error: " + e.getMessage());
+        }
+    }
+    
+    private Stage<Datagram> parseStageFor(SocketAddress source) {
+        return parseStages.get(Math.floorMod(source.hashCode(), parseStages.size()));
+    }
+    
+    private void parseLoop(Stage<Datagram> stage) {
+        while (running) {
+            Datagram datagram = stage.take();
+            if (datagram == null) {
+                continue;
+            }
+            MetricPacket packet = acquirePacket();
+            boolean ok = decoder.decode(datagram.data, packet);
+            packet.source = datagram.source;
+            datagram.data = null;
+            datagram.source = null;
+            freeDatagrams.offer(datagram);
+            stage.processed.increment();
+            
+            if (!ok || !storeStageFor(packet.deviceId).offer(packet)) {
+                releasePacket(packet);
+            }
+        }
+    }
+    
+    private Stage<MetricPacket> storeStageFor(String deviceId) {
+        return storeStages.get(Math.floorMod(deviceId.hashCode(), storeStages.size()));
+    }
+    
+    private void storeLoop(Stage<MetricPacket> stage) {
+        Consumer<MetricPacket> ingest = this::store;
+        long releaseCheckedAt = 0;
+        while (running) {
+            MetricPacket packet = stage.take();
+            long now = System.currentTimeMillis();
+            if (packet != null) {
+                if (!lossTracker.accept(packet, now, ingest)) {
+                    releasePacket(packet); // Duplicate, or copied to wait for a retransmission
+                }
+                stage.processed.increment();
+            }
+            if (now - releaseCheckedAt >= RELEASE_CHECK_MS) {
+                releaseCheckedAt = now;
+                lossTracker.releaseExpired(now, deviceId -> storeStageFor(deviceId) == stage, ingest);
+            }
+        }
+    }
+    
+    private void store(MetricPacket packet) {
+        try {
+            metricStore.addPacket(packet);
+        } catch (Exception e) {
+            System.err.println("Error storing packet: " + e.getMessage());
+        }
+        if (!fanOutStage.offer(packet)) {
+            releasePacket(packet);
+        }
+    }
+    
+    private void fanOutLoop() {
+        while (running) {
+            MetricPacket packet = fanOutStage.take();
+            if (packet == null) {
+                continue;
+            }
+            try {
+                webSocketHandler.broadcast(packet);
+            } catch (Exception e) {
+                System.err.println("Error broadcasting packet: " + e.getMessage());
+            }
+            fanOutStage.processed.increment();
+            releasePacket(packet);
+        }
+    }
+    
+    private MetricPacket acquirePacket() {
+        MetricPacket packet = freePackets.poll();
+        return packet != null ? packet : new MetricPacket();
+    }
+    
+    private void releasePacket(MetricPacket packet) {
+        packet.reset();
+        freePackets.offer(packet);
+    }
+    
+    public JSONObject stats() {
+        JSONObject stats = new JSONObject();
+        stats.put("received", received.sum());
+        stats.put("poolExhausted", poolExhausted.sum());
+        stats.put("oversized", oversized.sum());
+        stats.put("freeBuffers", freeDatagrams.size());
+        for (Stage<Datagram> stage : parseStages) {
+            stats.put(stage.name, stage.stats());
+        }
+        for (Stage<MetricPacket> stage : storeStages) {
+            stats.put(stage.name, stage.stats());
+        }
+        stats.put(fanOutStage.name, fanOutStage.stats());
+        return stats;
+    }
+    
+    public void stop() {
+        running = false;
+        for (DatagramChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (Exception e) {
+                System.err.println("Error closing UDP channel: " + e.getMessage());
+            }
+        }
+    }
+    
+    // A received datagram on its way to a parser; data is the pooled buffer unless the datagram did not fit
+    private static final class Datagram {
+        final ByteBuffer pooled;
+        ByteBuffer data;
+        SocketAddress source;
+        
+        Datagram(ByteBuffer pooled) {
+            this.pooled = pooled;
+        }
+    }
+    
+    // Bounded hand-off between two stages; offers never block
+    private static class Stage<T> {
+        final String name;
+        final BlockingQueue<T> queue;
+        final LongAdder processed = new LongAdder();
+        final LongAdder dropped = new LongAdder();
+        
+        Stage(String name, int capacity) {
+            this.name = name;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+        
+        boolean offer(T item) {
+            if (queue.offer(item)) {
+                return true;
+            }
+            dropped.increment();
+            return false;
+        }
+        
+        // Times out periodically so the worker notices stop()
+        T take() {
+            try {
+                return queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        
+        JSONObject stats() {
+            JSONObject stats = new JSONObject();
+            stats.put("depth", queue.size());
+            stats.put("capacity", queue.size() + queue.remainingCapacity());
+            stats.put("processed", processed.sum());
+            stats.put("dropped", dropped.sum());
+            return stats;
+        }
+    }
+}
@@ -0,0 +1,513 @@
+package collector;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decodes JSON datagrams straight from the receive buffer, without building a
+ * String or JSONObject. Only the subset exporters send is understood:
+ * {@code dev}, {@code ts}, {@code seq}, {@code epoch}, {@code labels} and one
+ * of {@code m}, {@code alert} or {@code interval}; other fields are skipped.
+ *
+ * Device ids and metric names come from a shared Utf8InternTable, and the
+ * labelled names a {@code labels} object produces are cached per label set,
+ * so a datagram for known series allocates nothing. Instances keep parse
+ * state and are used by one thread at a time.
+ */
+public class JsonPacketParser {
+    private static final byte[] DEV = key("dev");
+    private static final byte[] TS = key("ts");
+    private static final byte[] SEQ = key("seq");
+    private static final byte[] EPOCH = key("epoch");
+    private static final byte[] METRICS = key("m");
+    private static final byte[] ALERT = key("alert");
+    private static final byte[] INTERVAL = key("interval");
+    private static final byte[] LABELS = key("labels");
+    private static final byte[] METRIC = key("metric");
+    private static final byte[] VALUE = key("value");
+    // Label sets and names per set beyond these are still applied, just not cached
+    private static final int MAX_LABEL_SETS = 4096;
+    private static final int MAX_NAMES_PER_LABEL_SET = 65536;
+    // Powers of ten that are exact doubles; with a mantissa below 2^53 one multiply or divide rounds correctly
+    private static final double[] POWERS_OF_TEN = new double[23];
+    
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+    
+    private final Utf8InternTable names;
+    private final Map<String, Map<String, String>> labelledNames;
+    private byte[] copy = new byte[2048]; // Datagrams in direct buffers are copied here
+    private byte[] unescaped = new byte[256];
+    private byte[] data;
+    private int pos;
+    private int end;
+    
+    public JsonPacketParser(Utf8InternTable names, Map<String, Map<String, String>> labelledNames) {
+        this.names = names;
+        this.labelledNames = labelledNames;
+    }
+    
+    /**
+     * Decodes the remaining bytes of {@code buf} into {@code out}, leaving the
+     * buffer's position alone. Throws IllegalArgumentException if the datagram
+     * is not a packet.
+     */
+    public void parse(ByteBuffer buf, MetricPacket out) {
+        if (buf.hasArray()) {
+            data = buf.array();
+            pos = buf.arrayOffset() + buf.position();
+        } else {
+            if (copy.length < buf.remaining()) {
+                copy = new byte[buf.remaining()];
+            }
+            int start = buf.position();
+            buf.get(copy, 0, buf.remaining());
+            buf.position(start);
+            data = copy;
+            pos = 0;
+        }
+        end = pos + buf.remaining();
+        
+        boolean hasDevice = false;
+        boolean hasTimestamp = false;
+        boolean hasSequence = false;
+        boolean hasSamples = false;
+        int epoch = 0;
+        int labelsStart = -1;
+        int labelsEnd = -1;
+        expect('{');
+        if (peek() == '}') {
+            pos++;
+        } else {
+            do {
+                skipWhitespace();
+                int keyStart = pos + 1;
+                skipString();
+                int keyLength = pos - 1 - keyStart;
+                expect(':');
+                if (isKey(keyStart, keyLength, DEV)) {
+                    out.deviceId = string();
+                    hasDevice = true;
+                } else if (isKey(keyStart, keyLength, TS)) {
+                    out.timestamp = (long) number() * 1000; // Convert to milliseconds
+                    hasTimestamp = true;
+                } else if (isKey(keyStart, keyLength, SEQ)) {
+                    out.sequence = (long) number() & 0xFFFFFFFFL;
+                    hasSequence = true;
+                } else if (isKey(keyStart, keyLength, EPOCH)) {
+                    epoch = (int) number();
+                } else if (!hasSamples && isKey(keyStart, keyLength, METRICS)) {
+                    pairs(out);
+                    hasSamples = true;
+                } else if (!hasSamples && isKey(keyStart, keyLength, INTERVAL)) {
+                    out.interval = true;
+                    pairs(out);
+                    hasSamples = true;
+                } else if (!hasSamples && isKey(keyStart, keyLength, ALERT)) {
+                    out.alert = true;
+                    alerts(out);
+                    hasSamples = true;
+                } else if (isKey(keyStart, keyLength, LABELS)) {
+                    skipWhitespace();
+                    labelsStart = pos;
+                    skipValue();
+                    labelsEnd = pos;
+                } else {
+                    skipValue();
+                }
+            } while (nextMember('}'));
+        }
+        if (!hasDevice || !hasTimestamp) {
+            throw new IllegalArgumentException(hasDevice ? "Missing ts" : "Missing dev");
+        }
+        if (hasSequence) {
+            out.epoch = epoch;
+        }
+        // Samples may come before "ts" in the object
+        for (int i = 0; i < out.count; i++) {
+            out.timestamps[i] = out.timestamp;
+        }
+        if (labelsStart >= 0 && data[labelsStart] == '{') {
+            applyLabels(out, labelsStart, labelsEnd);
+        }
+    }
+    
+    // [["name", value], ...]
+    private void pairs(MetricPacket out) {
+        expect('[');
+        if (peek() == ']') {
+            pos++;
+            return;
+        }
+        do {
+            expect('[');
+            String name = string();
+            expect(',');
+            out.add(name, number());
+            expect(']');
+        } while (nextMember(']'));
+    }
+    
+    // [{"metric": "name", "value": value}, ...]
+    private void alerts(MetricPacket out) {
+        expect('[');
+        if (peek() == ']') {
+            pos++;
+            return;
+        }
+        do {
+            String name = null;
+            double value = Double.NaN;
+            boolean hasValue = false;
+            expect('{');
+            if (peek() == '}') {
+                pos++;
+            } else {
+                do {
+                    skipWhitespace();
+                    int keyStart = pos + 1;
+                    skipString();
+                    int keyLength = pos - 1 - keyStart;
+                    expect(':');
+                    if (isKey(keyStart, keyLength, METRIC)) {
+                        name = string();
+                    } else if (isKey(keyStart, keyLength, VALUE)) {
+                        value = number();
+                        hasValue = true;
+                    } else {
+                        skipValue();
+                    }
+                } while (nextMember('}'));
+            }
+            if (name == null || !hasValue) {
+                throw new IllegalArgumentException("Alert without metric or value");
+            }
+            out.add(name, value);
+        } while (nextMember(']'));
+    }
+    
+    // Rewrites every name with the datagram's labels, e.g. "labels": {"region": "eu"}
+    private void applyLabels(MetricPacket out, int start, int stop) {
+        String labelSet = names.get(data, start, stop - start);
+        Map<String, String> cache = labelledNames.get(labelSet);
+        if (cache == null && labelledNames.size() < MAX_LABEL_SETS) {
+            cache = labelledNames.computeIfAbsent(labelSet, k -> new ConcurrentHashMap<>());
+        }
+        Map<String, String> pairs = null;
+        for (int i = 0; i < out.count; i++) {
+            String labelled = cache == null ? null : cache.get(out.names[i]);
+            if (labelled == null) {
+                if (pairs == null) {
+                    pairs = labelPairs(start);
+                }
+                labelled = Labels.withLabels(out.names[i], pairs);
+                if (cache != null && cache.size() < MAX_NAMES_PER_LABEL_SET) {
+                    cache.put(out.names[i], labelled);
+                }
+            }
+            out.names[i] = labelled;
+        }
+    }
+    
+    // Non-string label values keep their JSON text
+    private Map<String, String> labelPairs(int start) {
+        Map<String, String> pairs = new TreeMap<>();
+        pos = start;
+        expect('{');
+        if (peek() == '}') {
+            return pairs;
+        }
+        do {
+            String name = string();
+            expect(':');
+            skipWhitespace();
+            if (data[pos] == '"') {
+                pairs.put(name, string());
+            } else {
+                int valueStart = pos;
+                skipValue();
+                pairs.put(name, new String(data, valueStart, pos - valueStart, StandardCharsets.UTF_8).trim());
+            }
+        } while (nextMember('}'));
+        return pairs;
+    }
+    
+    // Consumes a ',' (returning true) or the closing bracket (returning false)
+    private boolean nextMember(char close) {
+        skipWhitespace();
+        if (pos < end) {
+            byte b = data[pos++];
+            if (b == ',') {
+                return true;
+            }
+            if (b == close) {
+                return false;
+            }
+        }
+        throw error("Expected , or " + close);
+    }
+    
+    private String string() {
+        expect('"');
+        int start = pos;
+        int hash = 0;
+        while (pos < end) {
+            byte b = data[pos];
+            if (b == '"') {
+                pos++;
+                return names.get(data, start, pos - 1 - start, hash);
+            }
+            if (b == '\\') {
+                return escapedString(start);
+            }
+            hash = Utf8InternTable.hash(hash, b);
+            pos++;
+        }
+        throw error("Unterminated string");
+    }
+    
+    // Unescapes into a scratch buffer, which is then interned like the raw bytes would be
+    private String escapedString(int start) {
+        int length = 0;
+        pos = start;
+        while (pos < end) {
+            byte b = data[pos++];
+            if (b == '"') {
+                return names.get(unescaped, 0, length);
+            }
+            if (length + 4 > unescaped.length) {
+                unescaped = Arrays.copyOf(unescaped, unescaped.length * 2);
+            }
+            if (b != '\\') {
+                unescaped[length++] = b;
+                continue;
+            }
+            if (pos >= end) {
+                break;
+            }
+            byte escape = data[pos++];
+            switch (escape) {
+                case 'b': unescaped[length++] = '\b'; break;
+                case 'f': unescaped[length++] = '\f'; break;
+                case 'n': unescaped[length++] = '\n'; break;
+                case 'r': unescaped[length++] = '\r'; break;
+                case 't': unescaped[length++] = '\t'; break;
+                case 'u': length = appendUtf8(hex4(), length); break;
+                default: unescaped[length++] = escape; // " \ and /
+            }
+        }
+        throw error("Unterminated string");
+    }
+    
+    private int hex4() {
+        if (pos + 4 > end) {
+            throw error("Truncated \\u escape");
+        }
+        int c = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(data[pos++], 16);
+            if (digit < 0) {
+                throw error("Invalid \\u escape");
+            }
+            c = c << 4 | digit;
+        }
+        // A surrogate pair arrives as two escapes
+        if (Character.isHighSurrogate((char) c) && pos + 6 <= end && data[pos] == '\\' && data[pos + 1] == 'u') {
+            int mark = pos;
+            pos += 2;
+            int low = hex4();
+            if (Character.isLowSurrogate((char) low)) {
+                return Character.toCodePoint((char) c, (char) low);
+            }
+            pos = mark;
+        }
+        return c;
+    }
+    
+    private int appendUtf8(int c, int length) {
+        if (c < 0x80) {
+            unescaped[length++] = (byte) c;
+        } else if (c < 0x800) {
+            unescaped[length++] = (byte) (0xC0 | c >> 6);
+            unescaped[length++] = (byte) (0x80 | c & 0x3F);
+        } else if (c < 0x10000) {
+            unescaped[length++] = (byte) (0xE0 | c >> 12);
+            unescaped[length++] = (byte) (0x80 | c >> 6 & 0x3F);
+            unescaped[length++] = (byte) (0x80 | c & 0x3F);
+        } else {
+            unescaped[length++] = (byte) (0xF0 | c >> 18);
+            unescaped[length++] = (byte) (0x80 | c >> 12 & 0x3F);
+            unescaped[length++] = (byte) (0x80 | c >> 6 & 0x3F);
+            unescaped[length++] = (byte) (0x80 | c & 0x3F);
+        }
+        return length;
+    }
+    
+    /**
+     * Reads a JSON number. Up to 15 significant digits and a small exponent
+     * (everything exporters send) are converted exactly without allocating;
+     * anything longer goes through Double.parseDouble.
+     */
+    private double number() {
+        skipWhitespace();
+        int start = pos;
+        boolean negative = pos < end && data[pos] == '-';
+        if (negative) {
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        int intStart = pos;
+        while (pos < end && isDigit(data[pos])) {
+            if (digits == 18) {
+                exponent++; // Kept out of the mantissa so it cannot overflow; the slow path takes over
+            } else if (digits > 0 || data[pos] != '0') {
+                mantissa = mantissa * 10 + (data[pos] - '0');
+                digits++;
+            }
+            pos++;
+        }
+        if (pos == intStart) {
+            throw error("Expected a number");
+        }
+        if (pos < end && data[pos] == '.') {
+            pos++;
+            int fractionStart = pos;
+            while (pos < end && isDigit(data[pos])) {
+                if (digits < 18) {
+                    if (digits > 0 || data[pos] != '0') {
+                        digits++;
+                    }
+                    mantissa = mantissa * 10 + (data[pos] - '0');
+                    exponent--;
+                }
+                pos++;
+            }
+            if (pos == fractionStart) {
+                throw error("Expected digits after .");
+            }
+        }
+        if (pos < end && (data[pos] == 'e' || data[pos] == 'E')) {
+            pos++;
+            boolean negativeExponent = pos < end && data[pos] == '-';
+            if (pos < end && (data[pos] == '-' || data[pos] == '+')) {
+                pos++;
+            }
+            int exponentStart = pos;
+            int explicit = 0;
+            while (pos < end && isDigit(data[pos])) {
+                if (explicit < 10000) {
+                    explicit = explicit * 10 + (data[pos] - '0');
+                }
+                pos++;
+            }
+            if (pos == exponentStart) {
+                throw error("Expected exponent digits");
+            }
+            exponent += negativeExponent ? -explicit : explicit;
+        }
+        if (mantissa > (1L << 53) || exponent > 22 || exponent < -22) {
+            return Double.parseDouble(new String(data, start, pos - start, StandardCharsets.ISO_8859_1));
+        }
+        double value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+        return negative ? -value : value;
+    }
+    
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+    
+    private void skipValue() {
+        skipWhitespace();
+        int start = pos;
+        int depth = 0;
+        while (pos < end) {
+            byte b = data[pos];
+            if (b == '"') {
+                skipString();
+                if (depth == 0) {
+                    return;
+                }
+                continue;
+            }
+            if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                if (depth == 0) {
+                    break; // Closes the enclosing object or array
+                }
+                if (--depth == 0) {
+                    pos++;
+                    return;
+                }
+            } else if (depth == 0 && (b == ',' || isWhitespace(b))) {
+                break;
+            }
+            pos++;
+        }
+        if (depth > 0 || pos == start) {
+            throw error(depth > 0 ? "Unterminated value" : "Expected a value");
+        }
+    }
+    
+    private void skipString() {
+        expect('"');
+        while (pos < end) {
+            byte b = data[pos++];
+            if (b == '"') {
+                return;
+            }
+            if (b == '\\') {
+                pos++;
+            }
+        }
+        throw error("Unterminated string");
+    }
+    
+    private boolean isKey(int start, int length, byte[] key) {
+        return Arrays.equals(data, start, start + length, key, 0, key.length);
+    }
+    
+    private void expect(char c) {
+        skipWhitespace();
+        if (pos >= end || data[pos] != c) {
+            throw error("Expected " + c);
+        }
+        pos++;
+    }
+    
+    private byte peek() {
+        skipWhitespace();
+        if (pos >= end) {
+            throw error("Unexpected end of datagram");
+        }
+        return data[pos];
+    }
+    
+    private void skipWhitespace() {
+        while (pos < end && isWhitespace(data[pos])) {
+            pos++;
+        }
+    }
+    
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+    
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at offset " + pos);
+    }
+    
+    private static byte[] key(String name) {
+        return name.getBytes(StandardCharsets.UTF_8);
+    }
+}
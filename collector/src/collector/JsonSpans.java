@@ -0,0 +1,232 @@
+package collector;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The entries of the object or array under one top-level member of a JSON
+ * document, as byte ranges into it. Lets a node merge another node's response
+ * by copying entries into a JsonStreamWriter instead of building and
+ * re-serialising a tree. Values are skipped by matching brackets and strings,
+ * not validated; a document of another shape throws IllegalArgumentException.
+ */
+public class JsonSpans {
+    private final byte[] data;
+    private final int end;
+    private int pos;
+    private String[] names = new String[16]; // Member names; null for array items
+    private int[] starts = new int[16];
+    private int[] lengths = new int[16];
+    private int size;
+    
+    private JsonSpans(byte[] data) {
+        this.data = data;
+        this.end = data.length;
+    }
+    
+    /** Entries of {@code member} in {@code json}; none if it is missing or null. */
+    public static JsonSpans of(byte[] json, String member) {
+        JsonSpans spans = new JsonSpans(json);
+        spans.scan(member);
+        return spans;
+    }
+    
+    private void scan(String member) {
+        expect('{');
+        if (peek() == '}') {
+            return;
+        }
+        do {
+            String name = string();
+            expect(':');
+            byte b = peek();
+            if (name.equals(member) && (b == '{' || b == '[')) {
+                entries(b == '{');
+                return;
+            }
+            skipValue();
+        } while (nextMember('}'));
+    }
+    
+    private void entries(boolean object) {
+        pos++;
+        char close = object ? '}' : ']';
+        if (peek() == close) {
+            return;
+        }
+        do {
+            String name = null;
+            if (object) {
+                name = string();
+                expect(':');
+            }
+            skipWhitespace();
+            int start = pos;
+            skipValue();
+            add(name, start, pos - start);
+        } while (nextMember(close));
+    }
+    
+    private void add(String name, int start, int length) {
+        if (size == starts.length) {
+            names = Arrays.copyOf(names, size * 2);
+            starts = Arrays.copyOf(starts, size * 2);
+            lengths = Arrays.copyOf(lengths, size * 2);
+        }
+        names[size] = name;
+        starts[size] = start;
+        lengths[size] = length;
+        size++;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public String name(int i) {
+        return names[i];
+    }
+    
+    // Copies entry i as a value into json
+    public void write(int i, JsonStreamWriter json) throws IOException {
+        json.rawValue(data, starts[i], lengths[i]);
+    }
+    
+    private String string() {
+        expect('"');
+        int start = pos;
+        StringBuilder unescaped = null;
+        while (pos < end) {
+            byte b = data[pos];
+            if (b == '"') {
+                String tail = new String(data, start, pos - start, StandardCharsets.UTF_8);
+                pos++;
+                return unescaped == null ? tail : unescaped.append(tail).toString();
+            }
+            if (b != '\\') {
+                pos++;
+                continue;
+            }
+            if (unescaped == null) {
+                unescaped = new StringBuilder();
+            }
+            unescaped.append(new String(data, start, pos - start, StandardCharsets.UTF_8));
+            if (pos + 1 >= end) {
+                break;
+            }
+            byte escape = data[pos + 1];
+            pos += 2;
+            switch (escape) {
+                case 'b': unescaped.append('\b'); break;
+                case 'f': unescaped.append('\f'); break;
+                case 'n': unescaped.append('\n'); break;
+                case 'r': unescaped.append('\r'); break;
+                case 't': unescaped.append('\t'); break;
+                case 'u':
+                    if (pos + 4 > end) {
+                        throw error("Truncated \\u escape");
+                    }
+                    // Surrogate pairs come as two escapes and end up as two chars, as in Java strings
+                    unescaped.append((char) Integer.parseInt(new String(data, pos, 4, StandardCharsets.ISO_8859_1), 16));
+                    pos += 4;
+                    break;
+                default: unescaped.append((char) escape); break; // \" \\ \/
+            }
+            start = pos;
+        }
+        throw error("Unterminated string");
+    }
+    
+    private void skipValue() {
+        skipWhitespace();
+        int start = pos;
+        int depth = 0;
+        while (pos < end) {
+            byte b = data[pos];
+            if (b == '"') {
+                skipString();
+                if (depth == 0) {
+                    return;
+                }
+                continue;
+            }
+            if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                if (depth == 0) {
+                    break; // Closes the enclosing object or array
+                }
+                if (--depth == 0) {
+                    pos++;
+                    return;
+                }
+            } else if (depth == 0 && (b == ',' || isWhitespace(b))) {
+                break;
+            }
+            pos++;
+        }
+        if (depth > 0 || pos == start) {
+            throw error(depth > 0 ? "Unterminated value" : "Expected a value");
+        }
+    }
+    
+    private void skipString() {
+        expect('"');
+        while (pos < end) {
+            byte b = data[pos++];
+            if (b == '"') {
+                return;
+            }
+            if (b == '\\') {
+                pos++;
+            }
+        }
+        throw error("Unterminated string");
+    }
+    
+    // Consumes a ',' (returning true) or the closing bracket (returning false)
+    private boolean nextMember(char close) {
+        skipWhitespace();
+        if (pos < end) {
+            byte b = data[pos++];
+            if (b == ',') {
+                return true;
+            }
+            if (b == close) {
+                return false;
+            }
+        }
+        throw error("Expected , or " + close);
+    }
+    
+    private void expect(char c) {
+        skipWhitespace();
+        if (pos >= end || data[pos] != c) {
+            throw error("Expected " + c);
+        }
+        pos++;
+    }
+    
+    private byte peek() {
+        skipWhitespace();
+        if (pos >= end) {
+            throw error("Unexpected end of document");
+        }
+        return data[pos];
+    }
+    
+    private void skipWhitespace() {
+        while (pos < end && isWhitespace(data[pos])) {
+            pos++;
+        }
+    }
+    
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+    
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at offset " + pos);
+    }
+}
@@ -0,0 +1,235 @@
+package collector;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Minimal streaming JSON writer. Keys and numbers are encoded straight into a
+ * reusable byte buffer that is flushed to the underlying stream whenever it
+ * fills up, so the size of a response never shows up on the heap. One instance
+ * is kept per thread (see {@link #forThread}).
+ */
+public class JsonStreamWriter {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_DEPTH = 64;
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final ThreadLocal<JsonStreamWriter> PER_THREAD = ThreadLocal.withInitial(JsonStreamWriter::new);
+    
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final StringBuilder numberScratch = new StringBuilder(32);
+    private final boolean[] needsComma = new boolean[MAX_DEPTH];
+    private OutputStream out;
+    private int position;
+    private int depth;
+    private boolean afterName;
+    
+    public static JsonStreamWriter forThread(OutputStream out) {
+        JsonStreamWriter writer = PER_THREAD.get();
+        writer.out = out;
+        writer.position = 0;
+        writer.depth = 0;
+        writer.afterName = false;
+        return writer;
+    }
+    
+    public JsonStreamWriter beginObject() throws IOException {
+        beforeValue();
+        writeByte('{');
+        push();
+        return this;
+    }
+    
+    public JsonStreamWriter endObject() throws IOException {
+        depth--;
+        writeByte('}');
+        return this;
+    }
+    
+    public JsonStreamWriter beginArray() throws IOException {
+        beforeValue();
+        writeByte('[');
+        push();
+        return this;
+    }
+    
+    public JsonStreamWriter endArray() throws IOException {
+        depth--;
+        writeByte(']');
+        return this;
+    }
+    
+    public JsonStreamWriter name(String name) throws IOException {
+        beforeValue();
+        writeString(name);
+        writeByte(':');
+        afterName = true;
+        return this;
+    }
+    
+    public JsonStreamWriter value(String value) throws IOException {
+        beforeValue();
+        if (value == null) {
+            writeAscii("null");
+        } else {
+            writeString(value);
+        }
+        return this;
+    }
+    
+    public JsonStreamWriter value(long value) throws IOException {
+        beforeValue();
+        writeLong(value);
+        return this;
+    }
+    
+    public JsonStreamWriter value(double value) throws IOException {
+        beforeValue();
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            writeAscii("null");
+        } else if (value == (long) value && Math.abs(value) < 1e15) {
+            writeLong((long) value); // Integral values print like org.json does
+        } else {
+            // StringBuilder.append(double) formats into a thread-local buffer without allocating
+            numberScratch.setLength(0);
+            numberScratch.append(value);
+            ensure(numberScratch.length());
+            for (int i = 0; i < numberScratch.length(); i++) {
+                buffer[position++] = (byte) numberScratch.charAt(i);
+            }
+        }
+        return this;
+    }
+    
+    public JsonStreamWriter value(boolean value) throws IOException {
+        beforeValue();
+        writeAscii(value ? "true" : "false");
+        return this;
+    }
+    
+    // Already encoded JSON, e.g. part of another collector's response
+    public JsonStreamWriter rawValue(byte[] json, int offset, int length) throws IOException {
+        beforeValue();
+        if (length > buffer.length) {
+            out.write(buffer, 0, position);
+            position = 0;
+            out.write(json, offset, length);
+        } else {
+            ensure(length);
+            System.arraycopy(json, offset, buffer, position, length);
+            position += length;
+        }
+        return this;
+    }
+    
+    public void flush() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+        out.flush();
+    }
+    
+    // Flushes and drops the reference to the stream; the writer stays reusable
+    public void finish() throws IOException {
+        flush();
+        out = null;
+    }
+    
+    private void push() {
+        needsComma[depth++] = false;
+    }
+    
+    private void beforeValue() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth > 0) {
+            if (needsComma[depth - 1]) {
+                writeByte(',');
+            }
+            needsComma[depth - 1] = true;
+        }
+    }
+    
+    private void writeLong(long value) throws IOException {
+        ensure(20);
+        if (value == Long.MIN_VALUE) {
+            writeAscii("-9223372036854775808");
+            return;
+        }
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int start = position;
+        do {
+            buffer[position++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        // Digits were written least significant first
+        for (int i = start, j = position - 1; i < j; i++, j--) {
+            byte tmp = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = tmp;
+        }
+    }
+    
+    private void writeString(String s) throws IOException {
+        writeByte('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                ensure(2);
+                buffer[position++] = '\\';
+                buffer[position++] = (byte) c;
+            } else if (c < 0x20) {
+                ensure(6);
+                buffer[position++] = '\\';
+                buffer[position++] = 'u';
+                buffer[position++] = '0';
+                buffer[position++] = '0';
+                buffer[position++] = HEX[c >> 4];
+                buffer[position++] = HEX[c & 0xF];
+            } else if (c < 0x80) {
+                writeByte(c);
+            } else if (c < 0x800) {
+                ensure(2);
+                buffer[position++] = (byte) (0xC0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                ensure(4);
+                buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                ensure(3);
+                buffer[position++] = (byte) (0xE0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        writeByte('"');
+    }
+    
+    private void writeAscii(String s) throws IOException {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buffer[position++] = (byte) s.charAt(i);
+        }
+    }
+    
+    private void writeByte(int b) throws IOException {
+        ensure(1);
+        buffer[position++] = (byte) b;
+    }
+    
+    private void ensure(int bytes) throws IOException {
+        if (position + bytes > buffer.length) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package collector;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.UnaryOperator;
+
+/**
+ * Immutable label set of a series, sorted by label name.
+ *
+ * A series key carries its labels in Prometheus text form,
+ * {@code cpu_usage{core="0",region="eu"}}, so the wire formats, the WAL and
+ * snapshots store labelled series without changes. The key is parsed once,
+ * when the series is created. Keys are canonical when their labels are sorted;
+ * MetricStore rewrites others, so label order does not create new series.
+ */
+public final class Labels {
+    public static final Labels EMPTY = new Labels(new String[0], new String[0]);
+    
+    private final String[] names;
+    private final String[] values;
+    
+    private Labels(String[] names, String[] values) {
+        this.names = names;
+        this.values = values;
+    }
+    
+    public int size() {
+        return names.length;
+    }
+    
+    public String name(int i) {
+        return names[i];
+    }
+    
+    public String value(int i) {
+        return values[i];
+    }
+    
+    // Null if the label is not set
+    public String get(String name) {
+        int i = Arrays.binarySearch(names, name);
+        return i < 0 ? null : values[i];
+    }
+    
+    // Metric name part of a series key
+    public static String metricOf(String key) {
+        int brace = key.indexOf('{');
+        return brace < 0 ? key : key.substring(0, brace);
+    }
+    
+    /**
+     * Parses the labels of a series key, passing every name and value through
+     * {@code intern}. Throws IllegalArgumentException if the label part is malformed.
+     */
+    public static Labels parse(String key, UnaryOperator<String> intern) {
+        int brace = key.indexOf('{');
+        if (brace < 0) {
+            return EMPTY;
+        }
+        TreeMap<String, String> sorted = parsePairs(key, brace + 1);
+        String[] names = new String[sorted.size()];
+        String[] values = new String[sorted.size()];
+        int i = 0;
+        for (Map.Entry<String, String> pair : sorted.entrySet()) {
+            names[i] = intern.apply(pair.getKey());
+            values[i] = intern.apply(pair.getValue());
+            i++;
+        }
+        return new Labels(names, values);
+    }
+    
+    /**
+     * The key with its labels sorted by name, or {@code key} itself if it is
+     * already canonical. A malformed label part is left as it is, making the
+     * whole string a plain metric name.
+     */
+    public static String canonicalKey(String key) {
+        int brace = key.indexOf('{');
+        if (brace < 0) {
+            return key;
+        }
+        try {
+            String canonical = format(key.substring(0, brace), parsePairs(key, brace + 1));
+            return canonical.equals(key) ? key : canonical;
+        } catch (IllegalArgumentException e) {
+            return key;
+        }
+    }
+    
+    // Series key of a metric with extra labels, which win over labels already in the name
+    public static String withLabels(String key, Map<String, String> extra) {
+        if (extra.isEmpty()) {
+            return key;
+        }
+        int brace = key.indexOf('{');
+        TreeMap<String, String> pairs = new TreeMap<>();
+        if (brace >= 0) {
+            try {
+                pairs.putAll(parsePairs(key, brace + 1));
+            } catch (IllegalArgumentException e) {
+                brace = -1;
+            }
+        }
+        pairs.putAll(extra);
+        return format(brace < 0 ? key : key.substring(0, brace), pairs);
+    }
+    
+    private static String format(String metric, Map<String, String> pairs) {
+        StringBuilder out = new StringBuilder(metric).append('{');
+        boolean first = true;
+        for (Map.Entry<String, String> pair : pairs.entrySet()) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            out.append(pair.getKey()).append("=\"");
+            String value = pair.getValue();
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    out.append('\\');
+                }
+                out.append(c);
+            }
+            out.append('"');
+        }
+        return out.append('}').toString();
+    }
+    
+    // name="value" pairs from {@code start} up to the closing brace
+    private static TreeMap<String, String> parsePairs(String key, int start) {
+        TreeMap<String, String> pairs = new TreeMap<>();
+        int i = start;
+        int length = key.length();
+        while (i < length && key.charAt(i) != '}') {
+            int eq = key.indexOf('=', i);
+            if (eq < 0 || eq + 1 >= length || key.charAt(eq + 1) != '"') {
+                throw new IllegalArgumentException("Expected name=\"value\" in " + key);
+            }
+            String name = key.substring(i, eq).trim();
+            StringBuilder value = new StringBuilder();
+            int j = eq + 2;
+            while (j < length && key.charAt(j) != '"') {
+                if (key.charAt(j) == '\\' && j + 1 < length) {
+                    j++;
+                }
+                value.append(key.charAt(j++));
+            }
+            if (j >= length || name.isEmpty()) {
+                throw new IllegalArgumentException("Unterminated label in " + key);
+            }
+            pairs.put(name, value.toString());
+            i = j + 1;
+            if (i < length && key.charAt(i) == ',') {
+                i++;
+            }
+        }
+        if (i != length - 1) {
+            throw new IllegalArgumentException("Expected } at the end of " + key);
+        }
+        return pairs;
+    }
+    
+    @Override
+    public String toString() {
+        return size() == 0 ? "{}" : format("", toMap());
+    }
+    
+    public Map<String, String> toMap() {
+        TreeMap<String, String> map = new TreeMap<>();
+        for (int i = 0; i < names.length; i++) {
+            map.put(names[i], values[i]);
+        }
+        return map;
+    }
+}
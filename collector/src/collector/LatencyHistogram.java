@@ -0,0 +1,55 @@
+package collector;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Lock-free log2 histogram of durations in microseconds, cheap enough to record per request
+public class LatencyHistogram {
+    private static final int BUCKETS = 40;
+    
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+    
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+    
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets[bucket].increment();
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+    
+    // Upper bound of the bucket holding the given quantile
+    private double quantileMillis(double quantile, long total) {
+        long target = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i].sum();
+            if (seen >= target) {
+                return Math.min((1L << i) / 1000.0, maxNanos.get() / 1e6);
+            }
+        }
+        return maxNanos.get() / 1e6;
+    }
+    
+    public JSONObject stats() {
+        long total = count.sum();
+        JSONObject stats = new JSONObject();
+        stats.put("count", total);
+        stats.put("meanMillis", total == 0 ? 0 : totalNanos.sum() / 1e6 / total);
+        stats.put("p50Millis", total == 0 ? 0 : quantileMillis(0.5, total));
+        stats.put("p99Millis", total == 0 ? 0 : quantileMillis(0.99, total));
+        stats.put("maxMillis", maxNanos.get() / 1e6);
+        return stats;
+    }
+}
@@ -0,0 +1,329 @@
+package collector;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Datagram accounting per device, for exporters that number their datagrams
+ * (see WireProtocol). The last WINDOW sequence numbers of each device are
+ * remembered, which tells a late datagram from a duplicate; one that leaves the
+ * window without having arrived is counted as lost. A new epoch means the
+ * exporter restarted, and starts the count over.
+ *
+ * A gap of up to maxNackGap datagrams is NACKed once, to the address the next
+ * datagram came from. While a NACK is outstanding, the datagrams after the gap
+ * are held back for up to holdMs, so a retransmission can still be stored in
+ * timestamp order (series reject samples older than their newest one).
+ *
+ * All calls for one device must come from the thread that stores its packets.
+ */
+public class LossTracker {
+    private static final int WINDOW = 256; // Power of two, so it divides the u32 sequence space
+    private static final int MAX_HELD = 64; // Per device
+    
+    /** Sends a NACK datagram from the socket the exporter is sending to. */
+    public interface NackSender {
+        void send(ByteBuffer nack, SocketAddress target) throws IOException;
+    }
+    
+    private final boolean nackEnabled;
+    private final int maxNackGap;
+    private final long holdMs;
+    private final Map<String, Stream> streams = new ConcurrentHashMap<>();
+    private final LongAdder unsequenced = new LongAdder();
+    private volatile NackSender nackSender;
+    
+    public LossTracker(boolean nackEnabled, int maxNackGap, long holdMs) {
+        this.nackEnabled = nackEnabled;
+        this.maxNackGap = Math.min(maxNackGap, WINDOW / 2);
+        this.holdMs = holdMs;
+    }
+    
+    public void useNackSender(NackSender sender) {
+        this.nackSender = sender;
+    }
+    
+    /**
+     * Accounts for {@code packet} and passes every packet that should be stored
+     * now to {@code ingest}, in order: held packets whose gap was filled, and
+     * this one unless it is a duplicate or has to wait for a retransmission.
+     * Returns true if {@code packet} itself went to {@code ingest}; held packets
+     * are copies, so the caller may always reuse {@code packet} afterwards.
+     */
+    public boolean accept(MetricPacket packet, long now, Consumer<MetricPacket> ingest) {
+        if (packet.sequence < 0) {
+            unsequenced.increment();
+            ingest.accept(packet);
+            return true;
+        }
+        Stream stream = streams.computeIfAbsent(packet.deviceId, Stream::new);
+        synchronized (stream) {
+            stream.datagrams++;
+            boolean consumed = true;
+            if (stream.highest < 0 || packet.epoch != stream.epoch) {
+                if (stream.highest >= 0) {
+                    // The previous run's held packets are older than anything the new one sends
+                    stream.restarts++;
+                    stream.lost += stream.missing;
+                    releaseReady(stream, Long.MAX_VALUE, ingest);
+                }
+                stream.start(packet.epoch, packet.sequence);
+                ingest.accept(packet);
+                return true;
+            }
+            
+            int ahead = (int) (packet.sequence - stream.highest); // Wraps with the u32 sequence space
+            if (ahead > 0) {
+                long firstMissing = (stream.highest + 1) & 0xFFFFFFFFL;
+                stream.advance(packet.sequence, ahead);
+                if (ahead > 1) {
+                    nack(stream, packet.source, firstMissing, ahead - 1);
+                }
+                if (stream.outstanding > 0) {
+                    hold(stream, packet, now, ingest);
+                    consumed = false;
+                } else {
+                    releaseReady(stream, Long.MAX_VALUE, ingest);
+                    ingest.accept(packet);
+                }
+            } else if (-ahead >= WINDOW) {
+                stream.reordered++; // Too old to know, most likely the series will reject it anyway
+                ingest.accept(packet);
+            } else if (stream.isSet(stream.received, packet.sequence)) {
+                stream.duplicates++;
+                consumed = false;
+            } else {
+                stream.set(stream.received, packet.sequence);
+                stream.missing--;
+                if (stream.isSet(stream.nacked, packet.sequence)) {
+                    stream.recovered++;
+                    stream.outstanding--;
+                } else {
+                    stream.reordered++;
+                }
+                ingest.accept(packet);
+            }
+            releaseReady(stream, now, ingest);
+            return consumed;
+        }
+    }
+    
+    /**
+     * Stores held packets whose hold time ran out, for the devices accepted by
+     * {@code owned}. Called while ingest is idle, so a device that stops sending
+     * does not keep its last packets back.
+     */
+    public void releaseExpired(long now, Predicate<String> owned, Consumer<MetricPacket> ingest) {
+        for (Stream stream : streams.values()) {
+            if (owned.test(stream.deviceId)) {
+                synchronized (stream) {
+                    releaseReady(stream, now, ingest);
+                }
+            }
+        }
+    }
+    
+    private void hold(Stream stream, MetricPacket packet, long now, Consumer<MetricPacket> ingest) {
+        if (stream.held.size() >= MAX_HELD) {
+            stream.holdExpired++;
+            ingest.accept(stream.held.poll().packet);
+        }
+        MetricPacket copy = new MetricPacket();
+        copy.copyFrom(packet);
+        stream.held.add(new Held(copy, now + holdMs));
+        stream.heldTotal++;
+    }
+    
+    // Held packets leave in order, once no NACKed datagram before them is outstanding or their time is up
+    private static void releaseReady(Stream stream, long now, Consumer<MetricPacket> ingest) {
+        while (!stream.held.isEmpty()) {
+            Held head = stream.held.peek();
+            if (stream.outstandingBefore(head.packet.sequence)) {
+                if (now < head.until) {
+                    return;
+                }
+                stream.holdExpired++;
+                stream.abandonBefore(head.packet.sequence); // Later packets need not wait for them either
+            }
+            stream.held.poll();
+            ingest.accept(head.packet);
+        }
+    }
+    
+    private void nack(Stream stream, SocketAddress source, long first, int length) {
+        NackSender sender = nackSender;
+        if (!nackEnabled || sender == null || source == null || length > maxNackGap) {
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            stream.set(stream.nacked, first + i);
+        }
+        stream.outstanding += length;
+        stream.nacks++;
+        stream.nackedDatagrams += length;
+        ByteBuffer nack = ByteBuffer.allocate(64 + stream.deviceId.length() * 3);
+        WireProtocol.encodeNack(stream.deviceId, stream.epoch, first, length, nack);
+        nack.flip();
+        try {
+            sender.send(nack, source);
+        } catch (IOException e) {
+            System.err.println("Could not send NACK to " + source + ": " + e.getMessage());
+        }
+    }
+    
+    public JSONObject stats() {
+        JSONObject devices = new JSONObject();
+        for (Stream stream : streams.values()) {
+            synchronized (stream) {
+                long expected = stream.datagrams - stream.duplicates + stream.lost + stream.missing;
+                devices.put(stream.deviceId, new JSONObject()
+                        .put("epoch", stream.epoch)
+                        .put("sequence", stream.highest)
+                        .put("datagrams", stream.datagrams)
+                        .put("lost", stream.lost)
+                        .put("missing", stream.missing)
+                        .put("reordered", stream.reordered)
+                        .put("duplicates", stream.duplicates)
+                        .put("nacks", stream.nacks)
+                        .put("nackedDatagrams", stream.nackedDatagrams)
+                        .put("recovered", stream.recovered)
+                        .put("held", stream.heldTotal)
+                        .put("holding", stream.held.size())
+                        .put("holdExpired", stream.holdExpired)
+                        .put("restarts", stream.restarts)
+                        .put("lossRatio", expected == 0 ? 0 : (double) stream.lost / expected));
+            }
+        }
+        return new JSONObject()
+                .put("nackEnabled", nackEnabled)
+                .put("unsequenced", unsequenced.sum())
+                .put("devices", devices);
+    }
+    
+    private static final class Held {
+        final MetricPacket packet;
+        final long until;
+        
+        Held(MetricPacket packet, long until) {
+            this.packet = packet;
+            this.until = until;
+        }
+    }
+    
+    // Sequence state of one device; guarded by itself
+    private static final class Stream {
+        final String deviceId;
+        final long[] received = new long[WINDOW / 64]; // One bit per sequence number, indexed modulo WINDOW
+        final long[] nacked = new long[WINDOW / 64];
+        final ArrayDeque<Held> held = new ArrayDeque<>();
+        int epoch;
+        long highest = -1; // Highest sequence number seen, -1 before the first datagram
+        int filled; // Sequence numbers the window covers so far, up to WINDOW
+        int missing; // In the window and not arrived
+        int outstanding; // NACKed, in the window and not arrived
+        
+        long datagrams;
+        long lost;
+        long reordered;
+        long duplicates;
+        long nacks;
+        long nackedDatagrams;
+        long recovered;
+        long heldTotal;
+        long holdExpired;
+        long restarts;
+        
+        Stream(String deviceId) {
+            this.deviceId = deviceId;
+        }
+        
+        void start(int epoch, long sequence) {
+            this.epoch = epoch;
+            Arrays.fill(received, 0);
+            Arrays.fill(nacked, 0);
+            highest = sequence;
+            filled = 1;
+            missing = 0;
+            outstanding = 0;
+            set(received, sequence);
+        }
+        
+        // Moves the window up to sequence, ahead of the current highest
+        void advance(long sequence, int ahead) {
+            for (int k = 1; k <= Math.min(ahead, WINDOW); k++) {
+                long entering = (highest + k) & 0xFFFFFFFFL;
+                // The slot is shared with the sequence number WINDOW below, which now leaves
+                if (filled == WINDOW && !isSet(received, entering)) {
+                    lost++;
+                    missing--;
+                    if (isSet(nacked, entering)) {
+                        outstanding--;
+                    }
+                }
+                clear(received, entering);
+                clear(nacked, entering);
+                missing++;
+                filled = Math.min(WINDOW, filled + 1);
+            }
+            if (ahead > WINDOW) {
+                lost += ahead - WINDOW; // Skipped the whole window
+            }
+            highest = sequence;
+            set(received, sequence);
+            missing--;
+        }
+        
+        boolean outstandingBefore(long sequence) {
+            return outstanding > 0 && scanOutstanding(sequence, false);
+        }
+        
+        // Stops waiting for NACKed datagrams before sequence; they count as lost unless they still arrive
+        void abandonBefore(long sequence) {
+            while (outstanding > 0 && scanOutstanding(sequence, true)) {
+                outstanding--;
+            }
+        }
+        
+        // Looks for a NACKed, missing datagram before sequence and optionally forgets its NACK
+        private boolean scanOutstanding(long sequence, boolean clearNack) {
+            // Only back to the start of the window; older slots already belong to newer numbers
+            int inWindow = filled - (int) (highest - sequence);
+            for (int k = 1; k < inWindow; k++) {
+                long earlier = (sequence - k) & 0xFFFFFFFFL;
+                if (isSet(nacked, earlier) && !isSet(received, earlier)) {
+                    if (clearNack) {
+                        clear(nacked, earlier);
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        boolean isSet(long[] bits, long sequence) {
+            int slot = (int) (sequence & (WINDOW - 1));
+            return (bits[slot >>> 6] & (1L << slot)) != 0;
+        }
+        
+        void set(long[] bits, long sequence) {
+            int slot = (int) (sequence & (WINDOW - 1));
+            bits[slot >>> 6] |= 1L << slot;
+        }
+        
+        void clear(long[] bits, long sequence) {
+            int slot = (int) (sequence & (WINDOW - 1));
+            bits[slot >>> 6] &= ~(1L << slot);
+        }
+    }
+}
+    
\ No newline at end of file
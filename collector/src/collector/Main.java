@@ -1,39 +1,235 @@
 package collector;
 
+import org.json.JSONObject;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
 public class Main {
     private static final int UDP_PORT = Integer.parseInt(System.getenv().getOrDefault("UDP_PORT", "4000"));
     private static final int WS_PORT = Integer.parseInt(System.getenv().getOrDefault("WS_PORT", "8080"));
     private static final int HTTP_PORT = Integer.parseInt(System.getenv().getOrDefault("HTTP_PORT", "8081"));
+    private static final long RETENTION_MS = Long.parseLong(System.getenv().getOrDefault("RETENTION_MS", "21600000"));
+    private static final long RAW_RETENTION_MS = Long.parseLong(System.getenv().getOrDefault("RAW_RETENTION_MS", "300000"));
+    private static final long SAMPLE_INTERVAL_MS = Long.parseLong(System.getenv().getOrDefault("SAMPLE_INTERVAL_MS", "100"));
+    // resolution:retention pairs, finest first
+    private static final String ROLLUP_TIERS = System.getenv().getOrDefault("ROLLUP_TIERS", MetricStore.DEFAULT_ROLLUP_TIERS);
+    private static final int HTTP_COMPRESSION_LEVEL = Integer.parseInt(System.getenv().getOrDefault("HTTP_COMPRESSION_LEVEL", "6"));
+    private static final int HTTP_COMPRESSION_THRESHOLD = Integer.parseInt(System.getenv().getOrDefault("HTTP_COMPRESSION_THRESHOLD", "1024"));
+    private static final boolean WS_DEFLATE = Boolean.parseBoolean(System.getenv().getOrDefault("WS_DEFLATE", "true"));
+    private static final int WS_COMPRESSION_LEVEL = Integer.parseInt(System.getenv().getOrDefault("WS_COMPRESSION_LEVEL", "6"));
+    private static final int WS_COMPRESSION_THRESHOLD = Integer.parseInt(System.getenv().getOrDefault("WS_COMPRESSION_THRESHOLD", "256"));
+    private static final long WS_FLUSH_INTERVAL_MS = Long.parseLong(System.getenv().getOrDefault("WS_FLUSH_INTERVAL_MS", "250"));
+    private static final int WS_CLIENT_QUEUE = Integer.parseInt(System.getenv().getOrDefault("WS_CLIENT_QUEUE", "1024"));
+    // "dispatcher" (single thread), "pool" or "virtual"
+    private static final String HTTP_EXECUTOR = System.getenv().getOrDefault("HTTP_EXECUTOR", "pool");
+    private static final int HTTP_MAX_IN_FLIGHT = Integer.parseInt(System.getenv().getOrDefault("HTTP_MAX_IN_FLIGHT", "8"));
+    private static final int HTTP_MAX_QUEUED = Integer.parseInt(System.getenv().getOrDefault("HTTP_MAX_QUEUED", "64"));
+    private static final long HTTP_DEADLINE_MS = Long.parseLong(System.getenv().getOrDefault("HTTP_DEADLINE_MS", "5000"));
+    // "simple" runs UdpServer on one thread, "staged" runs the multi-threaded IngestPipeline
+    private static final String INGEST_MODE = System.getenv().getOrDefault("INGEST_MODE", "simple");
+    private static final int INGEST_RECEIVERS = Integer.parseInt(System.getenv().getOrDefault("INGEST_RECEIVERS", "2"));
+    private static final int INGEST_PARSERS = Integer.parseInt(System.getenv().getOrDefault("INGEST_PARSERS", "2"));
+    private static final int INGEST_STORE_WRITERS = Integer.parseInt(System.getenv().getOrDefault("INGEST_STORE_WRITERS", "2"));
+    private static final int INGEST_QUEUE = Integer.parseInt(System.getenv().getOrDefault("INGEST_QUEUE", "8192"));
+    // Pooled buffer size; larger datagrams still arrive whole, in a buffer of their own
+    private static final int INGEST_BUFFER_SIZE = Integer.parseInt(System.getenv().getOrDefault("INGEST_BUFFER_SIZE", "4096"));
+    // Device ids and metric names of JSON datagrams kept decoded; later ones are decoded per datagram
+    private static final int JSON_NAME_TABLE_SIZE = Integer.parseInt(System.getenv().getOrDefault("JSON_NAME_TABLE_SIZE",
+            String.valueOf(PacketDecoder.DEFAULT_NAME_TABLE_SIZE)));
+    // Gaps of up to NACK_MAX_GAP datagrams are NACKed; later datagrams wait up to NACK_HOLD_MS for the retransmission
+    private static final boolean NACK_ENABLED = Boolean.parseBoolean(System.getenv().getOrDefault("NACK_ENABLED", "true"));
+    private static final int NACK_MAX_GAP = Integer.parseInt(System.getenv().getOrDefault("NACK_MAX_GAP", "32"));
+    private static final long NACK_HOLD_MS = Long.parseLong(System.getenv().getOrDefault("NACK_HOLD_MS", "200"));
+    // Write-ahead logging is off unless WAL_DIR is set
+    private static final String WAL_DIR = System.getenv().getOrDefault("WAL_DIR", "");
+    private static final int WAL_SEGMENT_BYTES = Integer.parseInt(System.getenv().getOrDefault("WAL_SEGMENT_BYTES", "67108864"));
+    // "none" leaves flushing to the OS, "interval" forces mapped segments every WAL_FSYNC_INTERVAL_MS
+    private static final String WAL_FSYNC = System.getenv().getOrDefault("WAL_FSYNC", "interval");
+    private static final long WAL_FSYNC_INTERVAL_MS = Long.parseLong(System.getenv().getOrDefault("WAL_FSYNC_INTERVAL_MS", "1000"));
+    // Estimated heap the stored series may use; 0 means half the maximum heap
+    private static final long MEMORY_BUDGET_BYTES = Long.parseLong(System.getenv().getOrDefault("MEMORY_BUDGET_BYTES", "0"));
+    private static final long MEMORY_REAPER_INTERVAL_MS = Long.parseLong(System.getenv().getOrDefault("MEMORY_REAPER_INTERVAL_MS", "10000"));
+    // Series without a sample for this long are evicted, and a device with its last series
+    private static final long STALE_SERIES_MS = Long.parseLong(System.getenv().getOrDefault("STALE_SERIES_MS", "86400000"));
+    // JSON array of rules, see AlertEngine
+    private static final String ALERT_RULES = System.getenv().getOrDefault("ALERT_RULES", AlertEngine.DEFAULT_RULES);
+    // Snapshots are off unless SNAPSHOT_DIR is set
+    private static final String SNAPSHOT_DIR = System.getenv().getOrDefault("SNAPSHOT_DIR", "");
+    private static final long SNAPSHOT_INTERVAL_MS = Long.parseLong(System.getenv().getOrDefault("SNAPSHOT_INTERVAL_MS", "300000"));
+    // Cluster mode is off unless CLUSTER_NODES is set, as name=host:udpPort:httpPort,...
+    private static final String CLUSTER_NODES = System.getenv().getOrDefault("CLUSTER_NODES", "");
+    // This node's name in CLUSTER_NODES; left empty, the process runs the UDP router instead of a shard
+    private static final String CLUSTER_NODE = System.getenv().getOrDefault("CLUSTER_NODE", "");
+    private static final long CLUSTER_TIMEOUT_MS = Long.parseLong(System.getenv().getOrDefault("CLUSTER_TIMEOUT_MS", "2000"));
+    // Edge federation is off unless FEDERATION_UPSTREAM is set to the host:port of a central collector
+    private static final String FEDERATION_UPSTREAM = System.getenv().getOrDefault("FEDERATION_UPSTREAM", "");
+    // Prefixed to device ids upstream, as site/device
+    private static final String FEDERATION_SITE = System.getenv().getOrDefault("FEDERATION_SITE", "");
+    private static final long FEDERATION_RESOLUTION_MS = Long.parseLong(System.getenv().getOrDefault("FEDERATION_RESOLUTION_MS", "10000"));
+    // Any of avg,min,max,last,sum,count; avg keeps the metric name, the others add a _min, _max, ... suffix
+    private static final String FEDERATION_AGGREGATES = System.getenv().getOrDefault("FEDERATION_AGGREGATES", "avg");
+    // Outage buffer; the oldest buckets are dropped beyond it, and none older than FEDERATION_MAX_REPLAY_MS are replayed
+    private static final long FEDERATION_BUFFER_BYTES = Long.parseLong(System.getenv().getOrDefault("FEDERATION_BUFFER_BYTES", "33554432"));
+    private static final long FEDERATION_MAX_REPLAY_MS = Long.parseLong(System.getenv().getOrDefault("FEDERATION_MAX_REPLAY_MS", "3600000"));
+    private static final int FEDERATION_COMPRESSION_LEVEL = Integer.parseInt(System.getenv().getOrDefault("FEDERATION_COMPRESSION_LEVEL", "6"));
+    // Central side: accepts edge streams on this TCP port, 0 turns it off
+    private static final int FEDERATION_PORT = Integer.parseInt(System.getenv().getOrDefault("FEDERATION_PORT", "0"));
     
     public static void main(String[] args) throws Exception {
-        MetricStore metricStore = new MetricStore();
-        WebSocketHandler webSocketHandler = new WebSocketHandler(WS_PORT);
-        UdpServer udpServer = new UdpServer(UDP_PORT, metricStore, webSocketHandler);
-        WorkingHttpServer httpServer = new WorkingHttpServer(HTTP_PORT, metricStore);
+        ClusterRing ring = CLUSTER_NODES.isEmpty() ? null : new ClusterRing(CLUSTER_NODES, CLUSTER_NODE);
+        if (ring != null && ring.self() == null) {
+            runRouter(ring);
+            return;
+        }
+        
+        MetricStore metricStore = new MetricStore(RETENTION_MS, RAW_RETENTION_MS, SAMPLE_INTERVAL_MS,
+                RollupTier.Spec.parseList(ROLLUP_TIERS));
+        SnapshotStore snapshots = null;
+        if (!SNAPSHOT_DIR.isEmpty()) {
+            snapshots = new SnapshotStore(new File(SNAPSHOT_DIR), SNAPSHOT_INTERVAL_MS, metricStore);
+            snapshots.load();
+        }
+        WriteAheadLog wal = null;
+        if (!WAL_DIR.isEmpty()) {
+            // Replay what the snapshot does not cover before anything can ingest, then log new samples
+            wal = new WriteAheadLog(new File(WAL_DIR), WAL_SEGMENT_BYTES, WAL_FSYNC, WAL_FSYNC_INTERVAL_MS,
+                    metricStore.retentionMs());
+            wal.open(metricStore);
+            metricStore.attachWal(wal);
+        }
+        if (snapshots != null) {
+            snapshots.useWal(wal);
+            snapshots.start();
+        }
+        WebSocketHandler webSocketHandler = new WebSocketHandler(WS_PORT, WS_DEFLATE, WS_COMPRESSION_LEVEL,
+                WS_COMPRESSION_THRESHOLD, WS_FLUSH_INTERVAL_MS, WS_CLIENT_QUEUE);
+        webSocketHandler.useMetricStore(metricStore);
+        AlertEngine alertEngine = new AlertEngine(ALERT_RULES);
+        alertEngine.onTransition(webSocketHandler::broadcastAlert);
+        metricStore.useAlertEngine(alertEngine);
+        MemoryReaper reaper = new MemoryReaper(metricStore,
+                MEMORY_BUDGET_BYTES > 0 ? MEMORY_BUDGET_BYTES : Runtime.getRuntime().maxMemory() / 2,
+                MEMORY_REAPER_INTERVAL_MS, STALE_SERIES_MS);
+        metricStore.useReaper(reaper);
+        PacketDecoder decoder = new PacketDecoder(JSON_NAME_TABLE_SIZE);
+        LossTracker lossTracker = new LossTracker(NACK_ENABLED, NACK_MAX_GAP, NACK_HOLD_MS);
+        WorkingHttpServer httpServer = new WorkingHttpServer(HTTP_PORT, metricStore, HTTP_COMPRESSION_LEVEL,
+                HTTP_COMPRESSION_THRESHOLD);
+        QueryExecutor queryExecutor = new QueryExecutor(HTTP_EXECUTOR, HTTP_MAX_IN_FLIGHT, HTTP_MAX_QUEUED, HTTP_DEADLINE_MS);
+        httpServer.useQueryExecutor(queryExecutor);
+        httpServer.registerStats("queries", queryExecutor::stats);
+        httpServer.registerStats("store", metricStore::stats);
+        httpServer.registerStats("index", metricStore.index()::stats);
+        httpServer.registerStats("decoder", decoder::stats);
+        httpServer.registerStats("loss", lossTracker::stats);
+        httpServer.registerStats("websocket", webSocketHandler::stats);
+        httpServer.registerStats("alerts", alertEngine::stats);
+        httpServer.registerEndpoint("/api/alerts", alertEngine::toJson);
+        httpServer.registerStats("memory", reaper::stats);
+        httpServer.registerEndpoint("/api/memory", reaper::report);
+        httpServer.registerStats("compression", () -> new JSONObject()
+                .put("http", httpServer.compressionStats().stats())
+                .put("websocket", webSocketHandler.compressionStats().stats()));
+        
+        boolean staged = "staged".equalsIgnoreCase(INGEST_MODE);
+        // Only the mode in use is built: the pipeline allocates its receive buffers up front
+        IngestPipeline pipeline = staged ? new IngestPipeline(UDP_PORT, metricStore, webSocketHandler, decoder,
+                lossTracker, INGEST_RECEIVERS, INGEST_PARSERS, INGEST_STORE_WRITERS, INGEST_QUEUE, INGEST_BUFFER_SIZE) : null;
+        UdpServer udpServer = staged ? null : new UdpServer(UDP_PORT, metricStore, webSocketHandler, decoder, lossTracker);
+        if (staged) {
+            httpServer.registerStats("ingest", pipeline::stats);
+        }
+        if (wal != null) {
+            httpServer.registerStats("wal", wal::stats);
+        }
+        if (snapshots != null) {
+            httpServer.registerStats("snapshots", snapshots::stats);
+        }
+        FederationSender federationSender = null;
+        if (!FEDERATION_UPSTREAM.isEmpty()) {
+            federationSender = new FederationSender(FEDERATION_UPSTREAM, FEDERATION_SITE, FEDERATION_RESOLUTION_MS,
+                    FEDERATION_AGGREGATES, FEDERATION_BUFFER_BYTES, FEDERATION_MAX_REPLAY_MS, FEDERATION_COMPRESSION_LEVEL,
+                    metricStore);
+            httpServer.registerStats("federationSender", federationSender::stats);
+        }
+        FederationReceiver federationReceiver = null;
+        if (FEDERATION_PORT > 0) {
+            federationReceiver = new FederationReceiver(FEDERATION_PORT, metricStore, webSocketHandler);
+            httpServer.registerStats("federationReceiver", federationReceiver::stats);
+        }
+        if (ring != null) {
+            ClusterClient cluster = new ClusterClient(ring, CLUSTER_TIMEOUT_MS);
+            httpServer.useCluster(cluster);
+            httpServer.registerStats("cluster", cluster::stats);
+        }
         
         // Start HTTP server first
         httpServer.start();
         
         // Start WebSocket server
         webSocketHandler.start();
+        alertEngine.start();
+        reaper.start();
         
-        // Start UDP server in a separate thread
-        Thread udpThread = new Thread(udpServer);
-        udpThread.start();
+        // Start UDP ingest, either staged or in a single separate thread
+        if (staged) {
+            pipeline.start();
+        } else {
+            Thread udpThread = new Thread(udpServer);
+            udpThread.start();
+        }
+        if (federationReceiver != null) {
+            new Thread(federationReceiver, "federation-receiver").start();
+        }
+        if (federationSender != null) {
+            federationSender.start();
+        }
         
-        System.out.println("Metric Collector started:");
-        System.out.println("- UDP server listening on port " + UDP_PORT);
+        System.out.println("Metric Collector started in " + ManagementFactory.getRuntimeMXBean().getUptime() + " ms:");
+        System.out.println("- UDP server listening on port " + UDP_PORT + " (" + (staged ? "staged" : "simple") + " ingest)");
         System.out.println("- WebSocket server listening on port " + WS_PORT);
         System.out.println("- HTTP API server listening on port " + HTTP_PORT);
+        if (federationReceiver != null) {
+            System.out.println("- Federation receiver listening on port " + FEDERATION_PORT);
+        }
+        if (ring != null) {
+            System.out.println("- Cluster node " + ring.self().name + " of " + ring.nodes().size());
+        }
         System.out.println("\nAPI Endpoints:");
         System.out.println("- GET http://localhost:" + HTTP_PORT + "/api/metrics");
         System.out.println("- GET http://localhost:" + HTTP_PORT + "/api/devices");
         System.out.println("- GET http://localhost:" + HTTP_PORT + "/api/device/{deviceId}");
+        System.out.println("- GET http://localhost:" + HTTP_PORT + "/api/stats");
+        System.out.println("- GET http://localhost:" + HTTP_PORT + "/api/alerts");
+        System.out.println("- GET http://localhost:" + HTTP_PORT + "/api/memory");
         
         // Add shutdown hook
+        WriteAheadLog walToClose = wal;
+        SnapshotStore snapshotsToWrite = snapshots;
+        FederationSender senderToStop = federationSender;
+        FederationReceiver receiverToStop = federationReceiver;
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.out.println("Shutting down Metric Collector...");
-            udpServer.stop();
+            if (staged) {
+                pipeline.stop();
+            } else {
+                udpServer.stop();
+            }
+            if (senderToStop != null) {
+                senderToStop.stop();
+            }
+            if (receiverToStop != null) {
+                receiverToStop.stop();
+            }
+            if (snapshotsToWrite != null) {
+                snapshotsToWrite.stop();
+            }
+            if (walToClose != null) {
+                walToClose.close();
+            }
+            alertEngine.stop();
+            reaper.stop();
             httpServer.stop();
             try {
                 webSocketHandler.stop();
@@ -42,4 +238,31 @@ public class Main {
             }
         }));
     }
-}
\ No newline at end of file
+    
+    // Forwards datagrams to the owning nodes and answers queries by fanning out; stores nothing itself
+    private static void runRouter(ClusterRing ring) throws Exception {
+        ClusterClient cluster = new ClusterClient(ring, CLUSTER_TIMEOUT_MS);
+        UdpRouter router = new UdpRouter(UDP_PORT, ring);
+        WorkingHttpServer httpServer = new WorkingHttpServer(HTTP_PORT, new MetricStore(RETENTION_MS, RAW_RETENTION_MS,
+                SAMPLE_INTERVAL_MS, RollupTier.Spec.parseList(ROLLUP_TIERS)), HTTP_COMPRESSION_LEVEL, HTTP_COMPRESSION_THRESHOLD);
+        QueryExecutor queryExecutor = new QueryExecutor(HTTP_EXECUTOR, HTTP_MAX_IN_FLIGHT, HTTP_MAX_QUEUED, HTTP_DEADLINE_MS);
+        httpServer.useQueryExecutor(queryExecutor);
+        httpServer.useCluster(cluster);
+        httpServer.registerStats("queries", queryExecutor::stats);
+        httpServer.registerStats("router", router::stats);
+        httpServer.registerStats("cluster", cluster::stats);
+        
+        httpServer.start();
+        new Thread(router, "udp-router").start();
+        
+        System.out.println("Cluster router started in " + ManagementFactory.getRuntimeMXBean().getUptime() + " ms:");
+        System.out.println("- UDP router listening on port " + UDP_PORT + " for " + ring.nodes().size() + " nodes");
+        System.out.println("- HTTP API server listening on port " + HTTP_PORT);
+        
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println("Shutting down cluster router...");
+            router.stop();
+            httpServer.stop();
+        }));
+    }
+}
@@ -0,0 +1,284 @@
+package collector;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps a MetricStore within a memory budget. Every pass applies retention to
+ * series that stopped receiving samples, evicts series that have been silent
+ * for {@code staleSeriesMs} (a device goes with its last series), and, if the
+ * estimate is still over the budget, frees the least recently queried data:
+ * first the history of those series (sealed chunks and rollups), then whole
+ * series that are idle, until usage is back under LOW_WATER of the budget.
+ * Series still being written are never evicted for the budget: re-creating
+ * them would hand out new ids and lose their alert state, so they only have
+ * their raw ring trimmed.
+ *
+ * Sizes are estimates from array lengths plus a fixed overhead per series,
+ * see Series.memoryBytes and SeriesIndex.memoryBytes.
+ */
+public class MemoryReaper {
+    private static final double LOW_WATER = 0.9; // Evicts a little extra so the next pass is not immediately due
+    private static final int TOP_ENTRIES = 20;
+    private static final long MIN_EARLY_PASS_MS = 1000;
+    private static final int IDLE_INTERVALS = 10; // Missed samples before a series counts as idle
+    
+    private final MetricStore store;
+    private final long budgetBytes;
+    private final long intervalMs;
+    private final long staleSeriesMs;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "memory-reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean passQueued = new AtomicBoolean();
+    
+    // Estimate as of the last pass, plus the series created since
+    private final AtomicLong usedBytes = new AtomicLong();
+    private volatile long lastPassAt;
+    private volatile long lastPassNanos;
+    private final LongAdder passes = new LongAdder();
+    private final LongAdder staleSeriesEvicted = new LongAdder();
+    private final LongAdder devicesRemoved = new LongAdder();
+    private final LongAdder historiesDropped = new LongAdder();
+    private final LongAdder budgetSeriesEvicted = new LongAdder();
+    private final LongAdder ringsTrimmed = new LongAdder();
+    private final LongAdder bytesFreed = new LongAdder();
+    private final LongAdder stringsCompacted = new LongAdder();
+    
+    public MemoryReaper(MetricStore store, long budgetBytes, long intervalMs, long staleSeriesMs) {
+        this.store = store;
+        this.budgetBytes = budgetBytes;
+        this.intervalMs = intervalMs;
+        this.staleSeriesMs = staleSeriesMs;
+    }
+    
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::passSafely, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+    
+    public void stop() {
+        scheduler.shutdown();
+    }
+    
+    // Called by the store for every new series; a burst that crosses the budget gets a pass right away
+    void seriesCreated(Series series) {
+        long used = usedBytes.addAndGet(series.memoryBytes());
+        if (used > budgetBytes && System.currentTimeMillis() - lastPassAt >= MIN_EARLY_PASS_MS
+                && passQueued.compareAndSet(false, true)) {
+            scheduler.execute(this::passSafely);
+        }
+    }
+    
+    private void passSafely() {
+        passQueued.set(false);
+        try {
+            pass(System.currentTimeMillis());
+        } catch (RuntimeException e) {
+            System.err.println("Error reaping memory: " + e.getMessage());
+        }
+    }
+    
+    synchronized void pass(long now) {
+        long start = System.nanoTime();
+        List<Entry> live = new ArrayList<>();
+        long indexBytes = store.index().memoryBytes();
+        long used = indexBytes;
+        int evicted = 0;
+        for (Series series : store.allSeries()) {
+            bytesFreed.add(series.pruneExpired(now));
+            if (now - series.lastWriteMs() > staleSeriesMs && evict(series, now - staleSeriesMs)) {
+                staleSeriesEvicted.increment();
+                evicted++;
+            } else {
+                Entry entry = new Entry(series, series.memoryBytes());
+                live.add(entry);
+                used += entry.bytes;
+            }
+        }
+        
+        if (used > budgetBytes) {
+            long target = (long) (budgetBytes * LOW_WATER);
+            // Never queried first, then the longest unqueried; among equals, the longest silent
+            live.sort(Comparator.comparingLong((Entry entry) -> entry.lastQueryMs)
+                    .thenComparingLong(entry -> entry.lastWriteMs));
+            for (int i = 0; i < live.size() && used > target; i++) {
+                long freed = live.get(i).series.dropHistory();
+                if (freed > 0) {
+                    used -= freed;
+                    bytesFreed.add(freed);
+                    historiesDropped.increment();
+                }
+            }
+            for (int i = 0; i < live.size() && used > target; i++) {
+                Series series = live.get(i).series;
+                long bytes = series.memoryBytes();
+                if (evict(series, idleSince(series, now))) {
+                    used -= bytes;
+                    budgetSeriesEvicted.increment();
+                    evicted++;
+                }
+            }
+            for (int i = 0; i < live.size() && used > target; i++) {
+                Series series = live.get(i).series;
+                if (!series.retired()) {
+                    long freed = series.trimRaw();
+                    if (freed > 0) {
+                        used -= freed;
+                        bytesFreed.add(freed);
+                        ringsTrimmed.increment();
+                    }
+                }
+            }
+        }
+        if (evicted > 0) {
+            stringsCompacted.add(store.index().compactStrings());
+            used += store.index().memoryBytes() - indexBytes;
+        }
+        usedBytes.set(used);
+        passes.increment();
+        lastPassAt = now;
+        lastPassNanos = System.nanoTime() - start;
+    }
+    
+    // A series not written since this time is idle
+    private long idleSince(Series series, long now) {
+        long interval = series.intervalMs() > 0 ? series.intervalMs() : store.sampleIntervalMs();
+        return now - IDLE_INTERVALS * Math.max(1, interval);
+    }
+    
+    // Drops the series unless a sample arrived since writtenBefore; returns whether it was dropped
+    private boolean evict(Series series, long writtenBefore) {
+        long bytes = series.memoryBytes();
+        if (!series.retire(writtenBefore)) {
+            return false;
+        }
+        if (store.removeSeries(series)) {
+            devicesRemoved.increment();
+        }
+        bytesFreed.add(bytes);
+        return true;
+    }
+    
+    public JSONObject stats() {
+        return new JSONObject()
+                .put("budgetBytes", budgetBytes)
+                .put("usedBytes", usedBytes.get())
+                .put("intervalMs", intervalMs)
+                .put("staleSeriesMs", staleSeriesMs)
+                .put("passes", passes.sum())
+                .put("lastPassAt", lastPassAt)
+                .put("lastPassMicros", lastPassNanos / 1000)
+                .put("staleSeriesEvicted", staleSeriesEvicted.sum())
+                .put("devicesRemoved", devicesRemoved.sum())
+                .put("historiesDropped", historiesDropped.sum())
+                .put("budgetSeriesEvicted", budgetSeriesEvicted.sum())
+                .put("ringsTrimmed", ringsTrimmed.sum())
+                .put("bytesFreed", bytesFreed.sum())
+                .put("stringsCompacted", stringsCompacted.sum());
+    }
+    
+    /**
+     * What holds memory right now: totals by kind, the largest devices and
+     * series, and the reaper's counters. Walks every series.
+     */
+    public JSONObject report() {
+        long now = System.currentTimeMillis();
+        long raw = 0;
+        long chunks = 0;
+        long rollups = 0;
+        long seriesCount = 0;
+        Map<String, long[]> devices = new HashMap<>(); // bytes, series, last write
+        PriorityQueue<Entry> largest = new PriorityQueue<>(Comparator.comparingLong(entry -> entry.bytes));
+        for (Series series : store.allSeries()) {
+            long seriesRaw = series.rawBytes();
+            long seriesChunks = series.chunkBytes();
+            long seriesRollups = series.rollupBytes();
+            long bytes = Series.OVERHEAD_BYTES + seriesRaw + seriesChunks + seriesRollups;
+            raw += seriesRaw;
+            chunks += seriesChunks;
+            rollups += seriesRollups;
+            seriesCount++;
+            long[] device = devices.computeIfAbsent(series.deviceId, k -> new long[3]);
+            device[0] += bytes;
+            device[1]++;
+            Entry entry = new Entry(series, bytes);
+            device[2] = Math.max(device[2], entry.lastWriteMs);
+            largest.add(entry);
+            if (largest.size() > TOP_ENTRIES) {
+                largest.poll();
+            }
+        }
+        long index = store.index().memoryBytes();
+        long overhead = seriesCount * Series.OVERHEAD_BYTES;
+        long total = raw + chunks + rollups + overhead + index;
+        
+        List<Map.Entry<String, long[]>> byDevice = new ArrayList<>(devices.entrySet());
+        byDevice.sort((x, y) -> Long.compare(y.getValue()[0], x.getValue()[0]));
+        JSONArray topDevices = new JSONArray();
+        for (int i = 0; i < Math.min(TOP_ENTRIES, byDevice.size()); i++) {
+            long[] device = byDevice.get(i).getValue();
+            topDevices.put(new JSONObject()
+                    .put("device", byDevice.get(i).getKey())
+                    .put("bytes", device[0])
+                    .put("series", device[1])
+                    .put("lastWriteAgoMs", now - device[2]));
+        }
+        List<Entry> bySize = new ArrayList<>(largest);
+        bySize.sort((x, y) -> Long.compare(y.bytes, x.bytes));
+        JSONArray topSeries = new JSONArray();
+        for (Entry entry : bySize) {
+            topSeries.put(new JSONObject()
+                    .put("device", entry.series.deviceId)
+                    .put("metric", entry.series.metricName)
+                    .put("bytes", entry.bytes)
+                    .put("lastWriteAgoMs", now - entry.lastWriteMs)
+                    .put("lastQueryAgoMs", entry.lastQueryMs == 0 ? JSONObject.NULL : now - entry.lastQueryMs));
+        }
+        
+        Runtime runtime = Runtime.getRuntime();
+        return new JSONObject()
+                .put("budgetBytes", budgetBytes)
+                .put("usedBytes", total)
+                .put("budgetUsed", budgetBytes == 0 ? 0 : (double) total / budgetBytes)
+                .put("devices", devices.size())
+                .put("series", seriesCount)
+                .put("breakdown", new JSONObject()
+                        .put("rawBytes", raw)
+                        .put("chunkBytes", chunks)
+                        .put("rollupBytes", rollups)
+                        .put("seriesOverheadBytes", overhead)
+                        .put("indexBytes", index))
+                .put("heap", new JSONObject()
+                        .put("usedBytes", runtime.totalMemory() - runtime.freeMemory())
+                        .put("maxBytes", runtime.maxMemory()))
+                .put("topDevices", topDevices)
+                .put("topSeries", topSeries)
+                .put("reaper", stats())
+                .put("timestamp", now);
+    }
+    
+    // A series with its size and last use as of one moment, so sorting sees stable keys
+    private static final class Entry {
+        final Series series;
+        final long bytes;
+        final long lastQueryMs;
+        final long lastWriteMs;
+        
+        Entry(Series series, long bytes) {
+            this.series = series;
+            this.bytes = bytes;
+            this.lastQueryMs = series.lastQueryMs();
+            this.lastWriteMs = series.lastWriteMs();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package collector;
+
+import java.net.SocketAddress;
+import java.util.Arrays;
+
+// Decoded datagram, independent of the wire format it arrived in.
+// Instances are mutable so the ingest path can reuse them.
+public class MetricPacket {
+    public String deviceId;
+    public long timestamp; // milliseconds; the base timestamp of a batch
+    public boolean alert;
+    public boolean interval; // Sampling interval update: each value is a metric's interval in ms
+    public int count;
+    public String[] names = new String[8];
+    public double[] values = new double[8];
+    public long[] timestamps = new long[8]; // Per sample: batches carry several collection ticks
+    public int epoch; // Exporter run the sequence number belongs to
+    public long sequence = -1; // Per exporter datagram counter; -1 if the sender does not number datagrams
+    public SocketAddress source; // Sender of the datagram, where NACKs go
+    
+    public void reset() {
+        deviceId = null;
+        timestamp = 0;
+        alert = false;
+        interval = false;
+        epoch = 0;
+        sequence = -1;
+        source = null;
+        Arrays.fill(names, 0, count, null);
+        count = 0;
+    }
+    
+    // Sample taken at the packet timestamp
+    public void add(String name, double value) {
+        add(name, value, timestamp);
+    }
+    
+    public void add(String name, double value, long sampleTimestamp) {
+        if (count == names.length) {
+            names = Arrays.copyOf(names, count * 2);
+            values = Arrays.copyOf(values, count * 2);
+            timestamps = Arrays.copyOf(timestamps, count * 2);
+        }
+        names[count] = name;
+        values[count] = value;
+        timestamps[count] = sampleTimestamp;
+        count++;
+    }
+    
+    // Deep copy, for packets that outlive the pooled instance they were decoded into
+    public void copyFrom(MetricPacket other) {
+        reset();
+        deviceId = other.deviceId;
+        timestamp = other.timestamp;
+        alert = other.alert;
+        interval = other.interval;
+        epoch = other.epoch;
+        sequence = other.sequence;
+        source = other.source;
+        for (int i = 0; i < other.count; i++) {
+            add(other.names[i], other.values[i], other.timestamps[i]);
+        }
+    }
+}
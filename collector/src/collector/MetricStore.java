@@ -1,28 +1,189 @@
 package collector;
 
+import org.json.JSONArray;
+import org.json.JSONObject;
+
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MetricStore {
-    private static final long RETENTION_PERIOD_MS = 5 * 60 * 1000; // 5 minutes
-    private final Map<String, Map<String, Deque<MetricPoint>>> store;
+    private static final long DEFAULT_RETENTION_MS = 6 * 60 * 60 * 1000; // 6 hours, compressed
+    private static final long DEFAULT_RAW_RETENTION_MS = 5 * 60 * 1000; // 5 minutes, uncompressed
+    private static final long DEFAULT_SAMPLE_INTERVAL_MS = 100;
+    public static final String DEFAULT_ROLLUP_TIERS = "10s:24h,1m:7d,10m:30d";
+    
+    private final long retentionMs;
+    private final long rawRetentionMs;
+    private final int seriesCapacity;
+    private final long sampleIntervalMs;
+    private final RollupTier.Spec[] tierSpecs;
+    private final Map<String, Map<String, Series>> store;
+    private final AtomicInteger nextSeriesId = new AtomicInteger();
+    private final SeriesIndex index = new SeriesIndex();
+    private volatile WriteAheadLog wal;
+    private volatile AlertEngine alerts;
+    private volatile MemoryReaper reaper;
     
     public MetricStore() {
+        this(DEFAULT_RETENTION_MS, DEFAULT_RAW_RETENTION_MS, DEFAULT_SAMPLE_INTERVAL_MS,
+                RollupTier.Spec.parseList(DEFAULT_ROLLUP_TIERS));
+    }
+    
+    // Samples stay in the raw ring for rawRetentionMs (at most rawRetentionMs / sampleIntervalMs
+    // of them) and in compressed chunks for retentionMs. Rollup tiers keep their own retention.
+    public MetricStore(long retentionMs, long rawRetentionMs, long sampleIntervalMs, RollupTier.Spec[] tierSpecs) {
+        this.retentionMs = Math.max(retentionMs, rawRetentionMs);
+        this.rawRetentionMs = rawRetentionMs;
+        this.seriesCapacity = (int) Math.max(1, rawRetentionMs / Math.max(1, sampleIntervalMs));
+        this.sampleIntervalMs = sampleIntervalMs;
+        this.tierSpecs = tierSpecs;
         this.store = new ConcurrentHashMap<>();
     }
     
+    // Accepted samples are logged after they are applied; replay happens before this is set
+    public void attachWal(WriteAheadLog wal) {
+        this.wal = wal;
+    }
+    
+    // Evaluates rules on every accepted sample and records exporter alert packets
+    public void useAlertEngine(AlertEngine alerts) {
+        this.alerts = alerts;
+    }
+    
+    // Hears about every new series, so a burst of them does not wait for the next pass to be counted
+    public void useReaper(MemoryReaper reaper) {
+        this.reaper = reaper;
+    }
+    
+    public long retentionMs() {
+        return retentionMs;
+    }
+    
+    // Expected spacing of samples for series whose exporter did not announce an interval
+    public long sampleIntervalMs() {
+        return sampleIntervalMs;
+    }
+    
     public void addMetric(String deviceId, String metricName, double value, long timestamp) {
-        store.computeIfAbsent(deviceId, k -> new ConcurrentHashMap<>())
-             .computeIfAbsent(metricName, k -> new LinkedList<>())
-             .addLast(new MetricPoint(timestamp, value));
+        Series series = series(deviceId, metricName);
+        boolean accepted = series.append(timestamp, value);
+        while (!accepted && series.retired()) {
+            // The reaper dropped it between the lookup and the append; the sample starts a new series.
+            // Removing is idempotent and makes sure the lookup cannot find the retired one again.
+            removeSeries(series);
+            series = series(deviceId, metricName);
+            accepted = series.append(timestamp, value);
+        }
+        if (accepted) {
+            WriteAheadLog log = wal;
+            if (log != null) {
+                log.append(series, timestamp, value);
+            }
+            AlertEngine engine = alerts;
+            if (engine != null) {
+                engine.onSample(series, timestamp, value);
+            }
+        }
+    }
+    
+    /**
+     * Applies samples recovered from the write-ahead log to one series without
+     * logging them again; its segments are fed in order through the returned
+     * Replay. Samples a snapshot already restored are skipped: those older than
+     * its newest sample, and those at the same timestamp whose position in the
+     * series it covers. Segments without positions fall back to skipping every
+     * sample at that timestamp.
+     */
+    Replay replay(String deviceId, String metricName) {
+        Series series = series(deviceId, metricName);
+        return new Replay(series, series.lastTimestamp(), series.appended());
+    }
+    
+    static final class Replay {
+        private final Series series;
+        private final long restoredUpTo;
+        private final long restoredSamples; // Position of the first sample the snapshot did not have
+        
+        Replay(Series series, long restoredUpTo, long restoredSamples) {
+            this.series = series;
+            this.restoredUpTo = restoredUpTo;
+            this.restoredSamples = restoredSamples;
+        }
         
-        pruneOldData(deviceId, metricName);
+        // positions are -1 where the segment did not record them
+        void apply(long[] timestamps, double[] values, long[] positions, int count) {
+            for (int i = 0; i < count; i++) {
+                long timestamp = timestamps[i];
+                boolean restored = timestamp < restoredUpTo
+                        || timestamp == restoredUpTo && positions[i] < restoredSamples; // Including unknown ones
+                if (!restored) {
+                    series.append(timestamp, values[i]);
+                }
+            }
+        }
+    }
+    
+    Series series(String deviceId, String metricName) {
+        Map<String, Series> deviceMetrics = store.computeIfAbsent(deviceId, k -> new ConcurrentHashMap<>());
+        Series series = deviceMetrics.get(metricName);
+        if (series != null) {
+            return series;
+        }
+        // Labels in another order name the same series; senders that sort them never get here twice
+        String key = Labels.canonicalKey(metricName);
+        Series[] found = new Series[1];
+        // Under the store's lock for the device, so the reaper cannot drop the map this series goes into
+        store.compute(deviceId, (k, existing) -> {
+            Map<String, Series> metrics = existing != null ? existing : new ConcurrentHashMap<>();
+            found[0] = metrics.computeIfAbsent(key, name -> {
+                Labels labels = Labels.EMPTY;
+                try {
+                    labels = Labels.parse(name, index::intern);
+                } catch (IllegalArgumentException e) {
+                    // Not a label set after all: the whole key stays the metric name
+                }
+                Series created = new Series(nextSeriesId.getAndIncrement(), index.intern(deviceId), name, labels,
+                        seriesCapacity, rawRetentionMs, retentionMs, sampleIntervalMs, tierSpecs);
+                index.add(created);
+                MemoryReaper memory = reaper;
+                if (memory != null) {
+                    memory.seriesCreated(created);
+                }
+                return created;
+            });
+            return metrics;
+        });
+        return found[0];
+    }
+    
+    public void addPacket(MetricPacket packet) {
+        if (packet.alert) {
+            // Alert packets only carry the values that crossed an exporter threshold
+            AlertEngine engine = alerts;
+            if (engine != null) {
+                engine.onExporterAlert(packet);
+            }
+            return;
+        }
+        if (packet.interval) {
+            // Weights the series' rollup averages from now on
+            for (int i = 0; i < packet.count; i++) {
+                series(packet.deviceId, packet.names[i]).setIntervalMs((long) packet.values[i]);
+            }
+            return;
+        }
+        for (int i = 0; i < packet.count; i++) {
+            addMetric(packet.deviceId, packet.names[i], packet.values[i], packet.timestamps[i]);
+        }
     }
     
     public void clearMetrics(String deviceId) {
-        Map<String, Deque<MetricPoint>> deviceData = store.get(deviceId);
+        Map<String, Series> deviceData = store.remove(deviceId);
         if (deviceData != null) {
-            deviceData.clear();
+            for (Series series : deviceData.values()) {
+                forget(series);
+            }
             System.out.println("Cleared all metrics for device: " + deviceId);
         }
     }
@@ -31,27 +192,98 @@ public class MetricStore {
         for (String deviceId : store.keySet()) {
             clearMetrics(deviceId);
         }
-        store.clear();
+        index.clear();
         System.out.println("Cleared all metrics for all devices");
     }
     
-    private void pruneOldData(String deviceId, String metricName) {
-        Deque<MetricPoint> points = store.get(deviceId).get(metricName);
-        long cutoffTime = System.currentTimeMillis() - RETENTION_PERIOD_MS;
-        
-        while (!points.isEmpty() && points.getFirst().timestamp < cutoffTime) {
-            points.removeFirst();
+    /**
+     * Removes one series, and its device once that has no series left.
+     * Returns true if the device went with it.
+     */
+    boolean removeSeries(Series series) {
+        Map<String, Series> deviceMetrics = store.get(series.deviceId);
+        if (deviceMetrics == null || !deviceMetrics.remove(series.metricName, series)) {
+            return false;
         }
+        forget(series);
+        return deviceMetrics.isEmpty()
+                && store.computeIfPresent(series.deviceId, (k, metrics) -> metrics.isEmpty() ? null : metrics) == null;
     }
     
-    public List<MetricPoint> getMetrics(String deviceId, String metricName) {
-        Map<String, Deque<MetricPoint>> deviceMetrics = store.get(deviceId);
-        if (deviceMetrics == null) return Collections.emptyList();
-        
-        Deque<MetricPoint> metrics = deviceMetrics.get(metricName);
-        if (metrics == null) return Collections.emptyList();
-        
-        return new ArrayList<>(metrics);
+    private void forget(Series series) {
+        index.remove(series);
+        AlertEngine engine = alerts;
+        if (engine != null) {
+            engine.forget(series);
+        }
+    }
+    
+    // Start of the window served when a query does not ask for one: the raw retention window
+    public long defaultQueryStart() {
+        return System.currentTimeMillis() - rawRetentionMs;
+    }
+    
+    /**
+     * Copies the samples of one series in [from, to] into {@code out}; the range may
+     * reach back into the compressed chunks. Returns false if the series does not exist.
+     */
+    public boolean readSeries(String deviceId, String metricName, long from, long to, SeriesSnapshot out) {
+        Series series = findSeries(deviceId, metricName);
+        if (series == null) {
+            out.clear();
+            return false;
+        }
+        series.markQueried();
+        series.read(from, to, out);
+        return true;
+    }
+    
+    /**
+     * Copies the buckets in [from, to] of the coarsest rollup tier that still
+     * resolves {@code stepMs} into {@code out}. Returns false if no tier fits,
+     * in which case the caller should read raw samples instead.
+     */
+    public boolean readRollup(String deviceId, String metricName, long from, long to, long stepMs, RollupSnapshot out) {
+        Series series = findSeries(deviceId, metricName);
+        if (series == null) {
+            return false;
+        }
+        int tier = series.selectTier(stepMs, from, System.currentTimeMillis());
+        if (tier < 0) {
+            return false;
+        }
+        series.markQueried();
+        series.readRollup(tier, from, to, out);
+        return true;
+    }
+    
+    List<Series> allSeries() {
+        List<Series> all = new ArrayList<>();
+        for (Map<String, Series> deviceMetrics : store.values()) {
+            all.addAll(deviceMetrics.values());
+        }
+        return all;
+    }
+    
+    Series findSeries(String deviceId, String metricName) {
+        Map<String, Series> deviceMetrics = store.get(deviceId);
+        if (deviceMetrics == null) {
+            return null;
+        }
+        Series series = deviceMetrics.get(metricName);
+        return series != null || metricName.indexOf('{') < 0 ? series : deviceMetrics.get(Labels.canonicalKey(metricName));
+    }
+    
+    /**
+     * Series matching a selector such as {@code cpu_usage{region="eu"}}, see
+     * SeriesIndex.Selector. Throws IllegalArgumentException if it does not parse.
+     */
+    public List<Series> select(String selector) {
+        return index.select(SeriesIndex.Selector.parse(selector));
+    }
+    
+    public SeriesIndex index() {
+        return index;
     }
     
     public Set<String> getDevices() {
@@ -59,18 +291,61 @@ public class MetricStore {
     }
     
     public Set<String> getMetricNames(String deviceId) {
-        Map<String, Deque<MetricPoint>> deviceMetrics = store.get(deviceId);
+        Map<String, Series> deviceMetrics = store.get(deviceId);
         if (deviceMetrics == null) return Collections.emptySet();
         return new HashSet<>(deviceMetrics.keySet());
     }
     
-    public static class MetricPoint {
-        public final long timestamp;
-        public final double value;
+    public JSONObject stats() {
+        long seriesCount = 0;
+        long rawSamples = 0;
+        long rawBytes = 0;
+        long chunkSamples = 0;
+        long chunkBytes = 0;
+        long rollupBuckets = 0;
+        long rollupBytes = 0;
+        long outOfOrder = 0;
+        for (Map<String, Series> deviceMetrics : store.values()) {
+            for (Series series : deviceMetrics.values()) {
+                seriesCount++;
+                rawSamples += series.rawSamples();
+                rawBytes += series.rawBytes();
+                chunkSamples += series.chunkSamples();
+                chunkBytes += series.chunkBytes();
+                rollupBuckets += series.rollupBuckets();
+                rollupBytes += series.rollupBytes();
+                outOfOrder += series.outOfOrder();
+            }
+        }
+        JSONObject raw = new JSONObject();
+        raw.put("samples", rawSamples);
+        raw.put("allocatedBytes", rawBytes);
+        raw.put("bytesPerSample", rawSamples == 0 ? 0 : (double) rawBytes / rawSamples);
+        raw.put("retentionMs", rawRetentionMs);
+        raw.put("seriesCapacity", seriesCapacity);
+        
+        JSONObject chunks = new JSONObject();
+        chunks.put("samples", chunkSamples);
+        chunks.put("allocatedBytes", chunkBytes);
+        chunks.put("bytesPerSample", chunkSamples == 0 ? 0 : (double) chunkBytes / chunkSamples);
+        chunks.put("retentionMs", retentionMs);
         
-        public MetricPoint(long timestamp, double value) {
-            this.timestamp = timestamp;
-            this.value = value;
+        JSONObject rollups = new JSONObject();
+        JSONArray tiers = new JSONArray();
+        for (RollupTier.Spec spec : tierSpecs) {
+            tiers.put(new JSONObject().put("resolutionMs", spec.resolutionMs).put("retentionMs", spec.retentionMs));
         }
+        rollups.put("tiers", tiers);
+        rollups.put("buckets", rollupBuckets);
+        rollups.put("allocatedBytes", rollupBytes);
+        
+        JSONObject stats = new JSONObject();
+        stats.put("devices", store.size());
+        stats.put("series", seriesCount);
+        stats.put("raw", raw);
+        stats.put("chunks", chunks);
+        stats.put("rollups", rollups);
+        stats.put("outOfOrderDropped", outOfOrder);
+        return stats;
     }
 }
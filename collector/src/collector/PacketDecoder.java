@@ -0,0 +1,89 @@
+package collector;
+
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Turns raw datagrams into MetricPackets. The format is picked from the first
+// byte: WireProtocol.MAGIC for binary exporters, anything else is treated as
+// the original JSON format.
+public class PacketDecoder {
+    public static final int DEFAULT_NAME_TABLE_SIZE = 262144;
+    
+    private final SeriesDictionary dictionary = new SeriesDictionary();
+    // Shared by the per-thread JSON parsers
+    private final Utf8InternTable names;
+    private final Map<String, Map<String, String>> labelledNames = new ConcurrentHashMap<>();
+    private final ThreadLocal<JsonPacketParser> parsers;
+    
+    private final LongAdder jsonPackets = new LongAdder();
+    private final LongAdder jsonNanos = new LongAdder();
+    private final LongAdder binaryPackets = new LongAdder();
+    private final LongAdder binaryNanos = new LongAdder();
+    private final LongAdder unknownSeries = new LongAdder();
+    private final LongAdder decodeErrors = new LongAdder();
+    private volatile String lastError;
+    
+    public PacketDecoder() {
+        this(DEFAULT_NAME_TABLE_SIZE);
+    }
+    
+    // JSON device ids and metric names beyond nameTableSize are decoded per datagram
+    public PacketDecoder(int nameTableSize) {
+        this.names = new Utf8InternTable(nameTableSize);
+        this.parsers = ThreadLocal.withInitial(() -> new JsonPacketParser(names, labelledNames));
+    }
+    
+    /**
+     * Decodes the remaining bytes of {@code buf} into {@code out}.
+     * Returns false (and counts the error) if the datagram is malformed.
+     * Errors are not logged one by one; stats() shows the count and the last one.
+     */
+    public boolean decode(ByteBuffer buf, MetricPacket out) {
+        out.reset();
+        long start = System.nanoTime();
+        try {
+            if (WireProtocol.isBinary(buf)) {
+                int unknown = WireProtocol.decode(buf, out, dictionary);
+                if (unknown > 0) {
+                    unknownSeries.add(unknown);
+                }
+                binaryPackets.increment();
+                binaryNanos.add(System.nanoTime() - start);
+            } else {
+                parsers.get().parse(buf, out);
+                jsonPackets.increment();
+                jsonNanos.add(System.nanoTime() - start);
+            }
+            return true;
+        } catch (Exception e) {
+            decodeErrors.increment();
+            lastError = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+            return false;
+        }
+    }
+    
+    public JSONObject stats() {
+        JSONObject stats = new JSONObject();
+        stats.put("json", formatStats(jsonPackets.sum(), jsonNanos.sum()));
+        stats.put("binary", formatStats(binaryPackets.sum(), binaryNanos.sum()));
+        stats.put("unknownSeries", unknownSeries.sum());
+        stats.put("decodeErrors", decodeErrors.sum());
+        stats.put("lastDecodeError", lastError == null ? JSONObject.NULL : lastError);
+        stats.put("internedNames", names.size());
+        stats.put("internOverflow", names.overflow());
+        return stats;
+    }
+    
+    private static JSONObject formatStats(long packets, long nanos) {
+        JSONObject stats = new JSONObject();
+        stats.put("packets", packets);
+        stats.put("decodeNanos", nanos);
+        // Decode cost expressed as throughput of one fully busy core
+        stats.put("packetsPerSecPerCore", nanos == 0 ? 0 : (long) (packets * 1e9 / nanos));
+        return stats;
+    }
+}
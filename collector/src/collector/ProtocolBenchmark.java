@@ -0,0 +1,73 @@
+package collector;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Single-threaded decode throughput of both wire formats, i.e. packets/sec per core.
+// Usage: java -cp ... collector.ProtocolBenchmark [seconds]
+public class ProtocolBenchmark {
+    public static void main(String[] args) {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        
+        MetricPacket sample = new MetricPacket();
+        sample.deviceId = "exporter1";
+        sample.timestamp = System.currentTimeMillis();
+        sample.add("cpu_usage", 0.4231);
+        sample.add("mem_total", 16_777_216_000.0);
+        sample.add("mem_free", 8_123_456_789.0);
+        sample.add("threads", 42);
+        
+        byte[] json = WebSocketHandler.toJson(sample).toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer announce = ByteBuffer.allocate(1024);
+        WireProtocol.encode(sample, announce, true);
+        announce.flip();
+        ByteBuffer steady = ByteBuffer.allocate(1024);
+        WireProtocol.encode(sample, steady, false);
+        steady.flip();
+        byte[] binary = new byte[steady.remaining()];
+        steady.get(binary);
+        
+        PacketDecoder decoder = new PacketDecoder();
+        MetricPacket out = new MetricPacket();
+        decoder.decode(announce, out);
+        checkJsonNumbers(decoder, out);
+        
+        System.out.println("JSON datagram:   " + json.length + " bytes");
+        System.out.println("Binary datagram: " + binary.length + " bytes");
+        run("json", json, decoder, out, seconds);
+        run("binary", binary, decoder, out, seconds);
+    }
+    
+    // The JSON parser converts most numbers itself; a benchmark of wrong answers is no use
+    private static void checkJsonNumbers(PacketDecoder decoder, MetricPacket out) {
+        String[] numbers = {"0", "-0.5", "0.4231", "42", "16777216000", "8123456789.0", "1e-7", "2.5E+3",
+                "123456789012345678", "9999999999999999999", "-9300000000000000000", "12345678901234567890.5",
+                "0.000000000000000000001234", "1.7976931348623157e308"};
+        for (String number : numbers) {
+            byte[] json = ("{\"dev\":\"check\",\"ts\":1,\"m\":[[\"x\"," + number + "]]}").getBytes(StandardCharsets.UTF_8);
+            if (!decoder.decode(ByteBuffer.wrap(json), out) || Double.compare(out.values[0], Double.parseDouble(number)) != 0) {
+                throw new IllegalStateException("JSON number " + number + " parsed as " + out.values[0]);
+            }
+        }
+    }
+    
+    private static void run(String label, byte[] datagram, PacketDecoder decoder, MetricPacket out, int seconds) {
+        // Warm up so the JIT has compiled the decode path before we measure
+        long warmupEnd = System.nanoTime() + 1_000_000_000L;
+        while (System.nanoTime() < warmupEnd) {
+            decoder.decode(ByteBuffer.wrap(datagram), out);
+        }
+        
+        long packets = 0;
+        long start = System.nanoTime();
+        long end = start + seconds * 1_000_000_000L;
+        while (System.nanoTime() < end) {
+            for (int i = 0; i < 1000; i++) {
+                decoder.decode(ByteBuffer.wrap(datagram), out);
+            }
+            packets += 1000;
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-7s %,.0f packets/sec/core%n", label, packets / elapsed);
+    }
+}
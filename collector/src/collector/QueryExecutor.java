@@ -0,0 +1,193 @@
+package collector;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs API handlers off the HttpServer dispatcher thread with admission control.
+ * At most maxInFlight handlers run at once and at most maxQueued wait behind
+ * them; anything beyond that is shed with a 503 straight from the dispatcher.
+ * Requests that waited longer than the deadline are shed when they reach the
+ * front of the queue, and handlers can poll {@link #checkDeadline()} while they work.
+ *
+ * Modes: "dispatcher" (the original single-thread behaviour), "pool" (fixed
+ * platform threads) and "virtual" (one virtual thread per request on JDKs that
+ * have them, otherwise falls back to "pool").
+ */
+public class QueryExecutor {
+    private static final ThreadLocal<Long> DEADLINE = new ThreadLocal<>();
+    
+    private final String mode;
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final long deadlineNanos;
+    private final ExecutorService executor;
+    private final Semaphore running;
+    
+    private final AtomicInteger admitted = new AtomicInteger(); // Queued plus running
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram serviceTime = new LatencyHistogram();
+    
+    public QueryExecutor(String mode, int maxInFlight, int maxQueued, long deadlineMs) {
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+        this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMs);
+        this.running = new Semaphore(maxInFlight);
+        
+        ExecutorService virtual = "virtual".equals(mode) ? newVirtualThreadExecutor() : null;
+        if (virtual != null) {
+            this.mode = "virtual";
+            this.executor = virtual;
+        } else if ("dispatcher".equals(mode)) {
+            this.mode = "dispatcher";
+            this.executor = null;
+        } else {
+            if ("virtual".equals(mode)) {
+                System.out.println("Virtual threads are not available on this JVM, using a thread pool");
+            }
+            this.mode = "pool";
+            AtomicInteger threadCount = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(maxInFlight, r -> {
+                Thread thread = new Thread(r, "http-query-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+    
+    // Executors.newVirtualThreadPerTaskExecutor() exists from JDK 21; looked up reflectively to still run on 17
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+    
+    public HttpHandler wrap(HttpHandler handler) {
+        if (executor == null) {
+            return exchange -> {
+                long start = System.nanoTime();
+                try {
+                    handler.handle(exchange);
+                } finally {
+                    serviceTime.record(System.nanoTime() - start);
+                }
+            };
+        }
+        return exchange -> {
+            if (admitted.incrementAndGet() > maxInFlight + maxQueued) {
+                admitted.decrementAndGet();
+                rejected.increment();
+                shed(exchange, "Server busy");
+                return;
+            }
+            long enqueued = System.nanoTime();
+            executor.execute(() -> run(handler, exchange, enqueued));
+        };
+    }
+    
+    private void run(HttpHandler handler, HttpExchange exchange, long enqueued) {
+        boolean acquired = false;
+        try {
+            running.acquire(); // Only limits virtual threads; a pool has exactly maxInFlight threads
+            acquired = true;
+            long started = System.nanoTime();
+            queueWait.record(started - enqueued);
+            if (started - enqueued > deadlineNanos) {
+                expired.increment();
+                shed(exchange, "Query deadline exceeded while queued");
+                return;
+            }
+            
+            active.incrementAndGet();
+            DEADLINE.set(enqueued + deadlineNanos);
+            try {
+                handler.handle(exchange);
+            } finally {
+                DEADLINE.remove();
+                active.decrementAndGet();
+                serviceTime.record(System.nanoTime() - started);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exchange.close();
+        } catch (Exception e) {
+            System.err.println("Error handling " + exchange.getRequestURI() + ": " + e.getMessage());
+            exchange.close();
+        } finally {
+            if (acquired) {
+                running.release();
+            }
+            admitted.decrementAndGet();
+        }
+    }
+    
+    /**
+     * Throws if the request being handled on this thread is past its deadline.
+     * A no-op in dispatcher mode.
+     */
+    public static void checkDeadline() throws DeadlineExceededException {
+        Long deadline = DEADLINE.get();
+        if (deadline != null && System.nanoTime() - deadline > 0) {
+            throw new DeadlineExceededException();
+        }
+    }
+    
+    private static void shed(HttpExchange exchange, String message) throws IOException {
+        JSONObject error = new JSONObject();
+        error.put("error", message);
+        error.put("code", 503);
+        byte[] bytes = error.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.getResponseHeaders().add("Retry-After", "1");
+        exchange.sendResponseHeaders(503, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+    
+    public JSONObject stats() {
+        JSONObject stats = new JSONObject();
+        stats.put("mode", mode);
+        stats.put("maxInFlight", maxInFlight);
+        stats.put("maxQueued", maxQueued);
+        stats.put("deadlineMs", TimeUnit.NANOSECONDS.toMillis(deadlineNanos));
+        stats.put("inFlight", active.get());
+        stats.put("queued", Math.max(0, admitted.get() - active.get()));
+        stats.put("rejected", rejected.sum());
+        stats.put("expired", expired.sum());
+        stats.put("queueWait", queueWait.stats());
+        stats.put("serviceTime", serviceTime.stats());
+        return stats;
+    }
+    
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+    
+    public static class DeadlineExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+        
+        public DeadlineExceededException() {
+            super("Query deadline exceeded");
+        }
+    }
+}
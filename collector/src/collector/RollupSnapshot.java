@@ -0,0 +1,51 @@
+package collector;
+
+import java.util.Arrays;
+
+// Reusable copy of rollup buckets, oldest first
+public class RollupSnapshot {
+    public long resolutionMs;
+    public long[] starts = new long[0];
+    public double[] mins = new double[0];
+    public double[] maxs = new double[0];
+    public double[] sums = new double[0];
+    public long[] counts = new long[0];
+    public double[] lasts = new double[0];
+    public double[] weightedSums = new double[0];
+    public double[] weights = new double[0];
+    public int size;
+    
+    public void clear() {
+        size = 0;
+    }
+    
+    void ensureCapacity(int required) {
+        if (starts.length < required) {
+            int capacity = Math.max(Math.max(64, required), starts.length * 2);
+            starts = Arrays.copyOf(starts, capacity);
+            mins = Arrays.copyOf(mins, capacity);
+            maxs = Arrays.copyOf(maxs, capacity);
+            sums = Arrays.copyOf(sums, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+            lasts = Arrays.copyOf(lasts, capacity);
+            weightedSums = Arrays.copyOf(weightedSums, capacity);
+            weights = Arrays.copyOf(weights, capacity);
+        }
+    }
+    
+    void append(long start, double min, double max, double sum, long count, double last,
+                double weightedSum, double weight) {
+        if (size == starts.length) {
+            ensureCapacity(size + 1);
+        }
+        starts[size] = start;
+        mins[size] = min;
+        maxs[size] = max;
+        sums[size] = sum;
+        counts[size] = count;
+        lasts[size] = last;
+        weightedSums[size] = weightedSum;
+        weights[size] = weight;
+        size++;
+    }
+}
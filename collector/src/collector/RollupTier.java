@@ -0,0 +1,237 @@
+package collector;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-resolution aggregate of one series (min/max/sum/count/last per bucket,
+ * plus a time-weighted sum so averages hold up when the sampling interval
+ * varies), maintained incrementally on ingest. Buckets live in a ring sized from the
+ * tier's own retention, so memory stays bounded however long it is kept.
+ * Like the raw ring in Series, it is written under the series lock and read
+ * under the series seqlock.
+ */
+public class RollupTier {
+    private static final int INITIAL_CAPACITY = 16;
+    
+    final long resolutionMs;
+    final long retentionMs;
+    private final int maxCapacity;
+    
+    private long[] starts = new long[INITIAL_CAPACITY];
+    private double[] mins = new double[INITIAL_CAPACITY];
+    private double[] maxs = new double[INITIAL_CAPACITY];
+    private double[] sums = new double[INITIAL_CAPACITY];
+    private long[] counts = new long[INITIAL_CAPACITY];
+    private double[] lasts = new double[INITIAL_CAPACITY];
+    private double[] weightedSums = new double[INITIAL_CAPACITY]; // value x weight
+    private double[] weights = new double[INITIAL_CAPACITY]; // Milliseconds of series time covered
+    private int head; // Next slot to write
+    private int size;
+    
+    public RollupTier(Spec spec) {
+        this.resolutionMs = spec.resolutionMs;
+        this.retentionMs = spec.retentionMs;
+        this.maxCapacity = (int) Math.max(2, spec.retentionMs / spec.resolutionMs + 1);
+    }
+    
+    // Timestamps are non-decreasing (Series rejects out-of-order samples); weight is the ms the sample stands for
+    void add(long timestamp, double value, double weight) {
+        long start = timestamp - Math.floorMod(timestamp, resolutionMs);
+        int last = (head - 1 + starts.length) % starts.length;
+        if (size > 0 && starts[last] == start) {
+            mins[last] = Math.min(mins[last], value);
+            maxs[last] = Math.max(maxs[last], value);
+            sums[last] += value;
+            counts[last]++;
+            lasts[last] = value;
+            weightedSums[last] += value * weight;
+            weights[last] += weight;
+        } else {
+            if (size == starts.length && size < maxCapacity) {
+                grow();
+            }
+            starts[head] = start;
+            mins[head] = value;
+            maxs[head] = value;
+            sums[head] = value;
+            counts[head] = 1;
+            lasts[head] = value;
+            weightedSums[head] = value * weight;
+            weights[head] = weight;
+            head = (head + 1) % starts.length;
+            if (size < starts.length) {
+                size++;
+            }
+        }
+        
+        prune(timestamp);
+    }
+    
+    // Drops the buckets that ended more than the retention before {@code now}
+    void prune(long now) {
+        long cutoff = now - retentionMs;
+        int oldest = (head - size + starts.length) % starts.length;
+        while (size > 0 && starts[oldest] + resolutionMs <= cutoff) {
+            size--;
+            oldest = (oldest + 1) % starts.length;
+        }
+    }
+    
+    void clear() {
+        head = 0;
+        size = 0;
+    }
+    
+    // Like clear, but also gives the grown arrays back
+    void release() {
+        starts = new long[INITIAL_CAPACITY];
+        mins = new double[INITIAL_CAPACITY];
+        maxs = new double[INITIAL_CAPACITY];
+        sums = new double[INITIAL_CAPACITY];
+        counts = new long[INITIAL_CAPACITY];
+        lasts = new double[INITIAL_CAPACITY];
+        weightedSums = new double[INITIAL_CAPACITY];
+        weights = new double[INITIAL_CAPACITY];
+        clear();
+    }
+    
+    // Replaces the buckets with saved ones, keeping the newest if retention shrank
+    void restore(RollupSnapshot saved) {
+        int n = Math.min(saved.size, maxCapacity);
+        int skip = saved.size - n;
+        int capacity = Math.max(INITIAL_CAPACITY, n);
+        starts = Arrays.copyOfRange(saved.starts, skip, skip + capacity);
+        mins = Arrays.copyOfRange(saved.mins, skip, skip + capacity);
+        maxs = Arrays.copyOfRange(saved.maxs, skip, skip + capacity);
+        sums = Arrays.copyOfRange(saved.sums, skip, skip + capacity);
+        counts = Arrays.copyOfRange(saved.counts, skip, skip + capacity);
+        lasts = Arrays.copyOfRange(saved.lasts, skip, skip + capacity);
+        weightedSums = Arrays.copyOfRange(saved.weightedSums, skip, skip + capacity);
+        weights = Arrays.copyOfRange(saved.weights, skip, skip + capacity);
+        head = n % capacity;
+        size = n;
+    }
+    
+    private void grow() {
+        int capacity = Math.min(maxCapacity, starts.length * 2);
+        int oldest = (head - size + starts.length) % starts.length;
+        starts = copy(starts, oldest, size, capacity);
+        mins = copy(mins, oldest, size, capacity);
+        maxs = copy(maxs, oldest, size, capacity);
+        sums = copy(sums, oldest, size, capacity);
+        counts = copy(counts, oldest, size, capacity);
+        lasts = copy(lasts, oldest, size, capacity);
+        weightedSums = copy(weightedSums, oldest, size, capacity);
+        weights = copy(weights, oldest, size, capacity);
+        head = size % capacity;
+    }
+    
+    private static long[] copy(long[] src, int oldest, int size, int capacity) {
+        long[] dst = new long[capacity];
+        for (int i = 0; i < size; i++) {
+            dst[i] = src[(oldest + i) % src.length];
+        }
+        return dst;
+    }
+    
+    private static double[] copy(double[] src, int oldest, int size, int capacity) {
+        double[] dst = new double[capacity];
+        for (int i = 0; i < size; i++) {
+            dst[i] = src[(oldest + i) % src.length];
+        }
+        return dst;
+    }
+    
+    /**
+     * Copies the buckets overlapping [from, to] into {@code out}. Returns false
+     * if a concurrent grow was observed; the caller's seqlock retries.
+     */
+    boolean copy(long from, long to, RollupSnapshot out) {
+        long[] s = starts;
+        double[] mn = mins;
+        double[] mx = maxs;
+        double[] sm = sums;
+        long[] ct = counts;
+        double[] ls = lasts;
+        double[] ws = weightedSums;
+        double[] w = weights;
+        int h = head;
+        int n = size;
+        int length = s.length;
+        if (mn.length != length || mx.length != length || sm.length != length || ct.length != length
+                || ls.length != length || ws.length != length || w.length != length || h >= length || n > length) {
+            return false;
+        }
+        
+        out.clear();
+        out.resolutionMs = resolutionMs;
+        int oldest = (h - n + length) % length;
+        for (int i = 0; i < n; i++) {
+            int slot = (oldest + i) % length;
+            if (s[slot] > to) {
+                break;
+            }
+            if (s[slot] + resolutionMs > from) {
+                out.append(s[slot], mn[slot], mx[slot], sm[slot], ct[slot], ls[slot], ws[slot], w[slot]);
+            }
+        }
+        return true;
+    }
+    
+    long oldestStart() {
+        return size == 0 ? Long.MAX_VALUE : starts[(head - size + starts.length) % starts.length];
+    }
+    
+    long allocatedBytes() {
+        return (long) starts.length * (Long.BYTES * 2 + Double.BYTES * 6);
+    }
+    
+    int buckets() {
+        return size;
+    }
+    
+    // Resolution and retention of one tier, e.g. "10s:24h"
+    public static final class Spec {
+        public final long resolutionMs;
+        public final long retentionMs;
+        
+        public Spec(long resolutionMs, long retentionMs) {
+            this.resolutionMs = resolutionMs;
+            this.retentionMs = retentionMs;
+        }
+        
+        // Comma-separated list of resolution:retention pairs, finest first, e.g. "10s:24h,1m:7d,10m:30d"
+        public static Spec[] parseList(String value) {
+            if (value == null || value.isBlank()) {
+                return new Spec[0];
+            }
+            String[] parts = value.split(",");
+            Spec[] specs = new Spec[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                String[] pair = parts[i].trim().split(":");
+                specs[i] = new Spec(parseDuration(pair[0]), parseDuration(pair[1]));
+            }
+            return specs;
+        }
+        
+        // Plain milliseconds or a number with an s/m/h/d suffix
+        public static long parseDuration(String value) {
+            value = value.trim();
+            if (value.isEmpty()) {
+                throw new IllegalArgumentException("Empty duration");
+            }
+            char unit = value.charAt(value.length() - 1);
+            if (Character.isDigit(unit)) {
+                return Long.parseLong(value);
+            }
+            long amount = Long.parseLong(value.substring(0, value.length() - 1));
+            switch (unit) {
+                case 's': return amount * 1000;
+                case 'm': return amount * 60_000;
+                case 'h': return amount * 3_600_000;
+                case 'd': return amount * 86_400_000;
+                default: throw new IllegalArgumentException("Unknown duration unit in " + value);
+            }
+        }
+    }
+}
@@ -0,0 +1,572 @@
+package collector;
+
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * One (device, metric) series. Recent samples live in a fixed-capacity ring of
+ * parallel primitive arrays; every sample is also appended to a Gorilla head
+ * chunk, which is sealed into an immutable Chunk every Chunk.TARGET_SAMPLES
+ * samples and kept for the long retention period.
+ *
+ * Rollup tiers are updated on the same write.
+ *
+ * Writes are serialised on the series. Reads are lock-free and validated with a
+ * seqlock, so an HTTP reader never blocks ingest and never sees a half-written
+ * sample. The ring always covers at least the head chunk, so readers only ever
+ * decode sealed chunks.
+ */
+public class Series {
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int MAX_READ_ATTEMPTS = 8;
+    private static final Chunk[] NO_CHUNKS = new Chunk[0];
+    private static final long MAX_GAP_WEIGHT_MS = 10_000; // A longer gap is an outage, not a slow interval
+    // Object headers, the key strings and the store and index entries, roughly
+    static final long OVERHEAD_BYTES = 512;
+    
+    public final int id; // Unique per store, used by the WAL and snapshots
+    public final String deviceId;
+    public final String metricName; // Series key: the metric name, with its labels if it has any
+    public final String name; // Metric name alone
+    public final Labels labels;
+    private final int maxCapacity;
+    private final long rawRetentionMs;
+    private final long retentionMs;
+    private final long defaultIntervalMs; // Weight of samples whose spacing is unknown
+    
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+    private double[] values = new double[INITIAL_CAPACITY];
+    private int head; // Next slot to write
+    private int size;
+    private long appended; // Total samples accepted, i.e. the position of the next sample
+    private long outOfOrder;
+    private volatile long intervalMs; // Sampling interval announced by the exporter; 0 if unknown
+    private int newestRun; // Samples sharing the newest timestamp
+    private long lastWriteMs; // Wall clock of the last accepted sample, or of creation
+    private volatile long lastQueryMs; // Wall clock of the last read by a query; 0 if never read
+    private boolean retired; // Dropped from the store; appends go to its replacement instead
+    
+    private Chunk.Encoder headChunk = new Chunk.Encoder(0);
+    private long headChunkStart = Long.MAX_VALUE; // Timestamp of the first sample in headChunk
+    private Chunk[] chunks = NO_CHUNKS; // Sealed, oldest first; replaced, never mutated
+    private final RollupTier[] tiers; // Finest first
+    
+    // Odd while a write is in progress
+    private volatile long version;
+    
+    public Series(int id, String deviceId, String metricName, Labels labels, int maxCapacity, long rawRetentionMs,
+                  long retentionMs, long defaultIntervalMs, RollupTier.Spec[] tierSpecs) {
+        this.id = id;
+        this.deviceId = deviceId;
+        this.metricName = metricName;
+        this.name = labels.size() == 0 ? metricName : Labels.metricOf(metricName);
+        this.labels = labels;
+        this.maxCapacity = Math.max(maxCapacity, Chunk.TARGET_SAMPLES);
+        this.rawRetentionMs = rawRetentionMs;
+        this.retentionMs = retentionMs;
+        this.defaultIntervalMs = defaultIntervalMs;
+        this.tiers = new RollupTier[tierSpecs.length];
+        for (int i = 0; i < tierSpecs.length; i++) {
+            tiers[i] = new RollupTier(tierSpecs[i]);
+        }
+        this.lastWriteMs = System.currentTimeMillis();
+    }
+    
+    public void setIntervalMs(long intervalMs) {
+        this.intervalMs = intervalMs;
+    }
+    
+    public long intervalMs() {
+        return intervalMs;
+    }
+    
+    /**
+     * Time a sample stands for in time-weighted averages: the interval its
+     * exporter announced, else the gap since the previous sample, split between
+     * the samples that shared the previous timestamp and capped (a longer gap is
+     * an outage, not a slow interval). The first sample, and one with the same
+     * timestamp as the previous, gets the default interval. Rollups and raw
+     * stepped queries both weigh samples this way.
+     */
+    static double sampleWeight(long announcedMs, long gapMs, int previousRun, long defaultIntervalMs) {
+        if (announcedMs > 0) {
+            return announcedMs;
+        }
+        if (gapMs > 0) {
+            return (double) Math.min(gapMs, MAX_GAP_WEIGHT_MS) / Math.max(1, previousRun);
+        }
+        return defaultIntervalMs;
+    }
+    
+    // Returns false if the sample was rejected for being older than the newest one, or the series was retired
+    public synchronized boolean append(long timestamp, double value) {
+        if (retired) {
+            return false;
+        }
+        long previous = size > 0 ? timestamps[(head - 1 + timestamps.length) % timestamps.length] : timestamp;
+        if (timestamp < previous) {
+            outOfOrder++; // Keeps the ring sorted so readers can binary search it
+            return false;
+        }
+        double weight = sampleWeight(intervalMs, timestamp - previous, newestRun, defaultIntervalMs);
+        newestRun = size > 0 && timestamp == previous ? newestRun + 1 : 1;
+        
+        beginWrite();
+        if (size == timestamps.length && size < maxCapacity) {
+            grow();
+        }
+        timestamps[head] = timestamp;
+        values[head] = value;
+        head = (head + 1) % timestamps.length;
+        if (size < timestamps.length) {
+            size++;
+        }
+        appended++;
+        lastWriteMs = System.currentTimeMillis();
+        
+        if (headChunk.count() == 0) {
+            headChunkStart = timestamp;
+        }
+        headChunk.append(timestamp, value);
+        if (headChunk.count() >= Chunk.TARGET_SAMPLES) {
+            sealHeadChunk(timestamp);
+        }
+        for (RollupTier tier : tiers) {
+            tier.add(timestamp, value, weight);
+        }
+        
+        // Raw retention is enforced on write, but the ring never drops samples
+        // that are still only in the (unreadable) head chunk
+        long cutoff = Math.min(timestamp - rawRetentionMs, headChunkStart);
+        int oldest = (head - size + timestamps.length) % timestamps.length;
+        while (size > 0 && timestamps[oldest] < cutoff) {
+            size--;
+            oldest = (oldest + 1) % timestamps.length;
+        }
+        endWrite();
+        return true;
+    }
+    
+    private void sealHeadChunk(long now) {
+        int firstKept = firstChunkEndingAtOrAfter(chunks, now - retentionMs);
+        Chunk[] sealed = new Chunk[chunks.length - firstKept + 1];
+        System.arraycopy(chunks, firstKept, sealed, 0, chunks.length - firstKept);
+        sealed[sealed.length - 1] = headChunk.seal();
+        chunks = sealed;
+        headChunk = new Chunk.Encoder(appended);
+        headChunkStart = Long.MAX_VALUE;
+    }
+    
+    /**
+     * Applies retention as of {@code now} (wall clock). append only does that
+     * for the series it writes to, so without this a series that stopped
+     * receiving samples would keep them forever. Returns the bytes given back.
+     */
+    synchronized long pruneExpired(long now) {
+        long before = memoryBytes();
+        beginWrite();
+        long cutoff = Math.min(now - rawRetentionMs, headChunkStart);
+        int oldest = (head - size + timestamps.length) % timestamps.length;
+        while (size > 0 && timestamps[oldest] < cutoff) {
+            size--;
+            oldest = (oldest + 1) % timestamps.length;
+        }
+        int firstKept = firstChunkEndingAtOrAfter(chunks, now - retentionMs);
+        if (firstKept > 0) {
+            chunks = Arrays.copyOfRange(chunks, firstKept, chunks.length);
+        }
+        for (RollupTier tier : tiers) {
+            tier.prune(now);
+        }
+        endWrite();
+        return before - memoryBytes();
+    }
+    
+    /**
+     * Drops the sealed chunks and the rollup buckets, keeping the raw ring and
+     * the head chunk: the series loses its history but still answers recent
+     * queries. Returns the bytes given back.
+     */
+    synchronized long dropHistory() {
+        long before = memoryBytes();
+        beginWrite();
+        chunks = NO_CHUNKS;
+        for (RollupTier tier : tiers) {
+            tier.release();
+        }
+        endWrite();
+        return before - memoryBytes();
+    }
+    
+    /**
+     * Shrinks the raw ring to its initial capacity, or to the head chunk if that
+     * holds more, since the ring has to cover it. For series still being written
+     * once their history is gone; the ring grows back as samples arrive.
+     * Returns the bytes given back.
+     */
+    synchronized long trimRaw() {
+        int capacity = Math.max(INITIAL_CAPACITY, headChunk.count());
+        if (capacity >= timestamps.length) {
+            return 0;
+        }
+        long before = memoryBytes();
+        int keep = Math.min(size, capacity);
+        long[] newTimestamps = new long[capacity];
+        double[] newValues = new double[capacity];
+        copyOrdered(timestamps, values, head, size, size - keep, keep, newTimestamps, newValues);
+        beginWrite();
+        timestamps = newTimestamps;
+        values = newValues;
+        size = keep;
+        head = keep % capacity;
+        endWrite();
+        return before - memoryBytes();
+    }
+    
+    /**
+     * Marks the series as about to be dropped from the store, unless a sample
+     * was accepted at or after {@code writtenBefore} (wall clock): checked under
+     * the write lock, so an append either lands before and keeps the series, or
+     * sees it retired and goes to a new one.
+     */
+    synchronized boolean retire(long writtenBefore) {
+        if (lastWriteMs >= writtenBefore) {
+            return false;
+        }
+        retired = true;
+        return true;
+    }
+    
+    synchronized boolean retired() {
+        return retired;
+    }
+    
+    synchronized long lastWriteMs() {
+        return lastWriteMs;
+    }
+    
+    public long lastQueryMs() {
+        return lastQueryMs;
+    }
+    
+    // Called for reads on behalf of users, which decide what the memory budget evicts last
+    public void markQueried() {
+        lastQueryMs = System.currentTimeMillis();
+    }
+    
+    // Estimated heap held by the series: raw ring, chunks, rollups and fixed overhead
+    public long memoryBytes() {
+        return OVERHEAD_BYTES + rawBytes() + chunkBytes() + rollupBytes();
+    }
+    
+    /**
+     * Rebuilds a new, empty series from snapshot state: sealed chunks are adopted
+     * as they are, the ring is refilled and the samples past the last sealed
+     * chunk are re-encoded into the head chunk. Tiers are matched by resolution.
+     */
+    synchronized void restore(Frozen state) {
+        beginWrite();
+        chunks = state.chunks;
+        int n = state.ring.ringSize;
+        int skip = Math.max(0, n - maxCapacity);
+        n -= skip;
+        long ringStart = state.ringStart + skip;
+        int capacity = Math.max(INITIAL_CAPACITY, n);
+        timestamps = new long[capacity];
+        values = new double[capacity];
+        System.arraycopy(state.ring.ringTimestamps, skip, timestamps, 0, n);
+        System.arraycopy(state.ring.ringValues, skip, values, 0, n);
+        head = n % capacity;
+        size = n;
+        appended = ringStart + n;
+        
+        Chunk last = chunks.length == 0 ? null : chunks[chunks.length - 1];
+        long headFirst = Math.max(ringStart, last == null ? 0 : last.firstIndex + last.count);
+        headChunk = new Chunk.Encoder(headFirst);
+        headChunkStart = Long.MAX_VALUE;
+        for (int i = (int) (headFirst - ringStart); i < n; i++) {
+            if (headChunk.count() == 0) {
+                headChunkStart = timestamps[i];
+            }
+            headChunk.append(timestamps[i], values[i]);
+        }
+        
+        for (RollupTier tier : tiers) {
+            for (RollupSnapshot saved : state.tiers) {
+                if (saved.resolutionMs == tier.resolutionMs) {
+                    tier.restore(saved);
+                }
+            }
+        }
+        endWrite();
+    }
+    
+    /**
+     * Copies everything a snapshot needs into {@code out}: the sealed chunk array
+     * (immutable, so shared), the raw ring and every rollup tier, all from the
+     * same version. Like read, this only takes the writer lock under contention.
+     */
+    void freeze(Frozen out) {
+        if (out.tiers.length != tiers.length) {
+            out.tiers = new RollupSnapshot[tiers.length];
+            for (int i = 0; i < tiers.length; i++) {
+                out.tiers[i] = new RollupSnapshot();
+            }
+        }
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            long before = version;
+            if ((before & 1) == 0) {
+                Chunk[] sealed = chunks;
+                long ringStart = appended - size;
+                boolean copied = copyRing(Long.MIN_VALUE, Long.MAX_VALUE, out.ring);
+                for (int i = 0; copied && i < tiers.length; i++) {
+                    copied = tiers[i].copy(Long.MIN_VALUE, Long.MAX_VALUE, out.tiers[i]);
+                }
+                if (copied) {
+                    VarHandle.acquireFence();
+                    if (version == before) {
+                        out.chunks = sealed;
+                        out.ringStart = ringStart;
+                        return;
+                    }
+                }
+            }
+            Thread.onSpinWait();
+        }
+        synchronized (this) {
+            copyRing(Long.MIN_VALUE, Long.MAX_VALUE, out.ring);
+            for (int i = 0; i < tiers.length; i++) {
+                tiers[i].copy(Long.MIN_VALUE, Long.MAX_VALUE, out.tiers[i]);
+            }
+            out.chunks = chunks;
+            out.ringStart = appended - size;
+        }
+    }
+    
+    // Newest accepted timestamp, or Long.MIN_VALUE if the series is empty
+    // Position of the next sample, counting every sample the series accepted
+    synchronized long appended() {
+        return appended;
+    }
+    
+    synchronized long lastTimestamp() {
+        return size == 0 ? Long.MIN_VALUE : timestamps[(head - 1 + timestamps.length) % timestamps.length];
+    }
+    
+    public synchronized void clear() {
+        beginWrite();
+        head = 0;
+        size = 0;
+        headChunk = new Chunk.Encoder(appended);
+        headChunkStart = Long.MAX_VALUE;
+        chunks = NO_CHUNKS;
+        for (RollupTier tier : tiers) {
+            tier.clear();
+        }
+        endWrite();
+    }
+    
+    private void grow() {
+        int capacity = Math.min(maxCapacity, timestamps.length * 2);
+        long[] newTimestamps = new long[capacity];
+        double[] newValues = new double[capacity];
+        copyOrdered(timestamps, values, head, size, 0, size, newTimestamps, newValues);
+        timestamps = newTimestamps;
+        values = newValues;
+        head = size % capacity;
+    }
+    
+    private void beginWrite() {
+        version++;
+        VarHandle.storeStoreFence(); // The odd version must be visible before any data store
+    }
+    
+    private void endWrite() {
+        version++;
+    }
+    
+    /**
+     * Replaces the contents of {@code out} with the samples in [from, to],
+     * oldest first. Only sealed chunks overlapping the range are decoded.
+     */
+    public void read(long from, long to, SeriesSnapshot out) {
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            long before = version;
+            if ((before & 1) == 0) {
+                Chunk[] sealed = chunks;
+                long ringStart = appended - size;
+                if (copyRing(from, to, out)) {
+                    VarHandle.acquireFence(); // Order the copy before re-reading the version
+                    if (version == before) {
+                        assemble(sealed, ringStart, from, to, out);
+                        return;
+                    }
+                }
+            }
+            Thread.onSpinWait();
+        }
+        // Persistent contention: fall back to the writer lock
+        synchronized (this) {
+            copyRing(from, to, out);
+            assemble(chunks, appended - size, from, to, out);
+        }
+    }
+    
+    /**
+     * Picks the coarsest tier whose resolution divides {@code stepMs} and whose
+     * retention reaches back to {@code from}, or returns -1 if raw samples are
+     * needed. A bucket that is not a divisor would straddle two steps.
+     */
+    public int selectTier(long stepMs, long from, long now) {
+        for (int i = tiers.length - 1; i >= 0; i--) {
+            if (stepMs % tiers[i].resolutionMs == 0 && now - tiers[i].retentionMs <= from) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    public void readRollup(int tier, long from, long to, RollupSnapshot out) {
+        RollupTier rollup = tiers[tier];
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            long before = version;
+            if ((before & 1) == 0 && rollup.copy(from, to, out)) {
+                VarHandle.acquireFence();
+                if (version == before) {
+                    return;
+                }
+            }
+            Thread.onSpinWait();
+        }
+        synchronized (this) {
+            rollup.copy(from, to, out);
+        }
+    }
+    
+    // Fields may be torn while racing a writer; bail out instead of indexing past the arrays
+    private boolean copyRing(long from, long to, SeriesSnapshot out) {
+        long[] ts = timestamps;
+        double[] vals = values;
+        int h = head;
+        int n = size;
+        if (ts.length != vals.length || h >= ts.length || n > ts.length) {
+            return false;
+        }
+        int start = (h - n + ts.length) % ts.length;
+        int first = lowerBound(ts, start, n, from);
+        int last = lowerBound(ts, start, n, to == Long.MAX_VALUE ? to : to + 1);
+        int count = Math.max(0, last - first);
+        out.ensureRingCapacity(count);
+        copyOrdered(ts, vals, h, n, first, count, out.ringTimestamps, out.ringValues);
+        out.ringSize = count;
+        return true;
+    }
+    
+    // First logical index whose timestamp is >= target
+    private static int lowerBound(long[] ts, int start, int n, long target) {
+        int low = 0;
+        int high = n;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ts[(start + mid) % ts.length] < target) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+    
+    // Chunks are in time order, so the first one overlapping a range is found by binary search
+    private static int firstChunkEndingAtOrAfter(Chunk[] sealed, long from) {
+        int low = 0;
+        int high = sealed.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sealed[mid].maxTimestamp < from) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+    
+    private static void assemble(Chunk[] sealed, long ringStart, long from, long to, SeriesSnapshot out) {
+        out.clear();
+        for (int i = firstChunkEndingAtOrAfter(sealed, from); i < sealed.length; i++) {
+            Chunk chunk = sealed[i];
+            if (chunk.firstIndex >= ringStart || chunk.minTimestamp > to) {
+                break;
+            }
+            chunk.decode(from, to, ringStart, out);
+        }
+        out.ensureCapacity(out.size + out.ringSize);
+        System.arraycopy(out.ringTimestamps, 0, out.timestamps, out.size, out.ringSize);
+        System.arraycopy(out.ringValues, 0, out.values, out.size, out.ringSize);
+        out.size += out.ringSize;
+    }
+    
+    // Copies count samples starting at logical index skip
+    private static void copyOrdered(long[] ts, double[] vals, int head, int size, int skip, int count,
+                                    long[] outTs, double[] outVals) {
+        int start = (head - size + skip + ts.length) % ts.length;
+        int firstPart = Math.min(count, ts.length - start);
+        System.arraycopy(ts, start, outTs, 0, firstPart);
+        System.arraycopy(vals, start, outVals, 0, firstPart);
+        System.arraycopy(ts, 0, outTs, firstPart, count - firstPart);
+        System.arraycopy(vals, 0, outVals, firstPart, count - firstPart);
+    }
+    
+    public long outOfOrder() {
+        return outOfOrder;
+    }
+    
+    public long rawBytes() {
+        return (long) timestamps.length * (Long.BYTES + Double.BYTES);
+    }
+    
+    public long rawSamples() {
+        return size;
+    }
+    
+    public long rollupBytes() {
+        long bytes = 0;
+        for (RollupTier tier : tiers) {
+            bytes += tier.allocatedBytes();
+        }
+        return bytes;
+    }
+    
+    public long rollupBuckets() {
+        long buckets = 0;
+        for (RollupTier tier : tiers) {
+            buckets += tier.buckets();
+        }
+        return buckets;
+    }
+    
+    public synchronized long chunkBytes() {
+        long bytes = headChunk.sizeBytes();
+        for (Chunk chunk : chunks) {
+            bytes += chunk.sizeBytes();
+        }
+        return bytes;
+    }
+    
+    public synchronized long chunkSamples() {
+        long samples = headChunk.count();
+        for (Chunk chunk : chunks) {
+            samples += chunk.count;
+        }
+        return samples;
+    }
+    
+    // Point-in-time copy of a series for snapshots; reused across series by the snapshot writer
+    static final class Frozen {
+        Chunk[] chunks = NO_CHUNKS;
+        long ringStart;
+        final SeriesSnapshot ring = new SeriesSnapshot(); // Uses the ring staging arrays
+        RollupSnapshot[] tiers = new RollupSnapshot[0];
+    }
+}
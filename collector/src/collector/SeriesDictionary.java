@@ -0,0 +1,38 @@
+package collector;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Per-device mapping from the small integer ids binary exporters use on the
+// wire to metric names.
+public class SeriesDictionary {
+    private final Map<String, Names> devices = new ConcurrentHashMap<>();
+    
+    public Names forDevice(String deviceId) {
+        return devices.computeIfAbsent(deviceId, k -> new Names());
+    }
+    
+    public static class Names {
+        private volatile String[] names = new String[16];
+        
+        public String get(int id) {
+            String[] current = names;
+            return id < current.length ? current[id] : null;
+        }
+        
+        public synchronized String define(int id, String name) {
+            String[] current = names;
+            if (id >= current.length) {
+                current = Arrays.copyOf(current, Math.max(id + 1, current.length * 2));
+            }
+            String existing = current[id];
+            if (name.equals(existing)) {
+                return existing;
+            }
+            current[id] = name;
+            names = current;
+            return name;
+        }
+    }
+}
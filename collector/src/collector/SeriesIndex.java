@@ -0,0 +1,447 @@
+package collector;
+
+import org.json.JSONObject;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Inverted index over the series of a MetricStore. Every label pair, plus the
+ * implicit {@code __name__} (metric) and {@code device} labels, maps to a
+ * postings list: the ids of the series carrying it, sorted ascending.
+ *
+ * A selector such as {@code cpu_usage{region="eu",core!="0"}} intersects the
+ * postings of its equality and regex matchers, smallest list first and
+ * galloping through the longer ones, then checks the negative matchers
+ * against the few candidates left.
+ *
+ * Series ids are the store's own (see Series.id): dense, never reused, and
+ * shared with the WAL and the subscription protocol. Label names and values
+ * are interned here, so a value repeated across thousands of series is kept
+ * once. Writes happen only when series are created or removed.
+ */
+public class SeriesIndex {
+    public static final String METRIC_LABEL = "__name__";
+    public static final String DEVICE_LABEL = "device";
+    private static final int TOP_CARDINALITY = 10;
+    
+    private final Map<String, String> strings = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Postings>> postings = new HashMap<>(); // Label name, value, series ids
+    private Series[] byId = new Series[1024];
+    private int seriesCount;
+    private long postingsEntries;
+    
+    public String intern(String s) {
+        String existing = strings.putIfAbsent(s, s);
+        return existing == null ? s : existing;
+    }
+    
+    synchronized void add(Series series) {
+        if (series.id >= byId.length) {
+            byId = Arrays.copyOf(byId, Math.max(series.id + 1, byId.length * 2));
+        }
+        if (byId[series.id] != null) {
+            return;
+        }
+        byId[series.id] = series;
+        seriesCount++;
+        forEachLabel(series, (name, value) -> {
+            Postings list = postings.computeIfAbsent(intern(name), k -> new HashMap<>())
+                    .computeIfAbsent(intern(value), k -> new Postings());
+            if (list.add(series.id)) {
+                postingsEntries++;
+            }
+        });
+    }
+    
+    synchronized void remove(Series series) {
+        if (series.id >= byId.length || byId[series.id] != series) {
+            return;
+        }
+        byId[series.id] = null;
+        seriesCount--;
+        forEachLabel(series, (name, value) -> {
+            Map<String, Postings> values = postings.get(name);
+            Postings list = values == null ? null : values.get(value);
+            if (list != null && list.remove(series.id)) {
+                postingsEntries--;
+                if (list.size == 0) {
+                    values.remove(value);
+                    if (values.isEmpty()) {
+                        postings.remove(name);
+                    }
+                }
+            }
+        });
+    }
+    
+    /**
+     * Forgets interned strings no label pair uses any more, e.g. the ids of
+     * evicted devices. Returns how many were dropped.
+     */
+    synchronized int compactStrings() {
+        Set<String> live = new HashSet<>(postings.keySet());
+        for (Map<String, Postings> values : postings.values()) {
+            live.addAll(values.keySet());
+        }
+        int before = strings.size();
+        strings.keySet().retainAll(live);
+        return before - strings.size();
+    }
+    
+    synchronized void clear() {
+        Arrays.fill(byId, null);
+        postings.clear();
+        strings.clear();
+        seriesCount = 0;
+        postingsEntries = 0;
+    }
+    
+    private interface LabelConsumer {
+        void accept(String name, String value);
+    }
+    
+    private static void forEachLabel(Series series, LabelConsumer consumer) {
+        consumer.accept(METRIC_LABEL, series.name);
+        if (series.labels.get(DEVICE_LABEL) == null) {
+            consumer.accept(DEVICE_LABEL, series.deviceId);
+        }
+        for (int i = 0; i < series.labels.size(); i++) {
+            consumer.accept(series.labels.name(i), series.labels.value(i));
+        }
+    }
+    
+    // Value of a label on a series, including the implicit ones; "" if it is not set
+    static String labelValue(Series series, String name) {
+        if (METRIC_LABEL.equals(name)) {
+            return series.name;
+        }
+        if (DEVICE_LABEL.equals(name) && series.labels.get(DEVICE_LABEL) == null) {
+            return series.deviceId;
+        }
+        String value = series.labels.get(name);
+        return value == null ? "" : value;
+    }
+    
+    /**
+     * Series matching the selector, by ascending id. Positive matchers are
+     * answered from postings; a selector with none of them scans every series.
+     */
+    public synchronized List<Series> select(Selector selector) {
+        List<int[]> lists = new ArrayList<>();
+        List<Integer> sizes = new ArrayList<>();
+        for (Matcher matcher : selector.matchers) {
+            if (matcher.op == Op.EQ && !matcher.value.isEmpty()) {
+                Map<String, Postings> values = postings.get(matcher.name);
+                Postings list = values == null ? null : values.get(matcher.value);
+                if (list == null) {
+                    return Collections.emptyList();
+                }
+                lists.add(list.ids);
+                sizes.add(list.size);
+            } else if (matcher.op == Op.REGEX && !matcher.pattern.matcher("").matches()) {
+                int[] union = union(matcher);
+                if (union.length == 0) {
+                    return Collections.emptyList();
+                }
+                lists.add(union);
+                sizes.add(union.length);
+            }
+        }
+        
+        int[] candidates;
+        int count;
+        if (lists.isEmpty()) {
+            candidates = new int[seriesCount];
+            count = 0;
+            for (Series series : byId) {
+                if (series != null) {
+                    candidates[count++] = series.id;
+                }
+            }
+        } else {
+            Integer[] order = new Integer[lists.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparingInt(sizes::get));
+            int first = order[0];
+            candidates = Arrays.copyOf(lists.get(first), sizes.get(first));
+            count = candidates.length;
+            for (int i = 1; i < order.length && count > 0; i++) {
+                count = intersect(candidates, count, lists.get(order[i]), sizes.get(order[i]));
+            }
+        }
+        
+        List<Series> selected = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Series series = byId[candidates[i]];
+            if (series != null && selector.matchesRest(series)) {
+                selected.add(series);
+            }
+        }
+        return selected;
+    }
+    
+    // Merged postings of every value of the label that the pattern matches
+    private int[] union(Matcher matcher) {
+        Map<String, Postings> values = postings.get(matcher.name);
+        if (values == null) {
+            return new int[0];
+        }
+        int total = 0;
+        List<Postings> matching = new ArrayList<>();
+        for (Map.Entry<String, Postings> entry : values.entrySet()) {
+            if (matcher.pattern.matcher(entry.getKey()).matches()) {
+                matching.add(entry.getValue());
+                total += entry.getValue().size;
+            }
+        }
+        int[] ids = new int[total];
+        int n = 0;
+        for (Postings list : matching) {
+            System.arraycopy(list.ids, 0, ids, n, list.size);
+            n += list.size;
+        }
+        // A series has one value per label, so the lists are disjoint
+        Arrays.sort(ids);
+        return ids;
+    }
+    
+    /**
+     * Keeps the ids of {@code a} (sorted, the shorter list) that are also in
+     * {@code b}, in place; returns how many are left. Galloping search skips
+     * through {@code b}, so the cost follows the shorter list.
+     */
+    static int intersect(int[] a, int aSize, int[] b, int bSize) {
+        int kept = 0;
+        int from = 0;
+        for (int i = 0; i < aSize && from < bSize; i++) {
+            int target = a[i];
+            int bound = 1;
+            while (from + bound < bSize && b[from + bound] < target) {
+                bound <<= 1;
+            }
+            int found = Arrays.binarySearch(b, from, Math.min(from + bound + 1, bSize), target);
+            if (found >= 0) {
+                a[kept++] = target;
+                from = found + 1;
+            } else {
+                from = -found - 1;
+            }
+        }
+        return kept;
+    }
+    
+    // Estimated heap held by the index
+    public synchronized long memoryBytes() {
+        return postingsBytes() + stringBytes() + 16 + 4L * byId.length;
+    }
+    
+    private long postingsBytes() {
+        long bytes = 0;
+        for (Map<String, Postings> values : postings.values()) {
+            bytes += 48 + 36L * values.size(); // HashMap table and entries
+            for (Postings list : values.values()) {
+                bytes += 32 + 4L * list.ids.length;
+            }
+        }
+        return bytes;
+    }
+    
+    private long stringBytes() {
+        long bytes = 0;
+        for (String s : strings.keySet()) {
+            bytes += 56 + s.length() + 36; // String, its byte[] (Latin-1), the intern map entry
+        }
+        return bytes;
+    }
+    
+    public synchronized JSONObject stats() {
+        long labelPairs = 0;
+        List<Map.Entry<String, Integer>> cardinality = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Postings>> label : postings.entrySet()) {
+            Map<String, Postings> values = label.getValue();
+            labelPairs += values.size();
+            cardinality.add(Map.entry(label.getKey(), values.size()));
+        }
+        long postingsBytes = postingsBytes();
+        long stringBytes = stringBytes();
+        long byIdBytes = 16 + 4L * byId.length;
+        
+        cardinality.sort((x, y) -> Integer.compare(y.getValue(), x.getValue()));
+        JSONObject topLabels = new JSONObject();
+        for (int i = 0; i < Math.min(TOP_CARDINALITY, cardinality.size()); i++) {
+            topLabels.put(cardinality.get(i).getKey(), cardinality.get(i).getValue());
+        }
+        List<Map.Entry<String, Postings>> metrics = new ArrayList<>(
+                postings.getOrDefault(METRIC_LABEL, Collections.emptyMap()).entrySet());
+        metrics.sort((x, y) -> Integer.compare(y.getValue().size, x.getValue().size));
+        JSONObject topMetrics = new JSONObject();
+        for (int i = 0; i < Math.min(TOP_CARDINALITY, metrics.size()); i++) {
+            topMetrics.put(metrics.get(i).getKey(), metrics.get(i).getValue().size);
+        }
+        
+        JSONObject memory = new JSONObject()
+                .put("postingsBytes", postingsBytes)
+                .put("internedStringBytes", stringBytes)
+                .put("seriesTableBytes", byIdBytes)
+                .put("totalBytes", postingsBytes + stringBytes + byIdBytes);
+        return new JSONObject()
+                .put("series", seriesCount)
+                .put("idCapacity", byId.length)
+                .put("labelNames", postings.size())
+                .put("labelPairs", labelPairs)
+                .put("postingsEntries", postingsEntries)
+                .put("internedStrings", strings.size())
+                .put("memory", memory)
+                .put("valuesPerLabel", topLabels)
+                .put("seriesPerMetric", topMetrics);
+    }
+    
+    // Sorted ids of the series carrying one label pair
+    private static final class Postings {
+        int[] ids = new int[4];
+        int size;
+        
+        // Ids arrive nearly in order, so the insertion point is almost always the end
+        boolean add(int id) {
+            int at = size == 0 || ids[size - 1] < id ? size : Arrays.binarySearch(ids, 0, size, id);
+            if (at >= 0 && at < size) {
+                return false;
+            }
+            if (at < 0) {
+                at = -at - 1;
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(ids, at, ids, at + 1, size - at);
+            ids[at] = id;
+            size++;
+            return true;
+        }
+        
+        boolean remove(int id) {
+            int at = Arrays.binarySearch(ids, 0, size, id);
+            if (at < 0) {
+                return false;
+            }
+            System.arraycopy(ids, at + 1, ids, at, size - at - 1);
+            size--;
+            if (size > 4 && size < ids.length / 4) {
+                ids = Arrays.copyOf(ids, ids.length / 2);
+            }
+            return true;
+        }
+    }
+    
+    public enum Op { EQ, NEQ, REGEX, NOT_REGEX }
+    
+    public static final class Matcher {
+        public final String name;
+        public final Op op;
+        public final String value;
+        final Pattern pattern; // Only for the regex ops
+        
+        Matcher(String name, Op op, String value) {
+            this.name = name;
+            this.op = op;
+            this.value = value;
+            this.pattern = op == Op.REGEX || op == Op.NOT_REGEX ? Pattern.compile(value) : null;
+        }
+        
+        boolean matches(Series series) {
+            String actual = labelValue(series, name);
+            switch (op) {
+                case EQ: return actual.equals(value);
+                case NEQ: return !actual.equals(value);
+                case REGEX: return pattern.matcher(actual).matches();
+                default: return !pattern.matcher(actual).matches();
+            }
+        }
+    }
+    
+    /**
+     * Parsed selector: {@code metric{label="value",...}}, where either part may be
+     * left out and matchers are =, !=, =~ and !~ (regexes match whole values).
+     * An unset label reads as "", so {@code region=""} selects series without one.
+     */
+    public static final class Selector {
+        public final List<Matcher> matchers;
+        
+        private Selector(List<Matcher> matchers) {
+            this.matchers = matchers;
+        }
+        
+        // Matchers the postings did not already guarantee
+        boolean matchesRest(Series series) {
+            for (Matcher matcher : matchers) {
+                boolean fromPostings = matcher.op == Op.EQ && !matcher.value.isEmpty()
+                        || matcher.op == Op.REGEX && !matcher.pattern.matcher("").matches();
+                if (!fromPostings && !matcher.matches(series)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        public static Selector parse(String text) {
+            List<Matcher> matchers = new ArrayList<>();
+            String s = text.trim();
+            int brace = s.indexOf('{');
+            String metric = (brace < 0 ? s : s.substring(0, brace)).trim();
+            if (!metric.isEmpty()) {
+                matchers.add(new Matcher(METRIC_LABEL, Op.EQ, metric));
+            }
+            if (brace >= 0) {
+                if (!s.endsWith("}")) {
+                    throw new IllegalArgumentException("Expected } at the end of " + text);
+                }
+                int i = brace + 1;
+                int end = s.length() - 1;
+                while (i < end) {
+                    int opStart = i;
+                    while (opStart < end && "=!~".indexOf(s.charAt(opStart)) < 0) {
+                        opStart++;
+                    }
+                    String name = s.substring(i, opStart).trim();
+                    int quote = s.indexOf('"', opStart);
+                    if (name.isEmpty() || quote < 0) {
+                        throw new IllegalArgumentException("Expected label=\"value\" in " + text);
+                    }
+                    String opText = s.substring(opStart, quote).trim();
+                    Op op;
+                    switch (opText) {
+                        case "=": op = Op.EQ; break;
+                        case "!=": op = Op.NEQ; break;
+                        case "=~": op = Op.REGEX; break;
+                        case "!~": op = Op.NOT_REGEX; break;
+                        default: throw new IllegalArgumentException("Unknown matcher " + opText + " in " + text);
+                    }
+                    StringBuilder value = new StringBuilder();
+                    int j = quote + 1;
+                    while (j < end && s.charAt(j) != '"') {
+                        if (s.charAt(j) == '\\' && j + 1 < end) {
+                            j++;
+                        }
+                        value.append(s.charAt(j++));
+                    }
+                    if (j >= end) {
+                        throw new IllegalArgumentException("Unterminated value in " + text);
+                    }
+                    matchers.add(new Matcher(name, op, value.toString()));
+                    i = j + 1;
+                    while (i < end && (s.charAt(i) == ',' || s.charAt(i) == ' ')) {
+                        i++;
+                    }
+                }
+            }
+            if (matchers.isEmpty()) {
+                throw new IllegalArgumentException("Empty selector");
+            }
+            return new Selector(matchers);
+        }
+    }
+}
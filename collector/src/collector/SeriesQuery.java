@@ -0,0 +1,226 @@
+package collector;
+
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Query parameters shared by the series endpoints:
+ *
+ * <pre>
+ * from=&lt;epoch ms&gt;   start of the window (default: the raw retention window)
+ * to=&lt;epoch ms&gt;     end of the window (default: now)
+ * step=&lt;duration&gt;   one aggregated point per step, e.g. 10s or 60000 (default: raw samples)
+ * agg=avg|min|max|sum|count|last   aggregation used with step (default avg, weighted by sample interval)
+ * metric=a,b        only these metrics (may be repeated)
+ * format=compact    points as [[ts,v],...] instead of [{"timestamp":ts,"value":v},...]
+ * match=&lt;selector&gt;  series by label selector, e.g. cpu_usage{region="eu"} (/api/series and /api/query)
+ * </pre>
+ *
+ * Stepped queries are answered from the coarsest rollup tier whose resolution
+ * divides the step, falling back to raw samples otherwise. Rollup buckets that
+ * start before {@code from} are left out, since they hold earlier samples too.
+ */
+public class SeriesQuery {
+    public enum Aggregation { AVG, MIN, MAX, SUM, COUNT, LAST }
+    
+    public final long from;
+    public final long to;
+    public final long stepMs;
+    public final Aggregation aggregation;
+    public final Set<String> metrics; // Empty means all
+    public final boolean compact;
+    public final String match; // Label selector, see SeriesIndex.Selector; null if not given
+    
+    public SeriesQuery(long from, long to, long stepMs, Aggregation aggregation, Set<String> metrics, boolean compact,
+                       String match) {
+        this.from = from;
+        this.to = to;
+        this.stepMs = stepMs;
+        this.aggregation = aggregation;
+        this.metrics = metrics;
+        this.compact = compact;
+        this.match = match;
+    }
+    
+    public static SeriesQuery parse(URI uri, long defaultFrom) {
+        long from = defaultFrom;
+        long to = Long.MAX_VALUE;
+        long step = 0;
+        Aggregation aggregation = Aggregation.AVG;
+        Set<String> metrics = new LinkedHashSet<>();
+        boolean compact = false;
+        String match = null;
+        
+        String query = uri.getRawQuery();
+        if (query != null) {
+            for (String param : query.split("&")) {
+                int eq = param.indexOf('=');
+                if (eq < 0) {
+                    continue;
+                }
+                String key = param.substring(0, eq);
+                String value = URLDecoder.decode(param.substring(eq + 1), StandardCharsets.UTF_8);
+                switch (key) {
+                    case "from":
+                        from = Long.parseLong(value);
+                        break;
+                    case "to":
+                        to = Long.parseLong(value);
+                        break;
+                    case "step":
+                        step = RollupTier.Spec.parseDuration(value);
+                        break;
+                    case "agg":
+                        aggregation = Aggregation.valueOf(value.toUpperCase());
+                        break;
+                    case "metric":
+                        for (String metric : value.split(",")) {
+                            if (!metric.isEmpty()) {
+                                metrics.add(metric);
+                            }
+                        }
+                        break;
+                    case "format":
+                        compact = "compact".equals(value);
+                        break;
+                    case "match":
+                        match = value;
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        if (step < 0 || from > to) {
+            throw new IllegalArgumentException("Invalid range or step");
+        }
+        return new SeriesQuery(from, to, step, aggregation, metrics, compact, match);
+    }
+    
+    public boolean includes(String metricName) {
+        return metrics.isEmpty() || metrics.contains(metricName);
+    }
+    
+    /**
+     * Runs the query against one series. {@code out} receives raw samples, or one
+     * point per step (timestamped with the step start) when a step was requested.
+     */
+    public boolean read(MetricStore store, String deviceId, String metricName, SeriesSnapshot out) {
+        if (stepMs == 0) {
+            return store.readSeries(deviceId, metricName, from, to, out);
+        }
+        
+        RollupSnapshot buckets = out.rollupScratch();
+        if (store.readRollup(deviceId, metricName, from, to, stepMs, buckets)) {
+            aggregateBuckets(buckets, out);
+            return true;
+        }
+        if (!store.readSeries(deviceId, metricName, from, to, out)) {
+            return false;
+        }
+        Series series = store.findSeries(deviceId, metricName);
+        aggregateSamples(out, series != null ? series.intervalMs() : 0, store.sampleIntervalMs());
+        return true;
+    }
+    
+    // Re-buckets rollup buckets into steps, in place into out
+    private void aggregateBuckets(RollupSnapshot buckets, SeriesSnapshot out) {
+        out.clear();
+        Accumulator acc = new Accumulator();
+        for (int i = 0; i < buckets.size; i++) {
+            if (buckets.starts[i] < from) {
+                continue; // Partial first bucket
+            }
+            long stepStart = alignToStep(buckets.starts[i]);
+            if (acc.count > 0 && stepStart != acc.start) {
+                out.append(acc.start, acc.result(aggregation));
+                acc.reset();
+            }
+            acc.start = stepStart;
+            acc.merge(buckets.mins[i], buckets.maxs[i], buckets.sums[i], buckets.counts[i], buckets.lasts[i],
+                    buckets.weightedSums[i], buckets.weights[i]);
+        }
+        if (acc.count > 0) {
+            out.append(acc.start, acc.result(aggregation));
+        }
+    }
+    
+    // Samples are consumed from the front while results are written behind them. Each is
+    // weighted as rollups weigh it, see Series.sampleWeight
+    private void aggregateSamples(SeriesSnapshot out, long intervalMs, long defaultIntervalMs) {
+        int samples = out.size;
+        out.clear();
+        Accumulator acc = new Accumulator();
+        long previous = samples > 0 ? out.timestamps[0] : 0;
+        int run = 0; // Samples sharing the previous timestamp
+        for (int i = 0; i < samples; i++) {
+            long timestamp = out.timestamps[i];
+            long stepStart = alignToStep(timestamp);
+            double value = out.values[i];
+            double weight = Series.sampleWeight(intervalMs, timestamp - previous, run, defaultIntervalMs);
+            run = i > 0 && timestamp == previous ? run + 1 : 1;
+            previous = timestamp;
+            if (acc.count > 0 && stepStart != acc.start) {
+                out.append(acc.start, acc.result(aggregation));
+                acc.reset();
+            }
+            acc.start = stepStart;
+            acc.merge(value, value, value, 1, value, value * weight, weight);
+        }
+        if (acc.count > 0) {
+            out.append(acc.start, acc.result(aggregation));
+        }
+    }
+    
+    private long alignToStep(long timestamp) {
+        return timestamp - Math.floorMod(timestamp, stepMs);
+    }
+    
+    private static final class Accumulator {
+        long start;
+        double min;
+        double max;
+        double sum;
+        long count;
+        double last;
+        double weightedSum;
+        double weight;
+        
+        void reset() {
+            count = 0;
+        }
+        
+        void merge(double bucketMin, double bucketMax, double bucketSum, long bucketCount, double bucketLast,
+                   double bucketWeightedSum, double bucketWeight) {
+            if (count == 0) {
+                min = bucketMin;
+                max = bucketMax;
+                sum = bucketSum;
+                weightedSum = bucketWeightedSum;
+                weight = bucketWeight;
+            } else {
+                min = Math.min(min, bucketMin);
+                max = Math.max(max, bucketMax);
+                sum += bucketSum;
+                weightedSum += bucketWeightedSum;
+                weight += bucketWeight;
+            }
+            count += bucketCount;
+            last = bucketLast;
+        }
+        
+        double result(Aggregation aggregation) {
+            switch (aggregation) {
+                case MIN: return min;
+                case MAX: return max;
+                case SUM: return sum;
+                case COUNT: return count;
+                case LAST: return last;
+                default: return weight > 0 ? weightedSum / weight : sum / count; // Time-weighted when possible
+            }
+        }
+    }
+}
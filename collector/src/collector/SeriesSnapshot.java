@@ -0,0 +1,55 @@
+package collector;
+
+import java.util.Arrays;
+
+// Reusable copy of a series' samples, oldest first. Callers keep one per
+// request so repeated reads do not allocate.
+public class SeriesSnapshot {
+    public long[] timestamps = new long[0];
+    public double[] values = new double[0];
+    public int size;
+    
+    // Staging area for the raw ring part of a read, see Series.read
+    long[] ringTimestamps = new long[0];
+    double[] ringValues = new double[0];
+    int ringSize;
+    
+    private RollupSnapshot rollupScratch;
+    
+    public void clear() {
+        size = 0;
+    }
+    
+    // Buckets for stepped queries, kept with the snapshot so they are reused too
+    RollupSnapshot rollupScratch() {
+        if (rollupScratch == null) {
+            rollupScratch = new RollupSnapshot();
+        }
+        return rollupScratch;
+    }
+    
+    void ensureCapacity(int capacity) {
+        if (timestamps.length < capacity) {
+            int newCapacity = Math.max(capacity, timestamps.length * 2);
+            timestamps = Arrays.copyOf(timestamps, newCapacity);
+            values = Arrays.copyOf(values, newCapacity);
+        }
+    }
+    
+    void ensureRingCapacity(int capacity) {
+        if (ringTimestamps.length < capacity) {
+            int newCapacity = Math.max(capacity, ringTimestamps.length * 2);
+            ringTimestamps = new long[newCapacity];
+            ringValues = new double[newCapacity];
+        }
+    }
+    
+    void append(long timestamp, double value) {
+        if (size == timestamps.length) {
+            ensureCapacity(Math.max(64, size + 1));
+        }
+        timestamps[size] = timestamp;
+        values[size] = value;
+        size++;
+    }
+}
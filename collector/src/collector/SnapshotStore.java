@@ -0,0 +1,391 @@
+package collector;
+
+import org.json.JSONObject;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Periodic checkpoints of the whole MetricStore in one columnar file, so a
+ * restart can serve full history as soon as the file is mapped and loaded.
+ *
+ * Series are frozen one at a time through their seqlock (sealed chunks are
+ * immutable and written as they are), so ingest never pauses. On startup the
+ * newest readable snapshot is memory-mapped and its series are rebuilt in
+ * parallel.
+ *
+ * <pre>
+ * header:    "MSNP" i32, version i32, created i64, series i32, directory offset i64
+ * per series (at its directory offset):
+ *            ring count i32, ring start i64, timestamps i64[count], values f64[count]
+ *            chunk count i32, then per chunk: first index i64, min ts i64, max ts i64,
+ *                                             samples i32, words i32, bits i64[words]
+ *            tier count i32, then per tier: resolution i64, buckets i32,
+ *                                           starts i64[], mins f64[], maxs f64[], sums f64[],
+ *                                           counts i64[], lasts f64[], weighted sums f64[], weights f64[]
+ * directory: per series: u16 len + device, u16 len + metric, offset i64
+ * </pre>
+ *
+ * Older versions still load. Versions 1 and 2 had u8 name lengths. Version 1
+ * also lacks the last two tier columns, so each of its buckets is taken to
+ * hold its plain mean for the whole resolution.
+ */
+public class SnapshotStore {
+    private static final int MAGIC = 0x4D534E50; // "MSNP"
+    private static final int VERSION = 3; // 2 added the time-weighted rollup columns, 3 u16 name lengths
+    private static final int HEADER_SIZE = 28;
+    private static final int KEEP_SNAPSHOTS = 2;
+    
+    private final File directory;
+    private final long intervalMs;
+    private final MetricStore store;
+    private volatile WriteAheadLog wal;
+    
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "snapshot-writer");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    
+    private volatile JSONObject lastWrite = new JSONObject();
+    private volatile JSONObject lastLoad = new JSONObject();
+    
+    public SnapshotStore(File directory, long intervalMs, MetricStore store) {
+        this.directory = directory;
+        this.intervalMs = intervalMs;
+        this.store = store;
+    }
+    
+    // Segments covered by a finished snapshot are dropped from this log
+    public void useWal(WriteAheadLog wal) {
+        this.wal = wal;
+    }
+    
+    public void start() {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                write();
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Error writing snapshot: " + e.getMessage());
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+    
+    // Takes a final snapshot so the next start has nothing to replay
+    public void stop() {
+        scheduler.shutdown();
+        try {
+            write();
+        } catch (IOException e) {
+            System.err.println("Error writing snapshot: " + e.getMessage());
+        }
+    }
+    
+    private List<File> listSnapshots() {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith("snapshot-") && name.endsWith(".snap"));
+        List<File> snapshots = new ArrayList<>(files == null ? Collections.emptyList() : Arrays.asList(files));
+        snapshots.sort(Comparator.comparing(File::getName).reversed()); // Newest first
+        return snapshots;
+    }
+    
+    // ---- Writing ----
+    
+    public synchronized void write() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create snapshot directory " + directory);
+        }
+        long startedAt = System.currentTimeMillis();
+        File target = new File(directory, String.format("snapshot-%016d.snap", startedAt));
+        File temp = new File(directory, target.getName() + ".tmp");
+        
+        List<Series> all = store.allSeries();
+        Series.Frozen frozen = new Series.Frozen();
+        long[] offsets = new long[all.size()];
+        long samples = 0;
+        try (FileOutputStream file = new FileOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 20))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(startedAt);
+            out.writeInt(all.size());
+            out.writeLong(0); // Directory offset, patched below
+            
+            for (int i = 0; i < all.size(); i++) {
+                all.get(i).freeze(frozen);
+                offsets[i] = out.size();
+                samples += writeSeries(out, frozen);
+                if (out.size() == Integer.MAX_VALUE) {
+                    throw new IOException("Snapshot larger than 2 GB"); // size() saturates; offsets are ints on load
+                }
+            }
+            
+            long directoryOffset = out.size();
+            for (int i = 0; i < all.size(); i++) {
+                writeString(out, all.get(i).deviceId);
+                writeString(out, all.get(i).metricName);
+                out.writeLong(offsets[i]);
+            }
+            out.flush();
+            file.getChannel().write(ByteBuffer.allocate(8).putLong(0, directoryOffset), 20);
+            file.getFD().sync();
+        }
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        
+        List<File> snapshots = listSnapshots();
+        for (int i = KEEP_SNAPSHOTS; i < snapshots.size(); i++) {
+            if (!snapshots.get(i).delete()) {
+                System.err.println("Could not delete old snapshot " + snapshots.get(i));
+            }
+        }
+        WriteAheadLog log = wal;
+        if (log != null) {
+            log.checkpoint(startedAt);
+        }
+        
+        lastWrite = new JSONObject()
+                .put("file", target.getName())
+                .put("at", startedAt)
+                .put("series", all.size())
+                .put("samples", samples)
+                .put("bytes", target.length())
+                .put("millis", System.currentTimeMillis() - startedAt);
+    }
+    
+    private static long writeSeries(DataOutputStream out, Series.Frozen frozen) throws IOException {
+        int n = frozen.ring.ringSize;
+        out.writeInt(n);
+        out.writeLong(frozen.ringStart);
+        for (int i = 0; i < n; i++) {
+            out.writeLong(frozen.ring.ringTimestamps[i]);
+        }
+        for (int i = 0; i < n; i++) {
+            out.writeDouble(frozen.ring.ringValues[i]);
+        }
+        
+        long samples = n;
+        out.writeInt(frozen.chunks.length);
+        for (Chunk chunk : frozen.chunks) {
+            out.writeLong(chunk.firstIndex);
+            out.writeLong(chunk.minTimestamp);
+            out.writeLong(chunk.maxTimestamp);
+            out.writeInt(chunk.count);
+            out.writeInt(chunk.bits.length);
+            for (long word : chunk.bits) {
+                out.writeLong(word);
+            }
+            if (chunk.firstIndex < frozen.ringStart) {
+                samples += Math.min(chunk.count, frozen.ringStart - chunk.firstIndex);
+            }
+        }
+        
+        out.writeInt(frozen.tiers.length);
+        for (RollupSnapshot tier : frozen.tiers) {
+            int buckets = tier.size;
+            out.writeLong(tier.resolutionMs);
+            out.writeInt(buckets);
+            for (int i = 0; i < buckets; i++) out.writeLong(tier.starts[i]);
+            for (int i = 0; i < buckets; i++) out.writeDouble(tier.mins[i]);
+            for (int i = 0; i < buckets; i++) out.writeDouble(tier.maxs[i]);
+            for (int i = 0; i < buckets; i++) out.writeDouble(tier.sums[i]);
+            for (int i = 0; i < buckets; i++) out.writeLong(tier.counts[i]);
+            for (int i = 0; i < buckets; i++) out.writeDouble(tier.lasts[i]);
+            for (int i = 0; i < buckets; i++) out.writeDouble(tier.weightedSums[i]);
+            for (int i = 0; i < buckets; i++) out.writeDouble(tier.weights[i]);
+        }
+        return samples;
+    }
+    
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = WriteAheadLog.nameBytes(value);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+    
+    // ---- Loading ----
+    
+    /**
+     * Restores the newest readable snapshot into the (empty) store, falling back
+     * to older ones if it is damaged. Returns false if there was nothing to load.
+     */
+    public boolean load() {
+        for (File file : listSnapshots()) {
+            try {
+                load(file);
+                return true;
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Skipping unreadable snapshot " + file + ": " + e);
+                store.clearAllMetrics();
+            }
+        }
+        return false;
+    }
+    
+    private void load(File file) throws IOException {
+        long start = System.currentTimeMillis();
+        MappedByteBuffer mapped;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot larger than 2 GB");
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (mapped.limit() < HEADER_SIZE || mapped.getInt(0) != MAGIC) {
+            throw new IOException("Not a snapshot");
+        }
+        int version = mapped.getInt(4);
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        long created = mapped.getLong(8);
+        int seriesCount = mapped.getInt(16);
+        int at = (int) mapped.getLong(20);
+        
+        String[] devices = new String[seriesCount];
+        String[] metrics = new String[seriesCount];
+        int[] offsets = new int[seriesCount];
+        int lengthBytes = version < 3 ? 1 : 2;
+        for (int i = 0; i < seriesCount; i++) {
+            int length = readLength(mapped, at, lengthBytes);
+            devices[i] = readString(mapped, at + lengthBytes, length);
+            at += lengthBytes + length;
+            length = readLength(mapped, at, lengthBytes);
+            metrics[i] = readString(mapped, at + lengthBytes, length);
+            at += lengthBytes + length;
+            offsets[i] = (int) mapped.getLong(at);
+            at += 8;
+        }
+        
+        // Series blocks are independent, so each worker rebuilds a stride of them
+        int threads = Math.max(1, Math.min(seriesCount, Runtime.getRuntime().availableProcessors()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int shard = t;
+                workers.add(pool.submit(() -> {
+                    Series.Frozen frozen = new Series.Frozen();
+                    for (int i = shard; i < seriesCount; i += threads) {
+                        readSeries(mapped, offsets[i], version, frozen);
+                        store.series(devices[i], metrics[i]).restore(frozen);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Snapshot load interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Snapshot load failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        
+        long millis = System.currentTimeMillis() - start;
+        lastLoad = new JSONObject()
+                .put("file", file.getName())
+                .put("created", created)
+                .put("version", version)
+                .put("series", seriesCount)
+                .put("bytes", mapped.limit())
+                .put("millis", millis);
+        System.out.println("Loaded " + seriesCount + " series from " + file.getName() + " in " + millis + " ms");
+    }
+    
+    // Reads one series block with bulk copies out of the mapping
+    private static void readSeries(MappedByteBuffer mapped, int offset, int version, Series.Frozen out) {
+        ByteBuffer in = mapped.duplicate();
+        in.position(offset);
+        int n = in.getInt();
+        out.ringStart = in.getLong();
+        out.ring.ensureRingCapacity(n);
+        in.asLongBuffer().get(out.ring.ringTimestamps, 0, n);
+        in.position(in.position() + n * Long.BYTES);
+        in.asDoubleBuffer().get(out.ring.ringValues, 0, n);
+        in.position(in.position() + n * Double.BYTES);
+        out.ring.ringSize = n;
+        
+        Chunk[] chunks = new Chunk[in.getInt()];
+        for (int i = 0; i < chunks.length; i++) {
+            long firstIndex = in.getLong();
+            long minTimestamp = in.getLong();
+            long maxTimestamp = in.getLong();
+            int count = in.getInt();
+            long[] bits = new long[in.getInt()];
+            in.asLongBuffer().get(bits);
+            in.position(in.position() + bits.length * Long.BYTES);
+            chunks[i] = new Chunk(firstIndex, minTimestamp, maxTimestamp, count, bits);
+        }
+        out.chunks = chunks;
+        
+        int tierCount = in.getInt();
+        if (out.tiers.length != tierCount) {
+            out.tiers = new RollupSnapshot[tierCount];
+            for (int i = 0; i < tierCount; i++) {
+                out.tiers[i] = new RollupSnapshot();
+            }
+        }
+        for (RollupSnapshot tier : out.tiers) {
+            tier.clear();
+            tier.resolutionMs = in.getLong();
+            int buckets = in.getInt();
+            tier.ensureCapacity(buckets);
+            tier.size = buckets;
+            in.asLongBuffer().get(tier.starts, 0, buckets);
+            in.position(in.position() + buckets * Long.BYTES);
+            for (double[] column : new double[][]{tier.mins, tier.maxs, tier.sums}) {
+                in.asDoubleBuffer().get(column, 0, buckets);
+                in.position(in.position() + buckets * Double.BYTES);
+            }
+            in.asLongBuffer().get(tier.counts, 0, buckets);
+            in.position(in.position() + buckets * Long.BYTES);
+            in.asDoubleBuffer().get(tier.lasts, 0, buckets);
+            in.position(in.position() + buckets * Double.BYTES);
+            if (version == 1) {
+                // No durations were kept: treat each bucket as covered evenly by its plain mean
+                for (int i = 0; i < buckets; i++) {
+                    boolean empty = tier.counts[i] == 0;
+                    tier.weights[i] = empty ? 0 : tier.resolutionMs;
+                    tier.weightedSums[i] = empty ? 0 : tier.sums[i] / tier.counts[i] * tier.resolutionMs;
+                }
+                continue;
+            }
+            for (double[] column : new double[][]{tier.weightedSums, tier.weights}) {
+                in.asDoubleBuffer().get(column, 0, buckets);
+                in.position(in.position() + buckets * Double.BYTES);
+            }
+        }
+    }
+    
+    private static int readLength(ByteBuffer buffer, int offset, int lengthBytes) {
+        return lengthBytes == 1 ? buffer.get(offset) & 0xFF : buffer.getShort(offset) & 0xFFFF;
+    }
+    
+    private static String readString(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    public JSONObject stats() {
+        return new JSONObject()
+                .put("intervalMs", intervalMs)
+                .put("lastWrite", lastWrite)
+                .put("lastLoad", lastLoad);
+    }
+}
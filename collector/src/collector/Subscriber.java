@@ -0,0 +1,337 @@
+package collector;
+
+import org.java_websocket.WebSocket;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * One WebSocket client: the device/metric patterns it subscribed to and a
+ * bounded queue of updates waiting for its next coalesced frame. Ingest only
+ * ever enqueues; when the queue is full the oldest update is dropped, so a slow
+ * client loses data instead of slowing down ingest or growing without bound.
+ *
+ * Binary clients get BinaryFrameWriter frames instead of JSON, starting with one
+ * backfill frame of their subscribed series read straight from the store.
+ * Frames are only built on the flusher thread, which also owns the announced
+ * set and the frame writer.
+ */
+public class Subscriber {
+    private static final Pattern[][] EVERYTHING = {{Pattern.compile(".*"), Pattern.compile(".*")}};
+    
+    final WebSocket conn;
+    private final int maxQueued;
+    private final MetricStore store;
+    
+    private volatile boolean binary;
+    private volatile boolean backfillPending; // Holds live frames back until the backfill is out
+    private final BitSet announced = new BitSet();
+    private final BinaryFrameWriter frames = new BinaryFrameWriter();
+    private final SeriesSnapshot backfillScratch = new SeriesSnapshot();
+    
+    private volatile Pattern[][] patterns = EVERYTHING; // {device, metric} pairs
+    // Match results per device and metric; rebuilt whenever the subscription changes
+    private volatile Map<String, Map<String, Boolean>> matches = new ConcurrentHashMap<>();
+    
+    private final ArrayDeque<Update> queue = new ArrayDeque<>();
+    private long dropped;
+    private long framesSent;
+    private long updatesSent;
+    private long bytesSent;
+    private long skippedFlushes;
+    private long lastLagMs;
+    private long maxLagMs;
+    
+    public Subscriber(WebSocket conn, int maxQueued, MetricStore store) {
+        this.conn = conn;
+        this.maxQueued = maxQueued;
+        this.store = store;
+    }
+    
+    boolean isBinary() {
+        return binary;
+    }
+    
+    /**
+     * Replaces the subscription with a list of {"device": glob, "metric": glob}
+     * objects; a missing field matches everything. Binary subscribers must be
+     * sent a backfill next, see {@link #backfill}.
+     */
+    public void subscribe(JSONArray subscriptions, boolean binary) {
+        if (binary && store == null) {
+            throw new IllegalStateException("Binary frames need a metric store");
+        }
+        this.binary = binary;
+        this.backfillPending = binary;
+        Pattern[][] compiled = new Pattern[subscriptions.length()][];
+        for (int i = 0; i < compiled.length; i++) {
+            JSONObject subscription = subscriptions.getJSONObject(i);
+            compiled[i] = new Pattern[]{
+                    glob(subscription.optString("device", "*")),
+                    glob(subscription.optString("metric", "*"))};
+        }
+        patterns = compiled;
+        matches = new ConcurrentHashMap<>();
+    }
+    
+    private static Pattern glob(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (String part : glob.split("\\*", -1)) {
+            if (regex.length() > 0) {
+                regex.append(".*");
+            }
+            regex.append(Pattern.quote(part));
+        }
+        return Pattern.compile(regex.toString());
+    }
+    
+    boolean matches(String deviceId, String metricName) {
+        return matches.computeIfAbsent(deviceId, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(metricName, k -> {
+                    for (Pattern[] pair : patterns) {
+                        if (pair[0].matcher(deviceId).matches() && pair[1].matcher(metricName).matches()) {
+                            return true;
+                        }
+                    }
+                    return false;
+                });
+    }
+    
+    /**
+     * Queues the subscribed part of {@code packet}. The packet is pooled by the
+     * ingest path, so the matching samples are copied out.
+     */
+    void offer(MetricPacket packet, Series[] resolved, long now) {
+        Update update = null;
+        for (int i = 0; i < packet.count; i++) {
+            if (matches(packet.deviceId, packet.names[i])) {
+                // A batch packet becomes one update per collection tick
+                if (update != null && update.timestamp != packet.timestamps[i]) {
+                    enqueue(update);
+                    update = null;
+                }
+                if (update == null) {
+                    update = new Update(packet, packet.timestamps[i], now);
+                }
+                update.add(packet.names[i], packet.values[i], resolved == null ? null : resolved[i]);
+            }
+        }
+        if (update != null) {
+            enqueue(update);
+        }
+    }
+    
+    private void enqueue(Update update) {
+        synchronized (queue) {
+            if (queue.size() >= maxQueued) {
+                queue.pollFirst();
+                dropped++;
+            }
+            queue.addLast(update);
+        }
+    }
+    
+    /**
+     * Sends everything queued as one frame. Skips the flush while the socket
+     * still has unsent data from the previous frame; the queue keeps absorbing
+     * (and eventually dropping) updates until the client catches up.
+     */
+    void flush(long now) {
+        if (!conn.isOpen()) {
+            return;
+        }
+        if (backfillPending) {
+            return;
+        }
+        if (conn.hasBufferedData()) {
+            synchronized (queue) {
+                skippedFlushes++;
+            }
+            return;
+        }
+        Update[] pending;
+        synchronized (queue) {
+            if (queue.isEmpty()) {
+                return;
+            }
+            pending = queue.toArray(new Update[0]);
+            queue.clear();
+            updatesSent += pending.length;
+            framesSent++;
+            lastLagMs = now - pending[0].queuedAt;
+            maxLagMs = Math.max(maxLagMs, lastLagMs);
+        }
+        if (binary) {
+            sendBinary(pending);
+            return;
+        }
+        JSONArray batch = new JSONArray();
+        for (Update update : pending) {
+            batch.put(update.toJson());
+        }
+        String frame = new JSONObject().put("batch", batch).toString();
+        conn.send(frame);
+        synchronized (queue) {
+            bytesSent += frame.length();
+        }
+    }
+    
+    // Samples are grouped per series so timestamps and values delta-encode against their own predecessors
+    private void sendBinary(Update[] pending) {
+        Map<Series, Block> blocks = new LinkedHashMap<>();
+        for (Update update : pending) {
+            for (int i = 0; i < update.count; i++) {
+                if (update.series[i] != null) {
+                    blocks.computeIfAbsent(update.series[i], k -> new Block()).add(update.timestamp, update.values[i]);
+                }
+            }
+        }
+        frames.begin(BinaryFrameWriter.KIND_LIVE, pending[0].timestamp);
+        for (Map.Entry<Series, Block> entry : blocks.entrySet()) {
+            Series series = entry.getKey();
+            announceOnce(series);
+            Block block = entry.getValue();
+            frames.samples(series.id, block.timestamps, block.values, 0, block.size);
+        }
+        for (Update update : pending) {
+            if (update.alert) {
+                for (int i = 0; i < update.count; i++) {
+                    frames.alert(update.deviceId, update.names[i], update.timestamp, update.values[i]);
+                }
+            }
+        }
+        send(frames.finish());
+    }
+    
+    /**
+     * Sends one frame with every subscribed sample since {@code from}, read from
+     * the store, then lets live frames through. Runs on the flusher thread.
+     */
+    void backfill(long from) {
+        if (!binary || !conn.isOpen()) {
+            backfillPending = false;
+            return;
+        }
+        frames.begin(BinaryFrameWriter.KIND_BACKFILL, from);
+        for (String deviceId : store.getDevices()) {
+            for (String metricName : store.getMetricNames(deviceId)) {
+                Series series = store.findSeries(deviceId, metricName);
+                if (series == null || !matches(deviceId, metricName)) {
+                    continue;
+                }
+                series.markQueried();
+                series.read(from, Long.MAX_VALUE, backfillScratch);
+                announceOnce(series);
+                frames.samples(series.id, backfillScratch.timestamps, backfillScratch.values, 0, backfillScratch.size);
+            }
+        }
+        send(frames.finish());
+        backfillPending = false;
+    }
+    
+    private void announceOnce(Series series) {
+        if (!announced.get(series.id)) {
+            frames.announce(series);
+            announced.set(series.id);
+        }
+    }
+    
+    private void send(ByteBuffer frame) {
+        int bytes = frame.remaining();
+        conn.send(frame);
+        synchronized (queue) {
+            bytesSent += bytes;
+        }
+    }
+    
+    JSONObject stats() {
+        JSONObject stats = new JSONObject();
+        stats.put("remote", String.valueOf(conn.getRemoteSocketAddress()));
+        stats.put("subscriptions", patterns.length);
+        stats.put("format", binary ? "binary" : "json");
+        synchronized (queue) {
+            stats.put("queued", queue.size());
+            stats.put("dropped", dropped);
+            stats.put("framesSent", framesSent);
+            stats.put("updatesSent", updatesSent);
+            stats.put("bytesSent", bytesSent);
+            stats.put("skippedFlushes", skippedFlushes);
+            stats.put("lagMs", lastLagMs);
+            stats.put("maxLagMs", maxLagMs);
+        }
+        return stats;
+    }
+    
+    // The subscribed samples of one packet
+    private static final class Update {
+        final String deviceId;
+        final long timestamp;
+        final boolean alert;
+        final long queuedAt;
+        String[] names = new String[4];
+        double[] values = new double[4];
+        Series[] series = new Series[4]; // Only resolved for binary subscribers
+        int count;
+        
+        Update(MetricPacket packet, long timestamp, long queuedAt) {
+            this.deviceId = packet.deviceId;
+            this.timestamp = timestamp;
+            this.alert = packet.alert;
+            this.queuedAt = queuedAt;
+        }
+        
+        void add(String name, double value, Series resolved) {
+            if (count == names.length) {
+                names = Arrays.copyOf(names, count * 2);
+                values = Arrays.copyOf(values, count * 2);
+                series = Arrays.copyOf(series, count * 2);
+            }
+            names[count] = name;
+            values[count] = value;
+            series[count] = resolved;
+            count++;
+        }
+        
+        // Like WebSocketHandler.toJson, but with the timestamp in milliseconds
+        JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            json.put("dev", deviceId);
+            json.put("ts", timestamp);
+            JSONArray entries = new JSONArray();
+            for (int i = 0; i < count; i++) {
+                if (alert) {
+                    entries.put(new JSONObject().put("metric", names[i]).put("value", values[i]));
+                } else {
+                    entries.put(new JSONArray().put(names[i]).put(values[i]));
+                }
+            }
+            json.put(alert ? "alert" : "m", entries);
+            return json;
+        }
+    }
+    
+    // Samples of one series within a live frame
+    private static final class Block {
+        long[] timestamps = new long[8];
+        double[] values = new double[8];
+        int size;
+        
+        void add(long timestamp, double value) {
+            if (size == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            timestamps[size] = timestamp;
+            values[size] = value;
+            size++;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package collector;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thin UDP front end of a collector cluster. It reads only the device id of each
+ * datagram and forwards the datagram unchanged to the node that owns the device
+ * (see ClusterRing), so exporters need to know a single address. NACKs coming
+ * back from a node are relayed to the address that last sent datagrams for the
+ * device.
+ */
+public class UdpRouter implements Runnable {
+    private static final int MAX_DATAGRAM = 65507;
+    private static final byte[] JSON_DEVICE_KEY = "\"dev\"".getBytes(StandardCharsets.UTF_8);
+    
+    private final int port;
+    private final ClusterRing ring;
+    private final Set<SocketAddress> nodeAddresses = new HashSet<>();
+    private final Map<String, SocketAddress> exporters = new ConcurrentHashMap<>(); // Last sender per device
+    private final Map<ClusterRing.Node, LongAdder> forwarded = new IdentityHashMap<>();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder malformed = new LongAdder();
+    private final LongAdder nacksRelayed = new LongAdder();
+    private volatile DatagramChannel channel;
+    private volatile boolean running = true;
+    
+    public UdpRouter(int port, ClusterRing ring) {
+        this.port = port;
+        this.ring = ring;
+        for (ClusterRing.Node node : ring.nodes()) {
+            nodeAddresses.add(node.udpAddress);
+            forwarded.put(node, new LongAdder());
+        }
+    }
+    
+    @Override
+    public void run() {
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            this.channel = channel;
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+            channel.bind(new InetSocketAddress(port));
+            System.out.println("UDP router listening on port " + port + " for " + ring.nodes().size() + " nodes");
+            ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM);
+            
+            while (running) {
+                buffer.clear();
+                SocketAddress source = channel.receive(buffer);
+                buffer.flip();
+                received.increment();
+                String deviceId;
+                try {
+                    deviceId = deviceId(buffer);
+                } catch (RuntimeException e) {
+                    deviceId = null; // One bad datagram must not stop the router
+                }
+                if (deviceId == null) {
+                    malformed.increment();
+                    continue;
+                }
+                
+                if (nodeAddresses.contains(source)) {
+                    // Nodes only ever send NACKs this way
+                    SocketAddress exporter = exporters.get(deviceId);
+                    if (exporter != null && buffer.get(2) == WireProtocol.TYPE_NACK) {
+                        channel.send(buffer, exporter);
+                        nacksRelayed.increment();
+                    }
+                    continue;
+                }
+                if (!source.equals(exporters.get(deviceId))) {
+                    exporters.put(deviceId, source);
+                }
+                ClusterRing.Node owner = ring.owner(deviceId);
+                channel.send(buffer, owner.udpAddress);
+                forwarded.get(owner).increment();
+            }
+        } catch (ClosedChannelException e) {
+            // stop() closed the channel
+        } catch (Exception e) {
+            System.err.println("UDP router error: " + e.getMessage());
+        }
+    }
+    
+    // Binary datagrams have it at a fixed offset; JSON ones are scanned for the "dev" string
+    private static String deviceId(ByteBuffer buffer) {
+        byte[] bytes = buffer.array();
+        int limit = buffer.limit();
+        if (WireProtocol.isBinary(buffer)) {
+            int length = bytes[WireProtocol.HEADER_SIZE] & 0xFF;
+            int start = WireProtocol.HEADER_SIZE + 1;
+            return start + length <= limit ? new String(bytes, start, length, StandardCharsets.UTF_8) : null;
+        }
+        int key = indexOf(bytes, limit, JSON_DEVICE_KEY);
+        if (key < 0) {
+            return null;
+        }
+        int i = key + JSON_DEVICE_KEY.length;
+        while (i < limit && (bytes[i] == ' ' || bytes[i] == ':')) {
+            i++;
+        }
+        if (i == limit || bytes[i] != '"') {
+            return null;
+        }
+        int start = ++i;
+        while (i < limit && bytes[i] != '"') {
+            if (bytes[i] == '\\') {
+                // Escaped ids are rare enough to leave to the JSON parser
+                try {
+                    return new JSONObject(new String(bytes, 0, limit, StandardCharsets.UTF_8)).optString("dev", null);
+                } catch (JSONException e) {
+                    return null;
+                }
+            }
+            i++;
+        }
+        return i < limit ? new String(bytes, start, i - start, StandardCharsets.UTF_8) : null;
+    }
+    
+    private static int indexOf(byte[] bytes, int limit, byte[] pattern) {
+        outer:
+        for (int i = 0; i + pattern.length <= limit; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (bytes[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+    
+    public JSONObject stats() {
+        JSONObject perNode = new JSONObject();
+        for (ClusterRing.Node node : ring.nodes()) {
+            perNode.put(node.name, forwarded.get(node).sum());
+        }
+        return new JSONObject()
+                .put("received", received.sum())
+                .put("forwarded", perNode)
+                .put("malformed", malformed.sum())
+                .put("nacksRelayed", nacksRelayed.sum())
+                .put("devices", exporters.size());
+    }
+    
+    public void stop() {
+        running = false;
+        DatagramChannel current = channel;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (Exception e) {
+                System.err.println("Error closing UDP channel: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -1,22 +1,30 @@
 package collector;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.nio.charset.StandardCharsets;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
 
 public class UdpServer implements Runnable {
+    private static final int MAX_DATAGRAM = 65507; // Anything smaller silently truncates larger datagrams
+    private static final int RELEASE_CHECK_MS = 100;
+    
     private final int port;
     private final MetricStore metricStore;
     private final WebSocketHandler webSocketHandler;
+    private final PacketDecoder decoder;
+    private final LossTracker lossTracker;
+    private final Consumer<MetricPacket> ingest = this::handlePacket;
     private volatile boolean running;
     
-    public UdpServer(int port, MetricStore metricStore, WebSocketHandler webSocketHandler) {
+    public UdpServer(int port, MetricStore metricStore, WebSocketHandler webSocketHandler, PacketDecoder decoder,
+                     LossTracker lossTracker) {
         this.port = port;
         this.metricStore = metricStore;
         this.webSocketHandler = webSocketHandler;
+        this.decoder = decoder;
+        this.lossTracker = lossTracker;
         this.running = true;
     }
     
@@ -24,41 +32,45 @@ public class UdpServer implements Runnable {
     public void run() {
         try (DatagramSocket socket = new DatagramSocket(port)) {
             System.out.println("UDP server listening on port " + port);
-            byte[] buffer = new byte[4096];
+            byte[] buffer = new byte[MAX_DATAGRAM];
+            MetricPacket metricPacket = new MetricPacket();
+            lossTracker.useNackSender((nack, target) ->
+                    socket.send(new DatagramPacket(nack.array(), nack.position(), nack.remaining(), target)));
+            // Wakes up now and then, so packets held for a retransmission are not stuck behind a quiet socket
+            socket.setSoTimeout(RELEASE_CHECK_MS);
+            long releaseCheckedAt = 0;
             
             while (running) {
                 DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                socket.receive(packet);
+                boolean received = true;
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    received = false;
+                }
                 
-                String message = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
-                handleMessage(message);
+                long now = System.currentTimeMillis();
+                if (received) {
+                    ByteBuffer data = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+                    if (decoder.decode(data, metricPacket)) {
+                        metricPacket.source = packet.getSocketAddress();
+                        lossTracker.accept(metricPacket, now, ingest);
+                    }
+                }
+                // Also under steady traffic from other devices
+                if (now - releaseCheckedAt >= RELEASE_CHECK_MS) {
+                    releaseCheckedAt = now;
+                    lossTracker.releaseExpired(now, deviceId -> true, ingest);
+                }
             }
         } catch (Exception e) {
             System.err.println("UDP server error: " + e.getMessage());
         }
     }
     
-    private void handleMessage(String message) {
-        try {
-            JSONObject json = new JSONObject(message);
-            String deviceId = json.getString("dev");
-            long timestamp = json.getLong("ts") * 1000; // Convert to milliseconds
-            
-            if (json.has("m")) {
-                JSONArray metrics = json.getJSONArray("m");
-                for (int i = 0; i < metrics.length(); i++) {
-                    JSONArray metric = metrics.getJSONArray(i);
-                    String metricName = metric.getString(0);
-                    double value = metric.getDouble(1);
-                    metricStore.addMetric(deviceId, metricName, value, timestamp);
-                }
-            }
-            
-            webSocketHandler.broadcast(json);
-            
-        } catch (Exception e) {
-            System.err.println("Error processing message: " + e.getMessage());
-        }
+    private void handlePacket(MetricPacket packet) {
+        metricStore.addPacket(packet);
+        webSocketHandler.broadcast(packet);
     }
     
     public void stop() {
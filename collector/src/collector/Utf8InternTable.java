@@ -0,0 +1,113 @@
+package collector;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Maps UTF-8 byte ranges to canonical Strings without decoding them, so a
+ * device id or metric name that was seen before costs a hash and a compare.
+ *
+ * Lookups take no lock: entries are immutable and the bucket array is
+ * republished on growth, so a reader either finds a complete entry or falls
+ * through to the locked insert, which checks again. Once {@code maxEntries}
+ * names are held, new ones are decoded without being kept.
+ */
+public class Utf8InternTable {
+    private final int maxEntries;
+    private final LongAdder overflow = new LongAdder();
+    private volatile Entry[] buckets = new Entry[1024];
+    private int size;
+    
+    public Utf8InternTable(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+    
+    // Hash of the bytes as computed by get(), for callers that hash while scanning
+    public static int hash(int hash, byte b) {
+        return 31 * hash + b;
+    }
+    
+    public String get(byte[] bytes, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            hash = hash(hash, bytes[i]);
+        }
+        return get(bytes, offset, length, hash);
+    }
+    
+    public String get(byte[] bytes, int offset, int length, int hash) {
+        Entry[] current = buckets;
+        for (Entry e = current[spread(hash) & (current.length - 1)]; e != null; e = e.next) {
+            if (e.hash == hash && e.matches(bytes, offset, length)) {
+                return e.value;
+            }
+        }
+        return insert(bytes, offset, length, hash);
+    }
+    
+    private synchronized String insert(byte[] bytes, int offset, int length, int hash) {
+        Entry[] current = buckets;
+        int slot = spread(hash) & (current.length - 1);
+        for (Entry e = current[slot]; e != null; e = e.next) {
+            if (e.hash == hash && e.matches(bytes, offset, length)) {
+                return e.value;
+            }
+        }
+        String value = new String(bytes, offset, length, StandardCharsets.UTF_8);
+        if (size >= maxEntries) {
+            overflow.increment();
+            return value;
+        }
+        byte[] key = new byte[length];
+        System.arraycopy(bytes, offset, key, 0, length);
+        current[slot] = new Entry(key, hash, value, current[slot]);
+        size++;
+        if (size > current.length * 3 / 4) {
+            grow(current);
+        }
+        return value;
+    }
+    
+    private void grow(Entry[] current) {
+        Entry[] grown = new Entry[current.length * 2];
+        for (Entry head : current) {
+            for (Entry e = head; e != null; e = e.next) {
+                int slot = spread(e.hash) & (grown.length - 1);
+                grown[slot] = new Entry(e.bytes, e.hash, e.value, grown[slot]);
+            }
+        }
+        buckets = grown;
+    }
+    
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+    
+    public synchronized int size() {
+        return size;
+    }
+    
+    // Names decoded without being kept because the table was full
+    public long overflow() {
+        return overflow.sum();
+    }
+    
+    private static final class Entry {
+        final byte[] bytes;
+        final int hash;
+        final String value;
+        final Entry next;
+        
+        Entry(byte[] bytes, int hash, String value, Entry next) {
+            this.bytes = bytes;
+            this.hash = hash;
+            this.value = value;
+            this.next = next;
+        }
+        
+        boolean matches(byte[] other, int offset, int length) {
+            return Arrays.equals(bytes, 0, bytes.length, other, offset, offset + length);
+        }
+    }
+}
@@ -1,37 +1,131 @@
 package collector;
 
 import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.enums.Opcode;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.java_websocket.framing.Framedata;
 import org.java_websocket.handshake.ClientHandshake;
 import org.java_websocket.server.WebSocketServer;
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.net.InetSocketAddress;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
+/**
+ * Pushes ingested samples to dashboard clients. Ingest threads only copy the
+ * subscribed samples into each client's bounded queue; a flusher thread sends
+ * each client one coalesced {"batch": [...]} frame every flush interval.
+ *
+ * Clients choose what they receive by sending
+ * {"subscribe": [{"device": "exporter1", "metric": "cpu_*"}, ...]}; until then
+ * they get every series. Adding "format": "binary" (and optionally
+ * "backfillMs") switches the client to BinaryFrameWriter frames, preceded by a
+ * backfill of its series from the store.
+ */
 public class WebSocketHandler extends WebSocketServer {
-    private final Set<WebSocket> connections;
+    private static final long DEFAULT_FLUSH_INTERVAL_MS = 250;
+    private static final int DEFAULT_CLIENT_QUEUE = 1024;
+    
+    private final Map<WebSocket, Subscriber> connections = new ConcurrentHashMap<>();
+    private final CompressionStats compressionStats;
+    private final long flushIntervalMs;
+    private final int clientQueue;
+    private volatile MetricStore store;
+    private volatile int binaryClients;
+    private final Queue<JSONObject> alertEvents = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "websocket-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
     
     public WebSocketHandler(int port) {
-        super(new InetSocketAddress(port));
-        this.connections = new HashSet<>();
+        this(port, false, Deflater.DEFAULT_COMPRESSION, 0);
+    }
+    
+    // With deflate enabled, clients that offer permessage-deflate get frames above threshold bytes compressed
+    public WebSocketHandler(int port, boolean deflate, int level, int threshold) {
+        this(port, deflate, level, threshold, DEFAULT_FLUSH_INTERVAL_MS, DEFAULT_CLIENT_QUEUE);
+    }
+    
+    // Each client gets at most one frame per flushIntervalMs and keeps at most clientQueue pending packets
+    public WebSocketHandler(int port, boolean deflate, int level, int threshold, long flushIntervalMs, int clientQueue) {
+        this(port, new CompressionStats(), deflate, level, threshold, flushIntervalMs, clientQueue);
+    }
+    
+    private WebSocketHandler(int port, CompressionStats compressionStats, boolean deflate, int level, int threshold,
+                             long flushIntervalMs, int clientQueue) {
+        super(new InetSocketAddress(port), drafts(compressionStats, deflate, level, threshold));
+        this.compressionStats = compressionStats;
+        this.flushIntervalMs = flushIntervalMs;
+        this.clientQueue = clientQueue;
+    }
+    
+    private static List<Draft> drafts(CompressionStats stats, boolean deflate, int level, int threshold) {
+        if (!deflate) {
+            return Collections.singletonList(new Draft_6455());
+        }
+        return Collections.singletonList(new Draft_6455(new MeasuredDeflateExtension(level, threshold, stats)));
+    }
+    
+    // Needed for binary clients: series ids and backfill come from the store
+    public void useMetricStore(MetricStore store) {
+        this.store = store;
+    }
+    
+    public CompressionStats compressionStats() {
+        return compressionStats;
     }
     
     @Override
     public void onOpen(WebSocket conn, ClientHandshake handshake) {
-        connections.add(conn);
+        connections.put(conn, new Subscriber(conn, clientQueue, store));
         System.out.println("New WebSocket connection from " + conn.getRemoteSocketAddress());
     }
     
     @Override
     public void onClose(WebSocket conn, int code, String reason, boolean remote) {
         connections.remove(conn);
+        countBinaryClients();
         System.out.println("WebSocket connection closed: " + reason);
     }
     
     @Override
     public void onMessage(WebSocket conn, String message) {
-        // We don't expect any messages from clients
+        Subscriber subscriber = connections.get(conn);
+        if (subscriber == null) {
+            return;
+        }
+        try {
+            JSONObject request = new JSONObject(message);
+            if (request.has("subscribe")) {
+                boolean binary = "binary".equals(request.optString("format", "json"));
+                subscriber.subscribe(request.getJSONArray("subscribe"), binary);
+                countBinaryClients();
+                if (binary) {
+                    long from = request.has("backfillMs")
+                            ? System.currentTimeMillis() - request.getLong("backfillMs")
+                            : store.defaultQueryStart();
+                    flusher.execute(() -> subscriber.backfill(from)); // Ordered before the next flush
+                }
+            }
+        } catch (JSONException | IllegalStateException e) {
+            System.err.println("Invalid WebSocket message from " + conn.getRemoteSocketAddress() + ": " + e.getMessage());
+        }
     }
     
     @Override
@@ -39,18 +133,138 @@ public class WebSocketHandler extends WebSocketServer {
         System.err.println("WebSocket error: " + ex.getMessage());
         if (conn != null) {
             connections.remove(conn);
+            countBinaryClients();
         }
     }
     
     @Override
     public void onStart() {
         System.out.println("WebSocket server started on port " + getPort());
+        flusher.scheduleAtFixedRate(this::flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
     }
     
-    public void broadcast(JSONObject data) {
-        String message = data.toString();
-        for (WebSocket conn : connections) {
-            conn.send(message);
+    @Override
+    public void stop() throws InterruptedException {
+        flusher.shutdown();
+        super.stop();
+    }
+    
+    // Called on the ingest path: never touches a socket
+    public void broadcast(MetricPacket packet) {
+        if (connections.isEmpty() || packet.interval) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Series[] resolved = null;
+        if (binaryClients > 0 && !packet.alert && store != null) {
+            // Resolved once per packet for all binary clients; ingest created the series already
+            resolved = new Series[packet.count];
+            for (int i = 0; i < packet.count; i++) {
+                resolved[i] = store.findSeries(packet.deviceId, packet.names[i]);
+            }
+        }
+        for (Subscriber subscriber : connections.values()) {
+            subscriber.offer(packet, subscriber.isBinary() ? resolved : null, now);
+        }
+    }
+    
+    private void countBinaryClients() {
+        int binary = 0;
+        for (Subscriber subscriber : connections.values()) {
+            if (subscriber.isBinary()) {
+                binary++;
+            }
+        }
+        binaryClients = binary;
+    }
+    
+    // Alert transitions go to every client as {"alerts": [...]} text frames on the next flush
+    public void broadcastAlert(JSONObject event) {
+        if (!connections.isEmpty()) {
+            alertEvents.add(event);
+        }
+    }
+    
+    private void flush() {
+        long now = System.currentTimeMillis();
+        JSONArray alerts = new JSONArray();
+        for (JSONObject event; (event = alertEvents.poll()) != null; ) {
+            alerts.put(event);
+        }
+        if (!alerts.isEmpty()) {
+            broadcast(new JSONObject().put("alerts", alerts).toString());
+        }
+        for (Subscriber subscriber : connections.values()) {
+            try {
+                subscriber.flush(now);
+            } catch (RuntimeException e) {
+                System.err.println("Error sending WebSocket frame: " + e.getMessage());
+            }
+        }
+    }
+    
+    public JSONObject stats() {
+        JSONArray clients = new JSONArray();
+        for (Subscriber subscriber : connections.values()) {
+            clients.put(subscriber.stats());
+        }
+        return new JSONObject()
+                .put("flushIntervalMs", flushIntervalMs)
+                .put("clientQueue", clientQueue)
+                .put("clients", clients);
+    }
+    
+    // Same shape the JSON exporters send
+    static JSONObject toJson(MetricPacket packet) {
+        JSONObject json = new JSONObject();
+        json.put("dev", packet.deviceId);
+        json.put("ts", packet.timestamp / 1000);
+        JSONArray entries = new JSONArray();
+        for (int i = 0; i < packet.count; i++) {
+            if (packet.alert) {
+                JSONObject alert = new JSONObject();
+                alert.put("metric", packet.names[i]);
+                alert.put("value", packet.values[i]);
+                entries.put(alert);
+            } else {
+                entries.put(new JSONArray().put(packet.names[i]).put(packet.values[i]));
+            }
+        }
+        json.put(packet.alert ? "alert" : "m", entries);
+        return json;
+    }
+    
+    // permessage-deflate with a configurable level that records ratio and compression time
+    private static class MeasuredDeflateExtension extends PerMessageDeflateExtension {
+        private final int level;
+        private final int threshold;
+        private final CompressionStats stats;
+        
+        MeasuredDeflateExtension(int level, int threshold, CompressionStats stats) {
+            this.level = level;
+            this.threshold = threshold;
+            this.stats = stats;
+            setDeflater(new Deflater(level, true));
+            setThreshold(threshold);
+        }
+        
+        @Override
+        public void encodeFrame(Framedata frame) {
+            int before = frame.getPayloadData().remaining();
+            long start = System.nanoTime();
+            super.encodeFrame(frame);
+            if (frame.isRSV1()) {
+                stats.recordCompressed(before, frame.getPayloadData().remaining(), System.nanoTime() - start);
+            } else if (frame.getOpcode() == Opcode.TEXT
+                    || frame.getOpcode() == Opcode.BINARY) {
+                stats.recordUncompressed();
+            }
+        }
+        
+        // The draft copies its extensions for every connection
+        @Override
+        public IExtension copyInstance() {
+            return new MeasuredDeflateExtension(level, threshold, stats);
         }
     }
 }
@@ -0,0 +1,195 @@
+package collector;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary datagram format shared with exporter.WireProtocol.
+ *
+ * <pre>
+ * offset 0   u8      magic (0xB7, never '{' so JSON senders are still recognised)
+ *        1   u8      version
+ *        2   u8      type (1 = metrics, 2 = alert, 3 = batch, 4 = interval: values are sampling intervals in ms,
+ *                    5 = nack)
+ *        3   u8      flags (bit 0: sequenced)
+ *        4   i64     timestamp in milliseconds
+ *        12  u8      device id length, followed by UTF-8 bytes
+ *            [u32 epoch, u32 sequence number]  only if sequenced
+ *            varint  sample count
+ *            sample* varint key = seriesId &lt;&lt; 1 | hasName,
+ *                    [u8 name length + UTF-8 name], f64 value
+ *
+ * A batch packs several collection ticks; its timestamp is the base and the
+ * body after the device id is
+ *            u16     tick count
+ *            tick*   varint offset from the base in milliseconds, varint sample count, sample*
+ * </pre>
+ *
+ * A NACK goes from the collector back to the exporter, after the device id:
+ *            u32     epoch
+ *            varint  range count
+ *            range*  u32 first missing sequence number, varint length
+ *
+ * The epoch is picked at random by each exporter run and the sequence number
+ * counts its datagrams, retransmissions excepted, so the collector can tell
+ * loss, reordering and duplicates apart (see LossTracker).
+ *
+ * Series names are only sent when the exporter (re)announces its dictionary,
+ * so the steady-state cost per sample is one or two varint bytes plus the double.
+ */
+public final class WireProtocol {
+    public static final byte MAGIC = (byte) 0xB7;
+    public static final byte VERSION = 1;
+    public static final byte TYPE_METRICS = 1;
+    public static final byte TYPE_ALERT = 2;
+    public static final byte TYPE_BATCH = 3;
+    public static final byte TYPE_INTERVAL = 4;
+    public static final byte TYPE_NACK = 5;
+    public static final byte FLAG_SEQUENCED = 1;
+    public static final int HEADER_SIZE = 12;
+    static final int MAX_STRING_BYTES = 255;
+    
+    private WireProtocol() {
+    }
+    
+    public static boolean isBinary(ByteBuffer buf) {
+        return buf.remaining() >= HEADER_SIZE && buf.get(buf.position()) == MAGIC;
+    }
+    
+    /**
+     * Decodes one binary datagram into {@code out}. Names are resolved through
+     * {@code dictionary}, which is updated with any names carried by the packet.
+     * Samples for ids the collector has not been told about yet are skipped and
+     * counted in the return value.
+     */
+    public static int decode(ByteBuffer buf, MetricPacket out, SeriesDictionary dictionary) {
+        buf.get(); // magic
+        byte version = buf.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported protocol version " + version);
+        }
+        byte type = buf.get();
+        byte flags = buf.get();
+        if (type == TYPE_NACK) {
+            throw new IllegalArgumentException("NACK sent to the collector");
+        }
+        out.alert = type == TYPE_ALERT;
+        out.interval = type == TYPE_INTERVAL;
+        out.timestamp = buf.getLong();
+        out.deviceId = readString(buf);
+        if ((flags & FLAG_SEQUENCED) != 0) {
+            out.epoch = buf.getInt();
+            out.sequence = buf.getInt() & 0xFFFFFFFFL;
+        }
+        
+        SeriesDictionary.Names names = dictionary.forDevice(out.deviceId);
+        if (type != TYPE_BATCH) {
+            return decodeSamples(buf, out, names, out.timestamp);
+        }
+        int unknown = 0;
+        int ticks = buf.getShort() & 0xFFFF;
+        for (int t = 0; t < ticks; t++) {
+            long tickTimestamp = out.timestamp + readVarint(buf);
+            unknown += decodeSamples(buf, out, names, tickTimestamp);
+        }
+        return unknown;
+    }
+    
+    private static int decodeSamples(ByteBuffer buf, MetricPacket out, SeriesDictionary.Names names, long timestamp) {
+        int unknown = 0;
+        int count = readVarint(buf);
+        for (int i = 0; i < count; i++) {
+            int key = readVarint(buf);
+            int seriesId = key >>> 1;
+            String name = (key & 1) != 0 ? names.define(seriesId, readString(buf)) : names.get(seriesId);
+            double value = buf.getDouble();
+            if (name == null) {
+                unknown++;
+            } else {
+                out.add(name, value, timestamp);
+            }
+        }
+        return unknown;
+    }
+    
+    /**
+     * Encodes a packet using the sample index as series id. Used by the benchmark
+     * and by components that forward packets to another collector.
+     */
+    public static void encode(MetricPacket packet, ByteBuffer out, boolean announceNames) {
+        out.put(MAGIC).put(VERSION).put(packet.alert ? TYPE_ALERT : packet.interval ? TYPE_INTERVAL : TYPE_METRICS).put((byte) 0);
+        out.putLong(packet.timestamp);
+        writeString(out, packet.deviceId);
+        writeVarint(out, packet.count);
+        for (int i = 0; i < packet.count; i++) {
+            if (announceNames) {
+                writeVarint(out, (i << 1) | 1);
+                writeString(out, packet.names[i]);
+            } else {
+                writeVarint(out, i << 1);
+            }
+            out.putDouble(packet.values[i]);
+        }
+    }
+    
+    /**
+     * Encodes a NACK for {@code length} datagrams of the given exporter run,
+     * starting at sequence number {@code first}.
+     */
+    public static void encodeNack(String deviceId, int epoch, long first, int length, ByteBuffer out) {
+        out.put(MAGIC).put(VERSION).put(TYPE_NACK).put((byte) 0);
+        out.putLong(System.currentTimeMillis());
+        writeString(out, deviceId);
+        out.putInt(epoch);
+        writeVarint(out, 1);
+        out.putInt((int) first);
+        writeVarint(out, length);
+    }
+    
+    static String readString(ByteBuffer buf) {
+        int len = buf.get() & 0xFF;
+        String s;
+        if (buf.hasArray()) {
+            s = new String(buf.array(), buf.arrayOffset() + buf.position(), len, StandardCharsets.UTF_8);
+            buf.position(buf.position() + len);
+        } else {
+            byte[] bytes = new byte[len];
+            buf.get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+    
+    // Whether writeString can carry the name, whose length goes in one byte
+    static boolean fits(String s) {
+        return s.length() <= MAX_STRING_BYTES / 3 || s.getBytes(StandardCharsets.UTF_8).length <= MAX_STRING_BYTES;
+    }
+    
+    static void writeString(ByteBuffer out, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING_BYTES) {
+            throw new IllegalArgumentException("Name too long: " + s);
+        }
+        out.put((byte) bytes.length).put(bytes);
+    }
+    
+    static int readVarint(ByteBuffer buf) {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buf.get();
+            result |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+    
+    static void writeVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+}
@@ -10,17 +10,83 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 public class WorkingHttpServer {
     private final int port;
     private final MetricStore metricStore;
+    private final int compressionLevel;
+    private final int compressionThreshold;
+    private final CompressionStats compressionStats = new CompressionStats();
+    private final Map<String, Supplier<JSONObject>> statsSources = new LinkedHashMap<>();
+    private final Map<String, Supplier<JSONObject>> endpoints = new LinkedHashMap<>();
+    private QueryExecutor queryExecutor;
+    private ClusterClient cluster;
     private HttpServer server;
     
     public WorkingHttpServer(int port, MetricStore metricStore) {
+        this(port, metricStore, 6, 1024);
+    }
+    
+    // Responses larger than compressionThreshold bytes are gzip/deflate encoded when the client accepts it
+    public WorkingHttpServer(int port, MetricStore metricStore, int compressionLevel, int compressionThreshold) {
         this.port = port;
         this.metricStore = metricStore;
+        this.compressionLevel = compressionLevel;
+        this.compressionThreshold = compressionThreshold;
+    }
+    
+    public CompressionStats compressionStats() {
+        return compressionStats;
+    }
+    
+    // Components register a section of /api/stats before start() is called
+    public void registerStats(String name, Supplier<JSONObject> source) {
+        statsSources.put(name, source);
+    }
+    
+    // Components add read-only JSON endpoints (e.g. /api/alerts) before start() is called
+    public void registerEndpoint(String path, Supplier<JSONObject> source) {
+        endpoints.put(path, source);
+    }
+    
+    // Runs the data endpoints through the executor instead of on the dispatcher thread.
+    // / and /api/stats stay on the dispatcher so they answer even when queries saturate.
+    public void useQueryExecutor(QueryExecutor queryExecutor) {
+        this.queryExecutor = queryExecutor;
+    }
+    
+    // In a cluster, device requests go to the device's owner and store-wide ones to every node
+    public void useCluster(ClusterClient cluster) {
+        this.cluster = cluster;
+    }
+    
+    // False for requests from another node, which only want this node's share
+    private boolean fansOut(HttpExchange exchange) {
+        return cluster != null && exchange.getRequestHeaders().getFirst(ClusterClient.LOCAL_HEADER) == null;
+    }
+    
+    private Map<ClusterRing.Node, CompletableFuture<ClusterClient.Response>> fanOut(HttpExchange exchange) {
+        if (!fansOut(exchange)) {
+            return Collections.emptyMap();
+        }
+        return cluster.fanOut(exchange.getRequestMethod(), pathAndQuery(exchange));
+    }
+    
+    private static String pathAndQuery(HttpExchange exchange) {
+        String query = exchange.getRequestURI().getRawQuery();
+        return exchange.getRequestURI().getRawPath() + (query == null ? "" : "?" + query);
+    }
+    
+    private HttpHandler query(HttpHandler handler) {
+        return queryExecutor == null ? handler : queryExecutor.wrap(handler);
     }
     
     public void start() throws IOException {
@@ -29,9 +95,15 @@ public class WorkingHttpServer {
             
             // Create contexts
             server.createContext("/", new RootHandler());
-            server.createContext("/api/metrics", new MetricsHandler());
-            server.createContext("/api/devices", new DevicesHandler()); 
-            server.createContext("/api/device", new DeviceHandler());
+            server.createContext("/api/metrics", query(new MetricsHandler()));
+            server.createContext("/api/devices", query(new DevicesHandler()));
+            server.createContext("/api/device", query(new DeviceHandler()));
+            server.createContext("/api/series", query(new SelectorHandler(false)));
+            server.createContext("/api/query", query(new SelectorHandler(true)));
+            server.createContext("/api/stats", new StatsHandler());
+            for (Map.Entry<String, Supplier<JSONObject>> endpoint : endpoints.entrySet()) {
+                server.createContext(endpoint.getKey(), new EndpointHandler(endpoint.getValue()));
+            }
             
             server.setExecutor(null);
             server.start();
@@ -39,9 +111,15 @@ public class WorkingHttpServer {
             System.out.println("HTTP API Server started successfully on port " + port);
             System.out.println("Available endpoints:");
             System.out.println("  GET    http://localhost:" + port + "/");
-            System.out.println("  GET    http://localhost:" + port + "/api/metrics");
+            System.out.println("  GET    http://localhost:" + port + "/api/metrics?from=&to=&step=&agg=&metric=");
             System.out.println("  GET    http://localhost:" + port + "/api/devices");
-            System.out.println("  GET    http://localhost:" + port + "/api/device/{deviceId}");
+            System.out.println("  GET    http://localhost:" + port + "/api/device/{deviceId}?from=&to=&step=&agg=&metric=");
+            System.out.println("  GET    http://localhost:" + port + "/api/series?match=");
+            System.out.println("  GET    http://localhost:" + port + "/api/query?match=&from=&to=&step=&agg=");
+            System.out.println("  GET    http://localhost:" + port + "/api/stats");
+            for (String path : endpoints.keySet()) {
+                System.out.println("  GET    http://localhost:" + port + path);
+            }
             System.out.println("  DELETE http://localhost:" + port + "/api/metrics");
             System.out.println("  DELETE http://localhost:" + port + "/api/device/{deviceId}");
             
@@ -55,6 +133,9 @@ public class WorkingHttpServer {
     public void stop() {
         if (server != null) {
             server.stop(0);
+            if (queryExecutor != null) {
+                queryExecutor.shutdown();
+            }
             System.out.println("HTTP API server stopped");
         }
     }
@@ -78,7 +159,8 @@ public class WorkingHttpServer {
                 response.put("status", "running");
                 response.put("message", "Metric Collector API");
                 response.put("endpoints", new String[]{
-                    "GET /api/metrics", "GET /api/devices", "GET /api/device/{deviceId}",
+                    "GET /api/metrics", "GET /api/devices", "GET /api/device/{deviceId}", "GET /api/series",
+                    "GET /api/query", "GET /api/stats",
                     "DELETE /api/metrics", "DELETE /api/device/{deviceId}"
                 });
                 sendJsonResponse(exchange, response);
@@ -104,52 +186,73 @@ public class WorkingHttpServer {
             
             if ("GET".equals(method)) {
                 try {
-                    JSONObject response = new JSONObject();
-                    JSONObject devicesData = new JSONObject();
+                    SeriesQuery query = parseQuery(exchange);
+                    if (query == null) {
+                        return;
+                    }
                     
+                    // The other nodes work on their share while this one streams its own
+                    Map<ClusterRing.Node, CompletableFuture<ClusterClient.Response>> remote = fanOut(exchange);
                     Set<String> devices = metricStore.getDevices();
                     System.out.println("Found " + devices.size() + " devices in store");
+                    SeriesSnapshot snapshot = new SeriesSnapshot();
                     
-                    for (String deviceId : devices) {
-                        JSONObject deviceData = new JSONObject();
-                        Set<String> metricNames = metricStore.getMetricNames(deviceId);
-                        
-                        for (String metricName : metricNames) {
-                            List<MetricStore.MetricPoint> points = metricStore.getMetrics(deviceId, metricName);
-                            JSONArray pointsArray = new JSONArray();
-                            
-                            for (MetricStore.MetricPoint point : points) {
-                                JSONObject pointData = new JSONObject();
-                                pointData.put("timestamp", point.timestamp);
-                                pointData.put("value", point.value);
-                                pointsArray.put(pointData);
+                    streamJsonResponse(exchange, json -> {
+                        json.beginObject().name("devices").beginObject();
+                        for (String deviceId : devices) {
+                            json.name(deviceId);
+                            writeDeviceMetrics(json, deviceId, query, snapshot);
+                        }
+                        int deviceCount = devices.size();
+                        JSONArray failedNodes = new JSONArray();
+                        Set<String> written = remote.isEmpty() ? devices : new HashSet<>(devices);
+                        for (Map.Entry<ClusterRing.Node, CompletableFuture<ClusterClient.Response>> entry : remote.entrySet()) {
+                            JsonSpans remoteDevices = remoteSpans(entry.getKey(), entry.getValue(), "devices", failedNodes);
+                            for (int i = 0; remoteDevices != null && i < remoteDevices.size(); i++) {
+                                // A device routed to two nodes at some point keeps the first answer
+                                if (written.add(remoteDevices.name(i))) {
+                                    json.name(remoteDevices.name(i));
+                                    remoteDevices.write(i, json);
+                                    deviceCount++;
+                                }
                             }
-                            
-                            deviceData.put(metricName, pointsArray);
                         }
-                        
-                        devicesData.put(deviceId, deviceData);
-                    }
-                    
-                    response.put("devices", devicesData);
-                    response.put("timestamp", System.currentTimeMillis());
-                    response.put("deviceCount", devices.size());
-                    
-                    sendJsonResponse(exchange, response);
+                        json.endObject();
+                        json.name("timestamp").value(System.currentTimeMillis());
+                        json.name("deviceCount").value(deviceCount);
+                        if (!remote.isEmpty()) {
+                            json.name("failedNodes").beginArray();
+                            for (int i = 0; i < failedNodes.length(); i++) {
+                                json.value(failedNodes.getString(i));
+                            }
+                            json.endArray();
+                        }
+                        json.endObject();
+                    });
                     
+                } catch (QueryExecutor.DeadlineExceededException e) {
+                    sendErrorOrAbort(exchange, e.getMessage(), 503);
                 } catch (Exception e) {
                     System.err.println("Error in metrics handler: " + e.getMessage());
                     e.printStackTrace();
-                    sendError(exchange, "Internal server error", 500);
+                    sendErrorOrAbort(exchange, "Internal server error", 500);
                 }
             } else if ("DELETE".equals(method)) {
                 try {
                     // Clear all metrics for all devices
+                    Map<ClusterRing.Node, CompletableFuture<ClusterClient.Response>> remote = fanOut(exchange);
                     clearAllMetrics();
                     
                     JSONObject response = new JSONObject();
                     response.put("message", "All metrics history cleared");
                     response.put("timestamp", System.currentTimeMillis());
+                    if (!remote.isEmpty()) {
+                        JSONArray failedNodes = new JSONArray();
+                        for (Map.Entry<ClusterRing.Node, CompletableFuture<ClusterClient.Response>> entry : remote.entrySet()) {
+                            remoteJson(entry.getKey(), entry.getValue(), failedNodes);
+                        }
+                        response.put("failedNodes", failedNodes);
+                    }
                     
                     sendJsonResponse(exchange, response);
                     System.out.println("All metrics history cleared via API");
@@ -184,19 +287,37 @@ public class WorkingHttpServer {
             }
             
             try {
+                Map<ClusterRing.Node, CompletableFuture<ClusterClient.Response>> remote = fanOut(exchange);
                 JSONObject response = new JSONObject();
                 JSONArray devicesArray = new JSONArray();
                 
-                Set<String> devices = metricStore.getDevices();
+                Set<String> devices = new HashSet<>(metricStore.getDevices());
                 for (String deviceId : devices) {
                     JSONObject deviceInfo = new JSONObject();
                     deviceInfo.put("deviceId", deviceId);
                     deviceInfo.put("metrics", new JSONArray(metricStore.getMetricNames(deviceId)));
                     devicesArray.put(deviceInfo);
                 }
+                JSONArray failedNodes = new JSONArray();
+                for (Map.Entry<ClusterRing.Node, CompletableFuture<ClusterClient.Response>> entry : remote.entrySet()) {
+                    JSONObject body = remoteJson(entry.getKey(), entry.getValue(), failedNodes);
+                    if (body == null) {
+                        continue;
+                    }
+                    JSONArray remoteDevices = body.getJSONArray("devices");
+                    for (int i = 0; i < remoteDevices.length(); i++) {
+                        JSONObject deviceInfo = remoteDevices.getJSONObject(i);
+                        if (devices.add(deviceInfo.getString("deviceId"))) {
+                            devicesArray.put(deviceInfo);
+                        }
+                    }
+                }
                 
                 response.put("devices", devicesArray);
                 response.put("count", devices.size());
+                if (!remote.isEmpty()) {
+                    response.put("failedNodes", failedNodes);
+                }
                 
                 sendJsonResponse(exchange, response);
                 
@@ -208,6 +329,102 @@ public class WorkingHttpServer {
         }
     }
     
+    // Series picked by a label selector: /api/series lists them, /api/query adds their points
+    private class SelectorHandler implements HttpHandler {
+        private final boolean withPoints;
+        
+        SelectorHandler(boolean withPoints) {
+            this.withPoints = withPoints;
+        }
+        
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            addCorsHeaders(exchange);
+            
+            if ("OPTIONS".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendError(exchange, "Method not allowed", 405);
+                return;
+            }
+            
+            SeriesQuery query = parseQuery(exchange);
+            if (query == null) {
+                return;
+            }
+            if (query.match == null) {
+                sendError(exchange, "Missing match=<selector>, e.g. cpu_usage{region=\"eu\"}", 400);
+                return;
+            }
+            List<Series> selected;
+            try {
+                selected = metricStore.select(query.match);
+            } catch (IllegalArgumentException e) {
+                sendError(exchange, "Invalid selector: " + e.getMessage(), 400);
+                return;
+            }
+            
+            try {
+                Map<ClusterRing.Node, CompletableFuture<ClusterClient.Response>> remote = fanOut(exchange);
+                SeriesSnapshot snapshot = new SeriesSnapshot();
+                streamJsonResponse(exchange, json -> {
+                    json.beginObject().name("series").beginArray();
+                    int count = 0;
+                    for (Series series : selected) {
+                        QueryExecutor.checkDeadline();
+                        if (withPoints && !query.read(metricStore, series.deviceId, series.metricName, snapshot)) {
+                            continue;
+                        }
+                        // Ids are per collector; in a cluster the same id shows up once per node
+                        json.beginObject();
+                        json.name("id").value(series.id);
+                        json.name("device").value(series.deviceId);
+                        json.name("metric").value(series.name);
+                        json.name("labels").beginObject();
+                        for (int i = 0; i < series.labels.size(); i++) {
+                            json.name(series.labels.name(i)).value(series.labels.value(i));
+                        }
+                        json.endObject();
+                        if (withPoints) {
+                            json.name("points");
+                            writePoints(json, snapshot, query.compact);
+                        }
+                        json.endObject();
+                        count++;
+                    }
+                    JSONArray failedNodes = new JSONArray();
+                    for (Map.Entry<ClusterRing.Node, CompletableFuture<ClusterClient.Response>> entry : remote.entrySet()) {
+                        JsonSpans remoteSeries = remoteSpans(entry.getKey(), entry.getValue(), "series", failedNodes);
+                        for (int i = 0; remoteSeries != null && i < remoteSeries.size(); i++) {
+                            remoteSeries.write(i, json);
+                            count++;
+                        }
+                    }
+                    json.endArray();
+                    json.name("count").value(count);
+                    json.name("timestamp").value(System.currentTimeMillis());
+                    if (!remote.isEmpty()) {
+                        json.name("failedNodes").beginArray();
+                        for (int i = 0; i < failedNodes.length(); i++) {
+                            json.value(failedNodes.getString(i));
+                        }
+                        json.endArray();
+                    }
+                    json.endObject();
+                });
+            } catch (QueryExecutor.DeadlineExceededException e) {
+                sendErrorOrAbort(exchange, e.getMessage(), 503);
+            } catch (Exception e) {
+                System.err.println("Error in selector handler: " + e.getMessage());
+                e.printStackTrace();
+                sendErrorOrAbort(exchange, "Internal server error", 500);
+            }
+        }
+    }
+    
     // Device-specific handler
     private class DeviceHandler implements HttpHandler {
         @Override
@@ -235,6 +452,11 @@ public class WorkingHttpServer {
                 return;
             }
             
+            if (fansOut(exchange) && !cluster.ring().owns(deviceId)) {
+                forwardToOwner(exchange, deviceId);
+                return;
+            }
+            
             if ("GET".equals(method)) {
                 try {
                     Set<String> devices = metricStore.getDevices();
@@ -243,34 +465,27 @@ public class WorkingHttpServer {
                         return;
                     }
                     
-                    JSONObject response = new JSONObject();
-                    JSONObject deviceData = new JSONObject();
-                    Set<String> metricNames = metricStore.getMetricNames(deviceId);
-                    
-                    for (String metricName : metricNames) {
-                        List<MetricStore.MetricPoint> points = metricStore.getMetrics(deviceId, metricName);
-                        JSONArray pointsArray = new JSONArray();
-                        
-                        for (MetricStore.MetricPoint point : points) {
-                            JSONObject pointData = new JSONObject();
-                            pointData.put("timestamp", point.timestamp);
-                            pointData.put("value", point.value);
-                            pointsArray.put(pointData);
-                        }
-                        
-                        deviceData.put(metricName, pointsArray);
+                    SeriesQuery query = parseQuery(exchange);
+                    if (query == null) {
+                        return;
                     }
                     
-                    response.put("deviceId", deviceId);
-                    response.put("metrics", deviceData);
-                    response.put("timestamp", System.currentTimeMillis());
-                    
-                    sendJsonResponse(exchange, response);
+                    SeriesSnapshot snapshot = new SeriesSnapshot();
+                    streamJsonResponse(exchange, json -> {
+                        json.beginObject();
+                        json.name("deviceId").value(deviceId);
+                        json.name("metrics");
+                        writeDeviceMetrics(json, deviceId, query, snapshot);
+                        json.name("timestamp").value(System.currentTimeMillis());
+                        json.endObject();
+                    });
                     
+                } catch (QueryExecutor.DeadlineExceededException e) {
+                    sendErrorOrAbort(exchange, e.getMessage(), 503);
                 } catch (Exception e) {
                     System.err.println("Error in device handler: " + e.getMessage());
                     e.printStackTrace();
-                    sendError(exchange, "Internal server error", 500);
+                    sendErrorOrAbort(exchange, "Internal server error", 500);
                 }
             } else if ("DELETE".equals(method)) {
                 try {
@@ -299,6 +514,185 @@ public class WorkingHttpServer {
         }
     }
     
+    // Internal counters of the collector (ingest formats, queues, ...)
+    private class StatsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            addCorsHeaders(exchange);
+            
+            if ("OPTIONS".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendError(exchange, "Method not allowed", 405);
+                return;
+            }
+            
+            try {
+                JSONObject response = new JSONObject();
+                for (Map.Entry<String, Supplier<JSONObject>> source : statsSources.entrySet()) {
+                    response.put(source.getKey(), source.getValue().get());
+                }
+                response.put("timestamp", System.currentTimeMillis());
+                
+                sendJsonResponse(exchange, response);
+                
+            } catch (Exception e) {
+                System.err.println("Error in stats handler: " + e.getMessage());
+                e.printStackTrace();
+                sendError(exchange, "Internal server error", 500);
+            }
+        }
+    }
+    
+    // A registered read-only endpoint; answered on the dispatcher like /api/stats
+    private class EndpointHandler implements HttpHandler {
+        private final Supplier<JSONObject> source;
+        
+        EndpointHandler(Supplier<JSONObject> source) {
+            this.source = source;
+        }
+        
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            addCorsHeaders(exchange);
+            
+            if ("OPTIONS".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendError(exchange, "Method not allowed", 405);
+                return;
+            }
+            
+            try {
+                sendJsonResponse(exchange, source.get());
+            } catch (Exception e) {
+                System.err.println("Error in " + exchange.getRequestURI().getPath() + " handler: " + e.getMessage());
+                e.printStackTrace();
+                sendError(exchange, "Internal server error", 500);
+            }
+        }
+    }
+    
+    // The body of a node's answer, or null after adding the node to failedNodes
+    private JSONObject remoteJson(ClusterRing.Node node, CompletableFuture<ClusterClient.Response> pending,
+                                  JSONArray failedNodes) {
+        ClusterClient.Response response = cluster.await(node, pending);
+        if (response.ok()) {
+            try {
+                return new JSONObject(new String(response.body, StandardCharsets.UTF_8));
+            } catch (Exception e) {
+                System.err.println("Unreadable answer from node " + node.name + ": " + e.getMessage());
+            }
+        } else {
+            System.err.println("Node " + node.name + " failed: "
+                    + (response.error != null ? response.error : "status " + response.status));
+        }
+        failedNodes.put(node.name);
+        return null;
+    }
+    
+    // The entries under one member of a node's answer, copied as they are rather than parsed; null like remoteJson
+    private JsonSpans remoteSpans(ClusterRing.Node node, CompletableFuture<ClusterClient.Response> pending,
+                                  String member, JSONArray failedNodes) {
+        ClusterClient.Response response = cluster.await(node, pending);
+        if (response.ok()) {
+            try {
+                return JsonSpans.of(response.body, member);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unreadable answer from node " + node.name + ": " + e.getMessage());
+            }
+        } else {
+            System.err.println("Node " + node.name + " failed: "
+                    + (response.error != null ? response.error : "status " + response.status));
+        }
+        failedNodes.put(node.name);
+        return null;
+    }
+    
+    // Relays the request to the node that owns the device, status and body included
+    private void forwardToOwner(HttpExchange exchange, String deviceId) throws IOException {
+        ClusterRing.Node owner = cluster.ring().owner(deviceId);
+        ClusterClient.Response response = cluster.await(owner,
+                cluster.send(owner, exchange.getRequestMethod(), pathAndQuery(exchange)));
+        if (response.status == 0) {
+            sendError(exchange, "Owner node " + owner.name + " is unreachable: " + response.error, 502);
+        } else if (response.ok()) {
+            try (OutputStream os = newResponseStream(exchange)) {
+                os.write(response.body);
+            }
+        } else {
+            exchange.sendResponseHeaders(response.status, response.body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(response.body);
+            }
+        }
+    }
+    
+    // Sends a 400 and returns null if the from/to/step/agg/metric parameters are invalid
+    private SeriesQuery parseQuery(HttpExchange exchange) throws IOException {
+        try {
+            return SeriesQuery.parse(exchange.getRequestURI(), metricStore.defaultQueryStart());
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, "Invalid query: " + e.getMessage(), 400);
+            return null;
+        }
+    }
+    
+    // {"metric": [points...], ...} for one device, one series read at a time
+    private void writeDeviceMetrics(JsonStreamWriter json, String deviceId, SeriesQuery query,
+                                    SeriesSnapshot snapshot) throws IOException {
+        json.beginObject();
+        for (String metricName : metricStore.getMetricNames(deviceId)) {
+            QueryExecutor.checkDeadline();
+            if (!query.includes(metricName) || !query.read(metricStore, deviceId, metricName, snapshot)) {
+                continue;
+            }
+            json.name(metricName);
+            writePoints(json, snapshot, query.compact);
+        }
+        json.endObject();
+    }
+    
+    private static void writePoints(JsonStreamWriter json, SeriesSnapshot snapshot, boolean compact) throws IOException {
+        json.beginArray();
+        for (int i = 0; i < snapshot.size; i++) {
+            if (compact) {
+                json.beginArray().value(snapshot.timestamps[i]).value(snapshot.values[i]).endArray();
+            } else {
+                json.beginObject();
+                json.name("timestamp").value(snapshot.timestamps[i]);
+                json.name("value").value(snapshot.values[i]);
+                json.endObject();
+            }
+        }
+        json.endArray();
+    }
+    
+    private interface JsonBody {
+        void write(JsonStreamWriter json) throws IOException;
+    }
+    
+    // Streams the body with chunked transfer encoding instead of building it in memory
+    // On failure the response is aborted, not finished, so a partial body never passes for a complete one
+    private void streamJsonResponse(HttpExchange exchange, JsonBody body) throws IOException {
+        CompressedResponseStream os = newResponseStream(exchange);
+        try {
+            JsonStreamWriter json = JsonStreamWriter.forThread(os);
+            body.write(json);
+            json.finish();
+        } catch (IOException | RuntimeException e) {
+            os.abort();
+            throw e;
+        }
+        os.close();
+    }
+    
     private void addCorsHeaders(HttpExchange exchange) {
         exchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
         exchange.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, POST, DELETE, OPTIONS");
@@ -306,11 +700,14 @@ public class WorkingHttpServer {
         exchange.getResponseHeaders().add("Content-Type", "application/json");
     }
     
+    private CompressedResponseStream newResponseStream(HttpExchange exchange) {
+        return new CompressedResponseStream(exchange, compressionLevel, compressionThreshold, compressionStats);
+    }
+    
     private void sendJsonResponse(HttpExchange exchange, JSONObject response) throws IOException {
         String responseStr = response.toString();
         byte[] bytes = responseStr.getBytes(StandardCharsets.UTF_8);
-        exchange.sendResponseHeaders(200, bytes.length);
-        try (OutputStream os = exchange.getResponseBody()) {
+        try (OutputStream os = newResponseStream(exchange)) {
             os.write(bytes);
         }
     }
@@ -327,6 +724,15 @@ public class WorkingHttpServer {
         }
     }
     
+    // Once a streamed response has started the status line is gone; streamJsonResponse has already dropped it
+    private void sendErrorOrAbort(HttpExchange exchange, String message, int code) throws IOException {
+        if (exchange.getResponseCode() == -1) {
+            sendError(exchange, message, code);
+        } else {
+            exchange.close();
+        }
+    }
+    
     private void clearAllMetrics() {
         Set<String> devices = metricStore.getDevices();
         for (String deviceId : devices) {
@@ -0,0 +1,455 @@
+package collector;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Append-only log of ingested samples in fixed-size, memory-mapped segment files.
+ * Appends are plain memory writes into the mapped segment; a background thread
+ * forces dirty pages to disk according to the fsync policy (group commit), so
+ * ingest never waits for the disk. Segments older than the store retention are
+ * deleted.
+ *
+ * <pre>
+ * segment: "MWAL" i32, version i32, sequence i64, created i64, then records until a 0 type byte
+ * record:  u8 type | type 1 (series): i32 id, i64 position, u16 len + device, u16 len + metric
+ *                  | type 2 (sample): i32 id, i64 timestamp, f64 value
+ * </pre>
+ *
+ * A series record comes before the first sample of its series in the segment,
+ * and gives that sample's position in the series (Series.appended); the
+ * following samples of the series count up from there. Replay uses positions
+ * to tell the samples a snapshot already holds from later ones with the same
+ * timestamp.
+ *
+ * Older segments still replay. Version 1 had u8 name lengths; versions 1
+ * and 2 have no positions.
+ *
+ * Each segment re-declares the series it references, so segments can be
+ * replayed independently and in parallel.
+ */
+public class WriteAheadLog {
+    private static final int MAGIC = 0x4D57414C; // "MWAL"
+    private static final int VERSION = 3; // 2 widened name lengths to u16, 3 added positions
+    private static final int HEADER_SIZE = 24;
+    private static final byte TYPE_SERIES = 1;
+    private static final byte TYPE_SAMPLE = 2;
+    private static final int SERIES_RECORD_SIZE = 1 + 4 + 8 + 2 + 2; // Plus the names
+    private static final int SAMPLE_RECORD_SIZE = 1 + 4 + 8 + 8;
+    static final int MAX_NAME_BYTES = 0xFFFF;
+    
+    private final File directory;
+    private final int segmentBytes;
+    private final String fsyncPolicy; // "none" or "interval"
+    private final long fsyncIntervalMs;
+    private final long retentionMs;
+    
+    private final Deque<SegmentInfo> closedSegments = new ArrayDeque<>();
+    private MappedByteBuffer active;
+    private SegmentInfo activeInfo;
+    private int position;
+    private BitSet declaredInSegment = new BitSet();
+    private long nextSequence;
+    private volatile boolean dirty;
+    
+    private final ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "wal-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    private final LongAdder records = new LongAdder();
+    private final LongAdder forces = new LongAdder();
+    private final LatencyHistogram forceTime = new LatencyHistogram();
+    private long replayedSamples;
+    private long replayMillis;
+    
+    public WriteAheadLog(File directory, int segmentBytes, String fsyncPolicy, long fsyncIntervalMs, long retentionMs) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalMs = fsyncIntervalMs;
+        this.retentionMs = retentionMs;
+    }
+    
+    /**
+     * Replays the existing segments into {@code store}, then opens a fresh segment
+     * for new appends and starts the background flusher. Must be called before
+     * the store is attached to this log.
+     */
+    public void open(MetricStore store) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create WAL directory " + directory);
+        }
+        List<File> segments = listSegments();
+        replay(segments, store);
+        for (File file : segments) {
+            nextSequence = Math.max(nextSequence, sequenceOf(file) + 1);
+        }
+        
+        synchronized (this) {
+            rotate();
+        }
+        if ("interval".equals(fsyncPolicy)) {
+            background.scheduleWithFixedDelay(this::force, fsyncIntervalMs, fsyncIntervalMs, TimeUnit.MILLISECONDS);
+        }
+        background.scheduleWithFixedDelay(this::truncate, 60, 60, TimeUnit.SECONDS);
+    }
+    
+    private List<File> listSegments() {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith("wal-") && name.endsWith(".seg"));
+        List<File> segments = new ArrayList<>(files == null ? Collections.emptyList() : Arrays.asList(files));
+        segments.sort(Comparator.comparingLong(WriteAheadLog::sequenceOf));
+        return segments;
+    }
+    
+    private static long sequenceOf(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(4, name.length() - 4));
+    }
+    
+    public synchronized void append(Series series, long timestamp, double value) {
+        byte[] device = null;
+        byte[] metric = null;
+        if (!declaredInSegment.get(series.id)) {
+            device = nameBytes(series.deviceId);
+            metric = nameBytes(series.metricName);
+        }
+        // Reserve room for both records first: rotating in between would orphan the sample
+        ensureSpace(SAMPLE_RECORD_SIZE + 1 + (device == null ? 0 : SERIES_RECORD_SIZE + device.length + metric.length));
+        if (!declaredInSegment.get(series.id)) {
+            if (device == null) {
+                // Declared only in the segment that was just rotated out; the fresh one has room
+                device = nameBytes(series.deviceId);
+                metric = nameBytes(series.metricName);
+            }
+            int at = position;
+            active.putInt(at + 1, series.id);
+            active.putLong(at + 5, series.appended() - 1); // The caller is the series' writer, just after appending
+            active.putShort(at + 13, (short) device.length);
+            active.put(at + 15, device);
+            active.putShort(at + 15 + device.length, (short) metric.length);
+            active.put(at + 17 + device.length, metric);
+            active.put(at, TYPE_SERIES); // Type byte last: a record is only visible once complete
+            position = at + SERIES_RECORD_SIZE + device.length + metric.length;
+            declaredInSegment.set(series.id);
+        }
+        
+        int at = position;
+        active.putInt(at + 1, series.id);
+        active.putLong(at + 5, timestamp);
+        active.putDouble(at + 13, value);
+        active.put(at, TYPE_SAMPLE);
+        position = at + SAMPLE_RECORD_SIZE;
+        activeInfo.maxTimestamp = Math.max(activeInfo.maxTimestamp, timestamp);
+        records.increment();
+        dirty = true;
+    }
+    
+    // Names are bounded by the datagram they arrive in, far below this; anything longer is a bug upstream
+    static byte[] nameBytes(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("Name longer than " + MAX_NAME_BYTES + " bytes: "
+                    + name.substring(0, 64) + "...");
+        }
+        return bytes;
+    }
+    
+    // Keeps one zero byte after the last record as the end marker
+    private void ensureSpace(int bytes) {
+        if (position + bytes > segmentBytes) {
+            try {
+                rotate();
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot rotate WAL segment", e);
+            }
+        }
+    }
+    
+    private void rotate() throws IOException {
+        if (active != null) {
+            if (!"none".equals(fsyncPolicy)) {
+                forceSegment(active); // Seals the old segment; happens once per segment
+            }
+            activeInfo.closedAt = System.currentTimeMillis();
+            closedSegments.addLast(activeInfo);
+        }
+        long sequence = nextSequence++;
+        File file = new File(directory, String.format("wal-%016d.seg", sequence));
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            raf.setLength(segmentBytes);
+            active = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+        active.putInt(0, MAGIC);
+        active.putInt(4, VERSION);
+        active.putLong(8, sequence);
+        active.putLong(16, System.currentTimeMillis());
+        position = HEADER_SIZE;
+        activeInfo = new SegmentInfo(file);
+        declaredInSegment = new BitSet();
+    }
+    
+    // Group commit: one force covers every append since the previous one
+    private void force() {
+        if (!dirty) {
+            return;
+        }
+        MappedByteBuffer segment;
+        synchronized (this) {
+            dirty = false;
+            segment = active;
+        }
+        forceSegment(segment);
+    }
+    
+    private void forceSegment(MappedByteBuffer segment) {
+        long start = System.nanoTime();
+        segment.force();
+        forceTime.record(System.nanoTime() - start);
+        forces.increment();
+    }
+    
+    private void truncate() {
+        long cutoff = System.currentTimeMillis() - retentionMs;
+        List<File> expired = new ArrayList<>();
+        synchronized (this) {
+            while (!closedSegments.isEmpty() && closedSegments.peekFirst().maxTimestamp < cutoff) {
+                expired.add(closedSegments.removeFirst().file);
+            }
+        }
+        for (File file : expired) {
+            if (!file.delete()) {
+                System.err.println("Could not delete expired WAL segment " + file);
+            }
+        }
+    }
+    
+    /**
+     * Deletes the closed segments that were sealed before {@code startedAt}; a
+     * snapshot that started then already contains everything in them.
+     */
+    public void checkpoint(long startedAt) {
+        List<File> covered = new ArrayList<>();
+        synchronized (this) {
+            while (!closedSegments.isEmpty() && closedSegments.peekFirst().closedAt < startedAt) {
+                covered.add(closedSegments.removeFirst().file);
+            }
+        }
+        for (File file : covered) {
+            if (!file.delete()) {
+                System.err.println("Could not delete checkpointed WAL segment " + file);
+            }
+        }
+    }
+    
+    public void close() {
+        background.shutdown();
+        synchronized (this) {
+            if (active != null && !"none".equals(fsyncPolicy)) {
+                forceSegment(active);
+            }
+        }
+    }
+    
+    // ---- Replay ----
+    
+    private void replay(List<File> segments, MetricStore store) throws IOException {
+        if (segments.isEmpty()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        int threads = Math.max(1, Math.min(segments.size(), Runtime.getRuntime().availableProcessors()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            // Phase 1: decode every segment in parallel into per-series columns
+            List<Future<Map<String, SampleColumns>>> decoded = new ArrayList<>();
+            for (File file : segments) {
+                decoded.add(pool.submit(() -> decodeSegment(file)));
+            }
+            List<Map<String, SampleColumns>> perSegment = new ArrayList<>();
+            Set<String> keys = new LinkedHashSet<>();
+            for (int i = 0; i < segments.size(); i++) {
+                Map<String, SampleColumns> columns = decoded.get(i).get();
+                perSegment.add(columns);
+                keys.addAll(columns.keySet());
+                SegmentInfo info = new SegmentInfo(segments.get(i));
+                for (SampleColumns c : columns.values()) {
+                    info.maxTimestamp = Math.max(info.maxTimestamp, c.maxTimestamp());
+                }
+                closedSegments.addLast(info);
+            }
+            
+            // Phase 2: apply series in parallel; each series sees its segments in order
+            List<String> keyList = new ArrayList<>(keys);
+            List<Future<Long>> applied = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int shard = t;
+                applied.add(pool.submit(() -> {
+                    long samples = 0;
+                    for (int k = shard; k < keyList.size(); k += threads) {
+                        String key = keyList.get(k);
+                        MetricStore.Replay replay = null; // Set up before the first segment, from the snapshot alone
+                        for (Map<String, SampleColumns> columns : perSegment) {
+                            SampleColumns c = columns.get(key);
+                            if (c != null) {
+                                if (replay == null) {
+                                    replay = store.replay(c.deviceId, c.metricName);
+                                }
+                                replay.apply(c.timestamps, c.values, c.positions, c.size);
+                                samples += c.size;
+                            }
+                        }
+                    }
+                    return samples;
+                }));
+            }
+            for (Future<Long> future : applied) {
+                replayedSamples += future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("WAL replay interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("WAL replay failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        replayMillis = System.currentTimeMillis() - start;
+        System.out.println("Replayed " + replayedSamples + " samples from " + segments.size()
+                + " WAL segments in " + replayMillis + " ms");
+    }
+    
+    private static Map<String, SampleColumns> decodeSegment(File file) throws IOException {
+        MappedByteBuffer segment;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        Map<String, SampleColumns> columns = new HashMap<>();
+        if (segment.limit() < HEADER_SIZE || segment.getInt(0) != MAGIC
+                || segment.getInt(4) < 1 || segment.getInt(4) > VERSION) {
+            System.err.println("Skipping invalid WAL segment " + file);
+            return columns;
+        }
+        int version = segment.getInt(4);
+        int lengthBytes = version == 1 ? 1 : 2;
+        int namesAt = version >= 3 ? 13 : 5;
+        
+        Map<Integer, Declared> byId = new HashMap<>();
+        int at = HEADER_SIZE;
+        int limit = segment.limit();
+        while (at < limit) {
+            byte type = segment.get(at);
+            if (type == TYPE_SERIES && at + namesAt + 2 * lengthBytes <= limit) {
+                int id = segment.getInt(at + 1);
+                long firstPosition = version >= 3 ? segment.getLong(at + 5) : -1;
+                int deviceLength = readLength(segment, at + namesAt, lengthBytes);
+                String deviceId = readString(segment, at + namesAt + lengthBytes, deviceLength);
+                int metricAt = at + namesAt + lengthBytes + deviceLength;
+                int metricLength = readLength(segment, metricAt, lengthBytes);
+                String metricName = readString(segment, metricAt + lengthBytes, metricLength);
+                SampleColumns c = columns.computeIfAbsent(deviceId + '\u0000' + metricName,
+                        k -> new SampleColumns(deviceId, metricName));
+                byId.put(id, new Declared(c, firstPosition));
+                at = metricAt + lengthBytes + metricLength;
+            } else if (type == TYPE_SAMPLE && at + SAMPLE_RECORD_SIZE <= limit) {
+                Declared declared = byId.get(segment.getInt(at + 1));
+                if (declared == null) {
+                    break; // Torn segment tail
+                }
+                long position = declared.nextPosition < 0 ? -1 : declared.nextPosition++;
+                declared.columns.add(segment.getLong(at + 5), segment.getDouble(at + 13), position);
+                at += SAMPLE_RECORD_SIZE;
+            } else {
+                break; // End marker (zero fill) or torn record
+            }
+        }
+        return columns;
+    }
+    
+    private static int readLength(MappedByteBuffer buffer, int offset, int lengthBytes) {
+        return lengthBytes == 1 ? buffer.get(offset) & 0xFF : buffer.getShort(offset) & 0xFFFF;
+    }
+    
+    private static String readString(MappedByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    public JSONObject stats() {
+        JSONObject stats = new JSONObject();
+        synchronized (this) {
+            stats.put("segments", closedSegments.size() + 1);
+            stats.put("activeSegmentBytes", position);
+        }
+        stats.put("segmentBytes", segmentBytes);
+        stats.put("fsync", fsyncPolicy);
+        stats.put("records", records.sum());
+        stats.put("forces", forces.sum());
+        stats.put("forceTime", forceTime.stats());
+        stats.put("replayedSamples", replayedSamples);
+        stats.put("replayMillis", replayMillis);
+        return stats;
+    }
+    
+    private static final class SegmentInfo {
+        final File file;
+        long maxTimestamp = Long.MIN_VALUE;
+        long closedAt; // 0 for segments left by a previous run
+        
+        SegmentInfo(File file) {
+            this.file = file;
+        }
+    }
+    
+    // A series id of one segment, with the position its next sample has
+    private static final class Declared {
+        final SampleColumns columns;
+        long nextPosition; // -1 in segments without positions
+        
+        Declared(SampleColumns columns, long nextPosition) {
+            this.columns = columns;
+            this.nextPosition = nextPosition;
+        }
+    }
+    
+    private static final class SampleColumns {
+        final String deviceId;
+        final String metricName;
+        long[] timestamps = new long[256];
+        double[] values = new double[256];
+        long[] positions = new long[256]; // -1 where unknown
+        int size;
+        
+        SampleColumns(String deviceId, String metricName) {
+            this.deviceId = deviceId;
+            this.metricName = metricName;
+        }
+        
+        void add(long timestamp, double value, long position) {
+            if (size == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            timestamps[size] = timestamp;
+            values[size] = value;
+            positions[size] = position;
+            size++;
+        }
+        
+        long maxTimestamp() {
+            return size == 0 ? Long.MIN_VALUE : timestamps[size - 1];
+        }
+    }
+}
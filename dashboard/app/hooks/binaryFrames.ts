@@ -0,0 +1,117 @@
+// Decoder for the collector's binary WebSocket frames (see BinaryFrameWriter.java)
+
+const MAGIC = 0xb8;
+export const KIND_LIVE = 1;
+export const KIND_BACKFILL = 2;
+const RECORD_ANNOUNCE = 1;
+const RECORD_SAMPLES = 2;
+const RECORD_ALERT = 3;
+
+export interface SeriesName {
+  device: string;
+  metric: string;
+}
+
+export interface DecodedSamples {
+  device: string;
+  metric: string;
+  timestamps: Float64Array;
+  values: Float64Array;
+  alert: boolean;
+}
+
+export interface DecodedFrame {
+  kind: number;
+  samples: DecodedSamples[];
+}
+
+const textDecoder = new TextDecoder();
+
+// Series ids are announced once per connection, so the caller keeps one map per socket
+export function decodeFrame(
+  buffer: ArrayBuffer,
+  names: Map<number, SeriesName>
+): DecodedFrame {
+  const view = new DataView(buffer);
+  const bytes = new Uint8Array(buffer);
+  if (view.getUint8(0) !== MAGIC) {
+    throw new Error("Not a metrics frame");
+  }
+  const kind = view.getUint8(1);
+  const base = Number(view.getBigInt64(2));
+  let pos = 10;
+
+  const varint = () => {
+    let result = 0;
+    let scale = 1;
+    let b;
+    do {
+      b = bytes[pos++];
+      result += (b & 0x7f) * scale; // Arithmetic, not shifts: values can exceed 32 bits
+      scale *= 128;
+    } while (b & 0x80);
+    return result;
+  };
+  const zigzag = () => {
+    const n = varint();
+    return n % 2 === 0 ? n / 2 : -(n + 1) / 2;
+  };
+  const string = () => {
+    const length = varint();
+    const s = textDecoder.decode(bytes.subarray(pos, pos + length));
+    pos += length;
+    return s;
+  };
+
+  // XOR state kept as 8 big-endian bytes so no 64-bit integer math is needed
+  const previous = new Uint8Array(8);
+  const previousView = new DataView(previous.buffer);
+
+  const samples: DecodedSamples[] = [];
+  while (pos < bytes.length) {
+    const type = bytes[pos++];
+    if (type === RECORD_ANNOUNCE) {
+      const id = varint();
+      const device = string();
+      const metric = string();
+      names.set(id, { device, metric });
+    } else if (type === RECORD_SAMPLES) {
+      const name = names.get(varint());
+      const count = varint();
+      const timestamps = new Float64Array(count);
+      const values = new Float64Array(count);
+      let timestamp = base;
+      previous.fill(0);
+      for (let i = 0; i < count; i++) {
+        timestamp += zigzag();
+        timestamps[i] = timestamp;
+        const header = bytes[pos++];
+        const leading = header >> 4;
+        const length = header & 0x0f;
+        for (let j = 0; j < length; j++) {
+          previous[leading + j] ^= bytes[pos++];
+        }
+        values[i] = previousView.getFloat64(0);
+      }
+      if (name) {
+        samples.push({ ...name, timestamps, values, alert: false });
+      }
+    } else if (type === RECORD_ALERT) {
+      const device = string();
+      const metric = string();
+      const timestamp = base + zigzag();
+      const value = view.getFloat64(pos);
+      pos += 8;
+      samples.push({
+        device,
+        metric,
+        timestamps: Float64Array.of(timestamp),
+        values: Float64Array.of(value),
+        alert: true,
+      });
+    } else {
+      throw new Error(`Unknown record type ${type}`);
+    }
+  }
+  return { kind, samples };
+}
@@ -1,4 +1,10 @@
 import { useState, useEffect } from "react";
+import {
+  decodeFrame,
+  KIND_BACKFILL,
+  type DecodedSamples,
+  type SeriesName,
+} from "./binaryFrames";
 
 export interface Metric {
   metric: string;
@@ -13,159 +19,111 @@ export interface MetricHistory {
 }
 
 const WEBSOCKET_URL = "ws://localhost:8080";
-const HTTP_API_URL = "http://localhost:8082"; // Updated to use the exposed port
 
-export function useMetrics() {
-  const [metrics, setMetrics] = useState<MetricHistory>({});
-  const [error, setError] = useState<string | null>(null);
-  const [isLoading, setIsLoading] = useState(true);
+// Device/metric globs the collector should push; everything the dashboard charts
+const SUBSCRIPTIONS = [{ device: "*", metric: "*" }];
+const HISTORY_MS = 5 * 60 * 1000;
+const MAX_POINTS = 3000;
+
+// Applies one decoded frame, copying and trimming each touched series once
+function applyFrame(prevMetrics: MetricHistory, samples: DecodedSamples[]) {
+  const newMetrics = { ...prevMetrics };
+  const copiedDevices = new Set<string>();
+  const touched = new Map<string, [string, string]>();
+
+  const series = (deviceId: string, metricName: string) => {
+    if (!copiedDevices.has(deviceId)) {
+      newMetrics[deviceId] = { ...newMetrics[deviceId] };
+      copiedDevices.add(deviceId);
+    }
+    const key = `${deviceId}\u0000${metricName}`;
+    if (!touched.has(key)) {
+      newMetrics[deviceId][metricName] = [
+        ...(newMetrics[deviceId][metricName] || []),
+      ];
+      touched.set(key, [deviceId, metricName]);
+    }
+    return newMetrics[deviceId][metricName];
+  };
 
-  // Load historical data from HTTP API
-  const loadHistoricalData = async () => {
-    try {
-      setIsLoading(true);
-      setError(null);
+  samples.forEach(({ device, metric, timestamps, values, alert }) => {
+    const points = series(device, metric);
+    for (let i = 0; i < values.length; i++) {
+      // Live frames can repeat the newest backfilled samples
+      const last = points[points.length - 1];
+      if (!alert && last && timestamps[i] <= last.timestamp) {
+        continue;
+      }
+      points.push({ metric, timestamp: timestamps[i], value: values[i] });
+    }
+  });
 
-      const response = await fetch(`${HTTP_API_URL}/api/metrics`);
+  // Remove data points older than 5 minutes and limit the points per series
+  const cutoff = Date.now() - HISTORY_MS;
+  touched.forEach(([deviceId, metricName]) => {
+    newMetrics[deviceId][metricName] = newMetrics[deviceId][metricName]
+      .filter((point) => point.timestamp >= cutoff)
+      .slice(-MAX_POINTS);
+  });
 
-      if (!response.ok) {
-        if (response.status === 404) {
-          console.warn(
-            "HTTP API not available - will rely on WebSocket data only"
-          );
-          return; // Don't set error for 404, just skip historical data
-        }
-        throw new Error(`HTTP ${response.status}: ${response.statusText}`);
-      }
+  return newMetrics;
+}
 
-      const data = await response.json();
-
-      if (data.devices) {
-        const historicalMetrics: MetricHistory = {};
-
-        Object.entries(data.devices).forEach(
-          ([deviceId, deviceData]: [string, any]) => {
-            historicalMetrics[deviceId] = {};
-
-            Object.entries(deviceData).forEach(
-              ([metricName, points]: [string, any]) => {
-                if (Array.isArray(points)) {
-                  historicalMetrics[deviceId][metricName] = points.map(
-                    (point: any) => ({
-                      metric: metricName,
-                      timestamp: point.timestamp,
-                      value: point.value,
-                    })
-                  );
-                }
-              }
-            );
-          }
-        );
-
-        setMetrics(historicalMetrics);
-        console.log(
-          "Loaded historical data for",
-          Object.keys(historicalMetrics).length,
-          "devices"
-        );
-      }
-    } catch (err) {
-      console.error("Failed to load historical data:", err);
-      if (err instanceof Error && !err.message.includes("Failed to fetch")) {
-        setError(`HTTP API unavailable - using real-time data only`);
-      }
-    } finally {
-      setIsLoading(false);
-    }
-  };
+export function useMetrics() {
+  const [metrics, setMetrics] = useState<MetricHistory>({});
+  const [error, setError] = useState<string | null>(null);
+  const [isLoading, setIsLoading] = useState(true);
 
   useEffect(() => {
-    // Load historical data on component mount (page load/refresh)
-    loadHistoricalData();
-
-    // Then connect to WebSocket for real-time updates
+    // History arrives as the first (backfill) frame of the binary stream
     const ws = new WebSocket(WEBSOCKET_URL);
+    ws.binaryType = "arraybuffer";
+    const names = new Map<number, SeriesName>();
 
     ws.onopen = () => {
       console.log("Connected to WebSocket");
+      ws.send(
+        JSON.stringify({
+          subscribe: SUBSCRIPTIONS,
+          format: "binary",
+          backfillMs: HISTORY_MS,
+        })
+      );
       setError(null);
-      setIsLoading(false); // Stop loading when WebSocket connects
     };
 
     ws.onmessage = (event) => {
       try {
-        const data = JSON.parse(event.data);
-        const deviceId = data.dev;
-        const timestamp = data.ts * 1000; // Convert to milliseconds
-
-        if (!deviceId || !timestamp) {
-          console.warn("Invalid message format:", data);
+        if (!(event.data instanceof ArrayBuffer)) {
+          // Text frames carry alert transitions from the collector's rule engine
+          const data = JSON.parse(event.data);
+          if (Array.isArray(data.alerts)) {
+            data.alerts.forEach((alert: any) =>
+              console.info(`Alert ${alert.rule} ${alert.state}:`, alert.device, alert.metric, alert.value)
+            );
+          }
           return;
         }
-
-        setMetrics((prevMetrics) => {
-          const newMetrics = { ...prevMetrics };
-
-          if (!newMetrics[deviceId]) {
-            newMetrics[deviceId] = {};
-          }
-
-          // Handle metric array format
-          if (data.m) {
-            data.m.forEach(([metricName, value]: [string, number]) => {
-              if (!newMetrics[deviceId][metricName]) {
-                newMetrics[deviceId][metricName] = [];
-              }
-
-              // Add new data point
-              newMetrics[deviceId][metricName] = [
-                ...newMetrics[deviceId][metricName],
-                { metric: metricName, timestamp, value },
-              ];
-
-              // Remove data points older than 5 minutes and limit to 3000 points
-              const fiveMinutesAgo = Date.now() - 5 * 60 * 1000;
-              newMetrics[deviceId][metricName] = newMetrics[deviceId][
-                metricName
-              ]
-                .filter((point) => point.timestamp >= fiveMinutesAgo)
-                .slice(-3000);
-            });
-          }
-
-          // Handle alert format
-          if (data.alert) {
-            data.alert.forEach((alert: { metric: string; value: number }) => {
-              if (!newMetrics[deviceId][alert.metric]) {
-                newMetrics[deviceId][alert.metric] = [];
-              }
-
-              newMetrics[deviceId][alert.metric] = [
-                ...newMetrics[deviceId][alert.metric],
-                { metric: alert.metric, timestamp, value: alert.value },
-              ].slice(-300); // Keep last 300 alert points
-            });
-          }
-
-          return newMetrics;
-        });
+        const frame = decodeFrame(event.data, names);
+        setMetrics((prevMetrics) => applyFrame(prevMetrics, frame.samples));
+        if (frame.kind === KIND_BACKFILL) {
+          console.log("Loaded historical data for", frame.samples.length, "series");
+          setIsLoading(false);
+        }
       } catch (e) {
-        console.error("Error parsing WebSocket message:", e);
+        console.error("Error decoding WebSocket frame:", e);
       }
     };
 
     ws.onerror = (event) => {
       setError("WebSocket error occurred");
+      setIsLoading(false);
       console.error("WebSocket error:", event);
     };
 
     ws.onclose = () => {
       console.log("WebSocket connection closed");
-      // Only set error if we haven't loaded historical data
-      if (Object.keys(metrics).length === 0) {
-        setError("WebSocket connection closed");
-      }
+      setError("WebSocket connection closed");
     };
 
     return () => {
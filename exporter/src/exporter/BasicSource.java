@@ -0,0 +1,146 @@
+package exporter;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * The original four metrics: cpu_usage, mem_total, mem_free and threads, with
+ * the meaning the OS MXBean gives them: under a cgroup (v2) CPU quota or memory
+ * limit, as in a container, they describe that allowance, otherwise the host.
+ * On Linux they are read from the cgroup files and /proc, as the MXBean
+ * allocates on every call inside containers; elsewhere from the MXBean.
+ * mem_free is memory that can be had without swapping, page cache included.
+ */
+public class BasicSource implements MetricSource {
+    private final com.sun.management.OperatingSystemMXBean osBean;
+    private final ThreadMXBean threadBean;
+    private final ProcFile stat = ProcFile.openIfReadable("/proc/stat");
+    private final ProcFile meminfo = ProcFile.openIfReadable("/proc/meminfo");
+    // Of this process's cgroup; null where there is none
+    private final ProcFile cpuMax;
+    private final ProcFile cpuStat;
+    private final ProcFile memoryMax;
+    private final ProcFile memoryCurrent;
+    private long lastCpuBusy;
+    private long lastCpuTotal;
+    private long lastUsageUsec;
+    private long lastUsageAt;
+    
+    public BasicSource() {
+        this("");
+    }
+    
+    // cgroupDir as for CgroupSource.open: empty to use this process's own cgroup
+    public BasicSource(String cgroupDir) {
+        String dir = CgroupSource.directory(cgroupDir);
+        this.cpuMax = ProcFile.openIfReadable(dir + "/cpu.max");
+        this.cpuStat = ProcFile.openIfReadable(dir + "/cpu.stat");
+        this.memoryMax = ProcFile.openIfReadable(dir + "/memory.max");
+        this.memoryCurrent = ProcFile.openIfReadable(dir + "/memory.current");
+        this.threadBean = ManagementFactory.getThreadMXBean();
+        
+        Object tempBean = ManagementFactory.getOperatingSystemMXBean();
+        if (!(tempBean instanceof com.sun.management.OperatingSystemMXBean)) {
+            throw new RuntimeException("com.sun.management.OperatingSystemMXBean not available");
+        }
+        this.osBean = (com.sun.management.OperatingSystemMXBean) tempBean;
+    }
+    
+    @Override
+    public String name() {
+        return "basic";
+    }
+    
+    @Override
+    public void collect(MetricFrame frame) throws IOException {
+        // Get CPU usage
+        double cpuUsage = cgroupCpuLoad(frame.timestamp);
+        if (Double.isNaN(cpuUsage)) {
+            cpuUsage = stat != null ? procCpuLoad() : osBean.getCpuLoad();
+        }
+        if (cpuUsage < 0) {
+            cpuUsage = 0.0; // Default to 0 if not available
+        }
+        frame.add("cpu_usage", cpuUsage); // 0-1 scale
+        
+        // Memory metrics
+        if (meminfo != null) {
+            meminfo.read();
+            long total = meminfo.find("MemTotal:") ? meminfo.nextLong() * 1024 : 0;
+            long limit = cgroupMemoryLimit();
+            if (limit > 0) {
+                total = total > 0 ? Math.min(total, limit) : limit;
+                memoryCurrent.read();
+                frame.add("mem_total", total);
+                frame.add("mem_free", Math.max(0, total - memoryCurrent.nextLong()));
+            } else {
+                // MemFree leaves out the page cache the kernel gives back on demand
+                frame.add("mem_total", total);
+                frame.add("mem_free", meminfo.find("MemAvailable:") ? meminfo.nextLong() * 1024
+                        : meminfo.find("MemFree:") ? meminfo.nextLong() * 1024 : 0);
+            }
+        } else {
+            frame.add("mem_total", osBean.getTotalMemorySize());
+            frame.add("mem_free", osBean.getFreeMemorySize());
+        }
+        
+        // Thread count
+        frame.add("threads", threadBean.getThreadCount());
+    }
+    
+    /**
+     * Share of the cgroup's CPU quota used since the previous call, or NaN
+     * without a quota, in which case the host's load is what the MXBean reports.
+     */
+    private double cgroupCpuLoad(long now) throws IOException {
+        if (cpuMax == null || cpuStat == null) {
+            return Double.NaN;
+        }
+        cpuMax.read(); // "max 100000", or quota and period in microseconds
+        if (cpuMax.startsWith("max")) {
+            return Double.NaN;
+        }
+        long quotaUsec = cpuMax.nextLong();
+        long periodUsec = cpuMax.nextLong();
+        cpuStat.read();
+        long usageUsec = cpuStat.find("usage_usec ") ? cpuStat.nextLong() : 0;
+        double load = lastUsageAt > 0 && now > lastUsageAt && quotaUsec > 0 && periodUsec > 0
+                ? (double) (usageUsec - lastUsageUsec) / ((now - lastUsageAt) * 1000.0 * quotaUsec / periodUsec) : 0;
+        lastUsageUsec = usageUsec;
+        lastUsageAt = now;
+        return Math.min(1, load);
+    }
+    
+    // The cgroup's memory.max, or 0 if it has none
+    private long cgroupMemoryLimit() throws IOException {
+        if (memoryMax == null || memoryCurrent == null) {
+            return 0;
+        }
+        memoryMax.read();
+        return memoryMax.nextLong(); // 0 for "max"
+    }
+    
+    // Busy share of all CPU time since the previous call, from the aggregate "cpu" line
+    private double procCpuLoad() throws IOException {
+        stat.read();
+        if (!stat.find("cpu ")) {
+            return -1;
+        }
+        long total = 0;
+        long idle = 0;
+        for (int field = 0; field < 8; field++) { // user nice system idle iowait irq softirq steal
+            long ticks = stat.nextLong();
+            total += ticks;
+            if (field == 3 || field == 4) {
+                idle += ticks;
+            }
+        }
+        long busy = total - idle;
+        double load = total > lastCpuTotal && lastCpuTotal > 0
+                ? (double) (busy - lastCpuBusy) / (total - lastCpuTotal) : 0;
+        lastCpuBusy = busy;
+        lastCpuTotal = total;
+        return load;
+    }
+}
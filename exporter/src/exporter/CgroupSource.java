@@ -0,0 +1,133 @@
+package exporter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * CPU, memory and IO accounting of the exporter's own cgroup (v2), which inside
+ * a container is the container. The cgroup directory comes from
+ * /proc/self/cgroup unless given; files of controllers that are not enabled
+ * are skipped.
+ */
+public class CgroupSource implements MetricSource {
+    private final ProcFile cpuStat;
+    private final ProcFile memoryCurrent;
+    private final ProcFile memoryMax;
+    private final ProcFile memoryStat;
+    private final ProcFile memoryEvents;
+    private final ProcFile ioStat;
+    private long lastUsageUsec;
+    private long lastThrottledUsec;
+    private long lastReadBytes;
+    private long lastWriteBytes;
+    private long lastTimestamp;
+    
+    private CgroupSource(String dir) {
+        cpuStat = ProcFile.openIfReadable(dir + "/cpu.stat");
+        memoryCurrent = ProcFile.openIfReadable(dir + "/memory.current");
+        memoryMax = ProcFile.openIfReadable(dir + "/memory.max");
+        memoryStat = ProcFile.openIfReadable(dir + "/memory.stat");
+        memoryEvents = ProcFile.openIfReadable(dir + "/memory.events");
+        ioStat = ProcFile.openIfReadable(dir + "/io.stat");
+    }
+    
+    // dir may be empty to look it up; null when this is not a cgroup v2 host
+    public static CgroupSource open(String dir) throws IOException {
+        CgroupSource source = new CgroupSource(directory(dir));
+        return source.cpuStat == null && source.memoryCurrent == null ? null : source;
+    }
+    
+    // This process's cgroup v2 directory if dir is empty, from /proc/self/cgroup; dir otherwise
+    static String directory(String dir) {
+        if (!dir.isEmpty()) {
+            return dir;
+        }
+        dir = "/sys/fs/cgroup";
+        ProcFile self = ProcFile.openIfReadable("/proc/self/cgroup");
+        if (self != null) {
+            try {
+                self.read();
+                // A namespaced container sees its own cgroup as the root instead
+                if (self.find("0::") && self.nextToken() && Files.isDirectory(Paths.get(dir + self.tokenString()))) {
+                    dir += self.tokenString();
+                }
+                self.close();
+            } catch (IOException e) {
+                // The hierarchy root is the best guess left
+            }
+        }
+        return dir;
+    }
+    
+    @Override
+    public String name() {
+        return "cgroup";
+    }
+    
+    @Override
+    public void collect(MetricFrame frame) throws IOException {
+        boolean first = lastTimestamp == 0;
+        long elapsedUsec = (frame.timestamp - lastTimestamp) * 1000;
+        lastTimestamp = frame.timestamp;
+        
+        if (cpuStat != null) {
+            cpuStat.read();
+            long usageUsec = cpuStat.find("usage_usec ") ? cpuStat.nextLong() : 0;
+            long throttledUsec = cpuStat.find("throttled_usec ") ? cpuStat.nextLong() : 0;
+            if (!first && elapsedUsec > 0) {
+                frame.add("cgroup_cpu_usage", (double) (usageUsec - lastUsageUsec) / elapsedUsec); // In cores
+                frame.add("cgroup_cpu_throttled", (double) (throttledUsec - lastThrottledUsec) / elapsedUsec);
+            }
+            lastUsageUsec = usageUsec;
+            lastThrottledUsec = throttledUsec;
+        }
+        if (memoryCurrent != null) {
+            memoryCurrent.read();
+            frame.add("cgroup_mem_current", memoryCurrent.nextLong());
+        }
+        if (memoryMax != null) {
+            memoryMax.read();
+            long max = memoryMax.nextLong(); // 0 for "max", no limit
+            if (max > 0) {
+                frame.add("cgroup_mem_limit", max);
+            }
+        }
+        if (memoryStat != null) {
+            memoryStat.read();
+            if (memoryStat.find("anon ")) {
+                frame.add("cgroup_mem_anon", memoryStat.nextLong());
+            }
+            if (memoryStat.find("file ")) {
+                frame.add("cgroup_mem_file", memoryStat.nextLong());
+            }
+        }
+        if (memoryEvents != null) {
+            memoryEvents.read();
+            if (memoryEvents.find("oom_kill ")) {
+                frame.add("cgroup_oom_kills", memoryEvents.nextLong());
+            }
+        }
+        if (ioStat != null) {
+            // One line per device: "8:0 rbytes=1 wbytes=2 rios=3 wios=4 dbytes=0 dios=0"
+            ioStat.read();
+            long readBytes = 0;
+            long writeBytes = 0;
+            while (ioStat.hasMore()) {
+                if (ioStat.findInLine("rbytes=")) {
+                    readBytes += ioStat.nextLong();
+                }
+                if (ioStat.findInLine("wbytes=")) {
+                    writeBytes += ioStat.nextLong();
+                }
+                ioStat.nextLine();
+            }
+            if (!first && elapsedUsec > 0) {
+                frame.add("cgroup_io_read_bytes_per_sec", Math.max(0, readBytes - lastReadBytes) * 1e6 / elapsedUsec);
+                frame.add("cgroup_io_write_bytes_per_sec", Math.max(0, writeBytes - lastWriteBytes) * 1e6 / elapsedUsec);
+            }
+            lastReadBytes = readBytes;
+            lastWriteBytes = writeBytes;
+        }
+    }
+}
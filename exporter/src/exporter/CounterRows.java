@@ -0,0 +1,61 @@
+package exporter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * The rows of a table-like proc file, one per disk or network interface. Rows
+ * are matched on the bytes of their name, so a steady set of rows costs no
+ * allocation; a new row gets its metric names built once.
+ */
+public class CounterRows {
+    private final String prefix;
+    private final String[] suffixes;
+    private final Predicate<String> include;
+    private Row[] rows = new Row[0];
+    
+    public CounterRows(String prefix, String[] suffixes, Predicate<String> include) {
+        this.prefix = prefix;
+        this.suffixes = suffixes;
+        this.include = include;
+    }
+    
+    // The row named by the current token of file
+    public Row lookup(ProcFile file) {
+        for (Row row : rows) {
+            if (file.tokenEquals(row.name)) {
+                return row;
+            }
+        }
+        String name = file.tokenString();
+        Row row = new Row(name, include.test(name), prefix, suffixes);
+        rows = Arrays.copyOf(rows, rows.length + 1);
+        rows[rows.length - 1] = row;
+        return row;
+    }
+    
+    public static final class Row {
+        final byte[] name;
+        public final boolean included;
+        public final String[] metrics; // prefix + name + "_" + suffix
+        public final long[] counters = new long[8]; // The source's previous readings
+        public long lastTimestamp; // 0 until the first reading
+        
+        Row(String name, boolean included, String prefix, String[] suffixes) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.included = included;
+            this.metrics = new String[suffixes.length];
+            for (int i = 0; i < suffixes.length; i++) {
+                metrics[i] = prefix + name + "_" + suffixes[i];
+            }
+        }
+        
+        // Per second rate of counter i since the previous reading, which it then replaces
+        public double rate(int i, long value, long elapsedMs) {
+            long delta = value - counters[i];
+            counters[i] = value;
+            return delta <= 0 || elapsedMs <= 0 ? 0 : delta * 1000.0 / elapsedMs;
+        }
+    }
+}
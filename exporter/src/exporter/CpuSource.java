@@ -0,0 +1,115 @@
+package exporter;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Per-core usage and the aggregate CPU time split from /proc/stat, plus context
+ * switches and runnable/blocked task counts. Shares are 0-1 of the time since
+ * the previous tick.
+ */
+public class CpuSource implements MetricSource {
+    // user nice system idle iowait irq softirq steal
+    private static final int FIELDS = 8;
+    
+    private final ProcFile stat;
+    private final long[] fields = new long[FIELDS];
+    private final long[] lastAggregate = new long[FIELDS];
+    private String[] coreMetrics = new String[0];
+    private long[] lastCoreBusy = new long[0];
+    private long[] lastCoreTotal = new long[0];
+    private long lastContextSwitches;
+    private long lastTimestamp;
+    
+    private CpuSource(ProcFile stat) {
+        this.stat = stat;
+    }
+    
+    public static CpuSource open() {
+        ProcFile stat = ProcFile.openIfReadable("/proc/stat");
+        return stat == null ? null : new CpuSource(stat);
+    }
+    
+    @Override
+    public String name() {
+        return "cpu";
+    }
+    
+    @Override
+    public void collect(MetricFrame frame) throws IOException {
+        stat.read();
+        boolean first = lastTimestamp == 0;
+        long elapsedMs = frame.timestamp - lastTimestamp;
+        lastTimestamp = frame.timestamp;
+        
+        if (stat.find("cpu ")) {
+            readFields();
+            long total = 0;
+            for (int i = 0; i < FIELDS; i++) {
+                long ticks = fields[i];
+                fields[i] -= lastAggregate[i];
+                lastAggregate[i] = ticks;
+                total += fields[i];
+            }
+            if (!first && total > 0) {
+                frame.add("cpu_user", (double) (fields[0] + fields[1]) / total);
+                frame.add("cpu_system", (double) (fields[2] + fields[5] + fields[6]) / total);
+                frame.add("cpu_iowait", (double) fields[4] / total);
+                frame.add("cpu_steal", (double) fields[7] / total);
+            }
+        }
+        
+        // The per-core lines follow the aggregate one
+        stat.nextLine();
+        while (stat.startsWith("cpu")) {
+            int core = (int) stat.nextLong();
+            readFields();
+            stat.nextLine();
+            if (core >= coreMetrics.length) {
+                addCores(core + 1);
+            }
+            long total = 0;
+            for (int i = 0; i < FIELDS; i++) {
+                total += fields[i];
+            }
+            long busy = total - fields[3] - fields[4];
+            long totalDelta = total - lastCoreTotal[core];
+            if (lastCoreTotal[core] > 0 && totalDelta > 0) {
+                frame.add(coreMetrics[core], (double) (busy - lastCoreBusy[core]) / totalDelta);
+            }
+            lastCoreBusy[core] = busy;
+            lastCoreTotal[core] = total;
+        }
+        
+        if (stat.find("ctxt ")) {
+            long contextSwitches = stat.nextLong();
+            if (!first && elapsedMs > 0) {
+                frame.add("context_switches_per_sec", (contextSwitches - lastContextSwitches) * 1000.0 / elapsedMs);
+            }
+            lastContextSwitches = contextSwitches;
+        }
+        if (stat.find("procs_running ")) {
+            frame.add("procs_running", stat.nextLong());
+        }
+        if (stat.find("procs_blocked ")) {
+            frame.add("procs_blocked", stat.nextLong());
+        }
+    }
+    
+    private void readFields() {
+        for (int i = 0; i < FIELDS; i++) {
+            fields[i] = stat.nextLong();
+        }
+    }
+    
+    // Only on the first tick, or when a core comes online
+    private void addCores(int cores) {
+        int known = coreMetrics.length;
+        coreMetrics = Arrays.copyOf(coreMetrics, cores);
+        lastCoreBusy = Arrays.copyOf(lastCoreBusy, cores);
+        lastCoreTotal = Arrays.copyOf(lastCoreTotal, cores);
+        for (int i = known; i < cores; i++) {
+            coreMetrics[i] = "cpu" + i + "_usage";
+        }
+    }
+}
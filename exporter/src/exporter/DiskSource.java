@@ -0,0 +1,77 @@
+package exporter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Throughput, IOPS and utilisation per whole disk from /proc/diskstats.
+ * Partitions, loop and ram devices are left out.
+ */
+public class DiskSource implements MetricSource {
+    private static final String[] METRICS = {"read_bytes_per_sec", "write_bytes_per_sec", "reads_per_sec", "writes_per_sec", "util"};
+    
+    private final ProcFile diskstats;
+    private final CounterRows disks = new CounterRows("disk_", METRICS, name ->
+            !name.startsWith("loop") && !name.startsWith("ram") && Files.exists(Paths.get("/sys/block", name)));
+    
+    private DiskSource(ProcFile diskstats) {
+        this.diskstats = diskstats;
+    }
+    
+    public static DiskSource open() {
+        ProcFile diskstats = ProcFile.openIfReadable("/proc/diskstats");
+        return diskstats == null ? null : new DiskSource(diskstats);
+    }
+    
+    @Override
+    public String name() {
+        return "disk";
+    }
+    
+    // Line: major minor name reads merged sectorsRead msReading writes merged sectorsWritten msWriting inFlight msDoingIo ...
+    @Override
+    public void collect(MetricFrame frame) throws IOException {
+        diskstats.read();
+        while (diskstats.hasMore()) {
+            diskstats.nextToken();
+            diskstats.nextToken();
+            if (!diskstats.nextToken()) {
+                diskstats.nextLine();
+                continue;
+            }
+            CounterRows.Row disk = disks.lookup(diskstats);
+            if (!disk.included) {
+                diskstats.nextLine();
+                continue;
+            }
+            long reads = diskstats.nextLong();
+            diskstats.nextLong();
+            long sectorsRead = diskstats.nextLong();
+            diskstats.nextLong();
+            long writes = diskstats.nextLong();
+            diskstats.nextLong();
+            long sectorsWritten = diskstats.nextLong();
+            diskstats.nextLong();
+            diskstats.nextLong();
+            long msDoingIo = diskstats.nextLong();
+            diskstats.nextLine();
+            
+            boolean first = disk.lastTimestamp == 0;
+            long elapsedMs = frame.timestamp - disk.lastTimestamp;
+            disk.lastTimestamp = frame.timestamp;
+            double readBytes = disk.rate(0, sectorsRead, elapsedMs) * 512;
+            double writeBytes = disk.rate(1, sectorsWritten, elapsedMs) * 512;
+            double readOps = disk.rate(2, reads, elapsedMs);
+            double writeOps = disk.rate(3, writes, elapsedMs);
+            double util = disk.rate(4, msDoingIo, elapsedMs) / 1000; // Busy ms per second
+            if (!first) {
+                frame.add(disk.metrics[0], readBytes);
+                frame.add(disk.metrics[1], writeBytes);
+                frame.add(disk.metrics[2], readOps);
+                frame.add(disk.metrics[3], writeOps);
+                frame.add(disk.metrics[4], Math.min(util, 1));
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package exporter;
+
+import java.time.Duration;
+import java.util.Arrays;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingStream;
+
+/**
+ * JVM runtime metrics from JDK Flight Recorder event streaming: GC pauses as a
+ * cumulative histogram, heap used after GC, allocation rate, safepoint time,
+ * monitor contention and CPU load per thread group.
+ *
+ * Events are aggregated on the stream's thread and turned into values once per
+ * period, at a JFR flush; collect only copies the latest values. Overhead
+ * is bounded by the periodic event period, the allocation sampling throttle and
+ * the monitor contention threshold.
+ */
+public class JvmSource implements MetricSource {
+    private static final double[] PAUSE_BOUNDS_MS = {1, 5, 10, 50, 100, 500};
+    private static final String[] PAUSE_BUCKETS = {
+            "jvm_gc_pause_le_1ms", "jvm_gc_pause_le_5ms", "jvm_gc_pause_le_10ms", "jvm_gc_pause_le_50ms",
+            "jvm_gc_pause_le_100ms", "jvm_gc_pause_le_500ms", "jvm_gc_pause_le_inf"};
+    
+    private final RecordingStream stream;
+    private final long periodMs;
+    
+    // Accumulated by the event handlers since the last flush; stream thread only
+    private double pauseMaxMs;
+    private double allocatedBytes;
+    private double safepointMs;
+    private double monitorBlockedMs;
+    private long monitorEvents;
+    private String[] groups = new String[0];
+    private double[] groupLoad = new double[0];
+    private int cpuPeriods;
+    private long lastCpuPeriod;
+    private long lastFlush = System.currentTimeMillis();
+    
+    // Published at each flush, read by collect; guarded by this
+    private final long[] pauseBuckets = new long[PAUSE_BUCKETS.length]; // Cumulative, each bucket counts pauses up to its bound
+    private long pauses;
+    private double pauseTotalMs;
+    private double lastPauseMaxMs;
+    private double heapUsedAfterGc = -1;
+    private double allocationRate;
+    private double safepointMsPerSec;
+    private double monitorBlockedMsPerSec;
+    private double monitorContentionsPerSec;
+    private String[] groupMetrics = new String[0];
+    private double[] groupCpu = new double[0];
+    
+    /**
+     * @param periodMs period of the sampled events (thread CPU load)
+     * @param allocationThrottle JFR throttle of allocation samples, e.g. "100/s"
+     * @param monitorThresholdMs shortest monitor wait that is recorded
+     */
+    public JvmSource(long periodMs, String allocationThrottle, long monitorThresholdMs) {
+        this.periodMs = periodMs;
+        stream = new RecordingStream();
+        stream.setMaxAge(Duration.ofSeconds(10));
+        stream.enable("jdk.GCPhasePause");
+        stream.enable("jdk.GCHeapSummary");
+        stream.enable("jdk.SafepointBegin");
+        stream.enable("jdk.ObjectAllocationSample").with("throttle", allocationThrottle);
+        stream.enable("jdk.JavaMonitorEnter").withThreshold(Duration.ofMillis(monitorThresholdMs));
+        stream.enable("jdk.ThreadCPULoad").withPeriod(Duration.ofMillis(periodMs));
+        
+        stream.onEvent("jdk.GCPhasePause", this::onPause);
+        stream.onEvent("jdk.GCHeapSummary", event -> {
+            if ("After GC".equals(event.getString("when"))) {
+                synchronized (this) {
+                    heapUsedAfterGc = event.getLong("heapUsed");
+                }
+            }
+        });
+        stream.onEvent("jdk.SafepointBegin", event -> safepointMs += millis(event));
+        stream.onEvent("jdk.ObjectAllocationSample", event -> allocatedBytes += event.getLong("weight"));
+        stream.onEvent("jdk.JavaMonitorEnter", event -> {
+            monitorBlockedMs += millis(event);
+            monitorEvents++;
+        });
+        stream.onEvent("jdk.ThreadCPULoad", this::onThreadCpuLoad);
+        stream.onFlush(this::publish);
+        stream.startAsync();
+    }
+    
+    private static double millis(RecordedEvent event) {
+        return event.getDuration().toNanos() / 1e6;
+    }
+    
+    private void onPause(RecordedEvent event) {
+        double ms = millis(event);
+        pauseMaxMs = Math.max(pauseMaxMs, ms);
+        synchronized (this) {
+            pauses++;
+            pauseTotalMs += ms;
+            for (int i = 0; i < PAUSE_BOUNDS_MS.length; i++) {
+                if (ms <= PAUSE_BOUNDS_MS[i]) {
+                    pauseBuckets[i]++;
+                }
+            }
+            pauseBuckets[PAUSE_BUCKETS.length - 1]++;
+        }
+    }
+    
+    // One event per thread per period; the loads are shares of the whole machine
+    private void onThreadCpuLoad(RecordedEvent event) {
+        long start = event.getStartTime().toEpochMilli();
+        if (start - lastCpuPeriod > periodMs / 2) {
+            cpuPeriods++;
+            lastCpuPeriod = start;
+        }
+        RecordedThread thread = event.getThread("eventThread");
+        String group = thread == null || thread.getThreadGroup() == null ? "system" : thread.getThreadGroup().getName();
+        int index = 0;
+        while (index < groups.length && !groups[index].equals(group)) {
+            index++;
+        }
+        if (index == groups.length) {
+            groups = Arrays.copyOf(groups, index + 1);
+            groupLoad = Arrays.copyOf(groupLoad, index + 1);
+            groups[index] = group;
+        }
+        groupLoad[index] += event.getFloat("user") + event.getFloat("system");
+    }
+    
+    // Turns what accumulated over at least one period into rates; JFR flushes come irregularly, often close together
+    private void publish() {
+        long now = System.currentTimeMillis();
+        if (now - lastFlush < periodMs) {
+            return;
+        }
+        double seconds = (now - lastFlush) / 1000.0;
+        lastFlush = now;
+        synchronized (this) {
+            lastPauseMaxMs = pauseMaxMs;
+            allocationRate = allocatedBytes / seconds;
+            safepointMsPerSec = safepointMs / seconds;
+            monitorBlockedMsPerSec = monitorBlockedMs / seconds;
+            monitorContentionsPerSec = monitorEvents / seconds;
+            if (cpuPeriods > 0) {
+                if (groupMetrics.length < groups.length) {
+                    int known = groupMetrics.length;
+                    groupMetrics = Arrays.copyOf(groupMetrics, groups.length);
+                    groupCpu = Arrays.copyOf(groupCpu, groups.length);
+                    for (int i = known; i < groups.length; i++) {
+                        groupMetrics[i] = "jvm_cpu_" + groups[i].toLowerCase().replaceAll("[^a-z0-9]+", "_");
+                    }
+                }
+                for (int i = 0; i < groups.length; i++) {
+                    groupCpu[i] = groupLoad[i] / cpuPeriods;
+                }
+            }
+        }
+        pauseMaxMs = 0;
+        allocatedBytes = 0;
+        safepointMs = 0;
+        monitorBlockedMs = 0;
+        monitorEvents = 0;
+        if (cpuPeriods > 0) {
+            Arrays.fill(groupLoad, 0);
+            cpuPeriods = 0;
+        }
+    }
+    
+    @Override
+    public String name() {
+        return "jvm";
+    }
+    
+    @Override
+    public synchronized void collect(MetricFrame frame) {
+        frame.add("jvm_gc_pauses", pauses);
+        frame.add("jvm_gc_pause_total_ms", pauseTotalMs);
+        frame.add("jvm_gc_pause_max_ms", lastPauseMaxMs);
+        for (int i = 0; i < PAUSE_BUCKETS.length; i++) {
+            frame.add(PAUSE_BUCKETS[i], pauseBuckets[i]);
+        }
+        if (heapUsedAfterGc >= 0) {
+            frame.add("jvm_heap_used_after_gc", heapUsedAfterGc);
+        }
+        frame.add("jvm_alloc_bytes_per_sec", allocationRate);
+        frame.add("jvm_safepoint_ms_per_sec", safepointMsPerSec);
+        frame.add("jvm_monitor_blocked_ms_per_sec", monitorBlockedMsPerSec);
+        frame.add("jvm_monitor_contentions_per_sec", monitorContentionsPerSec);
+        for (int i = 0; i < groupMetrics.length; i++) {
+            frame.add(groupMetrics[i], groupCpu[i]);
+        }
+    }
+    
+    @Override
+    public void close() {
+        stream.close();
+    }
+}
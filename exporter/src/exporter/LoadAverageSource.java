@@ -0,0 +1,32 @@
+package exporter;
+
+import java.io.IOException;
+
+// Load averages and task counts from /proc/loadavg ("0.50 0.50 0.41 2/114 4854")
+public class LoadAverageSource implements MetricSource {
+    private final ProcFile loadavg;
+    
+    private LoadAverageSource(ProcFile loadavg) {
+        this.loadavg = loadavg;
+    }
+    
+    public static LoadAverageSource open() {
+        ProcFile loadavg = ProcFile.openIfReadable("/proc/loadavg");
+        return loadavg == null ? null : new LoadAverageSource(loadavg);
+    }
+    
+    @Override
+    public String name() {
+        return "loadavg";
+    }
+    
+    @Override
+    public void collect(MetricFrame frame) throws IOException {
+        loadavg.read();
+        frame.add("load1", loadavg.nextDouble());
+        frame.add("load5", loadavg.nextDouble());
+        frame.add("load15", loadavg.nextDouble());
+        frame.add("tasks_runnable", loadavg.nextLong());
+        frame.add("tasks_total", loadavg.nextLong());
+    }
+}
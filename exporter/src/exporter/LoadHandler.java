@@ -9,13 +9,16 @@ import java.util.List;
 import java.util.ArrayList;
 
 public class LoadHandler implements HttpHandler {
+    // Load runs in its own thread group, so the jvm source reports its CPU apart from the exporter's
+    private static final ThreadGroup LOAD_THREADS = new ThreadGroup("load");
+    
     private ExecutorService executorService;
     private List<byte[]> memoryBlocks; // Added as class field
     private List<Thread> threads;      // Added as class field
     private volatile boolean stopCpuLoad = false;
     
     public LoadHandler() {
-        this.executorService = Executors.newCachedThreadPool();
+        this.executorService = Executors.newCachedThreadPool(r -> new Thread(LOAD_THREADS, r));
         this.memoryBlocks = new ArrayList<>();
         this.threads = new ArrayList<>();
     }
@@ -73,7 +76,7 @@ public class LoadHandler implements HttpHandler {
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
-        executorService = Executors.newCachedThreadPool(); // Restart executor service
+        executorService = Executors.newCachedThreadPool(r -> new Thread(LOAD_THREADS, r)); // Restart executor service
         
         // Clear memory load
         memoryBlocks.clear();
@@ -137,7 +140,7 @@ public class LoadHandler implements HttpHandler {
     private void generateThreadLoad(int durationSeconds) {
         try {
             for (int i = 0; i < 100; i++) {
-                Thread t = new Thread(() -> {
+                Thread t = new Thread(LOAD_THREADS, () -> {
                     try {
                         Thread.sleep(durationSeconds * 1000);
                     } catch (InterruptedException e) {
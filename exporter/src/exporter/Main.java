@@ -1,7 +1,12 @@
 package exporter;
 
 import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
 
 public class Main {
@@ -9,46 +14,138 @@ public class Main {
     private static final String COLLECTOR_HOST = System.getenv().getOrDefault("COLLECTOR_HOST", "collector");
     private static final int COLLECTOR_PORT = Integer.parseInt(System.getenv().getOrDefault("COLLECTOR_PORT", "4000"));
     private static final int HTTP_PORT = Integer.parseInt(System.getenv().getOrDefault("HTTP_PORT", "8080"));
+    private static final String WIRE_FORMAT = System.getenv().getOrDefault("WIRE_FORMAT", "json");
+    private static final String SOURCES = System.getenv().getOrDefault("SOURCES", "basic");
+    private static final String CGROUP_DIR = System.getenv().getOrDefault("CGROUP_DIR", ""); // Empty: this process's own cgroup
+    private static final long JFR_PERIOD_MS = Long.parseLong(System.getenv().getOrDefault("JFR_PERIOD_MS", "1000"));
+    private static final String JFR_ALLOCATION_THROTTLE = System.getenv().getOrDefault("JFR_ALLOCATION_THROTTLE", "100/s");
+    private static final long JFR_MONITOR_THRESHOLD_MS = Long.parseLong(System.getenv().getOrDefault("JFR_MONITOR_THRESHOLD_MS", "10"));
+    // Sources are sampled every COLLECT_INTERVAL_MS while active, backing off to COLLECT_INTERVAL_MAX_MS when stable
+    private static final long COLLECT_INTERVAL_MS = Long.parseLong(System.getenv().getOrDefault("COLLECT_INTERVAL_MS", "100"));
+    private static final long COLLECT_INTERVAL_MAX_MS = Long.parseLong(System.getenv().getOrDefault("COLLECT_INTERVAL_MAX_MS", "1000"));
+    private static final double ADAPTIVE_CHANGE_THRESHOLD = Double.parseDouble(System.getenv().getOrDefault("ADAPTIVE_CHANGE_THRESHOLD", "0.05"));
+    // Batching, change suppression and keyframes apply to the binary format only
+    private static final long SEND_INTERVAL_MS = Long.parseLong(System.getenv().getOrDefault("SEND_INTERVAL_MS", "1000"));
+    private static final double DEADBAND = Double.parseDouble(System.getenv().getOrDefault("DEADBAND", "0"));
+    private static final long KEYFRAME_INTERVAL_MS = Long.parseLong(System.getenv().getOrDefault("KEYFRAME_INTERVAL_MS", "10000"));
+    // Datagrams kept for NACKed retransmission (0 disables it), and the most resent per second
+    private static final int RETRANSMIT_BUFFER = Integer.parseInt(System.getenv().getOrDefault("RETRANSMIT_BUFFER", "0"));
+    private static final double RETRANSMIT_RATE = Double.parseDouble(System.getenv().getOrDefault("RETRANSMIT_RATE", "20"));
+    // Labels added to every series, e.g. region=eu,service=api
+    private static final String LABELS = System.getenv().getOrDefault("LABELS", "");
     
     public static void main(String[] args) throws Exception {
         // Initialize components
-        MetricCollector metricCollector = new MetricCollector(DEVICE_ID);
-        UdpSender udpSender = new UdpSender(COLLECTOR_HOST, COLLECTOR_PORT);
+        MetricCollector metricCollector = new MetricCollector(DEVICE_ID, createSources(),
+                COLLECT_INTERVAL_MS, COLLECT_INTERVAL_MAX_MS, ADAPTIVE_CHANGE_THRESHOLD);
+        UdpSender udpSender = new UdpSender(COLLECTOR_HOST, COLLECTOR_PORT, WIRE_FORMAT,
+                SEND_INTERVAL_MS, DEADBAND, KEYFRAME_INTERVAL_MS, RETRANSMIT_BUFFER, RETRANSMIT_RATE);
+        udpSender.useLabels(parseLabels(LABELS));
         
         // Setup HTTP server
         HttpServer server = HttpServer.create(new InetSocketAddress(HTTP_PORT), 0);
         server.createContext("/load", new LoadHandler());
+        server.createContext("/sources", new SourcesHandler(metricCollector));
+        server.createContext("/sender", new SenderHandler(udpSender));
         server.setExecutor(Executors.newFixedThreadPool(10));
         server.start();
         
         System.out.println("Metric Exporter started on port " + HTTP_PORT);
-        System.out.println("Sending metrics to " + COLLECTOR_HOST + ":" + COLLECTOR_PORT);
+        System.out.println("Sending metrics to " + COLLECTOR_HOST + ":" + COLLECTOR_PORT + " (" + WIRE_FORMAT + ")");
+        System.out.println("Metric sources: " + String.join(", ", metricCollector.sourceNames()));
         
         // Schedule metric collection and sending
         ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
         
-        // Schedule metric collection every 100ms
+        // Schedule metric collection every COLLECT_INTERVAL_MS; one sampling pass feeds both the send and the alert check
+        MetricFrame frame = new MetricFrame();
+        MetricFrame alerts = new MetricFrame();
+        MetricFrame intervals = new MetricFrame();
         scheduler.scheduleAtFixedRate(() -> {
             try {
                 // Collect and send metrics
-                udpSender.sendMetrics(metricCollector.collectMetrics());
+                metricCollector.collect(frame, intervals);
+                udpSender.sendMetrics(frame);
+                if (intervals.count > 0) {
+                    udpSender.sendIntervals(intervals);
+                }
                 
                 // Check and send alerts if any
-                var alerts = metricCollector.checkAlerts();
-                if (!alerts.isEmpty()) {
-                    udpSender.sendAlert(DEVICE_ID, alerts);
+                metricCollector.checkAlerts(frame, alerts);
+                if (alerts.count > 0) {
+                    udpSender.sendAlert(alerts);
                 }
             } catch (Exception e) {
                 e.printStackTrace();
             }
-        }, 0, 100, TimeUnit.MILLISECONDS);
+        }, 0, COLLECT_INTERVAL_MS, TimeUnit.MILLISECONDS);
         
         // Add shutdown hook
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.out.println("Shutting down Metric Exporter...");
             scheduler.shutdown();
+            metricCollector.close();
             server.stop(0);
             udpSender.close();
         }));
     }
+    
+    private static Map<String, String> parseLabels(String list) {
+        Map<String, String> labels = new LinkedHashMap<>();
+        for (String pair : list.split(",")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                labels.put(pair.substring(0, eq).trim(), pair.substring(eq + 1).trim());
+            } else if (!pair.isBlank()) {
+                throw new IllegalArgumentException("Invalid label " + pair + ", expected name=value");
+            }
+        }
+        return labels;
+    }
+    
+    // SOURCES is a comma separated list of basic, cpu, meminfo, disk, net, loadavg, cgroup and jvm
+    private static List<MetricSource> createSources() throws IOException {
+        List<MetricSource> sources = new ArrayList<>();
+        for (String name : SOURCES.split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            MetricSource source;
+            switch (name) {
+                case "basic":
+                    source = new BasicSource(CGROUP_DIR);
+                    break;
+                case "cpu":
+                    source = CpuSource.open();
+                    break;
+                case "meminfo":
+                    source = MemorySource.open();
+                    break;
+                case "disk":
+                    source = DiskSource.open();
+                    break;
+                case "net":
+                    source = NetworkSource.open();
+                    break;
+                case "loadavg":
+                    source = LoadAverageSource.open();
+                    break;
+                case "cgroup":
+                    source = CgroupSource.open(CGROUP_DIR);
+                    break;
+                case "jvm":
+                    source = new JvmSource(JFR_PERIOD_MS, JFR_ALLOCATION_THROTTLE, JFR_MONITOR_THRESHOLD_MS);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown metric source: " + name);
+            }
+            if (source == null) {
+                System.err.println("Metric source " + name + " is not available on this host, skipping it");
+            } else {
+                sources.add(source);
+            }
+        }
+        return sources;
+    }
 }
@@ -0,0 +1,35 @@
+package exporter;
+
+import java.io.IOException;
+
+// Memory detail from /proc/meminfo beyond the basic mem_total and mem_free, in bytes
+public class MemorySource implements MetricSource {
+    private static final String[] KEYS = {"MemAvailable:", "Buffers:", "Cached:", "Dirty:", "SwapTotal:", "SwapFree:"};
+    private static final String[] METRICS = {"mem_available", "mem_buffers", "mem_cached", "mem_dirty", "swap_total", "swap_free"};
+    
+    private final ProcFile meminfo;
+    
+    private MemorySource(ProcFile meminfo) {
+        this.meminfo = meminfo;
+    }
+    
+    public static MemorySource open() {
+        ProcFile meminfo = ProcFile.openIfReadable("/proc/meminfo");
+        return meminfo == null ? null : new MemorySource(meminfo);
+    }
+    
+    @Override
+    public String name() {
+        return "meminfo";
+    }
+    
+    @Override
+    public void collect(MetricFrame frame) throws IOException {
+        meminfo.read();
+        for (int i = 0; i < KEYS.length; i++) {
+            if (meminfo.find(KEYS[i])) {
+                frame.add(METRICS[i], meminfo.nextLong() * 1024);
+            }
+        }
+    }
+}
@@ -1,92 +1,228 @@
 package exporter;
 
-import java.util.*;
-import java.lang.management.ManagementFactory;
-import java.lang.management.ThreadMXBean;
-import com.sun.management.OperatingSystemMXBean;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONObject;
 
+/**
+ * Runs the enabled metric sources into one frame per tick and times each of
+ * them, so the whole sampling pass can be kept within its budget.
+ *
+ * Each source has its own sampling interval between a minimum (the tick) and a
+ * maximum. It drops to the minimum as soon as one of its metrics moves by more
+ * than the change threshold (relative to the previous sample) and by more than
+ * three times its usual move, or comes within 10% of an alert threshold; it
+ * doubles after a run of quiet samples. The usual move is a moving average, so
+ * a metric that is merely noisy does not keep its source sampling fast.
+ * Intervals are reported to the collector when they change and every
+ * INTERVAL_REFRESH_MS, so it can weight rollups by the time each sample covers.
+ */
 public class MetricCollector {
+    private static final int QUIET_SAMPLES_BEFORE_BACKOFF = 5;
+    private static final long INTERVAL_REFRESH_MS = 10_000; // Lets a restarted collector relearn them
+    
+    // The exporter's own alerts: cpu_usage > 80%, mem_free < 100MB, threads > 100
+    private static final String[] ALERT_METRICS = {"cpu_usage", "mem_free", "threads"};
+    private static final double[] ALERT_THRESHOLDS = {0.8, 100_000_000, 100};
+    private static final int[] ALERT_DIRECTIONS = {1, -1, 1};
+    
     private final String deviceId;
-    private final com.sun.management.OperatingSystemMXBean osBean;
-    private final ThreadMXBean threadBean;
+    private final MetricSource[] sources;
+    private final long minIntervalMs;
+    private final long maxIntervalMs;
+    private final double changeThreshold;
+    
+    // Adaptive sampling state per source; collector thread only
+    private final long[] intervalMs;
+    private final long[] nextDue;
+    private final int[] quietSamples;
+    private final boolean[] intervalChanged;
+    private double[][] previousValues;
+    private double[][] usualMoves; // Moving average of |change| per metric
+    private int[] previousCounts;
+    private long intervalsSentAt;
+    
+    // Per source, guarded by this; max is since the last stats() call
+    private final long[] calls;
+    private final long[] errors;
+    private final long[] totalNanos;
+    private final long[] lastNanos;
+    private final long[] maxNanos;
     
     public MetricCollector(String deviceId) {
+        this(deviceId, List.of(new BasicSource()), 100, 100, 0);
+    }
+    
+    // With minIntervalMs == maxIntervalMs every source is sampled on every tick
+    public MetricCollector(String deviceId, List<MetricSource> sources,
+                           long minIntervalMs, long maxIntervalMs, double changeThreshold) {
         this.deviceId = deviceId;
-        this.threadBean = ManagementFactory.getThreadMXBean();
-        
-        Object tempBean = ManagementFactory.getOperatingSystemMXBean();
-        if (!(tempBean instanceof com.sun.management.OperatingSystemMXBean)) {
-            throw new RuntimeException("com.sun.management.OperatingSystemMXBean not available");
-        }
-        this.osBean = (com.sun.management.OperatingSystemMXBean) tempBean;
+        this.sources = sources.toArray(new MetricSource[0]);
+        this.minIntervalMs = minIntervalMs;
+        this.maxIntervalMs = Math.max(minIntervalMs, maxIntervalMs);
+        this.changeThreshold = changeThreshold;
+        int n = this.sources.length;
+        this.intervalMs = new long[n];
+        this.nextDue = new long[n];
+        this.quietSamples = new int[n];
+        this.intervalChanged = new boolean[n];
+        this.previousValues = new double[n][16];
+        this.usualMoves = new double[n][16];
+        this.previousCounts = new int[n];
+        Arrays.fill(intervalMs, minIntervalMs);
+        this.calls = new long[n];
+        this.errors = new long[n];
+        this.totalNanos = new long[n];
+        this.lastNanos = new long[n];
+        this.maxNanos = new long[n];
     }
     
-    public Map<String, Object> collectMetrics() {
-        Map<String, Object> metrics = new HashMap<>();
-        metrics.put("dev", deviceId);
-        metrics.put("ts", System.currentTimeMillis() / 1000);
-        
-        List<Object[]> metricList = new ArrayList<>();
-        
-        // Cast to com.sun.management.OperatingSystemMXBean (we checked in constructor)
-        com.sun.management.OperatingSystemMXBean sunOsBean = (com.sun.management.OperatingSystemMXBean) osBean;
-        
-        // Get CPU usage
-        double cpuUsage = sunOsBean.getCpuLoad();
-        if (cpuUsage < 0) {
-            cpuUsage = 0.0; // Default to 0 if not available
+    public String[] sourceNames() {
+        String[] names = new String[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            names[i] = sources[i].name();
         }
-        metricList.add(new Object[]{"cpu_usage", cpuUsage}); // 0-1 scale
-        
-        // Memory metrics
-        long totalMemory = sunOsBean.getTotalMemorySize();
-        long freeMemory = sunOsBean.getFreeMemorySize();
-        metricList.add(new Object[]{"mem_total", totalMemory});
-        metricList.add(new Object[]{"mem_free", freeMemory});
-        
-        // Thread count
-        int threadCount = threadBean.getThreadCount();
-        metricList.add(new Object[]{"threads", threadCount});
-        
-        metrics.put("m", metricList);
-        return metrics;
+        return names;
     }
     
-    public List<Map<String, Object>> checkAlerts() {
-        List<Map<String, Object>> alerts = new ArrayList<>();
-        
-        try {
-            // Check CPU usage
-            double cpuUsage = osBean.getCpuLoad();
-            if (cpuUsage > 0.8) { // CPU usage > 80%
-                Map<String, Object> alert = new HashMap<>();
-                alert.put("metric", "cpu_usage");
-                alert.put("value", cpuUsage);
-                alerts.add(alert);
+    /**
+     * Samples every source that is due into {@code frame}, and puts the interval
+     * of each metric whose source changed its interval into {@code intervals}.
+     * Called every tick, so it must not allocate: the frames are reused and the
+     * names are constants. A failing source is counted and skipped for this tick.
+     */
+    public void collect(MetricFrame frame, MetricFrame intervals) {
+        long now = System.currentTimeMillis();
+        frame.reset(deviceId, now);
+        intervals.reset(deviceId, now);
+        boolean refresh = now - intervalsSentAt >= INTERVAL_REFRESH_MS;
+        if (refresh) {
+            intervalsSentAt = now;
+        }
+        for (int i = 0; i < sources.length; i++) {
+            // Half a tick of slack, so scheduling jitter does not skip a whole tick
+            if (now + minIntervalMs / 2 < nextDue[i]) {
+                continue;
             }
-            
-            // Check memory
-            long freeMemory = osBean.getFreeMemorySize();
-            if (freeMemory < 100_000_000) { // Free memory < 100MB
-                Map<String, Object> alert = new HashMap<>();
-                alert.put("metric", "mem_free");
-                alert.put("value", freeMemory);
-                alerts.add(alert);
+            int first = frame.count;
+            long start = System.nanoTime();
+            boolean failed = false;
+            try {
+                sources[i].collect(frame);
+            } catch (IOException e) {
+                failed = true;
             }
-            
-            // Check thread count
-            int threadCount = threadBean.getThreadCount();
-            if (threadCount > 100) {
-                Map<String, Object> alert = new HashMap<>();
-                alert.put("metric", "threads");
-                alert.put("value", threadCount);
-                alerts.add(alert);
+            long nanos = System.nanoTime() - start;
+            synchronized (this) {
+                calls[i]++;
+                totalNanos[i] += nanos;
+                lastNanos[i] = nanos;
+                maxNanos[i] = Math.max(maxNanos[i], nanos);
+                if (failed) {
+                    errors[i]++;
+                }
             }
             
-        } catch (Exception e) {
-            System.err.println("Error checking alerts: " + e.getMessage());
+            adapt(i, frame, first);
+            nextDue[i] = now + intervalMs[i];
+            if (intervalChanged[i] || refresh) {
+                intervalChanged[i] = false;
+                for (int j = first; j < frame.count; j++) {
+                    intervals.add(frame.names[j], intervalMs[i]);
+                }
+            }
         }
+    }
+    
+    // Picks the next interval of source i from the samples it just wrote at frame[first..]
+    private void adapt(int i, MetricFrame frame, int first) {
+        int count = frame.count - first;
+        double[] previous = previousValues[i];
+        double[] usual = usualMoves[i];
+        boolean active = count != previousCounts[i];
+        if (previous.length < count) {
+            previous = previousValues[i] = new double[count * 2];
+            usual = usualMoves[i] = new double[count * 2];
+        }
+        for (int j = 0; j < count; j++) {
+            double value = frame.values[first + j];
+            double last = previous[j];
+            double move = Math.abs(value - last);
+            // Relative, but at least absolute for small values, so 0-1 shares need a real move
+            if (!active && move > changeThreshold * Math.max(Math.abs(last), 1) && move > 3 * usual[j]) {
+                active = true;
+            }
+            usual[j] = usual[j] * 0.8 + move * 0.2;
+            if (!active && nearAlert(frame.names[first + j], value)) {
+                active = true;
+            }
+            previous[j] = value;
+        }
+        previousCounts[i] = count;
         
-        return alerts;
+        long interval = intervalMs[i];
+        if (active) {
+            interval = minIntervalMs;
+            quietSamples[i] = 0;
+        } else if (++quietSamples[i] >= QUIET_SAMPLES_BEFORE_BACKOFF) {
+            interval = Math.min(interval * 2, maxIntervalMs);
+            quietSamples[i] = 0;
+        }
+        if (interval != intervalMs[i]) {
+            intervalMs[i] = interval;
+            intervalChanged[i] = true;
+        }
+    }
+    
+    private static boolean nearAlert(String name, double value) {
+        for (int i = 0; i < ALERT_METRICS.length; i++) {
+            if (name.equals(ALERT_METRICS[i])) {
+                // Within 10% of the threshold, or past it
+                return ALERT_DIRECTIONS[i] > 0 ? value > ALERT_THRESHOLDS[i] * 0.9 : value < ALERT_THRESHOLDS[i] * 1.1;
+            }
+        }
+        return false;
+    }
+    
+    // Fills alerts with the samples of frame that cross a threshold, reusing the values already collected
+    public void checkAlerts(MetricFrame frame, MetricFrame alerts) {
+        alerts.reset(frame.deviceId, frame.timestamp);
+        for (int i = 0; i < frame.count; i++) {
+            String name = frame.names[i];
+            double value = frame.values[i];
+            for (int a = 0; a < ALERT_METRICS.length; a++) {
+                if (name.equals(ALERT_METRICS[a]) && (value - ALERT_THRESHOLDS[a]) * ALERT_DIRECTIONS[a] > 0) {
+                    alerts.add(name, value);
+                }
+            }
+        }
+    }
+    
+    public void close() {
+        for (MetricSource source : sources) {
+            source.close();
+        }
+    }
+    
+    // Collection time per source in microseconds; resets the max
+    public synchronized JSONObject stats() {
+        JSONArray list = new JSONArray();
+        double totalMeanMicros = 0;
+        for (int i = 0; i < sources.length; i++) {
+            double meanMicros = calls[i] == 0 ? 0 : totalNanos[i] / 1000.0 / calls[i];
+            totalMeanMicros += meanMicros;
+            list.put(new JSONObject()
+                    .put("name", sources[i].name())
+                    .put("calls", calls[i])
+                    .put("intervalMs", intervalMs[i])
+                    .put("errors", errors[i])
+                    .put("meanMicros", meanMicros)
+                    .put("lastMicros", lastNanos[i] / 1000.0)
+                    .put("maxMicros", maxNanos[i] / 1000.0));
+            maxNanos[i] = 0;
+        }
+        return new JSONObject().put("sources", list).put("totalMeanMicros", totalMeanMicros);
     }
 }
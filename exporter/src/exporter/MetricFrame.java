@@ -0,0 +1,32 @@
+package exporter;
+
+import java.util.Arrays;
+
+/**
+ * The samples of one collection tick. A single instance is refilled every tick,
+ * so names are expected to be constants: they are kept by reference and used as
+ * keys for per-series state downstream.
+ */
+public class MetricFrame {
+    public String deviceId;
+    public long timestamp; // milliseconds
+    public String[] names = new String[16];
+    public double[] values = new double[16];
+    public int count;
+    
+    public void reset(String deviceId, long timestamp) {
+        this.deviceId = deviceId;
+        this.timestamp = timestamp;
+        count = 0;
+    }
+    
+    public void add(String name, double value) {
+        if (count == names.length) {
+            names = Arrays.copyOf(names, count * 2);
+            values = Arrays.copyOf(values, count * 2);
+        }
+        names[count] = name;
+        values[count] = value;
+        count++;
+    }
+}
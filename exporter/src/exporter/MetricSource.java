@@ -0,0 +1,18 @@
+package exporter;
+
+import java.io.IOException;
+
+/**
+ * A group of metrics read together; the exporter runs the ones named in
+ * SOURCES. collect is called every tick, so once its rows are known it must
+ * not allocate: metric names are built once and reused (see MetricFrame).
+ */
+public interface MetricSource {
+    String name();
+    
+    void collect(MetricFrame frame) throws IOException;
+    
+    // Stops whatever the source runs in the background
+    default void close() {
+    }
+}
@@ -0,0 +1,70 @@
+package exporter;
+
+import java.io.IOException;
+
+/**
+ * Traffic, errors and drops per network interface from /proc/net/dev; the
+ * loopback interface is left out.
+ */
+public class NetworkSource implements MetricSource {
+    private static final String[] METRICS = {"rx_bytes_per_sec", "tx_bytes_per_sec", "rx_packets_per_sec", "tx_packets_per_sec", "errors_per_sec", "drops_per_sec"};
+    
+    private final ProcFile netdev;
+    private final long[] fields = new long[16];
+    private final CounterRows interfaces = new CounterRows("net_", METRICS, name -> !name.equals("lo"));
+    
+    private NetworkSource(ProcFile netdev) {
+        this.netdev = netdev;
+    }
+    
+    public static NetworkSource open() {
+        ProcFile netdev = ProcFile.openIfReadable("/proc/net/dev");
+        return netdev == null ? null : new NetworkSource(netdev);
+    }
+    
+    @Override
+    public String name() {
+        return "net";
+    }
+    
+    // After two header lines: "name: rxBytes rxPackets rxErrs rxDrop fifo frame compressed multicast txBytes txPackets txErrs txDrop ..."
+    @Override
+    public void collect(MetricFrame frame) throws IOException {
+        netdev.read();
+        netdev.nextLine();
+        netdev.nextLine();
+        while (netdev.hasMore()) {
+            if (!netdev.nextToken()) {
+                netdev.nextLine();
+                continue;
+            }
+            CounterRows.Row iface = interfaces.lookup(netdev);
+            if (!iface.included) {
+                netdev.nextLine();
+                continue;
+            }
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = netdev.nextLong();
+            }
+            netdev.nextLine();
+            
+            boolean first = iface.lastTimestamp == 0;
+            long elapsedMs = frame.timestamp - iface.lastTimestamp;
+            iface.lastTimestamp = frame.timestamp;
+            double rxBytes = iface.rate(0, fields[0], elapsedMs);
+            double txBytes = iface.rate(1, fields[8], elapsedMs);
+            double rxPackets = iface.rate(2, fields[1], elapsedMs);
+            double txPackets = iface.rate(3, fields[9], elapsedMs);
+            double errors = iface.rate(4, fields[2] + fields[10], elapsedMs);
+            double drops = iface.rate(5, fields[3] + fields[11], elapsedMs);
+            if (!first) {
+                frame.add(iface.metrics[0], rxBytes);
+                frame.add(iface.metrics[1], txBytes);
+                frame.add(iface.metrics[2], rxPackets);
+                frame.add(iface.metrics[3], txPackets);
+                frame.add(iface.metrics[4], errors);
+                frame.add(iface.metrics[5], drops);
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package exporter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A /proc file kept open and re-read from offset 0 on every sample (the kernel
+ * regenerates the content on each read), with just enough hand-written parsing
+ * for its line-oriented text. Nothing allocates after construction unless the
+ * file outgrows the buffer, or a caller asks for {@link #tokenString}.
+ * Also used for cgroup files, which behave the same.
+ */
+public class ProcFile {
+    private final FileChannel channel;
+    private ByteBuffer direct;
+    private byte[] data;
+    private int length;
+    private int pos;
+    private int tokenStart;
+    private int tokenEnd;
+    
+    private ProcFile(FileChannel channel, int initialSize) {
+        this.channel = channel;
+        this.direct = ByteBuffer.allocateDirect(initialSize);
+        this.data = new byte[initialSize];
+    }
+    
+    // null when the file does not exist here (not Linux, or the feature is off)
+    public static ProcFile openIfReadable(String path) {
+        Path file = Paths.get(path);
+        if (!Files.isReadable(file)) {
+            return null;
+        }
+        try {
+            return new ProcFile(FileChannel.open(file, StandardOpenOption.READ), 8192);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    
+    // Reads the whole file and moves to its start
+    public void read() throws IOException {
+        while (true) {
+            direct.clear();
+            long offset = 0;
+            int n;
+            while (direct.hasRemaining() && (n = channel.read(direct, offset)) > 0) {
+                offset += n;
+            }
+            if (!direct.hasRemaining()) {
+                direct = ByteBuffer.allocateDirect(direct.capacity() * 2);
+                data = new byte[direct.capacity()];
+                continue;
+            }
+            direct.flip();
+            length = direct.remaining();
+            direct.get(data, 0, length);
+            pos = 0;
+            return;
+        }
+    }
+    
+    /**
+     * Moves to just after the next line that starts with {@code prefix} (ASCII),
+     * wrapping around to the top once, so keys can be looked up in any order.
+     * Returns false, without moving, if there is none.
+     */
+    public boolean find(String prefix) {
+        int from = pos;
+        for (int pass = 0; pass < 2; pass++) {
+            while (pos < length && (pass == 0 || pos < from)) {
+                if (startsWith(prefix)) {
+                    pos += prefix.length();
+                    return true;
+                }
+                nextLine();
+            }
+            pos = 0;
+        }
+        pos = from;
+        return false;
+    }
+    
+    // Moves to just after key on the current line; false, at the line end, if it is not there
+    public boolean findInLine(String key) {
+        while (pos < length && data[pos] != '\n') {
+            if (startsWith(key)) {
+                pos += key.length();
+                return true;
+            }
+            pos++;
+        }
+        return false;
+    }
+    
+    public boolean hasMore() {
+        return pos < length;
+    }
+    
+    // Whether the current line continues with prefix (ASCII)
+    public boolean startsWith(String prefix) {
+        if (pos + prefix.length() > length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (data[pos + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    // Skips to the next field on the line; 0 when the line has no more numbers
+    public long nextLong() {
+        while (pos < length && data[pos] != '\n' && (data[pos] < '0' || data[pos] > '9')) {
+            pos++;
+        }
+        long value = 0;
+        while (pos < length && data[pos] >= '0' && data[pos] <= '9') {
+            value = value * 10 + (data[pos++] - '0');
+        }
+        return value;
+    }
+    
+    // A number like "0.52"; no exponents, as /proc never prints them
+    public double nextDouble() {
+        long whole = nextLong();
+        if (pos >= length || data[pos] != '.') {
+            return whole;
+        }
+        pos++;
+        long fraction = 0;
+        long scale = 1;
+        while (pos < length && data[pos] >= '0' && data[pos] <= '9') {
+            fraction = fraction * 10 + (data[pos++] - '0');
+            scale *= 10;
+        }
+        return whole + (double) fraction / scale;
+    }
+    
+    /**
+     * Moves over the next word on the line, with blanks and ':' as separators,
+     * and returns false if the line has none. Read it with {@link #tokenEquals}.
+     */
+    public boolean nextToken() {
+        while (pos < length && (data[pos] == ' ' || data[pos] == '\t' || data[pos] == ':')) {
+            pos++;
+        }
+        tokenStart = pos;
+        while (pos < length && data[pos] != ' ' && data[pos] != '\t' && data[pos] != ':' && data[pos] != '\n') {
+            pos++;
+        }
+        tokenEnd = pos;
+        return tokenEnd > tokenStart;
+    }
+    
+    public boolean tokenEquals(byte[] name) {
+        return Arrays.equals(data, tokenStart, tokenEnd, name, 0, name.length);
+    }
+    
+    // Allocates; only for tokens seen for the first time
+    public String tokenString() {
+        return new String(data, tokenStart, tokenEnd - tokenStart, StandardCharsets.UTF_8);
+    }
+    
+    public void nextLine() {
+        while (pos < length && data[pos] != '\n') {
+            pos++;
+        }
+        pos++;
+    }
+    
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,25 @@
+package exporter;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// GET /sender: datagram, NACK and retransmission counts, see UdpSender.stats
+public class SenderHandler implements HttpHandler {
+    private final UdpSender udpSender;
+    
+    public SenderHandler(UdpSender udpSender) {
+        this.udpSender = udpSender;
+    }
+    
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        byte[] response = udpSender.stats().toString().getBytes();
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, response.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(response);
+        }
+    }
+}
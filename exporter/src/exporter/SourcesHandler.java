@@ -0,0 +1,25 @@
+package exporter;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// GET /sources: collection time per metric source, see MetricCollector.stats
+public class SourcesHandler implements HttpHandler {
+    private final MetricCollector metricCollector;
+    
+    public SourcesHandler(MetricCollector metricCollector) {
+        this.metricCollector = metricCollector;
+    }
+    
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        byte[] response = metricCollector.stats().toString().getBytes();
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, response.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(response);
+        }
+    }
+}
@@ -1,41 +1,422 @@
 package exporter;
 
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 import org.json.*;
 
 public class UdpSender {
-    private final DatagramSocket socket;
-    private final InetAddress address;
-    private final int port;
+    private static final int MAX_NACK_RANGES = 64;
+    private static final double[] UNSENDABLE = new double[1]; // lastSent entry of a name too long for the binary format
+    
+    private final DatagramChannel channel;
+    private final InetSocketAddress target;
+    private final boolean binary;
+    private final int epoch = ThreadLocalRandom.current().nextInt(); // Tells the collector this run from earlier ones
+    private final WireProtocol wireProtocol = new WireProtocol(epoch);
+    private int sequence; // Of the next datagram; retransmissions keep their original number
+    private JSONObject labels; // Sent with every JSON datagram; null without labels
+    
+    // Binary batching: ticks accumulate in wireProtocol's datagram until the send interval passes or it is full
+    private final long sendIntervalMs;
+    private final double deadband;
+    private final long keyframeIntervalMs;
+    private final Map<String, double[]> lastSent = new HashMap<>(); // Mutable holders, so updates do not box
+    private long lastKeyframe;
+    private String batchDevice; // null while no batch is open
+    private String[] tickNames = new String[16];
+    private double[] tickValues = new double[16];
+    
+    // Retransmit ring: the last datagrams sent, by sequence number modulo its size; null when disabled
+    private final ByteBuffer[] retained;
+    private final int[] retainedSequences;
+    private final boolean[] retransmitted; // Each datagram is resent at most once
+    private final double retransmitRate; // Datagrams per second, also the burst size
+    private double retransmitTokens;
+    private long tokensRefilledAt;
+    
+    private long datagramsSent;
+    private long namesSkipped;
+    private long nacksReceived;
+    private long retransmits;
+    private long retransmitsThrottled;
+    private long retransmitsUnavailable;
     
     public UdpSender(String host, int port) throws Exception {
-        this.socket = new DatagramSocket();
-        this.address = InetAddress.getByName(host);
-        this.port = port;
+        this(host, port, "json");
+    }
+    
+    // wireFormat is "json" (the original format) or "binary" (see WireProtocol)
+    public UdpSender(String host, int port, String wireFormat) throws Exception {
+        this(host, port, wireFormat, 0, 0, 0);
+    }
+    
+    /**
+     * In binary format every call to sendMetrics is one tick of a batch datagram,
+     * sent once sendIntervalMs has passed since its first tick. A sample is left
+     * out when it differs from the last value sent by no more than deadband
+     * (relative; 0 only drops exact repeats), except in a keyframe tick, which
+     * carries every series and comes every keyframeIntervalMs.
+     */
+    public UdpSender(String host, int port, String wireFormat,
+                     long sendIntervalMs, double deadband, long keyframeIntervalMs) throws Exception {
+        this(host, port, wireFormat, sendIntervalMs, deadband, keyframeIntervalMs, 0, 0);
+    }
+    
+    /**
+     * With retransmitBuffer > 0 the last that many datagrams are kept and resent
+     * when the collector NACKs them, at most retransmitRate per second and each
+     * at most once, so recovery cannot add much to the traffic that got lost.
+     */
+    public UdpSender(String host, int port, String wireFormat, long sendIntervalMs, double deadband,
+                     long keyframeIntervalMs, int retransmitBuffer, double retransmitRate) throws Exception {
+        this.channel = DatagramChannel.open();
+        this.channel.bind(null); // NACKs come back to the port datagrams are sent from
+        this.target = new InetSocketAddress(InetAddress.getByName(host), port);
+        this.binary = "binary".equalsIgnoreCase(wireFormat);
+        this.sendIntervalMs = sendIntervalMs;
+        this.deadband = deadband;
+        this.keyframeIntervalMs = keyframeIntervalMs;
+        this.lastKeyframe = -keyframeIntervalMs;
+        this.retransmitRate = retransmitRate;
+        this.retransmitTokens = retransmitRate;
+        if (retransmitBuffer > 0) {
+            retained = new ByteBuffer[retransmitBuffer];
+            retainedSequences = new int[retransmitBuffer];
+            retransmitted = new boolean[retransmitBuffer];
+            for (int i = 0; i < retransmitBuffer; i++) {
+                retained[i] = ByteBuffer.allocate(1472);
+                retransmitted[i] = true; // Nothing to resend yet
+            }
+            Thread nackListener = new Thread(this::receiveNacks, "nack-listener");
+            nackListener.setDaemon(true);
+            nackListener.start();
+        } else {
+            retained = null;
+            retainedSequences = null;
+            retransmitted = null;
+        }
     }
     
-    public void sendMetrics(Map<String, Object> metrics) throws Exception {
-        JSONObject json = new JSONObject(metrics);
-        byte[] buffer = json.toString().getBytes();
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length, address, port);
-        socket.send(packet);
+    /**
+     * Sends one collection tick. The binary path copies the frame into the
+     * reused datagram buffer and allocates nothing once every series has been
+     * seen; the JSON path builds a JSONObject as before.
+     */
+    public synchronized void sendMetrics(MetricFrame frame) throws Exception {
+        if (binary) {
+            long now = frame.timestamp;
+            boolean keyframe = now - lastKeyframe >= keyframeIntervalMs;
+            if (keyframe) {
+                lastKeyframe = now;
+            }
+            int count = 0;
+            for (int i = 0; i < frame.count; i++) {
+                String name = frame.names[i];
+                double value = frame.values[i];
+                double[] last = lastSent.get(name);
+                if (last == null) {
+                    if (!wireProtocol.fits(name)) {
+                        skip(name);
+                        continue;
+                    }
+                    last = new double[1];
+                    lastSent.put(name, last);
+                } else if (last == UNSENDABLE || !keyframe && !changed(last[0], value)) {
+                    continue;
+                }
+                last[0] = value;
+                if (count == tickNames.length) {
+                    tickNames = Arrays.copyOf(tickNames, count * 2);
+                    tickValues = Arrays.copyOf(tickValues, count * 2);
+                }
+                tickNames[count] = name;
+                tickValues[count] = value;
+                count++;
+            }
+            addTick(frame.deviceId, now, count);
+            if (batchDevice != null && now - wireProtocol.baseTimestamp() >= sendIntervalMs) {
+                flushBatch();
+            }
+            return;
+        }
+        
+        JSONArray metricList = new JSONArray();
+        for (int i = 0; i < frame.count; i++) {
+            metricList.put(new JSONArray().put(frame.names[i]).put(jsonNumber(frame.values[i])));
+        }
+        JSONObject json = new JSONObject();
+        json.put("dev", frame.deviceId);
+        json.put("ts", frame.timestamp / 1000);
+        json.put("m", metricList);
+        sendJson(json);
     }
     
-    public void sendAlert(String deviceId, List<Map<String, Object>> alerts) throws Exception {
+    // Counters and sizes go out as integers, as the collector has always received them
+    private static Object jsonNumber(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? (Object) (long) value : (Object) value;
+    }
+    
+    private boolean changed(double last, double value) {
+        if (deadband == 0) {
+            return Double.doubleToLongBits(value) != Double.doubleToLongBits(last);
+        }
+        return !(Math.abs(value - last) <= deadband * Math.abs(last));
+    }
+    
+    // Binary names carry a one-byte length; longer ones are reported once and never sent
+    private void skip(String name) {
+        lastSent.put(name, UNSENDABLE);
+        namesSkipped++;
+        System.err.println("Not sending metric " + name + ": longer than "
+                + WireProtocol.MAX_NAME_BYTES + " bytes with its labels");
+    }
+    
+    private boolean sendable(String name) {
+        double[] last = lastSent.get(name);
+        if (last == null && !wireProtocol.fits(name)) {
+            skip(name);
+            return false;
+        }
+        return last != UNSENDABLE;
+    }
+    
+    // Appends the tick's samples, splitting them over datagrams if they do not fit
+    private void addTick(String deviceId, long timestamp, int count) throws Exception {
+        if (batchDevice != null && (!batchDevice.equals(deviceId) || timestamp < wireProtocol.baseTimestamp()
+                || wireProtocol.tickCount() == WireProtocol.MAX_TICKS)) {
+            flushBatch();
+        }
+        int from = 0;
+        while (from < count) {
+            if (batchDevice == null) {
+                wireProtocol.beginBatch(deviceId, timestamp);
+                batchDevice = deviceId;
+            }
+            int space = wireProtocol.remaining() - WireProtocol.TICK_HEADER_SIZE;
+            int to = from;
+            while (to < count && (space -= wireProtocol.sampleSize(tickNames[to])) >= 0) {
+                to++;
+            }
+            if (to == from) {
+                if (wireProtocol.tickCount() == 0) {
+                    throw new IllegalStateException("Metric " + tickNames[from] + " does not fit in a datagram");
+                }
+                flushBatch();
+                continue;
+            }
+            wireProtocol.beginTick(timestamp, to - from);
+            for (int i = from; i < to; i++) {
+                wireProtocol.putSample(tickNames[i], tickValues[i]);
+            }
+            from = to;
+            if (from < count) {
+                flushBatch();
+            }
+        }
+    }
+    
+    private void flushBatch() throws Exception {
+        if (batchDevice == null) {
+            return;
+        }
+        batchDevice = null;
+        if (wireProtocol.tickCount() > 0) {
+            sendBinary();
+        }
+    }
+    
+    public synchronized void sendAlert(MetricFrame alerts) throws Exception {
+        if (binary) {
+            sendList(WireProtocol.TYPE_ALERT, alerts);
+            return;
+        }
+        
+        JSONArray alertList = new JSONArray();
+        for (int i = 0; i < alerts.count; i++) {
+            alertList.put(new JSONObject().put("metric", alerts.names[i]).put("value", jsonNumber(alerts.values[i])));
+        }
         JSONObject alertPacket = new JSONObject();
-        alertPacket.put("dev", deviceId);
-        alertPacket.put("ts", System.currentTimeMillis() / 1000);
-        alertPacket.put("alert", new JSONArray(alerts));
+        alertPacket.put("dev", alerts.deviceId);
+        alertPacket.put("ts", alerts.timestamp / 1000);
+        alertPacket.put("alert", alertList);
+        sendJson(alertPacket);
+    }
+    
+    // Tells the collector how often each listed metric is now sampled (values in ms)
+    public synchronized void sendIntervals(MetricFrame intervals) throws Exception {
+        if (binary) {
+            sendList(WireProtocol.TYPE_INTERVAL, intervals);
+            return;
+        }
         
-        byte[] buffer = alertPacket.toString().getBytes();
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length, address, port);
-        socket.send(packet);
+        JSONArray intervalList = new JSONArray();
+        for (int i = 0; i < intervals.count; i++) {
+            intervalList.put(new JSONArray().put(intervals.names[i]).put((long) intervals.values[i]));
+        }
+        JSONObject intervalPacket = new JSONObject();
+        intervalPacket.put("dev", intervals.deviceId);
+        intervalPacket.put("ts", intervals.timestamp / 1000);
+        intervalPacket.put("interval", intervalList);
+        sendJson(intervalPacket);
+    }
+    
+    // As many datagrams of the given type as the list needs
+    private void sendList(byte type, MetricFrame list) throws Exception {
+        flushBatch(); // Shares the datagram buffer; also gets the samples behind an alert out first
+        int i = nextSendable(list, 0);
+        while (i < list.count) {
+            wireProtocol.beginList(type, list.deviceId, list.timestamp);
+            do {
+                wireProtocol.putSample(list.names[i], list.values[i]);
+                i = nextSendable(list, i + 1);
+            } while (i < list.count && wireProtocol.sampleSize(list.names[i]) <= wireProtocol.remaining());
+            sendBinary();
+        }
+    }
+    
+    private int nextSendable(MetricFrame list, int i) {
+        while (i < list.count && !sendable(list.names[i])) {
+            i++;
+        }
+        return i;
+    }
+    
+    private void sendBinary() throws Exception {
+        int number = sequence++;
+        send(wireProtocol.finish(number), number);
+    }
+    
+    /**
+     * Attaches labels, e.g. region=eu, to every series this exporter sends. Call
+     * before the first send: binary names are only labelled when first announced.
+     */
+    public void useLabels(Map<String, String> labelMap) {
+        if (labelMap.isEmpty()) {
+            return;
+        }
+        StringBuilder suffix = new StringBuilder("{");
+        for (Map.Entry<String, String> label : new TreeMap<>(labelMap).entrySet()) {
+            if (suffix.length() > 1) {
+                suffix.append(',');
+            }
+            suffix.append(label.getKey()).append("=\"")
+                    .append(label.getValue().replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        }
+        wireProtocol.useLabels(suffix.append('}').toString());
+        labels = new JSONObject(labelMap);
+    }
+    
+    private void sendJson(JSONObject json) throws Exception {
+        if (labels != null) {
+            json.put("labels", labels);
+        }
+        int number = sequence++;
+        json.put("epoch", epoch);
+        json.put("seq", Integer.toUnsignedLong(number));
+        send(ByteBuffer.wrap(json.toString().getBytes()), number);
+    }
+    
+    // DatagramChannel copies through a cached direct buffer; DatagramSocket would wrap every packet
+    private void send(ByteBuffer data, int number) throws Exception {
+        if (retained != null) {
+            retain(data, number);
+        }
+        channel.send(data, target);
+        datagramsSent++;
     }
     
-    public void close() {
-        if (socket != null && !socket.isClosed()) {
-            socket.close();
+    private void retain(ByteBuffer data, int number) {
+        int slot = Integer.remainderUnsigned(number, retained.length);
+        int length = data.remaining();
+        if (retained[slot].capacity() < length) {
+            retained[slot] = ByteBuffer.allocate(length); // Only JSON datagrams outgrow the MTU
+        }
+        data.get(data.position(), retained[slot].array(), 0, length);
+        retained[slot].clear().limit(length);
+        retainedSequences[slot] = number;
+        retransmitted[slot] = false;
+    }
+    
+    private void receiveNacks() {
+        ByteBuffer buffer = ByteBuffer.allocate(1500);
+        long[] ranges = new long[2 * MAX_NACK_RANGES];
+        try {
+            while (true) {
+                buffer.clear();
+                SocketAddress from = channel.receive(buffer);
+                buffer.flip();
+                if (!target.equals(from)) {
+                    continue; // Only the collector may trigger retransmissions
+                }
+                int count;
+                try {
+                    count = wireProtocol.readNack(buffer, ranges);
+                } catch (RuntimeException e) {
+                    continue; // Truncated or malformed
+                }
+                if (count > 0) {
+                    retransmit(ranges, count);
+                }
+            }
+        } catch (ClosedChannelException e) {
+            // close() closed the channel
+        } catch (Exception e) {
+            System.err.println("NACK listener error: " + e.getMessage());
+        }
+    }
+    
+    private synchronized void retransmit(long[] ranges, int count) throws Exception {
+        nacksReceived++;
+        long now = System.nanoTime();
+        retransmitTokens = Math.min(retransmitRate, retransmitTokens + (now - tokensRefilledAt) / 1e9 * retransmitRate);
+        tokensRefilledAt = now;
+        for (int r = 0; r < count; r++) {
+            long length = Math.min(ranges[2 * r + 1], retained.length);
+            for (long i = 0; i < length; i++) {
+                int number = (int) (ranges[2 * r] + i);
+                int slot = Integer.remainderUnsigned(number, retained.length);
+                if (retainedSequences[slot] != number || retransmitted[slot]) {
+                    retransmitsUnavailable++; // Overwritten already, or resent once
+                } else if (retransmitTokens < 1) {
+                    retransmitsThrottled++;
+                } else {
+                    retransmitTokens--;
+                    retransmitted[slot] = true;
+                    retained[slot].position(0);
+                    channel.send(retained[slot], target);
+                    retransmits++;
+                }
+            }
+        }
+    }
+    
+    public synchronized JSONObject stats() {
+        return new JSONObject()
+                .put("epoch", epoch)
+                .put("sequence", Integer.toUnsignedLong(sequence))
+                .put("datagramsSent", datagramsSent)
+                .put("namesSkipped", namesSkipped)
+                .put("retransmitBuffer", retained == null ? 0 : retained.length)
+                .put("nacksReceived", nacksReceived)
+                .put("retransmits", retransmits)
+                .put("retransmitsThrottled", retransmitsThrottled)
+                .put("retransmitsUnavailable", retransmitsUnavailable);
+    }
+    
+    public synchronized void close() {
+        try {
+            flushBatch();
+        } catch (Exception e) {
+            System.err.println("Could not send the last batch: " + e.getMessage());
+        }
+        try {
+            channel.close();
+        } catch (Exception e) {
+            System.err.println("Error closing UDP channel: " + e.getMessage());
         }
     }
 }
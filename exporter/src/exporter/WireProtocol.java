@@ -0,0 +1,250 @@
+package exporter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encoder for the binary datagram format understood by collector.WireProtocol.
+ * Each metric name gets a small id the first time it is sent; the names are
+ * re-announced periodically so a restarted collector can rebuild its dictionary.
+ *
+ * A batch datagram ({@link #beginBatch}) carries several collection ticks, each
+ * with its own timestamp offset and sample list.
+ *
+ * Every datagram carries this run's epoch and a sequence number, patched in by
+ * {@link #finish}, so the collector can account for loss and NACK gaps.
+ */
+public class WireProtocol {
+    public static final byte MAGIC = (byte) 0xB7;
+    public static final byte VERSION = 1;
+    public static final byte TYPE_METRICS = 1;
+    public static final byte TYPE_ALERT = 2;
+    public static final byte TYPE_BATCH = 3;
+    public static final byte TYPE_INTERVAL = 4; // Values are sampling intervals in ms
+    public static final byte TYPE_NACK = 5; // Collector to exporter
+    public static final byte FLAG_SEQUENCED = 1;
+    public static final int MAX_TICKS = 0xFFFF;
+    public static final int TICK_HEADER_SIZE = 10; // Upper bound of a beginTick record
+    public static final int MAX_NAME_BYTES = 255; // Device ids and names carry a one-byte length
+    
+    private static final long ANNOUNCE_INTERVAL_MS = 10_000;
+    
+    private final int epoch;
+    private final Map<String, SeriesId> seriesIds = new HashMap<>();
+    private final ByteBuffer buffer = ByteBuffer.allocate(1472); // Fits an Ethernet MTU
+    private long announcedAt = -ANNOUNCE_INTERVAL_MS;
+    private boolean announcing; // Every name in the current datagram is sent along
+    private String device;
+    private String labelSuffix = ""; // {name="value",...} appended to announced names
+    private byte[] deviceBytes; // UTF-8 of device, encoded once
+    
+    private int sequencePosition;
+    private int listCountPosition = -1;
+    private int listCount;
+    private int tickCountPosition = -1;
+    private int tickCount;
+    private long baseTimestamp;
+    
+    public WireProtocol(int epoch) {
+        this.epoch = epoch;
+    }
+    
+    // Labels for every series; only announced names carry them, so they cost nothing per sample
+    public void useLabels(String suffix) {
+        if (suffix.getBytes(StandardCharsets.UTF_8).length > MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("Labels are longer than " + MAX_NAME_BYTES + " bytes: " + suffix);
+        }
+        labelSuffix = suffix;
+    }
+    
+    public ByteBuffer begin(byte type, String deviceId, long timestampMs, int sampleCount) {
+        header(type, deviceId, timestampMs);
+        writeVarint(sampleCount);
+        return buffer;
+    }
+    
+    /**
+     * Like begin, for a sample list whose length is only known at finish: the
+     * count is patched in as a two-byte varint (zero-padded when small).
+     */
+    public void beginList(byte type, String deviceId, long timestampMs) {
+        header(type, deviceId, timestampMs);
+        listCountPosition = buffer.position();
+        listCount = 0;
+        buffer.putShort((short) 0);
+    }
+    
+    public void beginBatch(String deviceId, long baseTimestampMs) {
+        header(TYPE_BATCH, deviceId, baseTimestampMs);
+        baseTimestamp = baseTimestampMs;
+        tickCountPosition = buffer.position();
+        tickCount = 0;
+        buffer.putShort((short) 0);
+    }
+    
+    private void header(byte type, String deviceId, long timestampMs) {
+        buffer.clear();
+        buffer.put(MAGIC).put(VERSION).put(type).put(FLAG_SEQUENCED);
+        buffer.putLong(timestampMs);
+        if (!deviceId.equals(device)) {
+            byte[] bytes = deviceId.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > MAX_NAME_BYTES) {
+                throw new IllegalArgumentException("Device id is longer than " + MAX_NAME_BYTES + " bytes: " + deviceId);
+            }
+            device = deviceId;
+            deviceBytes = bytes;
+        }
+        buffer.put((byte) deviceBytes.length).put(deviceBytes);
+        buffer.putInt(epoch);
+        sequencePosition = buffer.position();
+        buffer.putInt(0);
+        tickCountPosition = -1;
+        listCountPosition = -1;
+        
+        // Time based rather than per packet count: batching makes the packet rate vary widely
+        announcing = timestampMs - announcedAt >= ANNOUNCE_INTERVAL_MS;
+        if (announcing) {
+            announcedAt = timestampMs;
+        }
+    }
+    
+    // Starts the next tick of a batch; its samples follow through putSample
+    public void beginTick(long timestampMs, int sampleCount) {
+        writeVarint((int) (timestampMs - baseTimestamp));
+        writeVarint(sampleCount);
+        tickCount++;
+    }
+    
+    public int tickCount() {
+        return tickCount;
+    }
+    
+    public long baseTimestamp() {
+        return baseTimestamp;
+    }
+    
+    // Whether the name, with the labels, is short enough to be announced
+    public boolean fits(String name) {
+        return seriesIds.containsKey(name) || labelled(name).length <= MAX_NAME_BYTES;
+    }
+    
+    private byte[] labelled(String name) {
+        return (name + labelSuffix).getBytes(StandardCharsets.UTF_8);
+    }
+    
+    // Bytes putSample would write for this name in the current datagram
+    public int sampleSize(String name) {
+        SeriesId id = seriesIds.get(name);
+        if (id == null) {
+            return 5 + 1 + 3 * (name.length() + labelSuffix.length()) + 8;
+        }
+        int size = varintSize(id.id << 1) + 8;
+        return announcing ? size + 1 + id.name.length : size;
+    }
+    
+    public int remaining() {
+        return buffer.remaining();
+    }
+    
+    public void putSample(String name, double value) {
+        SeriesId id = seriesIds.get(name);
+        boolean announce = id == null || announcing;
+        if (id == null) {
+            byte[] bytes = labelled(name);
+            if (bytes.length > MAX_NAME_BYTES) {
+                throw new IllegalArgumentException("Metric name is longer than " + MAX_NAME_BYTES + " bytes: " + name + labelSuffix);
+            }
+            id = new SeriesId(seriesIds.size(), bytes);
+            seriesIds.put(name, id);
+        }
+        if (announce) {
+            writeVarint((id.id << 1) | 1);
+            buffer.put((byte) id.name.length).put(id.name);
+        } else {
+            writeVarint(id.id << 1);
+        }
+        buffer.putDouble(value);
+        listCount++;
+    }
+    
+    // Completes the datagram as number sequence of this run
+    public ByteBuffer finish(int sequence) {
+        buffer.putInt(sequencePosition, sequence);
+        if (tickCountPosition >= 0) {
+            buffer.putShort(tickCountPosition, (short) tickCount);
+            tickCountPosition = -1;
+        }
+        if (listCountPosition >= 0) {
+            buffer.put(listCountPosition, (byte) (listCount & 0x7F | 0x80));
+            buffer.put(listCountPosition + 1, (byte) (listCount >>> 7));
+            listCountPosition = -1;
+        }
+        buffer.flip();
+        return buffer;
+    }
+    
+    /**
+     * Reads a NACK datagram into {@code ranges} as (first sequence number, length)
+     * pairs. Returns the number of pairs, or -1 if {@code buf} is not a NACK for
+     * this run.
+     */
+    public int readNack(ByteBuffer buf, long[] ranges) {
+        if (buf.remaining() < 13 || buf.get() != MAGIC || buf.get() != VERSION || buf.get() != TYPE_NACK) {
+            return -1;
+        }
+        buf.get(); // flags
+        buf.getLong(); // timestamp
+        int deviceLength = buf.get() & 0xFF;
+        buf.position(buf.position() + deviceLength); // The epoch is specific enough
+        if (buf.getInt() != epoch) {
+            return -1;
+        }
+        int count = Math.min(readVarint(buf), ranges.length / 2);
+        for (int i = 0; i < count; i++) {
+            ranges[2 * i] = buf.getInt() & 0xFFFFFFFFL;
+            ranges[2 * i + 1] = readVarint(buf);
+        }
+        return count;
+    }
+    
+    private static int readVarint(ByteBuffer buf) {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buf.get();
+            result |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+    
+    private void writeVarint(int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+    
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+    
+    private static final class SeriesId {
+        final int id;
+        final byte[] name; // UTF-8, sent when announcing
+        
+        SeriesId(int id, byte[] name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+}